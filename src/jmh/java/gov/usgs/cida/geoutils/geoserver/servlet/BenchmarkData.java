@@ -0,0 +1,87 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Creates the files benchmarks run against. Content is random so that neither
+ * compression nor encoding gets an easy ride.
+ */
+class BenchmarkData {
+
+    static final String PRJ = "GEOGCS[\"GCS_WGS_1984\",DATUM[\"D_WGS_1984\",SPHEROID[\"WGS_1984\",6378137,298.257223563]],PRIMEM[\"Greenwich\",0],UNIT[\"Degree\",0.017453292519943295]]";
+    private static final int BUFFER_SIZE = 65536;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @param size
+     * @return a temporary file of random bytes
+     * @throws IOException
+     */
+    static File createRandomFile(long size) throws IOException {
+        File file = File.createTempFile("benchmark.", ".bin");
+        OutputStream outputStream = null;
+        try {
+            outputStream = new BufferedOutputStream(new FileOutputStream(file));
+            writeRandom(outputStream, size);
+        } finally {
+            IOUtils.closeQuietly(outputStream);
+        }
+        return file;
+    }
+
+    /**
+     * @param size roughly how large the zip should be
+     * @return a temporary shapefile zip nested in a directory the way
+     * desktop tools create them, with most of its bytes in the .shp
+     * @throws IOException
+     */
+    static File createShapefileZip(long size) throws IOException {
+        File file = File.createTempFile("benchmark.", ".zip");
+        ZipOutputStream zipOutputStream = null;
+        try {
+            zipOutputStream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            zipOutputStream.putNextEntry(new ZipEntry("data/"));
+            zipOutputStream.closeEntry();
+            zipOutputStream.putNextEntry(new ZipEntry("data/roads.shp"));
+            writeRandom(zipOutputStream, size * 8 / 10);
+            zipOutputStream.closeEntry();
+            zipOutputStream.putNextEntry(new ZipEntry("data/roads.shx"));
+            writeRandom(zipOutputStream, size / 20);
+            zipOutputStream.closeEntry();
+            zipOutputStream.putNextEntry(new ZipEntry("data/roads.dbf"));
+            writeRandom(zipOutputStream, size * 3 / 20);
+            zipOutputStream.closeEntry();
+            zipOutputStream.putNextEntry(new ZipEntry("data/roads.prj"));
+            zipOutputStream.write(PRJ.getBytes("UTF-8"));
+            zipOutputStream.closeEntry();
+            zipOutputStream.putNextEntry(new ZipEntry("__MACOSX/data/._roads.shp"));
+            writeRandom(zipOutputStream, 4096);
+            zipOutputStream.closeEntry();
+        } finally {
+            IOUtils.closeQuietly(zipOutputStream);
+        }
+        return file;
+    }
+
+    private static void writeRandom(OutputStream outputStream, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = size;
+        while (remaining > 0) {
+            random.nextBytes(buffer);
+            int length = (int) Math.min(buffer.length, remaining);
+            outputStream.write(buffer, 0, length);
+            remaining -= length;
+        }
+    }
+}
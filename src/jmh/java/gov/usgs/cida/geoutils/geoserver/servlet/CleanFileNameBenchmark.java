@@ -0,0 +1,42 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cleans upload file names of several lengths that start with a digit and
+ * are full of characters that need replacing
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CleanFileNameBenchmark {
+
+    @Param({"16", "64", "255"})
+    public int length;
+    private String fileName;
+
+    @Setup
+    public void setUp() {
+        fileName = StringUtils.left("2013 Roads & Bridges (final) - v2" + StringUtils.repeat("-copy", length), length - 4) + ".zip";
+    }
+
+    @Benchmark
+    public String cleanFileName() {
+        return ShapefileUploadServlet.cleanFileName(fileName);
+    }
+}
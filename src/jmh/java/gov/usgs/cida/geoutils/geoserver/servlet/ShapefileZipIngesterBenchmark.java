@@ -0,0 +1,85 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Flattens, validates and digests an uploaded shapefile zip into a file, as
+ * done for every upload before it is imported
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ShapefileZipIngesterBenchmark {
+
+    /**
+     * The upload, shared by all threads
+     */
+    @State(Scope.Benchmark)
+    public static class Upload {
+
+        @Param({"1048576", "16777216", "268435456"})
+        public long size;
+        private File zipFile;
+
+        @Setup
+        public void setUp() throws IOException {
+            zipFile = BenchmarkData.createShapefileZip(size);
+        }
+
+        @TearDown
+        public void tearDown() {
+            FileUtils.deleteQuietly(zipFile);
+        }
+    }
+
+    /**
+     * Where each thread writes the flattened zip
+     */
+    @State(Scope.Thread)
+    public static class Destination {
+
+        private File file;
+
+        @Setup
+        public void setUp() throws IOException {
+            file = File.createTempFile("benchmark.", ".zip");
+        }
+
+        @TearDown
+        public void tearDown() {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    @Benchmark
+    public ShapefileZipIngester.Result ingest(Upload upload, Destination destination) throws IOException {
+        InputStream inputStream = null;
+        try {
+            inputStream = new BufferedInputStream(new FileInputStream(upload.zipFile));
+            return new ShapefileZipIngester(Long.MAX_VALUE).ingest(inputStream, destination.file);
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Resolves the settings of a request the way doPost does, with and without
+ * request parameters overriding the configuration, and builds the
+ * configuration itself as done on every reload
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UploadServletConfigBenchmark {
+
+    private static final String APPLICATION_NAME = "benchmark";
+    /**
+     * Whether the request overrides the configured settings
+     */
+    @Param({"false", "true"})
+    public boolean overridden;
+    private ServletConfig servletConfig;
+    private Properties props;
+    private PoolingClientConnectionManager connectionManager;
+    private DefaultHttpClient httpClient;
+    private UploadServletConfig uploadConfig;
+    private HttpServletRequest request;
+
+    @Setup
+    public void setUp() throws ServletException {
+        Map<String, String> initParameters = new HashMap<String, String>();
+        initParameters.put("application.name", APPLICATION_NAME);
+        servletConfig = createProxy(ServletConfig.class, initParameters);
+
+        props = new Properties();
+        props.setProperty(APPLICATION_NAME + ".geoserver.endpoint", "http://localhost:8080/geoserver/");
+        props.setProperty(APPLICATION_NAME + ".geoserver.username", "admin");
+        props.setProperty(APPLICATION_NAME + ".geoserver.password", "geoserver");
+        props.setProperty(APPLICATION_NAME + ".default.upload.workspace", "upload");
+        props.setProperty(APPLICATION_NAME + ".default.srs", "EPSG:4326");
+
+        connectionManager = new PoolingClientConnectionManager();
+        httpClient = new DefaultHttpClient(connectionManager);
+        uploadConfig = new UploadServletConfig(servletConfig, props, httpClient, connectionManager);
+
+        Map<String, String> parameters = new HashMap<String, String>();
+        if (overridden) {
+            parameters.put("filename.param", "file");
+            parameters.put("overwrite.existing.layer", "true");
+            parameters.put("use.crs.failover", "false");
+            parameters.put("projection.policy", "force");
+            parameters.put("async", "true");
+            parameters.put("force.import", "true");
+        }
+        request = createProxy(HttpServletRequest.class, parameters);
+    }
+
+    @TearDown
+    public void tearDown() {
+        connectionManager.shutdown();
+    }
+
+    @Benchmark
+    public void resolveRequest(Blackhole blackhole) {
+        blackhole.consume(uploadConfig.getFilenameParam(request));
+        blackhole.consume(uploadConfig.isOverwriteExistingLayer(request));
+        blackhole.consume(uploadConfig.isUseBaseCRSFailover(request));
+        blackhole.consume(uploadConfig.getProjectionPolicy(request));
+        blackhole.consume(uploadConfig.isAsyncImport(request));
+        blackhole.consume(uploadConfig.isDedupEnabled(request));
+        blackhole.consume(uploadConfig.getMaxFileSize());
+    }
+
+    @Benchmark
+    public UploadServletConfig reload() throws ServletException {
+        return new UploadServletConfig(servletConfig, props, httpClient, connectionManager);
+    }
+
+    /**
+     * @return a ServletConfig or HttpServletRequest answering
+     * getInitParameter and getParameter from a map and everything else with
+     * null
+     */
+    private static <T> T createProxy(Class<T> type, final Map<String, String> parameters) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (("getParameter".equals(method.getName()) || "getInitParameter".equals(method.getName())) && args != null && args.length == 1) {
+                    return parameters.get((String) args[0]);
+                }
+                return null;
+            }
+        }));
+    }
+}
@@ -0,0 +1,61 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import it.geosolutions.geoserver.rest.encoder.GSResourceEncoder.ProjectionPolicy;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writes the gs:Import Execute request, which base64 encodes the shapefile
+ * zip, to a stream that discards it. Divide the size by the time per
+ * operation for encoding throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WPSImportRequestEntityBenchmark {
+
+    /**
+     * Zip sizes from 1 MB to 1 GB
+     */
+    @Param({"1048576", "16777216", "268435456", "1073741824"})
+    public long size;
+    private File zipFile;
+    private WPSImportRequestEntity entity;
+
+    @Setup
+    public void setUp() throws IOException {
+        zipFile = BenchmarkData.createRandomFile(size);
+        entity = new WPSImportRequestEntity(zipFile, "benchmark", "roads", "roads", "EPSG:4326", ProjectionPolicy.REPROJECT_TO_DECLARED, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        FileUtils.deleteQuietly(zipFile);
+    }
+
+    @Benchmark
+    public long writeTo() throws IOException {
+        CountingOutputStream outputStream = new CountingOutputStream(new NullOutputStream());
+        entity.writeTo(outputStream);
+        return outputStream.getByteCount();
+    }
+}
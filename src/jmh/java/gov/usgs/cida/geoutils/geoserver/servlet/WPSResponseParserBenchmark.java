@@ -0,0 +1,62 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parses gs:Import responses: a layer name and exception reports with
+ * exception text of several lengths
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WPSResponseParserBenchmark {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long MAX_RESPONSE_SIZE = 1048576;
+    /**
+     * Length of the exception text, 0 for a successful import
+     */
+    @Param({"0", "256", "4096", "262144"})
+    public int textLength;
+    private byte[] response;
+
+    @Setup
+    public void setUp() {
+        if (textLength == 0) {
+            response = "roads\n".getBytes(UTF8);
+        } else {
+            response = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                    + "<ows:ExceptionReport xmlns:ows=\"http://www.opengis.net/ows/1.1\" version=\"1.1.0\">"
+                    + "<ows:Exception exceptionCode=\"NoApplicableCode\"><ows:ExceptionText>"
+                    + StringUtils.repeat("x", textLength)
+                    + "</ows:ExceptionText></ows:Exception></ows:ExceptionReport>").getBytes(UTF8);
+        }
+    }
+
+    @Benchmark
+    public String parse() throws IOException {
+        try {
+            return WPSResponseParser.parse(new ByteArrayInputStream(response), UTF8, MAX_RESPONSE_SIZE);
+        } catch (ImportFailedException ex) {
+            return ex.getMessage();
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * Runs ShapefileUploadServlet in an embedded Jetty against a stub GeoServer
+ * and pushes synthetic shapefile zips through it from concurrent clients.
+ * Reports throughput, latency percentiles, failures, the most temporary disk
+ * space used and heap use. Run with "mvn -P loadtest verify".
+ * <p>
+ * Settings are read from system properties:
+ * <ul>
+ * <li>loadtest.requests: number of uploads (200)</li>
+ * <li>loadtest.threads: concurrent clients (8)</li>
+ * <li>loadtest.zip.size: bytes of shapefile data per zip (1048576)</li>
+ * <li>loadtest.geoserver.latency: milliseconds every GeoServer call takes
+ * (100)</li>
+ * <li>loadtest.geoserver.latency.jitter: up to this many milliseconds are
+ * randomly added (50)</li>
+ * <li>loadtest.geoserver.exception.rate: share of imports failing with an
+ * exception report (0)</li>
+ * <li>loadtest.geoserver.error.rate: share of imports failing with an HTTP
+ * 500 (0)</li>
+ * <li>loadtest.report: file the report is also written to as properties</li>
+ * <li>loadtest.servlet.*: passed to the servlet as init parameters, for
+ * instance loadtest.servlet.admission.max.concurrent=4</li>
+ * </ul>
+ * Temporary disk use is measured in java.io.tmpdir, which should be a
+ * directory used only by the load test.
+ */
+public class LoadTestHarness {
+
+    private static final String APPLICATION_NAME = "loadtest";
+    private static final String SERVLET_PREFIX = "loadtest.servlet.";
+    private static final long SAMPLE_INTERVAL = 50;
+
+    private LoadTestHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int requests = Integer.getInteger("loadtest.requests", 200);
+        int threads = Integer.getInteger("loadtest.threads", 8);
+        int zipSize = Integer.getInteger("loadtest.zip.size", 1048576);
+        File tempDir = new File(System.getProperty("java.io.tmpdir"));
+        FileUtils.forceMkdir(tempDir);
+
+        StubGeoServerServlet stub = new StubGeoServerServlet(
+                Long.getLong("loadtest.geoserver.latency", 100),
+                Long.getLong("loadtest.geoserver.latency.jitter", 50),
+                Double.parseDouble(System.getProperty("loadtest.geoserver.exception.rate", "0")),
+                Double.parseDouble(System.getProperty("loadtest.geoserver.error.rate", "0")));
+        Server geoserver = new Server(0);
+        ServletContextHandler geoserverContext = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        geoserverContext.setContextPath("/geoserver");
+        geoserverContext.addServlet(new ServletHolder(stub), "/*");
+        geoserver.setHandler(geoserverContext);
+        geoserver.start();
+        String geoserverEndpoint = "http://localhost:" + ((ServerConnector) geoserver.getConnectors()[0]).getLocalPort() + "/geoserver";
+
+        ServletHolder uploadHolder = new ServletHolder(new ShapefileUploadServlet());
+        uploadHolder.setInitParameter("application.name", APPLICATION_NAME);
+        uploadHolder.setInitParameter("geoserver.endpoint", geoserverEndpoint);
+        uploadHolder.setInitParameter("geoserver.username", "admin");
+        uploadHolder.setInitParameter("geoserver.password", "geoserver");
+        uploadHolder.setInitParameter("default.upload.workspace", APPLICATION_NAME);
+        uploadHolder.setInitParameter("default.srs", "EPSG:4326");
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(SERVLET_PREFIX)) {
+                uploadHolder.setInitParameter(name.substring(SERVLET_PREFIX.length()), System.getProperty(name));
+            }
+        }
+        uploadHolder.setInitOrder(1);
+        uploadHolder.setAsyncSupported(true);
+        Server uploadServer = new Server(0);
+        ServletContextHandler uploadContext = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        uploadContext.setContextPath("/" + APPLICATION_NAME);
+        uploadContext.addServlet(uploadHolder, "/service/import/shapefile");
+        uploadServer.setHandler(uploadContext);
+        uploadServer.start();
+        String uploadURL = "http://localhost:" + ((ServerConnector) uploadServer.getConnectors()[0]).getLocalPort() + "/" + APPLICATION_NAME + "/service/import/shapefile";
+
+        Map<String, String> report;
+        try {
+            report = run(uploadURL, requests, threads, zipSize, tempDir);
+            report.put("geoserver.imports", String.valueOf(stub.getImports()));
+            report.put("geoserver.injected.failures", String.valueOf(stub.getFailures()));
+            report.put("geoserver.bytes.received", String.valueOf(stub.getBytesReceived()));
+        } finally {
+            uploadServer.stop();
+            geoserver.stop();
+        }
+
+        for (Map.Entry<String, String> entry : report.entrySet()) {
+            System.out.println(entry.getKey() + " = " + entry.getValue());
+        }
+        String reportFile = System.getProperty("loadtest.report");
+        if (reportFile != null && reportFile.trim().length() > 0) {
+            Properties properties = new Properties();
+            properties.putAll(report);
+            OutputStream outputStream = null;
+            try {
+                outputStream = new FileOutputStream(reportFile);
+                properties.store(outputStream, "Load test of " + requests + " uploads of " + zipSize + " bytes from " + threads + " threads");
+            } finally {
+                IOUtils.closeQuietly(outputStream);
+            }
+        }
+    }
+
+    /**
+     * Uploads a zip per request from a pool of clients while sampling
+     * temporary disk and heap use
+     *
+     * @return the report
+     */
+    private static Map<String, String> run(final String uploadURL, final int requests, int threads, final int zipSize, final File tempDir) throws InterruptedException {
+        PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
+        connectionManager.setMaxTotal(threads);
+        connectionManager.setDefaultMaxPerRoute(threads);
+        final DefaultHttpClient httpClient = new DefaultHttpClient(connectionManager);
+
+        final AtomicLong tempDiskHighWater = new AtomicLong();
+        final AtomicLong heapHighWater = new AtomicLong();
+        final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    updateMax(tempDiskHighWater, FileUtils.sizeOfDirectory(tempDir));
+                } catch (IllegalArgumentException ex) {
+                    // A file went away while the directory was being walked
+                }
+                updateMax(heapHighWater, memoryBean.getHeapMemoryUsage().getUsed());
+            }
+        }, 0, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+
+        final AtomicInteger nextRequest = new AtomicInteger();
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>(requests));
+        ExecutorService clients = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int thread = 0; thread < threads; thread++) {
+            final int seed = thread;
+            clients.execute(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] zip;
+                    try {
+                        zip = createShapefileZip(zipSize, seed);
+                    } catch (IOException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                    int request;
+                    while ((request = nextRequest.getAndIncrement()) < requests) {
+                        String layerName = "load_" + request;
+                        HttpPost post = new HttpPost(uploadURL + "?qqfile=" + layerName + ".zip&layer=" + layerName + "&store=" + layerName);
+                        post.setEntity(new ByteArrayEntity(zip, ContentType.create("application/zip")));
+                        long requestStart = System.nanoTime();
+                        try {
+                            HttpResponse response = httpClient.execute(post);
+                            String body = EntityUtils.toString(response.getEntity());
+                            latencies.add(System.nanoTime() - requestStart);
+                            int status = response.getStatusLine().getStatusCode();
+                            if (status == 503) {
+                                rejected.incrementAndGet();
+                            } else if (status != 200 || body.contains("\"error\"")) {
+                                failed.incrementAndGet();
+                            } else {
+                                succeeded.incrementAndGet();
+                            }
+                        } catch (IOException ex) {
+                            latencies.add(System.nanoTime() - requestStart);
+                            failed.incrementAndGet();
+                            post.abort();
+                        }
+                    }
+                }
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        long elapsed = System.nanoTime() - start;
+        sampler.shutdownNow();
+        connectionManager.shutdown();
+
+        Map<String, String> report = new TreeMap<String, String>();
+        report.put("requests", String.valueOf(latencies.size()));
+        report.put("requests.succeeded", String.valueOf(succeeded.get()));
+        report.put("requests.failed", String.valueOf(failed.get()));
+        report.put("requests.rejected", String.valueOf(rejected.get()));
+        report.put("elapsed.ms", String.valueOf(TimeUnit.NANOSECONDS.toMillis(elapsed)));
+        report.put("throughput.per.second", String.format("%.2f", latencies.size() / (elapsed / 1e9)));
+        report.put("throughput.mb.per.second", String.format("%.2f", (double) latencies.size() * zipSize / 1048576 / (elapsed / 1e9)));
+        List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        report.put("latency.p50.ms", String.valueOf(getPercentile(sorted, 0.50)));
+        report.put("latency.p99.ms", String.valueOf(getPercentile(sorted, 0.99)));
+        report.put("latency.max.ms", String.valueOf(sorted.isEmpty() ? 0 : TimeUnit.NANOSECONDS.toMillis(sorted.get(sorted.size() - 1))));
+        report.put("temp.disk.high.water.bytes", String.valueOf(tempDiskHighWater.get()));
+        report.put("heap.high.water.bytes", String.valueOf(heapHighWater.get()));
+        report.put("heap.max.bytes", String.valueOf(memoryBean.getHeapMemoryUsage().getMax()));
+        return report;
+    }
+
+    private static long getPercentile(List<Long> sorted, double fraction) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(sorted.size() * fraction) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted.get(Math.max(0, index)));
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return a zip of a shapefile whose .shp holds size random bytes
+     */
+    private static byte[] createShapefileZip(int size, int seed) throws IOException {
+        Random random = new Random(seed);
+        byte[] shp = new byte[size];
+        random.nextBytes(shp);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size + 4096);
+        ZipOutputStream zipOutputStream = new ZipOutputStream(bytes);
+        zipOutputStream.putNextEntry(new ZipEntry("synthetic/synthetic.shp"));
+        zipOutputStream.write(shp);
+        zipOutputStream.closeEntry();
+        zipOutputStream.putNextEntry(new ZipEntry("synthetic/synthetic.shx"));
+        zipOutputStream.write(shp, 0, Math.min(size, 1024));
+        zipOutputStream.closeEntry();
+        zipOutputStream.putNextEntry(new ZipEntry("synthetic/synthetic.dbf"));
+        zipOutputStream.write(shp, 0, Math.min(size, 4096));
+        zipOutputStream.closeEntry();
+        zipOutputStream.putNextEntry(new ZipEntry("synthetic/synthetic.prj"));
+        zipOutputStream.write("GEOGCS[\"GCS_WGS_1984\",DATUM[\"D_WGS_1984\",SPHEROID[\"WGS_1984\",6378137,298.257223563]],PRIMEM[\"Greenwich\",0],UNIT[\"Degree\",0.017453292519943295]]".getBytes("UTF-8"));
+        zipOutputStream.closeEntry();
+        zipOutputStream.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,165 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Stands in for GeoServer in load tests. Implements just enough of the WPS
+ * gs:Import process and the REST catalog calls made by GeoServerClient:
+ * request bodies are read and discarded, every call waits a configurable
+ * latency and a configurable share of imports fail, either with an
+ * exception report or an HTTP 500.
+ */
+class StubGeoServerServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final Pattern LAYER_NAME = Pattern.compile("<ows:Identifier>name</ows:Identifier>\\s*<wps:Data>\\s*<wps:LiteralData>([^<]*)<");
+    // Literal inputs follow the encoded shapefile
+    private static final int TAIL_SIZE = 8192;
+    private final long latency;
+    private final long latencyJitter;
+    private final double exceptionRate;
+    private final double errorRate;
+    private final Random random = new Random();
+    private final AtomicLong imports = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    /**
+     * @param latency milliseconds every call takes
+     * @param latencyJitter up to this many milliseconds are randomly added
+     * @param exceptionRate share of imports answered with an exception report
+     * @param errorRate share of imports answered with an HTTP 500
+     */
+    StubGeoServerServlet(long latency, long latencyJitter, double exceptionRate, double errorRate) {
+        this.latency = latency;
+        this.latencyJitter = latencyJitter;
+        this.exceptionRate = exceptionRate;
+        this.errorRate = errorRate;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String tail = readBody(request);
+        simulateLatency();
+        String path = request.getPathInfo();
+        if (path != null && path.startsWith("/wps")) {
+            imports.incrementAndGet();
+            double roll = nextDouble();
+            if (roll < errorRate) {
+                failures.incrementAndGet();
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Injected failure");
+            } else if (roll < errorRate + exceptionRate) {
+                failures.incrementAndGet();
+                response.setContentType("text/xml; charset=UTF-8");
+                response.getWriter().write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                        + "<ows:ExceptionReport xmlns:ows=\"http://www.opengis.net/ows/1.1\" version=\"1.1.0\">"
+                        + "<ows:Exception exceptionCode=\"NoApplicableCode\">"
+                        + "<ows:ExceptionText>Injected failure</ows:ExceptionText>"
+                        + "</ows:Exception></ows:ExceptionReport>");
+            } else {
+                Matcher matcher = LAYER_NAME.matcher(tail);
+                response.setContentType("text/plain; charset=UTF-8");
+                response.getWriter().write(matcher.find() ? matcher.group(1) : "imported");
+            }
+        } else {
+            // Feature type publication
+            response.setStatus(HttpServletResponse.SC_CREATED);
+        }
+    }
+
+    /**
+     * Store reloads and shapefile uploads
+     */
+    @Override
+    protected void doPut(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        readBody(request);
+        simulateLatency();
+        response.setStatus(request.getPathInfo() != null && request.getPathInfo().endsWith("/file.shp") ? HttpServletResponse.SC_CREATED : HttpServletResponse.SC_OK);
+    }
+
+    /**
+     * Unpublishing
+     */
+    @Override
+    protected void doDelete(HttpServletRequest request, HttpServletResponse response) {
+        simulateLatency();
+        response.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    /**
+     * Every workspace exists. No layer exists so that uploads are never
+     * deduplicated.
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        simulateLatency();
+        String path = request.getPathInfo();
+        if (path != null && path.startsWith("/rest/workspaces/")) {
+            response.setStatus(HttpServletResponse.SC_OK);
+        } else {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+
+    /**
+     * @return the last few kilobytes of the body, decoded as ISO-8859-1 so
+     * any byte sequence is valid
+     */
+    private String readBody(HttpServletRequest request) throws IOException {
+        InputStream inputStream = request.getInputStream();
+        byte[] buffer = new byte[65536];
+        byte[] tail = new byte[TAIL_SIZE];
+        int tailLength = 0;
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            bytesReceived.addAndGet(read);
+            if (read >= TAIL_SIZE) {
+                System.arraycopy(buffer, read - TAIL_SIZE, tail, 0, TAIL_SIZE);
+                tailLength = TAIL_SIZE;
+            } else {
+                int keep = Math.min(tailLength, TAIL_SIZE - read);
+                System.arraycopy(tail, tailLength - keep, tail, 0, keep);
+                System.arraycopy(buffer, 0, tail, keep, read);
+                tailLength = keep + read;
+            }
+        }
+        return new String(tail, 0, tailLength, "ISO-8859-1");
+    }
+
+    private void simulateLatency() {
+        long delay = latency + (latencyJitter > 0 ? (long) (nextDouble() * latencyJitter) : 0);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private double nextDouble() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    long getImports() {
+        return imports.get();
+    }
+
+    long getFailures() {
+        return failures.get();
+    }
+
+    long getBytesReceived() {
+        return bytesReceived.get();
+    }
+}
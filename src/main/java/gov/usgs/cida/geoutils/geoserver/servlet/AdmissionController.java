@@ -0,0 +1,226 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits how many imports run against GeoServer at once. Imports beyond the
+ * global (and optional per workspace) limit wait in a bounded queue. Once the
+ * queue is full, or an import has waited longer than the maximum wait time,
+ * further imports are turned away with an {@link AdmissionRejectedException}.
+ */
+class AdmissionController {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(AdmissionController.class);
+    private final int limit;
+    private final Semaphore globalPermits;
+    private final Map<String, Semaphore> workspacePermits;
+    private final int maxQueueSize;
+    private final long maxWait;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger maxWaiting = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+    private final AtomicLong maxWaitMillis = new AtomicLong();
+    private final AtomicLong totalHeldMillis = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+
+    /**
+     * @param limit imports allowed to run against GeoServer at once
+     * @param workspaceLimits imports allowed to run at once per workspace. Workspaces
+     * not in this map are only subject to the global limit
+     * @param maxQueueSize imports allowed to wait for a permit
+     * @param maxWait milliseconds an import may wait for a permit, 0 to wait
+     * as long as it takes
+     */
+    AdmissionController(int limit, Map<String, Integer> workspaceLimits, int maxQueueSize, long maxWait) {
+        this.limit = Math.max(1, limit);
+        this.globalPermits = new Semaphore(this.limit, true);
+        Map<String, Semaphore> permits = new HashMap<String, Semaphore>();
+        for (Map.Entry<String, Integer> entry : workspaceLimits.entrySet()) {
+            permits.put(entry.getKey(), new Semaphore(Math.max(1, entry.getValue()), true));
+        }
+        this.workspacePermits = Collections.unmodifiableMap(permits);
+        this.maxQueueSize = Math.max(0, maxQueueSize);
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Parses per workspace limits in the form "workspace:limit,workspace:limit"
+     *
+     * @param limits
+     * @return workspace name to limit
+     */
+    static Map<String, Integer> parseWorkspaceLimits(String limits) {
+        Map<String, Integer> workspaceLimits = new HashMap<String, Integer>();
+        if (StringUtils.isNotBlank(limits)) {
+            for (String limitPair : limits.split(",")) {
+                String[] pair = limitPair.split(":");
+                if (pair.length == 2 && StringUtils.isNotBlank(pair[0]) && StringUtils.isNotBlank(pair[1]) && StringUtils.isNumeric(pair[1].trim())) {
+                    workspaceLimits.put(pair[0].trim(), Integer.parseInt(pair[1].trim()));
+                } else {
+                    LOG.warn("Could not parse workspace limit \"" + limitPair + "\". It will be ignored");
+                }
+            }
+        }
+        return workspaceLimits;
+    }
+
+    /**
+     * @return true if an import arriving now would be turned away
+     */
+    boolean isSaturated() {
+        return globalPermits.availablePermits() == 0 && waiting.get() >= maxQueueSize;
+    }
+
+    /**
+     * Waits for permission to run an import in the given workspace
+     *
+     * @param workspaceName
+     * @return a permit which must be released once the import is done
+     * @throws AdmissionRejectedException if the wait queue is full or the
+     * maximum wait time has passed
+     * @throws InterruptedException
+     */
+    Permit acquire(String workspaceName) throws AdmissionRejectedException, InterruptedException {
+        Semaphore workspaceSemaphore = workspacePermits.get(workspaceName);
+        long start = System.currentTimeMillis();
+
+        if (!(workspaceSemaphore == null || workspaceSemaphore.tryAcquire())) {
+            workspaceSemaphore = waitFor(workspaceSemaphore, start, workspaceName);
+        }
+        try {
+            if (!globalPermits.tryAcquire()) {
+                waitFor(globalPermits, start, workspaceName);
+            }
+        } catch (AdmissionRejectedException ex) {
+            release(workspaceSemaphore);
+            throw ex;
+        } catch (InterruptedException ex) {
+            release(workspaceSemaphore);
+            throw ex;
+        }
+
+        long waited = System.currentTimeMillis() - start;
+        totalWaitMillis.addAndGet(waited);
+        updateMax(maxWaitMillis, waited);
+        admitted.incrementAndGet();
+        inFlight.incrementAndGet();
+        LOG.debug("Import into workspace " + workspaceName + " admitted after waiting " + waited + " ms");
+        return new Permit(workspaceSemaphore);
+    }
+
+    private Semaphore waitFor(Semaphore semaphore, long start, String workspaceName) throws AdmissionRejectedException, InterruptedException {
+        int depth = waiting.incrementAndGet();
+        try {
+            if (depth > maxQueueSize) {
+                throw reject("Import queue is full", workspaceName);
+            }
+            updateMax(maxWaiting, depth);
+            if (maxWait > 0) {
+                long remaining = maxWait - (System.currentTimeMillis() - start);
+                if (remaining <= 0 || !semaphore.tryAcquire(remaining, TimeUnit.MILLISECONDS)) {
+                    throw reject("Timed out waiting for an import slot", workspaceName);
+                }
+            } else {
+                semaphore.acquire();
+            }
+            return semaphore;
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    private AdmissionRejectedException reject(String reason, String workspaceName) {
+        rejected.incrementAndGet();
+        LOG.debug("Import into workspace " + workspaceName + " rejected: " + reason);
+        return new AdmissionRejectedException(reason + ". Try again later", getRetryAfter());
+    }
+
+    /**
+     * @return seconds a client should wait before trying again, estimated
+     * from how long imports currently hold on to their permit
+     */
+    int getRetryAfter() {
+        long releases = released.get();
+        long averageHeld = releases == 0 ? 1000 : totalHeldMillis.get() / releases;
+        long estimate = averageHeld * (waiting.get() + 1) / limit;
+        return (int) Math.max(1, Math.min(TimeUnit.HOURS.toSeconds(1), TimeUnit.MILLISECONDS.toSeconds(estimate)));
+    }
+
+    private static void release(Semaphore semaphore) {
+        if (semaphore != null) {
+            semaphore.release();
+        }
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return queue depth, wait time and throughput counters
+     */
+    Map<String, String> getStats() {
+        Map<String, String> stats = new LinkedHashMap<String, String>();
+        long admittedCount = admitted.get();
+        stats.put("admission.limit", String.valueOf(limit));
+        stats.put("admission.in.flight", String.valueOf(inFlight.get()));
+        stats.put("admission.queue.depth", String.valueOf(waiting.get()));
+        stats.put("admission.queue.depth.max", String.valueOf(maxWaiting.get()));
+        stats.put("admission.queue.size", String.valueOf(maxQueueSize));
+        stats.put("admission.admitted", String.valueOf(admittedCount));
+        stats.put("admission.rejected", String.valueOf(rejected.get()));
+        stats.put("admission.wait.avg.ms", String.valueOf(admittedCount == 0 ? 0 : totalWaitMillis.get() / admittedCount));
+        stats.put("admission.wait.max.ms", String.valueOf(maxWaitMillis.get()));
+        for (Map.Entry<String, Semaphore> entry : workspacePermits.entrySet()) {
+            stats.put("admission.workspace." + entry.getKey() + ".available", String.valueOf(entry.getValue().availablePermits()));
+        }
+        return stats;
+    }
+
+    /**
+     * Held for the duration of a single import
+     */
+    class Permit {
+
+        private final Semaphore workspaceSemaphore;
+        private final long acquired = System.currentTimeMillis();
+        private boolean isReleased = false;
+
+        private Permit(Semaphore workspaceSemaphore) {
+            this.workspaceSemaphore = workspaceSemaphore;
+        }
+
+        synchronized void release() {
+            if (!isReleased) {
+                isReleased = true;
+                inFlight.decrementAndGet();
+                totalHeldMillis.addAndGet(System.currentTimeMillis() - acquired);
+                released.incrementAndGet();
+                globalPermits.release();
+                AdmissionController.release(workspaceSemaphore);
+            }
+        }
+    }
+}
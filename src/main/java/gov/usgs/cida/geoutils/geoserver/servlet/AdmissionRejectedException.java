@@ -0,0 +1,23 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+/**
+ * Thrown when an import can not be admitted because GeoServer is already busy
+ * with as many imports as it is allowed to run and queue.
+ */
+class AdmissionRejectedException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+    private final int retryAfter;
+
+    AdmissionRejectedException(String message, int retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return seconds a client should wait before trying again
+     */
+    int getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,186 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers which workspaces and layers GeoServer has so that every upload
+ * does not have to ask. Lookups are made lazily and trusted for a set time,
+ * after which they are made again since the catalog may be changed by others.
+ * Layers this servlet imports or removes are recorded right away rather than
+ * waiting for a lookup. Entries are evicted least recently used first. Each
+ * catalog, as named by {@link GeoServerClient#getCatalogName()}, is remembered
+ * separately.
+ */
+class CatalogCache {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(CatalogCache.class);
+    private final long ttl;
+    private final Map<String, Entry> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param ttl milliseconds a lookup is trusted, 0 to not cache lookups
+     * @param maxSize number of workspaces and layers to remember
+     */
+    CatalogCache(long ttl, final int maxSize) {
+        this.ttl = ttl;
+        this.cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param gsClient asked if the workspace's existence is not known
+     * @param workspaceName
+     * @return true if GeoServer has the workspace
+     * @throws IOException if GeoServer could not tell
+     */
+    boolean workspaceExists(GeoServerClient gsClient, String workspaceName) throws IOException {
+        String key = getWorkspaceKey(gsClient, workspaceName);
+        Boolean exists = get(key);
+        if (exists == null) {
+            exists = gsClient.workspaceExists(workspaceName);
+            put(key, exists);
+            LOG.debug("Workspace " + workspaceName + (exists ? " exists" : " does not exist"));
+        }
+        return exists;
+    }
+
+    /**
+     * @param gsClient asked if the layer's existence is not known
+     * @param workspaceName
+     * @param layerName
+     * @return true if GeoServer has the layer
+     * @throws IOException if GeoServer could not tell
+     */
+    boolean layerExists(GeoServerClient gsClient, String workspaceName, String layerName) throws IOException {
+        String key = getLayerKey(gsClient, workspaceName, layerName);
+        Boolean exists = get(key);
+        if (exists == null) {
+            exists = gsClient.layerExists(workspaceName, layerName);
+            put(key, exists);
+            LOG.debug("Layer " + workspaceName + ":" + layerName + (exists ? " exists" : " does not exist"));
+        }
+        return exists;
+    }
+
+    /**
+     * @return false only if GeoServer is known not to have the layer
+     */
+    boolean layerPossiblyExists(GeoServerClient gsClient, String workspaceName, String layerName) {
+        try {
+            return layerExists(gsClient, workspaceName, layerName);
+        } catch (IOException ex) {
+            LOG.debug("Could not check for layer " + layerName + ": " + ex.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * Records a layer this servlet imported or removed. A layer only exists in
+     * a workspace that exists.
+     *
+     * @param gsClient the GeoServer the layer was imported into or removed from
+     * @param workspaceName
+     * @param layerName
+     * @param exists
+     */
+    void putLayer(GeoServerClient gsClient, String workspaceName, String layerName, boolean exists) {
+        put(getLayerKey(gsClient, workspaceName, layerName), exists);
+        if (exists) {
+            put(getWorkspaceKey(gsClient, workspaceName), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Forgets a layer whose existence is no longer certain, such as after a
+     * failed import
+     *
+     * @param gsClient
+     * @param workspaceName
+     * @param layerName
+     */
+    void invalidateLayer(GeoServerClient gsClient, String workspaceName, String layerName) {
+        synchronized (cache) {
+            cache.remove(getLayerKey(gsClient, workspaceName, layerName));
+        }
+    }
+
+    /**
+     * Forgets everything, such as when GeoServer may have changed
+     */
+    void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private static String getWorkspaceKey(GeoServerClient gsClient, String workspaceName) {
+        return gsClient.getCatalogName() + " " + workspaceName;
+    }
+
+    // Workspace names can not contain a colon
+    private static String getLayerKey(GeoServerClient gsClient, String workspaceName, String layerName) {
+        return gsClient.getCatalogName() + " " + workspaceName + ":" + layerName;
+    }
+
+    private Boolean get(String key) {
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+            if (entry != null && entry.expires <= System.currentTimeMillis()) {
+                cache.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.exists;
+    }
+
+    private void put(String key, boolean exists) {
+        if (ttl <= 0) {
+            return;
+        }
+        synchronized (cache) {
+            cache.put(key, new Entry(exists, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    /**
+     * @return hit, miss and size counters
+     */
+    Map<String, String> getStats() {
+        Map<String, String> stats = new LinkedHashMap<String, String>();
+        synchronized (cache) {
+            stats.put("catalog.cache.size", String.valueOf(cache.size()));
+        }
+        stats.put("catalog.cache.hits", String.valueOf(hits.get()));
+        stats.put("catalog.cache.misses", String.valueOf(misses.get()));
+        return stats;
+    }
+
+    private static class Entry {
+
+        private final boolean exists;
+        private final long expires;
+
+        Entry(boolean exists, long expires) {
+            this.exists = exists;
+            this.expires = expires;
+        }
+    }
+}
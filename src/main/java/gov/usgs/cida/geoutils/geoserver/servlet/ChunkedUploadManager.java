@@ -0,0 +1,345 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives uploads sent in chunks, as done by fine-uploader. Each chunk is
+ * stored in a directory named after the upload's id so that chunks may arrive
+ * in parallel, out of order and again after a dropped connection. Once every
+ * chunk is in, the chunks are assembled into a single file which then goes
+ * through the same import pipeline as a regular upload. Uploads that are never
+ * finished are removed once they expire.
+ *
+ * The bytes an upload has on disk count against the spool's disk budget, and
+ * its running total is held to the largest upload allowed as every chunk
+ * arrives, whatever sizes the client claims.
+ */
+class ChunkedUploadManager {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(ChunkedUploadManager.class);
+    static final String UUID_PARAM = "qquuid";
+    static final String PART_INDEX_PARAM = "qqpartindex";
+    static final String TOTAL_PARTS_PARAM = "qqtotalparts";
+    static final String TOTAL_FILE_SIZE_PARAM = "qqtotalfilesize";
+    static final String FILE_NAME_PARAM = "qqfilename";
+    private static final String PART_PREFIX = "part.";
+    private static final String ASSEMBLED_FILE = "assembled";
+    private static final long PURGE_INTERVAL = 60000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Disk space is reserved this much at a time while a chunk is written
+    private static final long RESERVATION_STEP = 1024 * 1024;
+    private final File chunkDirectory;
+    private final long retention;
+    private final SpoolManager spoolManager;
+    private final ConcurrentMap<String, AtomicLong> uploadSizes = new ConcurrentHashMap<String, AtomicLong>();
+    private long lastPurge = 0;
+
+    /**
+     * @param chunkDirectory where chunks are kept until they are assembled
+     * @param retention milliseconds an unfinished upload is kept after its
+     * last chunk arrived
+     * @param spoolManager whose disk budget chunks are reserved against
+     */
+    ChunkedUploadManager(File chunkDirectory, long retention, SpoolManager spoolManager) {
+        this.chunkDirectory = chunkDirectory;
+        this.retention = retention;
+        this.spoolManager = spoolManager;
+    }
+
+    /**
+     * @param request
+     * @return the chunk the request carries, or null if the upload was not
+     * split into more than one chunk
+     * @throws IOException if the chunk parameters are invalid
+     */
+    static Chunk getChunk(HttpServletRequest request) throws IOException {
+        String totalParts = request.getParameter(TOTAL_PARTS_PARAM);
+        if (StringUtils.isBlank(totalParts)) {
+            return null;
+        }
+        try {
+            Chunk chunk = new Chunk(
+                    request.getParameter(UUID_PARAM),
+                    Integer.parseInt(StringUtils.defaultIfEmpty(request.getParameter(PART_INDEX_PARAM), "0")),
+                    Integer.parseInt(totalParts),
+                    Long.parseLong(StringUtils.defaultIfEmpty(request.getParameter(TOTAL_FILE_SIZE_PARAM), "-1")),
+                    request.getParameter(FILE_NAME_PARAM));
+            if (chunk.totalParts <= 1) {
+                return null;
+            }
+            // The id becomes a directory name
+            if (StringUtils.isBlank(chunk.uuid) || !chunk.uuid.matches("[A-Za-z0-9\\-]{1,64}")) {
+                throw new IOException("Parameter \"" + UUID_PARAM + "\" is missing or invalid");
+            }
+            if (chunk.partIndex < 0 || chunk.partIndex >= chunk.totalParts) {
+                throw new IOException("Parameter \"" + PART_INDEX_PARAM + "\" is out of range");
+            }
+            return chunk;
+        } catch (NumberFormatException ex) {
+            throw new IOException("Chunk parameters could not be parsed: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Stores a chunk. The request that completes the upload assembles it.
+     *
+     * @param chunk
+     * @param chunkStream the chunk's content, left open
+     * @param maxFileSize the largest an assembled upload may get
+     * @return the assembled upload if this chunk completed it, otherwise null
+     * @throws SpoolManager.SpoolFullException if the spool's disk budget has
+     * no room for the chunk
+     * @throws ShapefileZipIngester.UploadTooLargeException if the chunks
+     * received add up to more than maxFileSize
+     * @throws IOException
+     */
+    File receive(Chunk chunk, InputStream chunkStream, long maxFileSize) throws IOException {
+        purgeExpired();
+
+        File uploadDirectory = getUploadDirectory(chunk);
+        if (!uploadDirectory.isDirectory() && !uploadDirectory.mkdirs()) {
+            throw new IOException("Could not create directory for upload " + chunk.uuid);
+        }
+        AtomicLong uploadSize = getUploadSize(chunk, uploadDirectory);
+
+        // Written under a unique name first so that a retried chunk can not
+        // clobber one still being received
+        File partFile = new File(uploadDirectory, PART_PREFIX + chunk.partIndex);
+        long replaced = partFile.length();
+        File tempFile = File.createTempFile(partFile.getName() + ".", ".tmp", uploadDirectory);
+        OutputStream outputStream = null;
+        long written = 0;
+        long reserved = 0;
+        try {
+            outputStream = new FileOutputStream(tempFile);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = chunkStream.read(buffer)) != -1) {
+                written += read;
+                // A retried chunk does not count twice
+                long total = uploadSize.addAndGet(read) - replaced;
+                if (total > maxFileSize) {
+                    throw new ShapefileZipIngester.UploadTooLargeException(maxFileSize);
+                }
+                if (chunk.totalFileSize >= 0 && total > chunk.totalFileSize) {
+                    throw new IOException("Upload " + chunk.uuid + " is larger than the " + chunk.totalFileSize + " bytes it was said to be");
+                }
+                while (written > reserved) {
+                    if (!spoolManager.reserve(RESERVATION_STEP)) {
+                        throw new SpoolManager.SpoolFullException("Spool can not hold another chunk of upload " + chunk.uuid);
+                    }
+                    reserved += RESERVATION_STEP;
+                }
+                outputStream.write(buffer, 0, read);
+            }
+            outputStream.close();
+        } catch (IOException ex) {
+            IOUtils.closeQuietly(outputStream);
+            FileUtils.deleteQuietly(tempFile);
+            uploadSize.addAndGet(-written);
+            spoolManager.release(reserved);
+            throw ex;
+        }
+        spoolManager.release(reserved - written);
+        FileUtils.deleteQuietly(partFile);
+        uploadSize.addAndGet(-replaced);
+        spoolManager.release(replaced);
+        if (!tempFile.renameTo(partFile)) {
+            FileUtils.deleteQuietly(tempFile);
+            uploadSize.addAndGet(-written);
+            spoolManager.release(written);
+            throw new IOException("Could not store chunk " + chunk.partIndex + " of upload " + chunk.uuid);
+        }
+        LOG.debug("Received chunk " + (chunk.partIndex + 1) + " of " + chunk.totalParts + " for upload " + chunk.uuid);
+
+        for (int partIndex = 0; partIndex < chunk.totalParts; partIndex++) {
+            if (!new File(uploadDirectory, PART_PREFIX + partIndex).isFile()) {
+                return null;
+            }
+        }
+
+        // Chunks arriving in parallel may all see the upload as complete
+        File assembledFile = new File(uploadDirectory, ASSEMBLED_FILE);
+        if (!assembledFile.createNewFile()) {
+            return null;
+        }
+        assemble(chunk, uploadDirectory, assembledFile, maxFileSize);
+        return assembledFile;
+    }
+
+    /**
+     * @return the bytes the upload has on disk, reserved against the spool's
+     * disk budget. Chunks left over from before a restart are reserved when
+     * the upload is first seen again.
+     * @throws SpoolManager.SpoolFullException if there is no room for those
+     */
+    private AtomicLong getUploadSize(Chunk chunk, File uploadDirectory) throws IOException {
+        synchronized (uploadSizes) {
+            AtomicLong uploadSize = uploadSizes.get(chunk.uuid);
+            if (uploadSize == null) {
+                long existing = 0;
+                File[] files = uploadDirectory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        existing += file.length();
+                    }
+                }
+                if (existing > 0 && !spoolManager.reserve(existing)) {
+                    throw new SpoolManager.SpoolFullException("Spool can not hold the chunks of upload " + chunk.uuid);
+                }
+                uploadSize = new AtomicLong(existing);
+                uploadSizes.put(chunk.uuid, uploadSize);
+            }
+            return uploadSize;
+        }
+    }
+
+    /**
+     * Concatenates the chunks without copying them through the heap. Each
+     * chunk is removed once appended so that the upload does not take up
+     * twice its size.
+     */
+    private void assemble(Chunk chunk, File uploadDirectory, File assembledFile, long maxFileSize) throws IOException {
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(assembledFile);
+            FileChannel target = outputStream.getChannel();
+            for (int partIndex = 0; partIndex < chunk.totalParts; partIndex++) {
+                FileInputStream inputStream = new FileInputStream(new File(uploadDirectory, PART_PREFIX + partIndex));
+                try {
+                    FileChannel source = inputStream.getChannel();
+                    long size = source.size();
+                    long position = 0;
+                    while (position < size) {
+                        position += source.transferTo(position, size - position, target);
+                    }
+                } finally {
+                    IOUtils.closeQuietly(inputStream);
+                }
+                FileUtils.deleteQuietly(new File(uploadDirectory, PART_PREFIX + partIndex));
+                if (target.size() > maxFileSize) {
+                    throw new ShapefileZipIngester.UploadTooLargeException(maxFileSize);
+                }
+            }
+            if (chunk.totalFileSize >= 0 && target.size() != chunk.totalFileSize) {
+                throw new IOException("Upload " + chunk.uuid + " was assembled to " + target.size() + " bytes but should be " + chunk.totalFileSize + " bytes");
+            }
+            LOG.debug("Assembled " + chunk.totalParts + " chunks of upload " + chunk.uuid + " into " + target.size() + " bytes");
+        } catch (IOException ex) {
+            IOUtils.closeQuietly(outputStream);
+            remove(chunk);
+            throw ex;
+        } finally {
+            IOUtils.closeQuietly(outputStream);
+        }
+    }
+
+    /**
+     * Removes an upload's chunks and assembled file
+     *
+     * @param chunk any chunk of the upload
+     */
+    void remove(Chunk chunk) {
+        FileUtils.deleteQuietly(getUploadDirectory(chunk));
+        release(chunk.uuid);
+    }
+
+    /**
+     * Gives back the disk space reserved for an upload that has been removed
+     */
+    private void release(String uuid) {
+        AtomicLong uploadSize;
+        synchronized (uploadSizes) {
+            uploadSize = uploadSizes.remove(uuid);
+        }
+        if (uploadSize != null) {
+            spoolManager.release(uploadSize.getAndSet(0));
+        }
+    }
+
+    private File getUploadDirectory(Chunk chunk) {
+        return new File(chunkDirectory, chunk.uuid);
+    }
+
+    /**
+     * Removes uploads that have not received a chunk within the retention
+     * period. Runs at most once a minute.
+     */
+    void purgeExpired() {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (now - lastPurge < PURGE_INTERVAL) {
+                return;
+            }
+            lastPurge = now;
+        }
+        File[] uploadDirectories = chunkDirectory.listFiles();
+        if (uploadDirectories == null) {
+            return;
+        }
+        for (File uploadDirectory : uploadDirectories) {
+            if (uploadDirectory.isDirectory() && now - uploadDirectory.lastModified() > retention) {
+                LOG.debug("Removing expired upload " + uploadDirectory.getName());
+                FileUtils.deleteQuietly(uploadDirectory);
+                release(uploadDirectory.getName());
+            }
+        }
+    }
+
+    /**
+     * One chunk of an upload
+     */
+    static class Chunk {
+
+        private final String uuid;
+        private final int partIndex;
+        private final int totalParts;
+        private final long totalFileSize;
+        private final String fileName;
+
+        Chunk(String uuid, int partIndex, int totalParts, long totalFileSize, String fileName) {
+            this.uuid = uuid;
+            this.partIndex = partIndex;
+            this.totalParts = totalParts;
+            this.totalFileSize = totalFileSize;
+            this.fileName = fileName;
+        }
+
+        String getUuid() {
+            return uuid;
+        }
+
+        int getPartIndex() {
+            return partIndex;
+        }
+
+        int getTotalParts() {
+            return totalParts;
+        }
+
+        /**
+         * @return size of the whole upload, -1 if not given
+         */
+        long getTotalFileSize() {
+            return totalFileSize;
+        }
+
+        String getFileName() {
+            return fileName;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads a shapefile's .dbf one record at a time. The header and field
+ * descriptors are read up front and kept as they are so that they can be
+ * written out again.
+ */
+class DbfReader {
+
+    static final int HEADER_LENGTH = 32;
+    static final int FIELD_LENGTH = 32;
+    static final int HEADER_TERMINATOR = 0x0D;
+    static final int END_OF_FILE = 0x1A;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final DataInputStream input;
+    private final byte[] header = new byte[HEADER_LENGTH];
+    private final byte[] headerRest;
+    private final List<Field> fields;
+    private final int recordCount;
+    private final int recordLength;
+    private int recordsRead = 0;
+
+    /**
+     * @param input the .dbf, left open
+     * @throws IOException if the header is invalid
+     */
+    DbfReader(InputStream input) throws IOException {
+        this.input = new DataInputStream(new BufferedInputStream(input, BUFFER_SIZE));
+        this.input.readFully(header);
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        recordCount = headerBuffer.getInt(4);
+        int headerLength = headerBuffer.getShort(8) & 0xFFFF;
+        recordLength = headerBuffer.getShort(10) & 0xFFFF;
+
+        List<Field> fieldList = new ArrayList<Field>();
+        int read = HEADER_LENGTH;
+        int offset = 1;
+        for (int first = this.input.readUnsignedByte(); first != HEADER_TERMINATOR; first = this.input.readUnsignedByte()) {
+            byte[] descriptor = new byte[FIELD_LENGTH];
+            descriptor[0] = (byte) first;
+            this.input.readFully(descriptor, 1, FIELD_LENGTH - 1);
+            Field field = new Field(descriptor, offset);
+            fieldList.add(field);
+            offset += field.length;
+            read += FIELD_LENGTH;
+        }
+        read++;
+        if (headerLength < read || offset != recordLength) {
+            throw new IOException("Shapefile .dbf header is invalid");
+        }
+        fields = Collections.unmodifiableList(fieldList);
+        // Anything between the terminator and the records, such as a Visual
+        // FoxPro backlink
+        headerRest = new byte[headerLength - read];
+        this.input.readFully(headerRest);
+    }
+
+    /**
+     * @return a copy of the fixed part of the header
+     */
+    byte[] getHeader() {
+        return header.clone();
+    }
+
+    /**
+     * @return what follows the field descriptors in the header
+     */
+    byte[] getHeaderRest() {
+        return headerRest.clone();
+    }
+
+    List<Field> getFields() {
+        return fields;
+    }
+
+    int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return bytes in a record, including its deletion flag
+     */
+    int getRecordLength() {
+        return recordLength;
+    }
+
+    /**
+     * @param record filled with the next record, getRecordLength() long
+     * @return false if every record has been read
+     * @throws IOException if the .dbf ends early
+     */
+    boolean readRecord(byte[] record) throws IOException {
+        if (recordsRead >= recordCount) {
+            return false;
+        }
+        try {
+            input.readFully(record, 0, recordLength);
+        } catch (EOFException ex) {
+            throw new IOException("Shapefile .dbf ends after " + recordsRead + " of " + recordCount + " records");
+        }
+        recordsRead++;
+        return true;
+    }
+
+    /**
+     * @return whether a record read by {@link #readRecord(byte[])} is marked
+     * as deleted
+     */
+    static boolean isDeleted(byte[] record) {
+        return record[0] == '*';
+    }
+
+    /**
+     * A field descriptor along with where the field is found in a record
+     */
+    static class Field {
+
+        private final byte[] descriptor;
+        private final String name;
+        private final char type;
+        private final int offset;
+        private final int length;
+        private final int decimalCount;
+
+        private Field(byte[] descriptor, int offset) throws UnsupportedEncodingException {
+            this.descriptor = descriptor;
+            int nameLength = 0;
+            while (nameLength < 11 && descriptor[nameLength] != 0) {
+                nameLength++;
+            }
+            this.name = new String(descriptor, 0, nameLength, "ISO-8859-1").trim();
+            this.type = (char) descriptor[11];
+            this.offset = offset;
+            this.length = descriptor[16] & 0xFF;
+            this.decimalCount = descriptor[17] & 0xFF;
+        }
+
+        /**
+         * @return a copy of the field's descriptor
+         */
+        byte[] getDescriptor() {
+            return descriptor.clone();
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return the dBase type, such as C, N, F, L or D
+         */
+        char getType() {
+            return type;
+        }
+
+        int getOffset() {
+            return offset;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        int getDecimalCount() {
+            return decimalCount;
+        }
+
+        /**
+         * @param record
+         * @param charset the .dbf's character set
+         * @return the field's value with padding removed, null if blank
+         * @throws UnsupportedEncodingException
+         */
+        String getValue(byte[] record, String charset) throws UnsupportedEncodingException {
+            String value = new String(record, offset, length, charset).trim();
+            return value.length() == 0 ? null : value;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imports by loading the shapefile into a GeoPackage on a file system GeoServer
+ * shares, one GeoPackage per store, and publishing the loaded table. GeoServer
+ * does not have to unpack or read the shapefile at all, and the store is
+ * created on first use. Loads into the same GeoPackage are made one at a time
+ * since SQLite allows a single writer.
+ */
+class GeoPackageImportStrategy implements ImportStrategy {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(GeoPackageImportStrategy.class);
+    // Workspace and store names become file names
+    private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z0-9_][A-Za-z0-9_.-]*");
+    private final File directory;
+    private final String geoserverDirectory;
+    private final GeoPackageLoader loader;
+    // Shared by every strategy so that loads keep their turn across a
+    // configuration reload
+    private static final ConcurrentMap<String, Object> LOCKS = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * @param directory where GeoPackages are written, as
+     * {workspace}/{store}.gpkg
+     * @param geoserverDirectory the same directory as GeoServer sees it. If
+     * blank, GeoServer is assumed to see it at the same path.
+     * @param batchSize features inserted per batch
+     */
+    GeoPackageImportStrategy(File directory, String geoserverDirectory, int batchSize) {
+        this.directory = directory;
+        this.geoserverDirectory = StringUtils.isBlank(geoserverDirectory) ? directory.getAbsolutePath() : StringUtils.removeEnd(geoserverDirectory.trim(), "/");
+        this.loader = new GeoPackageLoader(batchSize);
+    }
+
+    @Override
+    public String importShapefile(GeoServerClient gsClient, ImportJob job) throws IOException {
+        String workspaceName = job.getWorkspaceName();
+        String storeName = job.getStoreName();
+        if (!NAME_PATTERN.matcher(workspaceName).matches() || !NAME_PATTERN.matcher(storeName).matches()) {
+            throw new IOException("Workspace " + workspaceName + " and store " + storeName + " must be made of letters, digits, '_', '-' and '.' to be loaded into a GeoPackage");
+        }
+        String importLayerName = job.getImportLayerName();
+        File geoPackage = new File(new File(directory, workspaceName), storeName + ".gpkg");
+
+        job.setState(ImportJob.State.POSTING);
+        GeoPackageLoader.Result result;
+        Object lock = getLock(geoPackage);
+        synchronized (lock) {
+            result = loader.load(geoPackage, job.getSpool().toFile(), importLayerName, job.getSrsName(), job.getPrj());
+        }
+        job.put("features", String.valueOf(result.getFeatures()));
+        job.put("features.per.second", String.valueOf(result.getFeaturesPerSecond()));
+        LOG.info("Loaded " + result.getFeatures() + " features into " + geoPackage.getPath() + " at " + result.getFeaturesPerSecond() + " features per second");
+
+        job.setState(ImportJob.State.IMPORTING);
+        if (!gsClient.storeExists(workspaceName, storeName)) {
+            gsClient.createGeoPackageStore(workspaceName, storeName, geoserverDirectory + "/" + workspaceName + "/" + storeName + ".gpkg");
+        }
+        gsClient.publishFeatureType(workspaceName, storeName, importLayerName, importLayerName, job.getSrsName(), job.getProjectionPolicy());
+        return importLayerName;
+    }
+
+    @Override
+    public boolean removeNativeData(GeoServerClient gsClient, ImportJob job, String nativeName) throws IOException {
+        File geoPackage = new File(new File(directory, job.getWorkspaceName()), job.getStoreName() + ".gpkg");
+        synchronized (getLock(geoPackage)) {
+            loader.drop(geoPackage, nativeName);
+        }
+        LOG.debug("Dropped " + nativeName + " from " + geoPackage.getPath());
+        return true;
+    }
+
+    static Object getLock(File geoPackage) {
+        String key = geoPackage.getAbsolutePath();
+        Object lock = LOCKS.get(key);
+        if (lock == null) {
+            Object created = new Object();
+            lock = LOCKS.putIfAbsent(key, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+}
@@ -0,0 +1,628 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bulk loads a shapefile into a table of a GeoPackage. The .shp and .dbf are
+ * read side by side one record at a time and inserted in large batches within
+ * a single transaction, so that a failed load leaves nothing behind. The
+ * spatial index is built once every feature is in rather than being kept up to
+ * date row by row; the triggers that keep it current for later edits are
+ * added afterwards. A table of the same name is replaced.
+ */
+class GeoPackageLoader {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(GeoPackageLoader.class);
+    private static final String DRIVER = "org.sqlite.JDBC";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int SHP_HEADER_LENGTH = 100;
+    private static final String GEOMETRY_COLUMN = "geom";
+    private static final String WGS84_DEFINITION = "GEOGCS[\"WGS 84\",DATUM[\"WGS_1984\",SPHEROID[\"WGS 84\",6378137,298.257223563,"
+            + "AUTHORITY[\"EPSG\",\"7030\"]],AUTHORITY[\"EPSG\",\"6326\"]],PRIMEM[\"Greenwich\",0,AUTHORITY[\"EPSG\",\"8901\"]],"
+            + "UNIT[\"degree\",0.0174532925199433,AUTHORITY[\"EPSG\",\"9122\"]],AUTHORITY[\"EPSG\",\"4326\"]]";
+    private final int batchSize;
+
+    /**
+     * @param batchSize features inserted per batch
+     */
+    GeoPackageLoader(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param geoPackage the GeoPackage, created if it does not exist
+     * @param shapefileZip a flattened shapefile zip
+     * @param tableName the table the features are loaded into
+     * @param srsName the shapefile's SRS as EPSG:code
+     * @param prj the shapefile's .prj text, may be null
+     * @return how many features were loaded and how long it took
+     * @throws IOException if the shapefile can not be read or the GeoPackage
+     * can not be written
+     */
+    Result load(File geoPackage, File shapefileZip, String tableName, String srsName, String prj) throws IOException {
+        try {
+            Class.forName(DRIVER);
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("SQLite JDBC driver " + DRIVER + " is not available", ex);
+        }
+        FileUtils.forceMkdir(geoPackage.getAbsoluteFile().getParentFile());
+
+        long start = System.nanoTime();
+        ZipFile zipFile = new ZipFile(shapefileZip);
+        InputStream shpStream = null;
+        InputStream dbfStream = null;
+        Connection connection = null;
+        try {
+            ZipEntry shpEntry = null;
+            ZipEntry dbfEntry = null;
+            ZipEntry cpgEntry = null;
+            for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements();) {
+                ZipEntry entry = entries.nextElement();
+                String extension = FilenameUtils.getExtension(entry.getName()).toLowerCase();
+                if ("shp".equals(extension)) {
+                    shpEntry = entry;
+                } else if ("dbf".equals(extension)) {
+                    dbfEntry = entry;
+                } else if ("cpg".equals(extension)) {
+                    cpgEntry = entry;
+                }
+            }
+            if (shpEntry == null || dbfEntry == null) {
+                throw new IOException("Zip file is missing a .shp or .dbf file");
+            }
+            String charset = getCharset(zipFile, cpgEntry);
+            shpStream = zipFile.getInputStream(shpEntry);
+            dbfStream = zipFile.getInputStream(dbfEntry);
+
+            connection = DriverManager.getConnection("jdbc:sqlite:" + geoPackage.getAbsolutePath());
+            connection.setAutoCommit(false);
+            Result result = load(connection, new DataInputStream(new BufferedInputStream(shpStream, BUFFER_SIZE)), new DbfReader(dbfStream), charset, tableName, srsName, prj);
+            connection.commit();
+            result.nanos = System.nanoTime() - start;
+            LOG.debug("Loaded " + result.features + " features into " + geoPackage.getPath() + " as " + tableName + " at " + result.getFeaturesPerSecond() + " features per second");
+            return result;
+        } catch (SQLException ex) {
+            throw new IOException("GeoPackage " + geoPackage.getPath() + " could not be written: " + ex.getMessage(), ex);
+        } finally {
+            IOUtils.closeQuietly(shpStream);
+            IOUtils.closeQuietly(dbfStream);
+            close(connection);
+            try {
+                zipFile.close();
+            } catch (IOException ex) {
+                LOG.debug("Could not close " + shapefileZip.getPath() + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Drops a table and its spatial index from a GeoPackage
+     *
+     * @param geoPackage
+     * @param tableName
+     * @throws IOException if the GeoPackage can not be written
+     */
+    void drop(File geoPackage, String tableName) throws IOException {
+        if (!geoPackage.exists()) {
+            return;
+        }
+        try {
+            Class.forName(DRIVER);
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("SQLite JDBC driver " + DRIVER + " is not available", ex);
+        }
+        Connection connection = null;
+        try {
+            connection = DriverManager.getConnection("jdbc:sqlite:" + geoPackage.getAbsolutePath());
+            connection.setAutoCommit(false);
+            Statement statement = connection.createStatement();
+            try {
+                dropTable(statement, tableName);
+            } finally {
+                statement.close();
+            }
+            connection.commit();
+        } catch (SQLException ex) {
+            throw new IOException("Table " + tableName + " could not be dropped from " + geoPackage.getPath() + ": " + ex.getMessage(), ex);
+        } finally {
+            close(connection);
+        }
+    }
+
+    private static void close(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            // Undoes whatever was not committed
+            connection.rollback();
+            connection.close();
+        } catch (SQLException ex) {
+            LOG.debug("Could not close GeoPackage connection: " + ex.getMessage());
+        }
+    }
+
+    private static String getCharset(ZipFile zipFile, ZipEntry cpgEntry) throws IOException {
+        if (cpgEntry != null) {
+            InputStream inputStream = zipFile.getInputStream(cpgEntry);
+            try {
+                String charset = IOUtils.toString(inputStream, "ISO-8859-1").trim();
+                if (StringUtils.isNotBlank(charset) && java.nio.charset.Charset.isSupported(charset)) {
+                    return charset;
+                }
+            } catch (IllegalArgumentException ex) {
+                LOG.debug("Ignoring .cpg naming an invalid character set: " + ex.getMessage());
+            } finally {
+                IOUtils.closeQuietly(inputStream);
+            }
+        }
+        return "ISO-8859-1";
+    }
+
+    private Result load(Connection connection, DataInputStream shpInput, DbfReader dbfReader, String charset, String tableName, String srsName, String prj) throws IOException, SQLException {
+        byte[] shpHeader = new byte[SHP_HEADER_LENGTH];
+        shpInput.readFully(shpHeader);
+        String geometryType = getGeometryTypeName(ByteBuffer.wrap(shpHeader).order(ByteOrder.LITTLE_ENDIAN).getInt(32));
+        int srsId = getSrsId(srsName);
+
+        Statement statement = connection.createStatement();
+        try {
+            createMetadataTables(statement);
+            statement.executeUpdate("INSERT OR IGNORE INTO gpkg_spatial_ref_sys VALUES (" + quoteLiteral(StringUtils.defaultIfEmpty(srsName, "Undefined")) + ", " + srsId + ", "
+                    + (srsId > 0 ? "'EPSG'" : "'NONE'") + ", " + srsId + ", " + quoteLiteral(StringUtils.isNotBlank(prj) ? prj.trim() : "undefined") + ", NULL)");
+            dropTable(statement, tableName);
+
+            List<DbfReader.Field> fields = dbfReader.getFields();
+            List<String> fieldNames = new ArrayList<String>();
+            for (DbfReader.Field field : fields) {
+                fieldNames.add(field.getName());
+            }
+            List<String> columnNames = getColumnNames(fieldNames);
+            StringBuilder create = new StringBuilder("CREATE TABLE ").append(quote(tableName))
+                    .append(" (fid INTEGER PRIMARY KEY AUTOINCREMENT, ").append(quote(GEOMETRY_COLUMN)).append(' ').append(geometryType);
+            StringBuilder insert = new StringBuilder("INSERT INTO ").append(quote(tableName)).append(" (fid, ").append(quote(GEOMETRY_COLUMN));
+            StringBuilder values = new StringBuilder(" VALUES (?, ?");
+            for (int index = 0; index < fields.size(); index++) {
+                create.append(", ").append(quote(columnNames.get(index))).append(' ').append(getColumnType(fields.get(index)));
+                insert.append(", ").append(quote(columnNames.get(index)));
+                values.append(", ?");
+            }
+            statement.executeUpdate(create.append(')').toString());
+            // Envelopes are set aside for the spatial index, built at the end
+            statement.executeUpdate("CREATE TEMP TABLE envelopes (id INTEGER PRIMARY KEY, minx DOUBLE, maxx DOUBLE, miny DOUBLE, maxy DOUBLE)");
+
+            Result result = new Result();
+            double[] extent = new double[]{Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+            PreparedStatement insertFeature = connection.prepareStatement(insert.append(')').append(values).append(')').toString());
+            PreparedStatement insertEnvelope = connection.prepareStatement("INSERT INTO temp.envelopes VALUES (?, ?, ?, ?, ?)");
+            try {
+                byte[] recordHeader = new byte[8];
+                byte[] record = new byte[dbfReader.getRecordLength()];
+                int batched = 0;
+                for (int first = shpInput.read(); first != -1; first = shpInput.read()) {
+                    recordHeader[0] = (byte) first;
+                    shpInput.readFully(recordHeader, 1, recordHeader.length - 1);
+                    byte[] content = new byte[ByteBuffer.wrap(recordHeader).getInt(4) * 2];
+                    shpInput.readFully(content);
+                    if (!dbfReader.readRecord(record)) {
+                        throw new IOException("Shapefile .dbf has fewer records than its .shp");
+                    }
+                    if (DbfReader.isDeleted(record)) {
+                        continue;
+                    }
+
+                    long fid = ++result.features;
+                    double[] envelope = new double[4];
+                    byte[] geometry = toGeoPackageGeometry(content, srsId, envelope);
+                    insertFeature.setLong(1, fid);
+                    if (geometry != null) {
+                        insertFeature.setBytes(2, geometry);
+                        insertEnvelope.setLong(1, fid);
+                        insertEnvelope.setDouble(2, envelope[0]);
+                        insertEnvelope.setDouble(3, envelope[2]);
+                        insertEnvelope.setDouble(4, envelope[1]);
+                        insertEnvelope.setDouble(5, envelope[3]);
+                        insertEnvelope.addBatch();
+                        extent[0] = Math.min(extent[0], envelope[0]);
+                        extent[1] = Math.min(extent[1], envelope[1]);
+                        extent[2] = Math.max(extent[2], envelope[2]);
+                        extent[3] = Math.max(extent[3], envelope[3]);
+                    } else {
+                        insertFeature.setNull(2, Types.BLOB);
+                    }
+                    for (int index = 0; index < fields.size(); index++) {
+                        setValue(insertFeature, index + 3, fields.get(index), record, charset);
+                    }
+                    insertFeature.addBatch();
+                    if (++batched >= batchSize) {
+                        insertFeature.executeBatch();
+                        insertEnvelope.executeBatch();
+                        batched = 0;
+                    }
+                }
+                if (batched > 0) {
+                    insertFeature.executeBatch();
+                    insertEnvelope.executeBatch();
+                }
+            } finally {
+                insertFeature.close();
+                insertEnvelope.close();
+            }
+
+            String rtree = quote("rtree_" + tableName + "_" + GEOMETRY_COLUMN);
+            statement.executeUpdate("CREATE VIRTUAL TABLE " + rtree + " USING rtree(id, minx, maxx, miny, maxy)");
+            statement.executeUpdate("INSERT INTO " + rtree + " SELECT id, minx, maxx, miny, maxy FROM temp.envelopes");
+            statement.executeUpdate("DROP TABLE temp.envelopes");
+            // Created once the index is filled so that they cost nothing during
+            // the load but keep the index current for later edits, e.g. WFS-T
+            for (String trigger : getRTreeTriggers(tableName)) {
+                statement.executeUpdate(trigger);
+            }
+
+            boolean hasExtent = extent[0] <= extent[2];
+            statement.executeUpdate("INSERT INTO gpkg_contents (table_name, data_type, identifier, min_x, min_y, max_x, max_y, srs_id) VALUES ("
+                    + quoteLiteral(tableName) + ", 'features', " + quoteLiteral(tableName) + ", "
+                    + (hasExtent ? extent[0] + ", " + extent[1] + ", " + extent[2] + ", " + extent[3] : "NULL, NULL, NULL, NULL") + ", " + srsId + ")");
+            statement.executeUpdate("INSERT INTO gpkg_geometry_columns VALUES (" + quoteLiteral(tableName) + ", '" + GEOMETRY_COLUMN + "', '" + geometryType + "', " + srsId + ", 0, 0)");
+            statement.executeUpdate("INSERT INTO gpkg_extensions VALUES (" + quoteLiteral(tableName) + ", '" + GEOMETRY_COLUMN
+                    + "', 'gpkg_rtree_index', 'http://www.geopackage.org/spec120/#extension_rtree', 'write-only')");
+            return result;
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * SQLite column names are not case sensitive, so a field named like the
+     * feature id or geometry column, or like another field, regardless of
+     * case, is given a numbered suffix
+     *
+     * @param fieldNames the .dbf's field names, in order
+     * @return the column each field is stored in, in the same order
+     */
+    static List<String> getColumnNames(List<String> fieldNames) {
+        Set<String> taken = new HashSet<String>();
+        taken.add("fid");
+        taken.add(GEOMETRY_COLUMN);
+        List<String> columnNames = new ArrayList<String>();
+        for (String fieldName : fieldNames) {
+            String columnName = fieldName;
+            for (int count = 1; !taken.add(columnName.toLowerCase()); count++) {
+                columnName = fieldName + "_" + count;
+            }
+            if (!columnName.equals(fieldName)) {
+                LOG.debug("Field " + fieldName + " is stored as " + columnName);
+            }
+            columnNames.add(columnName);
+        }
+        return columnNames;
+    }
+
+    /**
+     * @param tableName
+     * @return the statements creating the triggers the GeoPackage RTree
+     * extension requires to keep a table's spatial index current
+     */
+    static List<String> getRTreeTriggers(String tableName) {
+        String prefix = "rtree_" + tableName + "_" + GEOMETRY_COLUMN;
+        String rtree = quote(prefix);
+        String table = quote(tableName);
+        String column = quote(GEOMETRY_COLUMN);
+        String present = "NEW." + column + " NOTNULL AND NOT ST_IsEmpty(NEW." + column + ")";
+        String absent = "NEW." + column + " ISNULL OR ST_IsEmpty(NEW." + column + ")";
+        String insert = "INSERT OR REPLACE INTO " + rtree + " VALUES (NEW.fid, ST_MinX(NEW." + column + "), ST_MaxX(NEW." + column + "), "
+                + "ST_MinY(NEW." + column + "), ST_MaxY(NEW." + column + ")); ";
+        List<String> triggers = new ArrayList<String>();
+        triggers.add("CREATE TRIGGER " + quote(prefix + "_insert") + " AFTER INSERT ON " + table
+                + " WHEN (" + present + ") BEGIN " + insert + "END");
+        triggers.add("CREATE TRIGGER " + quote(prefix + "_update1") + " AFTER UPDATE OF " + column + " ON " + table
+                + " WHEN OLD.fid = NEW.fid AND (" + present + ") BEGIN " + insert + "END");
+        triggers.add("CREATE TRIGGER " + quote(prefix + "_update2") + " AFTER UPDATE OF " + column + " ON " + table
+                + " WHEN OLD.fid = NEW.fid AND (" + absent + ") BEGIN DELETE FROM " + rtree + " WHERE id = OLD.fid; END");
+        triggers.add("CREATE TRIGGER " + quote(prefix + "_update3") + " AFTER UPDATE ON " + table
+                + " WHEN OLD.fid != NEW.fid AND (" + present + ") BEGIN DELETE FROM " + rtree + " WHERE id = OLD.fid; " + insert + "END");
+        triggers.add("CREATE TRIGGER " + quote(prefix + "_update4") + " AFTER UPDATE ON " + table
+                + " WHEN OLD.fid != NEW.fid AND (" + absent + ") BEGIN DELETE FROM " + rtree + " WHERE id IN (OLD.fid, NEW.fid); END");
+        triggers.add("CREATE TRIGGER " + quote(prefix + "_delete") + " AFTER DELETE ON " + table
+                + " WHEN OLD." + column + " NOT NULL BEGIN DELETE FROM " + rtree + " WHERE id = OLD.fid; END");
+        return triggers;
+    }
+
+    private static void createMetadataTables(Statement statement) throws SQLException {
+        statement.executeUpdate("PRAGMA application_id = 1196444487");
+        statement.executeUpdate("PRAGMA user_version = 10200");
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS gpkg_spatial_ref_sys (srs_name TEXT NOT NULL, srs_id INTEGER NOT NULL PRIMARY KEY, "
+                + "organization TEXT NOT NULL, organization_coordsys_id INTEGER NOT NULL, definition TEXT NOT NULL, description TEXT)");
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS gpkg_contents (table_name TEXT NOT NULL PRIMARY KEY, data_type TEXT NOT NULL, "
+                + "identifier TEXT UNIQUE, description TEXT DEFAULT '', last_change DATETIME NOT NULL DEFAULT (strftime('%Y-%m-%dT%H:%M:%fZ','now')), "
+                + "min_x DOUBLE, min_y DOUBLE, max_x DOUBLE, max_y DOUBLE, srs_id INTEGER, "
+                + "CONSTRAINT fk_gc_r_srs_id FOREIGN KEY (srs_id) REFERENCES gpkg_spatial_ref_sys(srs_id))");
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS gpkg_geometry_columns (table_name TEXT NOT NULL, column_name TEXT NOT NULL, "
+                + "geometry_type_name TEXT NOT NULL, srs_id INTEGER NOT NULL, z TINYINT NOT NULL, m TINYINT NOT NULL, "
+                + "CONSTRAINT pk_geom_cols PRIMARY KEY (table_name, column_name), CONSTRAINT uk_gc_table_name UNIQUE (table_name), "
+                + "CONSTRAINT fk_gc_tn FOREIGN KEY (table_name) REFERENCES gpkg_contents(table_name), "
+                + "CONSTRAINT fk_gc_srs FOREIGN KEY (srs_id) REFERENCES gpkg_spatial_ref_sys (srs_id))");
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS gpkg_extensions (table_name TEXT, column_name TEXT, extension_name TEXT NOT NULL, "
+                + "definition TEXT NOT NULL, scope TEXT NOT NULL, CONSTRAINT ge_tce UNIQUE (table_name, column_name, extension_name))");
+        statement.executeUpdate("INSERT OR IGNORE INTO gpkg_spatial_ref_sys VALUES ('Undefined cartesian SRS', -1, 'NONE', -1, 'undefined', NULL)");
+        statement.executeUpdate("INSERT OR IGNORE INTO gpkg_spatial_ref_sys VALUES ('Undefined geographic SRS', 0, 'NONE', 0, 'undefined', NULL)");
+        statement.executeUpdate("INSERT OR IGNORE INTO gpkg_spatial_ref_sys VALUES ('WGS 84 geodetic', 4326, 'EPSG', 4326, " + quoteLiteral(WGS84_DEFINITION) + ", NULL)");
+    }
+
+    private static void dropTable(Statement statement, String tableName) throws SQLException {
+        statement.executeUpdate("DROP TABLE IF EXISTS " + quote("rtree_" + tableName + "_" + GEOMETRY_COLUMN));
+        statement.executeUpdate("DROP TABLE IF EXISTS " + quote(tableName));
+        statement.executeUpdate("DELETE FROM gpkg_extensions WHERE table_name = " + quoteLiteral(tableName));
+        statement.executeUpdate("DELETE FROM gpkg_geometry_columns WHERE table_name = " + quoteLiteral(tableName));
+        statement.executeUpdate("DELETE FROM gpkg_contents WHERE table_name = " + quoteLiteral(tableName));
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String quoteLiteral(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    /**
+     * @param srsName EPSG:code
+     * @return the EPSG code, or -1 for an undefined SRS
+     */
+    static int getSrsId(String srsName) {
+        if (StringUtils.isNotBlank(srsName)) {
+            try {
+                return Integer.parseInt(srsName.substring(srsName.lastIndexOf(':') + 1).trim());
+            } catch (NumberFormatException ex) {
+                LOG.debug("SRS " + srsName + " is not an EPSG code");
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param shapeType the .shp header's shape type
+     * @return the GeoPackage geometry type features are stored as. Lines and
+     * polygons are always stored as multi geometries since a shapefile does
+     * not tell single from multi part ones.
+     */
+    static String getGeometryTypeName(int shapeType) throws IOException {
+        switch (shapeType) {
+            case 1:
+            case 11:
+            case 21:
+                return "POINT";
+            case 8:
+            case 18:
+            case 28:
+                return "MULTIPOINT";
+            case 3:
+            case 13:
+            case 23:
+                return "MULTILINESTRING";
+            case 5:
+            case 15:
+            case 25:
+                return "MULTIPOLYGON";
+            default:
+                throw new IOException("Shapefile has unsupported shape type " + shapeType);
+        }
+    }
+
+    private static String getColumnType(DbfReader.Field field) {
+        switch (Character.toUpperCase(field.getType())) {
+            case 'N':
+            case 'F':
+                return field.getDecimalCount() == 0 && field.getLength() <= 18 ? "INTEGER" : "DOUBLE";
+            case 'L':
+                return "BOOLEAN";
+            case 'D':
+                return "DATE";
+            default:
+                return "TEXT";
+        }
+    }
+
+    private static void setValue(PreparedStatement insert, int parameter, DbfReader.Field field, byte[] record, String charset) throws IOException, SQLException {
+        String value = field.getValue(record, charset);
+        String type = getColumnType(field);
+        if (value == null) {
+            insert.setNull(parameter, Types.NULL);
+        } else if ("INTEGER".equals(type)) {
+            try {
+                insert.setLong(parameter, Long.parseLong(value.startsWith("+") ? value.substring(1) : value));
+            } catch (NumberFormatException ex) {
+                insert.setNull(parameter, Types.NULL);
+            }
+        } else if ("DOUBLE".equals(type)) {
+            try {
+                insert.setDouble(parameter, Double.parseDouble(value));
+            } catch (NumberFormatException ex) {
+                insert.setNull(parameter, Types.NULL);
+            }
+        } else if ("BOOLEAN".equals(type)) {
+            char flag = Character.toUpperCase(value.charAt(0));
+            if (flag == 'T' || flag == 'Y') {
+                insert.setInt(parameter, 1);
+            } else if (flag == 'F' || flag == 'N') {
+                insert.setInt(parameter, 0);
+            } else {
+                insert.setNull(parameter, Types.NULL);
+            }
+        } else if ("DATE".equals(type)) {
+            // dBase dates are YYYYMMDD
+            if (value.length() == 8 && StringUtils.isNumeric(value)) {
+                insert.setString(parameter, value.substring(0, 4) + "-" + value.substring(4, 6) + "-" + value.substring(6));
+            } else {
+                insert.setNull(parameter, Types.NULL);
+            }
+        } else {
+            insert.setString(parameter, value);
+        }
+    }
+
+    /**
+     * Converts a .shp record into a GeoPackage geometry: a little endian
+     * header with the SRS and envelope followed by the geometry as WKB. Z and M
+     * values are left out. Polygon rings are told apart by their orientation,
+     * holes belonging to the outer ring before them.
+     *
+     * @param content the record's content
+     * @param srsId
+     * @param envelope set to the geometry's minimum x, minimum y, maximum x
+     * and maximum y
+     * @return the geometry, null for a null shape
+     */
+    static byte[] toGeoPackageGeometry(byte[] content, int srsId, double[] envelope) throws IOException {
+        ByteBuffer input = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        int shapeType = content.length >= 4 ? input.getInt(0) : 0;
+        if (shapeType == 0) {
+            return null;
+        }
+        String geometryType = getGeometryTypeName(shapeType);
+
+        ByteBuffer wkb;
+        if ("POINT".equals(geometryType)) {
+            double x = input.getDouble(4);
+            double y = input.getDouble(12);
+            envelope[0] = envelope[2] = x;
+            envelope[1] = envelope[3] = y;
+            wkb = ByteBuffer.allocate(21).order(ByteOrder.LITTLE_ENDIAN);
+            putPoint(wkb, x, y);
+        } else {
+            envelope[0] = input.getDouble(4);
+            envelope[1] = input.getDouble(12);
+            envelope[2] = input.getDouble(20);
+            envelope[3] = input.getDouble(28);
+            if ("MULTIPOINT".equals(geometryType)) {
+                int numPoints = input.getInt(36);
+                wkb = ByteBuffer.allocate(9 + 21 * numPoints).order(ByteOrder.LITTLE_ENDIAN);
+                wkb.put((byte) 1).putInt(4).putInt(numPoints);
+                for (int point = 0; point < numPoints; point++) {
+                    putPoint(wkb, input.getDouble(40 + 16 * point), input.getDouble(48 + 16 * point));
+                }
+            } else {
+                wkb = toMultiGeometry(input, "MULTIPOLYGON".equals(geometryType));
+            }
+        }
+
+        byte[] geometry = wkb.array();
+        ByteBuffer output = ByteBuffer.allocate(8 + 32 + geometry.length).order(ByteOrder.LITTLE_ENDIAN);
+        // Magic, version 0 and flags: little endian with an xy envelope
+        output.put((byte) 'G').put((byte) 'P').put((byte) 0).put((byte) 0x03);
+        output.putInt(srsId);
+        output.putDouble(envelope[0]).putDouble(envelope[2]).putDouble(envelope[1]).putDouble(envelope[3]);
+        output.put(geometry);
+        return output.array();
+    }
+
+    private static void putPoint(ByteBuffer wkb, double x, double y) {
+        wkb.put((byte) 1).putInt(1).putDouble(x).putDouble(y);
+    }
+
+    private static ByteBuffer toMultiGeometry(ByteBuffer input, boolean polygon) {
+        int numParts = input.getInt(36);
+        int numPoints = input.getInt(40);
+        int pointsOffset = 44 + 4 * numParts;
+        int[] starts = new int[numParts + 1];
+        for (int part = 0; part < numParts; part++) {
+            starts[part] = input.getInt(44 + 4 * part);
+        }
+        starts[numParts] = numPoints;
+
+        // Each polygon is the list of its rings, outer ring first
+        List<List<Integer>> polygons = new ArrayList<List<Integer>>();
+        for (int part = 0; part < numParts; part++) {
+            if (!polygon || getSignedArea(input, pointsOffset, starts[part], starts[part + 1]) <= 0 || polygons.isEmpty()) {
+                // Outer rings run clockwise
+                polygons.add(new ArrayList<Integer>());
+            }
+            polygons.get(polygons.size() - 1).add(part);
+        }
+
+        int length = 9;
+        for (List<Integer> rings : polygons) {
+            length += polygon ? 9 : 0;
+            for (int part : rings) {
+                length += 4 + 16 * (starts[part + 1] - starts[part]) + (polygon ? 0 : 5);
+            }
+        }
+        ByteBuffer wkb = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        wkb.put((byte) 1).putInt(polygon ? 6 : 5).putInt(polygons.size());
+        for (List<Integer> rings : polygons) {
+            if (polygon) {
+                wkb.put((byte) 1).putInt(3).putInt(rings.size());
+            }
+            for (int part : rings) {
+                if (!polygon) {
+                    wkb.put((byte) 1).putInt(2);
+                }
+                wkb.putInt(starts[part + 1] - starts[part]);
+                for (int point = starts[part]; point < starts[part + 1]; point++) {
+                    wkb.putDouble(input.getDouble(pointsOffset + 16 * point)).putDouble(input.getDouble(pointsOffset + 16 * point + 8));
+                }
+            }
+        }
+        return wkb;
+    }
+
+    /**
+     * @return twice the ring's area, negative if it runs clockwise
+     */
+    private static double getSignedArea(ByteBuffer input, int pointsOffset, int start, int end) {
+        double area = 0;
+        for (int point = start; point < end - 1; point++) {
+            double x1 = input.getDouble(pointsOffset + 16 * point);
+            double y1 = input.getDouble(pointsOffset + 16 * point + 8);
+            double x2 = input.getDouble(pointsOffset + 16 * (point + 1));
+            double y2 = input.getDouble(pointsOffset + 16 * (point + 1) + 8);
+            area += x1 * y2 - x2 * y1;
+        }
+        return area;
+    }
+
+    /**
+     * Features loaded and the time it took
+     */
+    static class Result {
+
+        private long features = 0;
+        private long nanos = 0;
+
+        long getFeatures() {
+            return features;
+        }
+
+        long getNanos() {
+            return nanos;
+        }
+
+        long getFeaturesPerSecond() {
+            return nanos > 0 ? Math.round(features * 1000000000.0 / nanos) : 0;
+        }
+    }
+}
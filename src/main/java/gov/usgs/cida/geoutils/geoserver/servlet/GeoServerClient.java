@@ -0,0 +1,462 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import it.geosolutions.geoserver.rest.encoder.GSResourceEncoder.ProjectionPolicy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Talks to a single GeoServer instance over a shared, pooled HTTP client. Both
+ * the WPS import and the REST catalog calls made by the upload servlet go
+ * through here so that connections are reused across requests.
+ */
+class GeoServerClient {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(GeoServerClient.class);
+    static final int MAX_EXCERPT_LENGTH = 512;
+    private static final Pattern NATIVE_NAME_PATTERN = Pattern.compile("<nativeName>([^<]*)</nativeName>");
+    private static final Pattern STORE_TYPE_PATTERN = Pattern.compile("<type>([^<]*)</type>");
+    private static final Pattern NAME_PATTERN = Pattern.compile("<name>([^<]*)</name>");
+    // Anything but path and workspace separators and control characters
+    private static final Pattern VALID_NAME_PATTERN = Pattern.compile("[^/\\\\:\\p{Cntrl}]+");
+    private final DefaultHttpClient httpClient;
+    private final PoolingClientConnectionManager connectionManager;
+    private final String endpoint;
+    private final String catalogName;
+    private final String authorization;
+    private final long maxResponseSize;
+
+    /**
+     * @param httpClient shared client, backed by connectionManager
+     * @param connectionManager used for reporting pool statistics
+     * @param endpoint GeoServer base URL
+     * @param username GeoServer admin user name
+     * @param password GeoServer admin password
+     * @param maxResponseSize most bytes read from a WPS import response
+     */
+    GeoServerClient(DefaultHttpClient httpClient, PoolingClientConnectionManager connectionManager, URL endpoint, String username, String password, long maxResponseSize) {
+        this(httpClient, connectionManager, endpoint, null, username, password, maxResponseSize);
+    }
+
+    /**
+     * @param catalogName names the catalog the instance serves. Instances
+     * sharing a catalog, such as the nodes of a clustered GeoServer, share a
+     * name. If null, the endpoint is used.
+     */
+    GeoServerClient(DefaultHttpClient httpClient, PoolingClientConnectionManager connectionManager, URL endpoint, String catalogName, String username, String password, long maxResponseSize) {
+        this.httpClient = httpClient;
+        this.connectionManager = connectionManager;
+        String url = endpoint.toString();
+        this.endpoint = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.catalogName = catalogName != null ? catalogName : this.endpoint;
+        // Sent preemptively since streamed request bodies can not be replayed
+        // after an authentication challenge
+        this.authorization = "Basic " + Base64.encodeBase64String((username + ":" + password).getBytes(WPSImportRequestEntity.UTF8));
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    String getEndpoint() {
+        return endpoint;
+    }
+
+    String getCatalogName() {
+        return catalogName;
+    }
+
+    /**
+     * Executes a gs:Import against the WPS endpoint
+     *
+     * @param wpsRequestEntity the Execute document
+     * @return the name of the imported layer
+     * @throws ImportFailedException if GeoServer answered with an exception
+     * report or an error status
+     * @throws IOException
+     */
+    String postToWPS(HttpEntity wpsRequestEntity) throws IOException {
+        HttpPost post = new HttpPost(endpoint + "/wps/WebProcessingService?Service=WPS&Request=execute&identifier=gs:Import");
+        post.setEntity(wpsRequestEntity);
+
+        HttpResponse response = execute(post);
+        HttpEntity entity = response.getEntity();
+        int status = response.getStatusLine().getStatusCode();
+        if (entity == null) {
+            throw new IOException("GeoServer responded with " + status + " and no content");
+        }
+        boolean fullyRead = false;
+        InputStream content = entity.getContent();
+        try {
+            Charset charset = ContentType.getOrDefault(entity).getCharset();
+            if (status < HttpStatus.SC_OK || status >= HttpStatus.SC_MULTIPLE_CHOICES) {
+                // Error pages are not exception reports and only a bit of one
+                // is worth passing on
+                String excerpt = readExcerpt(content, charset != null ? charset : WPSImportRequestEntity.UTF8);
+                throw new ImportFailedException("GeoServer responded with " + status + (excerpt.length() == 0 ? "" : ": " + excerpt));
+            }
+            String layerName = WPSResponseParser.parse(content, charset != null ? charset : WPSImportRequestEntity.UTF8, maxResponseSize);
+            fullyRead = content.read() == -1;
+            return layerName;
+        } finally {
+            if (fullyRead) {
+                EntityUtils.consume(entity);
+            } else {
+                // Whatever is left of the response is not worth reading just
+                // to keep the connection
+                post.abort();
+            }
+        }
+    }
+
+    /**
+     * @return at most the first {@link #MAX_EXCERPT_LENGTH} characters of a
+     * response, trimmed
+     */
+    static String readExcerpt(InputStream content, Charset charset) throws IOException {
+        Reader reader = new InputStreamReader(content, charset);
+        char[] buffer = new char[MAX_EXCERPT_LENGTH];
+        int length = 0;
+        int read;
+        while (length < buffer.length && (read = reader.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+        }
+        return new String(buffer, 0, length).trim();
+    }
+
+    /**
+     * @return true if the name can be used for a workspace, store or layer.
+     * Names are sent as URL path segments and must not be empty, a relative
+     * segment, or hold separators or control characters.
+     */
+    static boolean isValidName(String name) {
+        return name != null && !".".equals(name) && !"..".equals(name) && VALID_NAME_PATTERN.matcher(name).matches();
+    }
+
+    /**
+     * Percent-encodes a name for use as a single URL path segment
+     */
+    static String encode(String name) {
+        try {
+            return URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Removes a feature type and its layer from a data store
+     *
+     * @return true if GeoServer removed the feature type
+     * @throws IOException
+     */
+    boolean unpublishFeatureType(String workspaceName, String storeName, String layerName) throws IOException {
+        return delete("/rest/workspaces/" + encode(workspaceName) + "/datastores/" + encode(storeName) + "/featuretypes/" + encode(layerName) + "?recurse=true");
+    }
+
+    /**
+     * Removes a coverage and its layer from a coverage store
+     *
+     * @return true if GeoServer removed the coverage
+     * @throws IOException
+     */
+    boolean unpublishCoverage(String workspaceName, String storeName, String layerName) throws IOException {
+        return delete("/rest/workspaces/" + encode(workspaceName) + "/coveragestores/" + encode(storeName) + "/coverages/" + encode(layerName) + "?recurse=true");
+    }
+
+    /**
+     * Reloads a data store. Modifying a store causes GeoServer to dispose of
+     * the cached data store so that it is reopened on next access.
+     *
+     * @return true if GeoServer accepted the modification
+     * @throws IOException
+     */
+    boolean reloadStore(String workspaceName, String storeName) throws IOException {
+        HttpPut put = new HttpPut(endpoint + "/rest/workspaces/" + encode(workspaceName) + "/datastores/" + encode(storeName));
+        put.setEntity(new StringEntity("<dataStore><enabled>true</enabled></dataStore>", ContentType.create("text/xml", WPSImportRequestEntity.UTF8)));
+        return isSuccess(put);
+    }
+
+    /**
+     * Uploads a zipped shapefile into a shapefile store, creating the store if
+     * needed. The zip is sent as is and nothing is published.
+     *
+     * @throws ImportFailedException if GeoServer rejected the upload
+     * @throws IOException
+     */
+    void uploadShapefile(String workspaceName, String storeName, SpoolManager.Spool spool) throws IOException {
+        HttpPut put = new HttpPut(endpoint + "/rest/workspaces/" + encode(workspaceName) + "/datastores/" + encode(storeName) + "/file.shp?configure=none");
+        byte[] data = spool.getData();
+        put.setEntity(data != null ? new ByteArrayEntity(data, ContentType.create("application/zip")) : new FileEntity(spool.getFile(), ContentType.create("application/zip")));
+        executeOrFail(put);
+    }
+
+    /**
+     * Publishes a feature type of a data store as a layer
+     *
+     * @param nativeName the feature type's name in the store
+     * @throws ImportFailedException if GeoServer rejected the feature type
+     * @throws IOException
+     */
+    void publishFeatureType(String workspaceName, String storeName, String layerName, String nativeName, String srsName, ProjectionPolicy projectionPolicy) throws IOException {
+        HttpPost post = new HttpPost(endpoint + "/rest/workspaces/" + encode(workspaceName) + "/datastores/" + encode(storeName) + "/featuretypes");
+        post.setEntity(new StringEntity("<featureType>"
+                + "<name>" + StringEscapeUtils.escapeXml(layerName) + "</name>"
+                + "<nativeName>" + StringEscapeUtils.escapeXml(nativeName) + "</nativeName>"
+                + "<srs>" + StringEscapeUtils.escapeXml(srsName) + "</srs>"
+                + "<projectionPolicy>" + projectionPolicy.name() + "</projectionPolicy>"
+                + "<enabled>true</enabled>"
+                + "</featureType>", ContentType.create("text/xml", WPSImportRequestEntity.UTF8)));
+        executeOrFail(post);
+    }
+
+    /**
+     * Renames a feature type of a data store along with its layer
+     *
+     * @return false if the store has no feature type by that name
+     * @throws ImportFailedException if GeoServer refused the rename
+     * @throws IOException
+     */
+    boolean renameFeatureType(String workspaceName, String storeName, String layerName, String newLayerName) throws IOException {
+        HttpPut put = new HttpPut(endpoint + "/rest/workspaces/" + encode(workspaceName) + "/datastores/" + encode(storeName) + "/featuretypes/" + encode(layerName));
+        put.setEntity(new StringEntity("<featureType><name>" + StringEscapeUtils.escapeXml(newLayerName) + "</name></featureType>", ContentType.create("text/xml", WPSImportRequestEntity.UTF8)));
+        HttpResponse response = execute(put);
+        int status = response.getStatusLine().getStatusCode();
+        String body = EntityUtils.toString(response.getEntity());
+        LOG.debug("PUT " + put.getURI() + " returned " + status);
+        if (status == HttpStatus.SC_NOT_FOUND) {
+            return false;
+        }
+        if (status < HttpStatus.SC_OK || status >= HttpStatus.SC_MULTIPLE_CHOICES) {
+            throw new ImportFailedException("GeoServer could not rename " + layerName + " to " + newLayerName + ": " + status + (body == null || body.trim().length() == 0 ? "" : " " + body.trim()));
+        }
+        return true;
+    }
+
+    /**
+     * Creates a data store backed by a GeoPackage
+     *
+     * @param database the GeoPackage's path as GeoServer sees it
+     * @throws ImportFailedException if GeoServer rejected the store
+     * @throws IOException
+     */
+    void createGeoPackageStore(String workspaceName, String storeName, String database) throws IOException {
+        HttpPost post = new HttpPost(endpoint + "/rest/workspaces/" + encode(workspaceName) + "/datastores");
+        post.setEntity(new StringEntity("<dataStore>"
+                + "<name>" + StringEscapeUtils.escapeXml(storeName) + "</name>"
+                + "<type>GeoPackage</type>"
+                + "<enabled>true</enabled>"
+                + "<connectionParameters>"
+                + "<entry key=\"dbtype\">geopkg</entry>"
+                + "<entry key=\"database\">" + StringEscapeUtils.escapeXml(database) + "</entry>"
+                + "</connectionParameters>"
+                + "</dataStore>", ContentType.create("text/xml", WPSImportRequestEntity.UTF8)));
+        executeOrFail(post);
+    }
+
+    /**
+     * @return the name of the feature type's data within its store, null if
+     * the store has no feature type by that name
+     * @throws IOException if GeoServer could not tell
+     */
+    String getNativeName(String workspaceName, String storeName, String layerName) throws IOException {
+        HttpGet get = new HttpGet(endpoint + "/rest/workspaces/" + encode(workspaceName) + "/datastores/" + encode(storeName) + "/featuretypes/" + encode(layerName) + ".xml");
+        HttpResponse response = execute(get);
+        int status = response.getStatusLine().getStatusCode();
+        String body = EntityUtils.toString(response.getEntity());
+        LOG.debug("GET " + get.getURI() + " returned " + status);
+        if (status == HttpStatus.SC_NOT_FOUND) {
+            return null;
+        }
+        if (status < HttpStatus.SC_OK || status >= HttpStatus.SC_MULTIPLE_CHOICES) {
+            throw new IOException("GeoServer responded with " + status + " to GET " + get.getURI().getRawPath());
+        }
+        Matcher matcher = NATIVE_NAME_PATTERN.matcher(StringUtils.defaultString(body));
+        return matcher.find() ? StringEscapeUtils.unescapeXml(matcher.group(1)) : layerName;
+    }
+
+    /**
+     * @return the kind of data store, such as "Shapefile", null if GeoServer
+     * has no such store
+     * @throws IOException if GeoServer could not tell
+     */
+    String getDataStoreType(String workspaceName, String storeName) throws IOException {
+        String body = getBody("/rest/workspaces/" + encode(workspaceName) + "/datastores/" + encode(storeName) + ".xml");
+        if (body == null) {
+            return null;
+        }
+        Matcher matcher = STORE_TYPE_PATTERN.matcher(body);
+        return matcher.find() ? StringEscapeUtils.unescapeXml(matcher.group(1)) : "";
+    }
+
+    /**
+     * @return the names of the feature types published from a data store,
+     * null if GeoServer has no such store
+     * @throws IOException if GeoServer could not tell
+     */
+    List<String> getFeatureTypeNames(String workspaceName, String storeName) throws IOException {
+        String body = getBody("/rest/workspaces/" + encode(workspaceName) + "/datastores/" + encode(storeName) + "/featuretypes.xml");
+        if (body == null) {
+            return null;
+        }
+        List<String> names = new ArrayList<String>();
+        Matcher matcher = NAME_PATTERN.matcher(body);
+        while (matcher.find()) {
+            names.add(StringEscapeUtils.unescapeXml(matcher.group(1)));
+        }
+        return names;
+    }
+
+    /**
+     * @return true if GeoServer has the data store
+     * @throws IOException if GeoServer could not tell
+     */
+    boolean storeExists(String workspaceName, String storeName) throws IOException {
+        return exists("/rest/workspaces/" + encode(workspaceName) + "/datastores/" + encode(storeName));
+    }
+
+    /**
+     * @return true if GeoServer answers REST requests
+     */
+    boolean isAvailable() {
+        try {
+            return isSuccess(new HttpGet(endpoint + "/rest/about/version.xml"));
+        } catch (IOException ex) {
+            LOG.debug("GeoServer at " + endpoint + " could not be reached: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return true if GeoServer has the workspace
+     * @throws IOException if GeoServer could not tell
+     */
+    boolean workspaceExists(String workspaceName) throws IOException {
+        return exists("/rest/workspaces/" + encode(workspaceName));
+    }
+
+    /**
+     * @return true if GeoServer has the layer
+     * @throws IOException if GeoServer could not tell
+     */
+    boolean layerExists(String workspaceName, String layerName) throws IOException {
+        return exists("/rest/layers/" + encode(workspaceName) + ":" + encode(layerName));
+    }
+
+    /**
+     * Only a 404 means the resource does not exist. Any other failure leaves it
+     * unknown.
+     */
+    private boolean exists(String path) throws IOException {
+        HttpGet get = new HttpGet(endpoint + path);
+        HttpResponse response = execute(get);
+        int status = response.getStatusLine().getStatusCode();
+        EntityUtils.consume(response.getEntity());
+        LOG.debug("GET " + get.getURI() + " returned " + status);
+        if (status == HttpStatus.SC_NOT_FOUND) {
+            return false;
+        }
+        if (status < HttpStatus.SC_OK || status >= HttpStatus.SC_MULTIPLE_CHOICES) {
+            throw new IOException("GeoServer responded with " + status + " to GET " + path);
+        }
+        return true;
+    }
+
+    /**
+     * @return the response to a GET, null if GeoServer has nothing there
+     */
+    private String getBody(String path) throws IOException {
+        HttpGet get = new HttpGet(endpoint + path);
+        HttpResponse response = execute(get);
+        int status = response.getStatusLine().getStatusCode();
+        String body = EntityUtils.toString(response.getEntity());
+        LOG.debug("GET " + get.getURI() + " returned " + status);
+        if (status == HttpStatus.SC_NOT_FOUND) {
+            return null;
+        }
+        if (status < HttpStatus.SC_OK || status >= HttpStatus.SC_MULTIPLE_CHOICES) {
+            throw new IOException("GeoServer responded with " + status + " to GET " + path);
+        }
+        return StringUtils.defaultString(body);
+    }
+
+    private boolean delete(String path) throws IOException {
+        return isSuccess(new HttpDelete(endpoint + path));
+    }
+
+    private boolean isSuccess(HttpRequestBase request) throws IOException {
+        HttpResponse response = execute(request);
+        int status = response.getStatusLine().getStatusCode();
+        EntityUtils.consume(response.getEntity());
+        LOG.debug(request.getMethod() + " " + request.getURI() + " returned " + status);
+        return status >= HttpStatus.SC_OK && status < HttpStatus.SC_MULTIPLE_CHOICES;
+    }
+
+    private void executeOrFail(HttpRequestBase request) throws IOException {
+        HttpResponse response = execute(request);
+        int status = response.getStatusLine().getStatusCode();
+        String body = EntityUtils.toString(response.getEntity());
+        LOG.debug(request.getMethod() + " " + request.getURI() + " returned " + status);
+        if (status < HttpStatus.SC_OK || status >= HttpStatus.SC_MULTIPLE_CHOICES) {
+            throw new ImportFailedException("GeoServer responded with " + status + (body == null || body.trim().length() == 0 ? "" : ": " + body.trim()));
+        }
+    }
+
+    private HttpResponse execute(HttpRequestBase request) throws IOException {
+        request.addHeader("Authorization", authorization);
+        try {
+            return httpClient.execute(request);
+        } catch (IOException ex) {
+            request.abort();
+            throw ex;
+        } catch (RuntimeException ex) {
+            request.abort();
+            throw ex;
+        } finally {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Connection pool: " + getPoolStats());
+            }
+        }
+    }
+
+    /**
+     * @return connection pool statistics for the shared client
+     */
+    Map<String, String> getPoolStats() {
+        PoolStats stats = connectionManager.getTotalStats();
+        Map<String, String> poolStats = new LinkedHashMap<String, String>();
+        poolStats.put("http.pool.leased", String.valueOf(stats.getLeased()));
+        poolStats.put("http.pool.available", String.valueOf(stats.getAvailable()));
+        poolStats.put("http.pool.pending", String.valueOf(stats.getPending()));
+        poolStats.put("http.pool.max", String.valueOf(stats.getMax()));
+        return poolStats;
+    }
+}
@@ -0,0 +1,277 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.NoHttpResponseException;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the GeoServer instances imports are made against. Imports are
+ * either spread over the instances, going to the one with the fewest imports
+ * in flight or to each in turn, or fanned out to all of them at once. An
+ * instance that can not be reached is passed over until a health check finds
+ * it answering again. If no instance is known to be healthy, all of them are
+ * tried.
+ */
+class GeoServerCluster {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(GeoServerCluster.class);
+    private final long healthCheckInterval;
+    private final ScheduledExecutorService healthChecker;
+    private final ExecutorService fanOutExecutor;
+    private final AtomicInteger turn = new AtomicInteger();
+    // Replaced as a whole when the configuration is reloaded
+    private volatile Map<String, Node> nodes = Collections.emptyMap();
+
+    /**
+     * @param threadName prefix of the names of the threads health checks and
+     * fanned out imports are made on
+     * @param healthCheckInterval milliseconds between health checks, 0 to
+     * never pass over an instance
+     */
+    GeoServerCluster(final String threadName, long healthCheckInterval) {
+        this.healthCheckInterval = healthCheckInterval;
+        this.fanOutExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (healthCheckInterval > 0) {
+            this.healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, threadName + "-health");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.healthChecker.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkHealth();
+                }
+            }, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+        } else {
+            this.healthChecker = null;
+        }
+    }
+
+    /**
+     * Sets the instances imports are made against. Instances that were already
+     * known keep their health and imports in flight.
+     *
+     * @param gsClients
+     */
+    synchronized void setNodes(List<GeoServerClient> gsClients) {
+        Map<String, Node> updated = new LinkedHashMap<String, Node>();
+        for (GeoServerClient gsClient : gsClients) {
+            Node node = nodes.get(gsClient.getEndpoint());
+            updated.put(gsClient.getEndpoint(), node != null ? new Node(gsClient, node) : new Node(gsClient));
+        }
+        nodes = Collections.unmodifiableMap(updated);
+    }
+
+    /**
+     * @return every instance, healthy or not
+     */
+    List<GeoServerClient> getNodes() {
+        List<GeoServerClient> gsClients = new ArrayList<GeoServerClient>();
+        for (Node node : nodes.values()) {
+            gsClients.add(node.gsClient);
+        }
+        return gsClients;
+    }
+
+    /**
+     * @param roundRobin whether to take each healthy instance in turn rather
+     * than the one with the fewest imports in flight
+     * @return the instance to import into
+     */
+    GeoServerClient select(boolean roundRobin) {
+        List<Node> candidates = new ArrayList<Node>();
+        for (Node node : nodes.values()) {
+            if (node.healthy) {
+                candidates.add(node);
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates.addAll(nodes.values());
+        }
+        if (candidates.isEmpty()) {
+            throw new IllegalStateException("No GeoServer instances are configured");
+        }
+
+        // Ties are broken in turn so that idle instances share the load
+        int start = (turn.getAndIncrement() & Integer.MAX_VALUE) % candidates.size();
+        Node selected = candidates.get(start);
+        if (!roundRobin) {
+            for (int offset = 1; offset < candidates.size(); offset++) {
+                Node candidate = candidates.get((start + offset) % candidates.size());
+                if (candidate.inFlight.get() < selected.inFlight.get()) {
+                    selected = candidate;
+                }
+            }
+        }
+        return selected.gsClient;
+    }
+
+    /**
+     * Counts an import into an instance as in flight
+     *
+     * @param gsClient
+     */
+    void enter(GeoServerClient gsClient) {
+        Node node = nodes.get(gsClient.getEndpoint());
+        if (node != null) {
+            node.inFlight.incrementAndGet();
+            node.imports.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts an import into an instance as finished
+     *
+     * @param gsClient
+     * @param failure what the import failed with, null if it did not. An
+     * instance that could not be reached is passed over until it is found to
+     * be healthy again.
+     */
+    void leave(GeoServerClient gsClient, IOException failure) {
+        Node node = nodes.get(gsClient.getEndpoint());
+        if (node == null) {
+            return;
+        }
+        node.inFlight.decrementAndGet();
+        if (failure != null) {
+            node.failures.incrementAndGet();
+            if (healthCheckInterval > 0 && isUnreachable(failure) && node.healthy) {
+                node.healthy = false;
+                LOG.warn("GeoServer at " + gsClient.getEndpoint() + " could not be reached and is passed over until it answers a health check: " + failure.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return true if the failure means GeoServer could not be reached or did
+     * not answer, as opposed to GeoServer refusing the import
+     */
+    static boolean isUnreachable(IOException failure) {
+        return failure instanceof SocketException
+                || failure instanceof UnknownHostException
+                || failure instanceof NoHttpResponseException
+                || failure instanceof InterruptedIOException;
+    }
+
+    /**
+     * Asks every instance whether it is answering. Run periodically when there
+     * is more than one instance.
+     */
+    void checkHealth() {
+        Map<String, Node> checked = nodes;
+        if (checked.size() < 2) {
+            return;
+        }
+        for (Node node : checked.values()) {
+            boolean healthy = node.gsClient.isAvailable();
+            if (healthy != node.healthy) {
+                if (healthy) {
+                    LOG.info("GeoServer at " + node.gsClient.getEndpoint() + " is answering again");
+                } else {
+                    LOG.warn("GeoServer at " + node.gsClient.getEndpoint() + " failed a health check and is passed over");
+                }
+                node.healthy = healthy;
+            }
+        }
+    }
+
+    /**
+     * Runs imports into several instances at once
+     *
+     * @param imports
+     * @return the imports' outcomes, in the order given
+     * @throws InterruptedException if interrupted while waiting
+     */
+    <T> List<Future<T>> invokeAll(List<Callable<T>> imports) throws InterruptedException {
+        return fanOutExecutor.invokeAll(imports);
+    }
+
+    /**
+     * Stops health checks. Imports under way are finished.
+     */
+    void shutdown() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+        fanOutExecutor.shutdown();
+    }
+
+    /**
+     * @return health, imports in flight, imports and failures of each
+     * instance, numbered in the order configured
+     */
+    Map<String, String> getStats() {
+        Map<String, String> stats = new LinkedHashMap<String, String>();
+        int index = 0;
+        int healthy = 0;
+        for (Node node : nodes.values()) {
+            String prefix = "geoserver.node." + (++index) + ".";
+            stats.put(prefix + "endpoint", node.gsClient.getEndpoint());
+            stats.put(prefix + "healthy", String.valueOf(node.healthy));
+            stats.put(prefix + "in.flight", String.valueOf(node.inFlight.get()));
+            stats.put(prefix + "imports", String.valueOf(node.imports.get()));
+            stats.put(prefix + "failures", String.valueOf(node.failures.get()));
+            healthy += node.healthy ? 1 : 0;
+        }
+        stats.put("geoserver.nodes", String.valueOf(index));
+        stats.put("geoserver.nodes.healthy", String.valueOf(healthy));
+        return stats;
+    }
+
+    private static class Node {
+
+        private final GeoServerClient gsClient;
+        private final AtomicInteger inFlight;
+        private final AtomicLong imports;
+        private final AtomicLong failures;
+        private volatile boolean healthy = true;
+
+        Node(GeoServerClient gsClient) {
+            this.gsClient = gsClient;
+            this.inFlight = new AtomicInteger();
+            this.imports = new AtomicLong();
+            this.failures = new AtomicLong();
+        }
+
+        /**
+         * Carries an instance's state over to its newly configured client
+         */
+        Node(GeoServerClient gsClient, Node previous) {
+            this.gsClient = gsClient;
+            this.inFlight = previous.inFlight;
+            this.imports = previous.imports;
+            this.failures = previous.failures;
+            this.healthy = previous.healthy;
+        }
+    }
+}
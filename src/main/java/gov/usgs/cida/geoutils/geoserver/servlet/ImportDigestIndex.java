@@ -0,0 +1,118 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which upload was last imported into each workspace, store and
+ * layer. An upload is identified by the digest of its content along with the
+ * settings it was imported with, so an identical upload to the same layer can
+ * be answered with the layer that is already published instead of importing it
+ * again. Layers are evicted least recently used first.
+ */
+class ImportDigestIndex {
+
+    private final Map<String, Entry> index;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize number of layers to remember
+     */
+    ImportDigestIndex(final int maxSize) {
+        this.index = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    private static String getKey(ImportJob job) {
+        return job.getWorkspaceName() + ":" + job.getStoreName() + ":" + job.getLayerName();
+    }
+
+    /**
+     * Identifies what a job would import. Taken before the job's SRS is
+     * resolved from its .prj so that it only depends on what was requested.
+     *
+     * @param job
+     * @return the job's content digest and import settings
+     */
+    static String getSignature(ImportJob job) {
+        String signature = job.getDigest() + "|" + job.getSrsName() + "|" + job.getProjectionPolicy().name();
+        ShapefileOptimizer optimizer = job.getOptimizer();
+        return optimizer != null ? signature + "|" + optimizer.getSettings() : signature;
+    }
+
+    /**
+     * @param job
+     * @param signature from {@link #getSignature(ImportJob)}
+     * @return the name of the layer an identical upload was imported as, or
+     * null if the job's layer was last imported from something else
+     */
+    String getImportedLayer(ImportJob job, String signature) {
+        Entry entry;
+        synchronized (index) {
+            entry = index.get(getKey(job));
+        }
+        if (entry != null && entry.signature.equals(signature)) {
+            hits.incrementAndGet();
+            return entry.importedLayerName;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Records a successful import
+     *
+     * @param job
+     * @param signature from {@link #getSignature(ImportJob)}
+     * @param importedLayerName the layer name GeoServer responded with
+     */
+    void put(ImportJob job, String signature, String importedLayerName) {
+        synchronized (index) {
+            index.put(getKey(job), new Entry(signature, importedLayerName));
+        }
+    }
+
+    /**
+     * Forgets what was imported into the job's layer, for instance because it
+     * has been removed or replaced
+     *
+     * @param job
+     */
+    void remove(ImportJob job) {
+        synchronized (index) {
+            index.remove(getKey(job));
+        }
+    }
+
+    /**
+     * @return hit, miss and size counters
+     */
+    Map<String, String> getStats() {
+        Map<String, String> stats = new LinkedHashMap<String, String>();
+        synchronized (index) {
+            stats.put("dedup.index.size", String.valueOf(index.size()));
+        }
+        stats.put("dedup.hits", String.valueOf(hits.get()));
+        stats.put("dedup.misses", String.valueOf(misses.get()));
+        return stats;
+    }
+
+    private static class Entry {
+
+        private final String signature;
+        private final String importedLayerName;
+
+        Entry(String signature, String importedLayerName) {
+            this.signature = signature;
+            this.importedLayerName = importedLayerName;
+        }
+    }
+}
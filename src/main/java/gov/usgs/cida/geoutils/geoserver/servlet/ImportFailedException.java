@@ -0,0 +1,16 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.IOException;
+
+/**
+ * Thrown when GeoServer answers an import with an error of its own, as opposed
+ * to the import not reaching GeoServer at all. The message is GeoServer's.
+ */
+class ImportFailedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    ImportFailedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,252 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import it.geosolutions.geoserver.rest.encoder.GSResourceEncoder.ProjectionPolicy;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A single shapefile import along with its progress. Synchronous requests run
+ * the job inline while asynchronous requests hand it to an
+ * {@link ImportJobManager} and report on it through the job status endpoint.
+ */
+class ImportJob {
+
+    enum State {
+
+        QUEUED, ENCODING, POSTING, IMPORTING, DONE, FAILED;
+
+        boolean isFinished() {
+            return this == DONE || this == FAILED;
+        }
+    }
+    private final String id;
+    private final String workspaceName;
+    private final String storeName;
+    private final String layerName;
+    private final ProjectionPolicy projectionPolicy;
+    private final boolean overwriteExistingLayer;
+    private final Map<String, String> responseMap = new HashMap<String, String>();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final Map<State, Long> stateTimes = new EnumMap<State, Long>(State.class);
+    private String srsName;
+    private String prj;
+    private String digest;
+    private String shapefileName;
+    private String importLayerName;
+    private ShapefileOptimizer optimizer;
+    private SpoolManager.Spool spool;
+    private volatile State state = State.QUEUED;
+    private volatile long lastUpdated = System.currentTimeMillis();
+    private volatile int retryAfter = 0;
+
+    ImportJob(String workspaceName, String storeName, String layerName, String srsName, ProjectionPolicy projectionPolicy, boolean overwriteExistingLayer) {
+        this(UUID.randomUUID().toString(), workspaceName, storeName, layerName, srsName, projectionPolicy, overwriteExistingLayer);
+    }
+
+    private ImportJob(String id, String workspaceName, String storeName, String layerName, String srsName, ProjectionPolicy projectionPolicy, boolean overwriteExistingLayer) {
+        this.id = id;
+        this.workspaceName = workspaceName;
+        this.storeName = storeName;
+        this.layerName = layerName;
+        this.srsName = srsName;
+        this.projectionPolicy = projectionPolicy;
+        this.overwriteExistingLayer = overwriteExistingLayer;
+        this.stateTimes.put(State.QUEUED, lastUpdated);
+    }
+
+    /**
+     * @return a job with the same id importing the same spooled shapefile the
+     * same way, for importing it into another GeoServer alongside this one.
+     * Its state and response are its own.
+     */
+    synchronized ImportJob copy() {
+        ImportJob copy = new ImportJob(id, workspaceName, storeName, layerName, srsName, projectionPolicy, overwriteExistingLayer);
+        copy.prj = prj;
+        copy.digest = digest;
+        copy.shapefileName = shapefileName;
+        copy.importLayerName = importLayerName;
+        copy.optimizer = optimizer;
+        copy.spool = spool;
+        return copy;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getWorkspaceName() {
+        return workspaceName;
+    }
+
+    String getStoreName() {
+        return storeName;
+    }
+
+    String getLayerName() {
+        return layerName;
+    }
+
+    ProjectionPolicy getProjectionPolicy() {
+        return projectionPolicy;
+    }
+
+    boolean isOverwriteExistingLayer() {
+        return overwriteExistingLayer;
+    }
+
+    synchronized String getSrsName() {
+        return srsName;
+    }
+
+    synchronized void setSrsName(String srsName) {
+        this.srsName = srsName;
+    }
+
+    /**
+     * @return the well known text of the shapefile's .prj, null if it has none
+     */
+    synchronized String getPrj() {
+        return prj;
+    }
+
+    synchronized void setPrj(String prj) {
+        this.prj = prj;
+    }
+
+    /**
+     * @return hex encoded digest of the uploaded content
+     */
+    synchronized String getDigest() {
+        return digest;
+    }
+
+    synchronized void setDigest(String digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * @return name of the shapefile inside the zip, without its extension
+     */
+    synchronized String getShapefileName() {
+        return shapefileName;
+    }
+
+    synchronized void setShapefileName(String shapefileName) {
+        this.shapefileName = shapefileName;
+    }
+
+    /**
+     * @return the name the shapefile is imported as, which differs from the
+     * layer name while an overwrite is staged
+     */
+    synchronized String getImportLayerName() {
+        return importLayerName != null ? importLayerName : layerName;
+    }
+
+    synchronized void setImportLayerName(String importLayerName) {
+        this.importLayerName = importLayerName;
+    }
+
+    /**
+     * @return what the shapefile is slimmed down with before it is imported,
+     * null to import it as uploaded
+     */
+    synchronized ShapefileOptimizer getOptimizer() {
+        return optimizer;
+    }
+
+    synchronized void setOptimizer(ShapefileOptimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    /**
+     * @return the spooled shapefile zip, released once the job is finished
+     */
+    synchronized SpoolManager.Spool getSpool() {
+        return spool;
+    }
+
+    synchronized void setSpool(SpoolManager.Spool spool) {
+        this.spool = spool;
+    }
+
+    State getState() {
+        return state;
+    }
+
+    void setState(State state) {
+        this.state = state;
+        this.lastUpdated = System.currentTimeMillis();
+        synchronized (stateTimes) {
+            stateTimes.put(state, lastUpdated);
+        }
+        if (state.isFinished()) {
+            finished.countDown();
+        }
+    }
+
+    /**
+     * Waits for the job to be done or to fail
+     *
+     * @throws InterruptedException
+     */
+    void awaitFinished() throws InterruptedException {
+        finished.await();
+    }
+
+    /**
+     * @param state
+     * @return when the job last entered the state, 0 if it never did
+     */
+    long getStateTime(State state) {
+        synchronized (stateTimes) {
+            Long time = stateTimes.get(state);
+            return time == null ? 0 : time;
+        }
+    }
+
+    long getLastUpdated() {
+        return lastUpdated;
+    }
+
+    /**
+     * @return seconds after which the client may retry when the job failed
+     * because GeoServer was too busy, otherwise 0
+     */
+    int getRetryAfter() {
+        return retryAfter;
+    }
+
+    void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    boolean isFailed() {
+        return state == State.FAILED;
+    }
+
+    synchronized void put(String key, String value) {
+        responseMap.put(key, value);
+    }
+
+    /**
+     * @return a copy of the response map, containing the same entries a
+     * synchronous request responds with
+     */
+    synchronized Map<String, String> getResponseMap() {
+        return new HashMap<String, String>(responseMap);
+    }
+
+    /**
+     * @return the response map along with the job id and its current state
+     */
+    Map<String, String> getStatusMap() {
+        Map<String, String> statusMap = getResponseMap();
+        statusMap.put("job", id);
+        statusMap.put("status", state.name().toLowerCase());
+        return statusMap;
+    }
+}
@@ -0,0 +1,136 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs asynchronous import jobs on a bounded pool of background threads and
+ * keeps track of them until they have been finished for longer than the
+ * retention period.
+ */
+class ImportJobManager {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(ImportJobManager.class);
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<String, ImportJob> jobs = new ConcurrentHashMap<String, ImportJob>();
+    private final long retention;
+
+    /**
+     * @param name used to name the worker threads
+     * @param threads number of imports that may run at once
+     * @param queueSize number of imports that may wait for a thread
+     * @param retention milliseconds a finished job is kept for status requests
+     */
+    ImportJobManager(final String name, int threads, int queueSize, long retention) {
+        this.retention = retention;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a job for execution
+     *
+     * @param job job to track
+     * @param task the work for the job, expected to move the job into a
+     * finished state
+     * @throws RejectedExecutionException if the queue is full
+     */
+    void submit(ImportJob job, Runnable task) throws RejectedExecutionException {
+        purgeFinishedJobs();
+        jobs.put(job.getId(), job);
+        try {
+            executor.execute(new JobTask(job, task));
+        } catch (RejectedExecutionException ex) {
+            jobs.remove(job.getId());
+            throw ex;
+        }
+        LOG.debug("Import job " + job.getId() + " queued. " + executor.getQueue().size() + " job(s) waiting");
+    }
+
+    /**
+     * @param id job id
+     * @return the job or null if it is unknown or has expired
+     */
+    ImportJob getJob(String id) {
+        return id == null ? null : jobs.get(id);
+    }
+
+    private void purgeFinishedJobs() {
+        long cutoff = System.currentTimeMillis() - retention;
+        for (Iterator<ImportJob> it = jobs.values().iterator(); it.hasNext();) {
+            ImportJob job = it.next();
+            if (job.getState().isFinished() && job.getLastUpdated() < cutoff) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Stops the workers. Jobs still waiting for a thread are failed and their
+     * spools released.
+     *
+     * @return number of waiting jobs that were failed
+     */
+    int shutdown() {
+        List<Runnable> drained = executor.shutdownNow();
+        for (Runnable runnable : drained) {
+            ImportJob job = ((JobTask) runnable).job;
+            job.put("error", "Import was cancelled because the application is shutting down");
+            SpoolManager.Spool spool = job.getSpool();
+            if (spool != null) {
+                spool.release();
+            }
+            job.setState(ImportJob.State.FAILED);
+        }
+        if (!drained.isEmpty()) {
+            LOG.info(drained.size() + " queued import job(s) cancelled on shutdown");
+        }
+        return drained.size();
+    }
+
+    /**
+     * Runs a job's work, failing the job if the work throws
+     */
+    private static class JobTask implements Runnable {
+
+        private final ImportJob job;
+        private final Runnable task;
+
+        JobTask(ImportJob job, Runnable task) {
+            this.job = job;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                LOG.warn("Import job " + job.getId() + " failed", ex);
+                job.put("error", "Unable to upload file");
+                job.put("exception", ex.getMessage());
+                job.setState(ImportJob.State.FAILED);
+            }
+        }
+    }
+}
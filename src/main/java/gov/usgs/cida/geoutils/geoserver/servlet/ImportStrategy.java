@@ -0,0 +1,32 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.IOException;
+
+/**
+ * A way of getting a spooled shapefile zip into GeoServer. Every strategy
+ * publishes the job's shapefile under the job's import layer name and reports the outcome the
+ * same way so that the response does not depend on the strategy used.
+ */
+interface ImportStrategy {
+
+    /**
+     * @param gsClient the GeoServer to import into
+     * @param job the import, moved through its states as it progresses
+     * @return the name of the published layer
+     * @throws ImportFailedException if GeoServer rejected the import
+     * @throws IOException if GeoServer could not be reached
+     */
+    String importShapefile(GeoServerClient gsClient, ImportJob job) throws IOException;
+
+    /**
+     * Removes the data behind a feature type that has been unpublished, such as
+     * the layer a staged overwrite replaced
+     *
+     * @param gsClient the GeoServer the feature type was in
+     * @param job the import the feature type was removed for
+     * @param nativeName the name of the data within the job's store
+     * @return false if the strategy can not remove data from the store
+     * @throws IOException if the data could not be removed
+     */
+    boolean removeNativeData(GeoServerClient gsClient, ImportJob job, String nativeName) throws IOException;
+}
@@ -0,0 +1,16 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a workspace, store or layer name asked for can not be used in a
+ * GeoServer REST path. The upload is answered with a 400.
+ */
+class InvalidNameException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    InvalidNameException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,193 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives a request body without holding a container thread while the client
+ * sends it. The container calls back whenever bytes have arrived and only
+ * those are read, going straight into a spool. Writing to the spool is plain
+ * stream I/O into memory or a local file; only reading from the client is non
+ * blocking. Once the whole body is in, or receiving it failed or took too
+ * long, the callback is told exactly once. Completing the request's async
+ * context is left to the callback.
+ *
+ * Reading and failing hold the reader's lock, so a timeout firing on the timer
+ * thread waits for a write under way to the spool before releasing it.
+ */
+class NonBlockingUploadReader implements ReadListener, AsyncListener {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(NonBlockingUploadReader.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final ServletInputStream input;
+    private final SpoolManager.Spool spool;
+    private final long maxSize;
+    private final Callback callback;
+    private final OutputStream output;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private long bytesRead = 0;
+    private volatile ScheduledFuture<?> timeout;
+
+    /**
+     * Told how receiving a body ended
+     */
+    interface Callback {
+
+        /**
+         * @param spool holds the whole body
+         * @param bytesRead
+         */
+        void received(SpoolManager.Spool spool, long bytesRead);
+
+        /**
+         * @param ex why the body could not be received, a
+         * {@link SpoolManager.SpoolFullException} if the spool had no room
+         * for it. The spool has been released.
+         */
+        void failed(Throwable ex);
+    }
+
+    /**
+     * @param asyncContext the request's async context
+     * @param spool where the body is written
+     * @param maxSize most bytes the body may have
+     * @param callback
+     * @throws IOException if the request's body can not be read
+     */
+    NonBlockingUploadReader(AsyncContext asyncContext, SpoolManager.Spool spool, long maxSize, Callback callback) throws IOException {
+        this.input = asyncContext.getRequest().getInputStream();
+        this.spool = spool;
+        this.maxSize = maxSize;
+        this.callback = callback;
+        this.output = spool.openOutputStream();
+        asyncContext.addListener(this);
+    }
+
+    /**
+     * Starts reading. From here on the reader is called back on container
+     * threads.
+     *
+     * @param timer runs the timeout
+     * @param receiveTimeout milliseconds the whole body may take to arrive, 0
+     * for no limit
+     */
+    void start(ScheduledExecutorService timer, final long receiveTimeout) {
+        if (receiveTimeout > 0) {
+            timeout = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    fail(new IOException("Upload was not received within " + receiveTimeout + " ms"));
+                }
+            }, receiveTimeout, TimeUnit.MILLISECONDS);
+        }
+        input.setReadListener(this);
+    }
+
+    @Override
+    public void onDataAvailable() {
+        IOException failure = null;
+        synchronized (this) {
+            try {
+                // Reading is only done while it would not block
+                while (!finished.get() && input.isReady()) {
+                    int read = input.read(buffer);
+                    if (read == -1) {
+                        return;
+                    }
+                    bytesRead += read;
+                    if (bytesRead > maxSize) {
+                        throw new IOException("Upload exceeds max file size of " + maxSize + " bytes");
+                    }
+                    output.write(buffer, 0, read);
+                }
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        if (failure != null) {
+            fail(failure);
+        }
+    }
+
+    @Override
+    public void onAllDataRead() {
+        IOException failure = null;
+        synchronized (this) {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            cancelTimeout();
+            try {
+                output.close();
+            } catch (IOException ex) {
+                spool.release();
+                failure = ex;
+            }
+        }
+        if (failure != null) {
+            callback.failed(failure);
+            return;
+        }
+        LOG.debug("Received " + bytesRead + " bytes without blocking");
+        callback.received(spool, bytesRead);
+    }
+
+    @Override
+    public void onError(Throwable ex) {
+        fail(ex);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        // The request's own timeout is expected to be off
+        fail(new IOException("Upload was not received in time"));
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        fail(event.getThrowable() != null ? event.getThrowable() : new IOException("Upload could not be received"));
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        // Only happens before the body is in if the container gave up on the
+        // request
+        fail(new IOException("Request ended before the upload was received"));
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        // Not restarted
+    }
+
+    private void fail(Throwable ex) {
+        synchronized (this) {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            cancelTimeout();
+            IOUtils.closeQuietly(output);
+            spool.release();
+        }
+        callback.failed(ex);
+    }
+
+    private void cancelTimeout() {
+        ScheduledFuture<?> scheduled = timeout;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timers, counters and gauges for the phases of the upload pipeline. Every
+ * update is a handful of atomic operations so the metrics can be left on in
+ * production. Timers keep a fixed set of histogram buckets from which
+ * percentiles are estimated.
+ */
+class PipelineMetrics {
+
+    /**
+     * Upper bounds of the histogram buckets in milliseconds. Anything slower
+     * than the last bound lands in an overflow bucket.
+     */
+    private static final long[] BUCKETS = new long[]{
+        1, 2, 5, 10, 20, 50, 100, 200, 500,
+        1000, 2000, 5000, 10000, 20000, 50000,
+        100000, 200000, 500000, 1000000, 2000000};
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicInteger> gauges = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * Records how long a phase took
+     *
+     * @param phase
+     * @param nanos duration in nanoseconds
+     */
+    void time(String phase, long nanos) {
+        Timer timer = timers.get(phase);
+        if (timer == null) {
+            timer = new Timer();
+            Timer existing = timers.putIfAbsent(phase, timer);
+            if (existing != null) {
+                timer = existing;
+            }
+        }
+        timer.record(nanos);
+    }
+
+    /**
+     * Records how long a phase has taken since it started
+     *
+     * @param phase
+     * @param startNanos {@link System#nanoTime()} when the phase started
+     */
+    void timeSince(String phase, long startNanos) {
+        time(phase, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @param counter
+     * @param delta amount to add, such as a number of bytes
+     */
+    void count(String counter, long delta) {
+        AtomicLong value = counters.get(counter);
+        if (value == null) {
+            value = new AtomicLong();
+            AtomicLong existing = counters.putIfAbsent(counter, value);
+            if (existing != null) {
+                value = existing;
+            }
+        }
+        value.addAndGet(delta);
+    }
+
+    void increment(String counter) {
+        count(counter, 1);
+    }
+
+    /**
+     * Adds one to a gauge of things in flight. Every call must be matched by
+     * a call to {@link #leave(java.lang.String)}.
+     *
+     * @param gauge
+     */
+    void enter(String gauge) {
+        AtomicInteger value = gauges.get(gauge);
+        if (value == null) {
+            value = new AtomicInteger();
+            AtomicInteger existing = gauges.putIfAbsent(gauge, value);
+            if (existing != null) {
+                value = existing;
+            }
+        }
+        value.incrementAndGet();
+    }
+
+    void leave(String gauge) {
+        AtomicInteger value = gauges.get(gauge);
+        if (value != null) {
+            value.decrementAndGet();
+        }
+    }
+
+    /**
+     * Records the phases an import job went through from the times its states
+     * were entered: sending the request (including any encoding, which happens
+     * while sending), GeoServer's own import and the job as a whole
+     *
+     * @param job a finished job
+     */
+    void recordJob(ImportJob job) {
+        long queued = job.getStateTime(ImportJob.State.QUEUED);
+        long posting = job.getStateTime(ImportJob.State.POSTING);
+        long importing = job.getStateTime(ImportJob.State.IMPORTING);
+        long finished = job.getLastUpdated();
+        if (posting > 0 && importing >= posting) {
+            time("send", TimeUnit.MILLISECONDS.toNanos(importing - posting));
+        }
+        if (importing > 0 && finished >= importing) {
+            time("geoserver.import", TimeUnit.MILLISECONDS.toNanos(finished - importing));
+        }
+        if (finished >= queued) {
+            time("job.total", TimeUnit.MILLISECONDS.toNanos(finished - queued));
+        }
+    }
+
+    /**
+     * @return every timer, counter and gauge, prefixed with "metrics."
+     */
+    Map<String, String> getStats() {
+        Map<String, String> stats = new TreeMap<String, String>();
+        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+            entry.getValue().addStats("metrics." + entry.getKey(), stats);
+        }
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            stats.put("metrics." + entry.getKey(), String.valueOf(entry.getValue().get()));
+        }
+        for (Map.Entry<String, AtomicInteger> entry : gauges.entrySet()) {
+            stats.put("metrics." + entry.getKey(), String.valueOf(entry.getValue().get()));
+        }
+        return stats;
+    }
+
+    /**
+     * Count, mean, maximum and a bucketed histogram of durations
+     */
+    private static class Timer {
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+
+        void record(long nanos) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < BUCKETS.length && millis > BUCKETS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the given fraction of
+         * recorded durations, in milliseconds
+         */
+        private long getPercentile(double fraction, long total) {
+            long threshold = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS.length; bucket++) {
+                seen += buckets.get(bucket);
+                if (seen >= threshold) {
+                    return Math.min(BUCKETS[bucket], TimeUnit.NANOSECONDS.toMillis(maxNanos.get()));
+                }
+            }
+            return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+        }
+
+        void addStats(String prefix, Map<String, String> stats) {
+            long total = count.get();
+            stats.put(prefix + ".count", String.valueOf(total));
+            if (total == 0) {
+                return;
+            }
+            stats.put(prefix + ".mean.ms", String.valueOf(TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / total)));
+            stats.put(prefix + ".max.ms", String.valueOf(TimeUnit.NANOSECONDS.toMillis(maxNanos.get())));
+            stats.put(prefix + ".p50.ms", String.valueOf(getPercentile(0.50, total)));
+            stats.put(prefix + ".p95.ms", String.valueOf(getPercentile(0.95, total)));
+            stats.put(prefix + ".p99.ms", String.valueOf(getPercentile(0.99, total)));
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import gov.usgs.cida.owsutils.commons.shapefile.ProjectionUtils;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers which EPSG code a .prj definition resolved to. Entries are keyed by
+ * a hash of the normalized well known text and evicted least recently used
+ * first. Definitions that could not be resolved are remembered as well so the
+ * lookup is not repeated for them. The cache may be saved to and preloaded from
+ * a properties file.
+ */
+class ProjectionCache {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(ProjectionCache.class);
+    // Stands in for a definition that could not be resolved
+    private static final String NOT_FOUND = "";
+    private final Map<String, String> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+
+    /**
+     * @param maxSize number of definitions to remember
+     */
+    ProjectionCache(final int maxSize) {
+        this.cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Collapses insignificant whitespace so that the same definition written
+     * out by different tools hashes the same
+     *
+     * @param prj well known text
+     * @return hex encoded SHA-1 of the normalized text
+     */
+    static String getKey(String prj) {
+        String normalized = prj.trim()
+                .replaceAll("\\s+", " ")
+                .replaceAll(" ?([,\\[\\]\\(\\)]) ?", "$1")
+                .toUpperCase();
+        return DigestUtils.shaHex(normalized);
+    }
+
+    /**
+     * Resolves the EPSG code for a shapefile, only looking it up when its .prj
+     * has not been seen before
+     *
+     * @param prj the shapefile's .prj text
+     * @param spool the shapefile zip, moved to disk for the lookup on a miss
+     * @return the EPSG code
+     * @throws IOException if the spool could not be moved to disk, which is
+     * not remembered
+     * @throws Exception if the definition could not be resolved, now or before
+     */
+    String getProjection(String prj, SpoolManager.Spool spool) throws Exception {
+        String key = getKey(prj);
+        String srsName;
+        synchronized (cache) {
+            srsName = cache.get(key);
+        }
+
+        if (srsName != null) {
+            hits.incrementAndGet();
+            if (NOT_FOUND.equals(srsName)) {
+                negativeHits.incrementAndGet();
+                throw new IOException("Projection was previously found not to have an EPSG code");
+            }
+            return srsName;
+        }
+
+        // A spool that can not be moved to disk, e.g. when it is full, says
+        // nothing about the definition and is not remembered
+        misses.incrementAndGet();
+        File file = spool.toFile();
+        try {
+            srsName = lookup(file);
+        } catch (Exception ex) {
+            put(key, NOT_FOUND);
+            throw ex;
+        }
+        put(key, StringUtils.isBlank(srsName) ? NOT_FOUND : srsName);
+        if (StringUtils.isBlank(srsName)) {
+            throw new IOException("Projection does not have an EPSG code");
+        }
+        return srsName;
+    }
+
+    /**
+     * Looks up the EPSG code of a shapefile's .prj
+     *
+     * @param file the shapefile zip
+     * @return the EPSG code, blank if the definition does not have one
+     * @throws Exception if the definition could not be resolved
+     */
+    String lookup(File file) throws Exception {
+        return ProjectionUtils.getProjectionFromShapefileZip(file, false);
+    }
+
+    private void put(String key, String srsName) {
+        synchronized (cache) {
+            cache.put(key, srsName);
+        }
+    }
+
+    /**
+     * Preloads the cache from a file written by {@link #save(java.io.File)}
+     *
+     * @param file
+     */
+    void load(File file) {
+        if (!file.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            properties.load(inputStream);
+            synchronized (cache) {
+                for (String key : properties.stringPropertyNames()) {
+                    cache.put(key, properties.getProperty(key));
+                }
+            }
+            LOG.debug("Preloaded " + properties.size() + " projection(s) from " + file.getPath());
+        } catch (IOException ex) {
+            LOG.warn("Could not preload projections from " + file.getPath(), ex);
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * Writes the cache out to a properties file
+     *
+     * @param file
+     */
+    void save(File file) {
+        Properties properties = new Properties();
+        synchronized (cache) {
+            properties.putAll(cache);
+        }
+        OutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(file);
+            properties.store(outputStream, "Hash of normalized .prj text to EPSG code. Blank values could not be resolved.");
+            LOG.debug("Saved " + properties.size() + " projection(s) to " + file.getPath());
+        } catch (IOException ex) {
+            LOG.warn("Could not save projections to " + file.getPath(), ex);
+        } finally {
+            IOUtils.closeQuietly(outputStream);
+        }
+    }
+
+    /**
+     * @return hit, miss and size counters
+     */
+    Map<String, String> getStats() {
+        Map<String, String> stats = new LinkedHashMap<String, String>();
+        synchronized (cache) {
+            stats.put("projection.cache.size", String.valueOf(cache.size()));
+        }
+        stats.put("projection.cache.hits", String.valueOf(hits.get()));
+        stats.put("projection.cache.negative.hits", String.valueOf(negativeHits.get()));
+        stats.put("projection.cache.misses", String.valueOf(misses.get()));
+        return stats;
+    }
+}
@@ -0,0 +1,60 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Imports through GeoServer's REST API. The raw zip is uploaded into a
+ * shapefile store without being configured and its feature type is then
+ * published under the job's layer name. Unlike the WPS import, the zip is not
+ * base64 encoded and GeoServer does not have to decode it in memory.
+ *
+ * Uploading a shapefile into a store repoints the store at the new file, so
+ * every store imported into must be a shapefile store of the layer's own. An
+ * import into a store of another kind, or one publishing other layers, is
+ * refused before anything is uploaded.
+ */
+class RESTImportStrategy implements ImportStrategy {
+
+    @Override
+    public String importShapefile(GeoServerClient gsClient, ImportJob job) throws IOException {
+        checkStore(gsClient, job);
+
+        job.setState(ImportJob.State.POSTING);
+        gsClient.uploadShapefile(job.getWorkspaceName(), job.getStoreName(), job.getSpool());
+
+        job.setState(ImportJob.State.IMPORTING);
+        gsClient.publishFeatureType(job.getWorkspaceName(), job.getStoreName(), job.getImportLayerName(), job.getShapefileName(), job.getSrsName(), job.getProjectionPolicy());
+        return job.getImportLayerName();
+    }
+
+    /**
+     * @throws ImportFailedException if the job's store exists and holds
+     * anything but the layer being imported
+     */
+    private static void checkStore(GeoServerClient gsClient, ImportJob job) throws IOException {
+        String workspaceName = job.getWorkspaceName();
+        String storeName = job.getStoreName();
+        List<String> featureTypeNames = gsClient.getFeatureTypeNames(workspaceName, storeName);
+        if (featureTypeNames == null) {
+            return;
+        }
+        String storeType = gsClient.getDataStoreType(workspaceName, storeName);
+        if (!"Shapefile".equalsIgnoreCase(storeType)) {
+            throw new ImportFailedException("Store " + workspaceName + ":" + storeName + " is not a shapefile store. The rest import mode needs a store of the layer's own");
+        }
+        for (String featureTypeName : featureTypeNames) {
+            if (!featureTypeName.equals(job.getImportLayerName())) {
+                throw new ImportFailedException("Store " + workspaceName + ":" + storeName + " also publishes " + featureTypeName + ". The rest import mode needs a store of the layer's own");
+            }
+        }
+    }
+
+    /**
+     * GeoServer's REST API can not drop data from a store
+     */
+    @Override
+    public boolean removeNativeData(GeoServerClient gsClient, ImportJob job, String nativeName) {
+        return false;
+    }
+}
@@ -0,0 +1,767 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Slims a spooled shapefile down before it is imported. Attributes that are
+ * not asked for are dropped from the .dbf, geometries may be reprojected with
+ * GeoTools from the CRS in the .prj to another and line and polygon geometries
+ * are simplified with Douglas-Peucker to a tolerance in the units of the CRS
+ * they end up in, rebuilding the .shx to match. Records are read and written
+ * one at a time so memory use does not depend on the size of the shapefile.
+ * Spatial indexes are dropped when geometries change since they point at the
+ * old records.
+ *
+ * The files are unpacked under the spool directory and the disk space they
+ * take is reserved from the spool's budget while they are.
+ */
+class ShapefileOptimizer {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(ShapefileOptimizer.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int SHP_HEADER_LENGTH = 100;
+    // Disk space is reserved this much at a time while files are unpacked
+    private static final long RESERVATION_STEP = 1024 * 1024;
+    private static final Set<String> SPATIAL_INDEX_EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "shx", "sbn", "sbx", "fbn", "fbx", "ain", "aih", "qix"));
+    private final Set<String> keepAttributes;
+    private final double tolerance;
+    private final String targetSrs;
+
+    ShapefileOptimizer(Collection<String> keepAttributes, double tolerance) {
+        this(keepAttributes, tolerance, null);
+    }
+
+    /**
+     * @param keepAttributes names of the attributes to keep, matched without
+     * regard to case. Null or empty to keep every attribute.
+     * @param tolerance the furthest a vertex may be from the simplified line,
+     * 0 to not simplify
+     * @param targetSrs the code of the CRS to reproject to, such as
+     * EPSG:3857. Blank to not reproject.
+     */
+    ShapefileOptimizer(Collection<String> keepAttributes, double tolerance, String targetSrs) {
+        if (keepAttributes == null || keepAttributes.isEmpty()) {
+            this.keepAttributes = null;
+        } else {
+            this.keepAttributes = new TreeSet<String>();
+            for (String attribute : keepAttributes) {
+                this.keepAttributes.add(attribute.trim().toUpperCase());
+            }
+        }
+        this.tolerance = tolerance > 0 ? tolerance : 0;
+        this.targetSrs = StringUtils.isBlank(targetSrs) ? null : targetSrs.trim();
+    }
+
+    /**
+     * @return whether the optimizer changes anything
+     */
+    boolean isEnabled() {
+        return keepAttributes != null || tolerance > 0 || targetSrs != null;
+    }
+
+    /**
+     * @return the code of the CRS shapefiles are reprojected to, null if they
+     * are not
+     */
+    String getTargetSrs() {
+        return targetSrs;
+    }
+
+    /**
+     * @return whether the .shp is rewritten
+     */
+    private boolean isRewritingGeometries() {
+        return tolerance > 0 || targetSrs != null;
+    }
+
+    /**
+     * @return the settings, for telling apart imports that were optimized
+     * differently
+     */
+    String getSettings() {
+        return "attributes=" + (keepAttributes == null ? "" : StringUtils.join(keepAttributes, ',')) + ";tolerance=" + tolerance + ";srs=" + StringUtils.defaultString(targetSrs);
+    }
+
+    /**
+     * @param source the spooled shapefile zip, left as it is
+     * @param spoolManager where the optimized zip is spooled
+     * @return the optimized zip, spooled under the source's file name
+     * @throws SpoolManager.SpoolFullException if the spool has no room for
+     * the unpacked shapefile
+     * @throws IOException if the shapefile can not be read, none of the
+     * attributes to keep exist or it can not be reprojected
+     */
+    Result optimize(SpoolManager.Spool source, SpoolManager spoolManager) throws IOException {
+        Result result = new Result();
+        MathTransform transform = null;
+        String targetPrj = null;
+        if (targetSrs != null) {
+            CoordinateReferenceSystem targetCrs = decode(targetSrs);
+            transform = getTransform(readPrj(source), targetCrs);
+            targetPrj = targetCrs.toWKT();
+            result.srsName = targetSrs;
+            result.prj = targetPrj;
+        }
+
+        // Inside the spool directory so that it is swept away after a crash
+        File workDirectory = new File(spoolManager.getDirectory(), "optimize-" + UUID.randomUUID().toString());
+        FileUtils.forceMkdir(workDirectory);
+        Reservation reservation = new Reservation(spoolManager);
+        try {
+            List<File> files = new ArrayList<File>();
+            ZipInputStream zipInputStream = new ZipInputStream(new BufferedInputStream(source.openInputStream(), BUFFER_SIZE));
+            try {
+                for (ZipEntry entry = zipInputStream.getNextEntry(); entry != null; entry = zipInputStream.getNextEntry()) {
+                    // Entries were flattened when the upload was ingested
+                    String entryName = entry.getName();
+                    String extension = FilenameUtils.getExtension(entryName).toLowerCase();
+                    if ((isRewritingGeometries() && SPATIAL_INDEX_EXTENSIONS.contains(extension))
+                            || (keepAttributes != null && "atx".equals(extension))) {
+                        continue;
+                    }
+                    File file = new File(workDirectory, entryName);
+                    if (isRewritingGeometries() && "shp".equals(extension)) {
+                        String shxExtension = "SHP".equals(FilenameUtils.getExtension(entryName)) ? ".SHX" : ".shx";
+                        File shxFile = new File(workDirectory, FilenameUtils.getBaseName(entryName) + shxExtension);
+                        rewriteGeometries(zipInputStream, file, shxFile, transform, reservation, result);
+                        files.add(shxFile);
+                    } else if (keepAttributes != null && "dbf".equals(extension)) {
+                        pruneAttributes(zipInputStream, file, reservation, result);
+                    } else if (targetPrj != null && "prj".equals(extension)) {
+                        OutputStream outputStream = reservation.open(file);
+                        try {
+                            outputStream.write(targetPrj.getBytes("UTF-8"));
+                            outputStream.close();
+                        } finally {
+                            IOUtils.closeQuietly(outputStream);
+                        }
+                    } else {
+                        OutputStream outputStream = reservation.open(file);
+                        try {
+                            IOUtils.copyLarge(zipInputStream, outputStream);
+                        } finally {
+                            IOUtils.closeQuietly(outputStream);
+                        }
+                    }
+                    files.add(file);
+                }
+            } finally {
+                IOUtils.closeQuietly(zipInputStream);
+            }
+
+            long size = 0;
+            for (File file : files) {
+                size += file.length();
+            }
+            result.spool = spoolManager.createSpool(source.getFile().getName(), size);
+            try {
+                zip(files, result.spool.openOutputStream());
+            } catch (IOException ex) {
+                result.spool.release();
+                throw ex;
+            }
+        } finally {
+            FileUtils.deleteQuietly(workDirectory);
+            reservation.release();
+        }
+        LOG.debug("Optimized shapefile: " + result.attributesRemoved + " attribute(s) removed, " + result.recordsReprojected + " record(s) reprojected to " + targetSrs + ", " + result.verticesRead + " vertices simplified to " + result.verticesWritten);
+        return result;
+    }
+
+    private static CoordinateReferenceSystem decode(String srs) throws IOException {
+        try {
+            // Shapefiles are always x/y, whatever the axis order of the CRS
+            return CRS.decode(srs, true);
+        } catch (FactoryException ex) {
+            throw new IOException("Unknown CRS " + srs + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return the transform from the CRS of the .prj to the target, null if
+     * they are the same
+     */
+    private static MathTransform getTransform(String prj, CoordinateReferenceSystem targetCrs) throws IOException {
+        if (prj == null) {
+            throw new IOException("Shapefile has no .prj to reproject from");
+        }
+        try {
+            MathTransform transform = CRS.findMathTransform(CRS.parseWKT(prj), targetCrs, true);
+            return transform.isIdentity() ? null : transform;
+        } catch (FactoryException ex) {
+            throw new IOException("Shapefile can not be reprojected from its .prj: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return the content of the zip's .prj, null if it has none
+     */
+    private static String readPrj(SpoolManager.Spool source) throws IOException {
+        ZipInputStream zipInputStream = new ZipInputStream(new BufferedInputStream(source.openInputStream(), BUFFER_SIZE));
+        try {
+            for (ZipEntry entry = zipInputStream.getNextEntry(); entry != null; entry = zipInputStream.getNextEntry()) {
+                if ("prj".equalsIgnoreCase(FilenameUtils.getExtension(entry.getName()))) {
+                    return IOUtils.toString(zipInputStream, "UTF-8");
+                }
+            }
+            return null;
+        } finally {
+            IOUtils.closeQuietly(zipInputStream);
+        }
+    }
+
+    private static void zip(List<File> files, OutputStream destination) throws IOException {
+        ZipOutputStream zipOutputStream = null;
+        try {
+            zipOutputStream = new ZipOutputStream(new BufferedOutputStream(destination, BUFFER_SIZE));
+            zipOutputStream.setLevel(Deflater.BEST_SPEED);
+            for (File file : files) {
+                zipOutputStream.putNextEntry(new ZipEntry(file.getName()));
+                InputStream inputStream = new FileInputStream(file);
+                try {
+                    IOUtils.copyLarge(inputStream, zipOutputStream);
+                } finally {
+                    IOUtils.closeQuietly(inputStream);
+                }
+                zipOutputStream.closeEntry();
+            }
+            // Closing flushes the last of the zip, which may still fail
+            zipOutputStream.close();
+        } finally {
+            if (zipOutputStream != null) {
+                IOUtils.closeQuietly(zipOutputStream);
+            } else {
+                IOUtils.closeQuietly(destination);
+            }
+        }
+    }
+
+    /**
+     * Copies a .dbf with only the attributes to keep
+     *
+     * @param input the .dbf, left open
+     */
+    private void pruneAttributes(InputStream input, File target, Reservation reservation, Result result) throws IOException {
+        DbfReader dbfReader = new DbfReader(input);
+        List<DbfReader.Field> kept = new ArrayList<DbfReader.Field>();
+        int keptLength = 1;
+        for (DbfReader.Field field : dbfReader.getFields()) {
+            if (keepAttributes.contains(field.getName().toUpperCase())) {
+                kept.add(field);
+                keptLength += field.getLength();
+            }
+        }
+        if (kept.isEmpty()) {
+            throw new IOException("Shapefile has none of the attributes " + StringUtils.join(keepAttributes, ", "));
+        }
+        result.attributesRemoved += dbfReader.getFields().size() - kept.size();
+
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(reservation.open(target), BUFFER_SIZE));
+        try {
+            byte[] header = dbfReader.getHeader();
+            byte[] headerRest = dbfReader.getHeaderRest();
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            headerBuffer.putShort(8, (short) (DbfReader.HEADER_LENGTH + kept.size() * DbfReader.FIELD_LENGTH + 1 + headerRest.length));
+            headerBuffer.putShort(10, (short) keptLength);
+            outputStream.write(header);
+            int displacement = 1;
+            for (DbfReader.Field field : kept) {
+                byte[] descriptor = field.getDescriptor();
+                ByteBuffer.wrap(descriptor).order(ByteOrder.LITTLE_ENDIAN).putInt(12, displacement);
+                outputStream.write(descriptor);
+                displacement += field.getLength();
+            }
+            outputStream.write(DbfReader.HEADER_TERMINATOR);
+            outputStream.write(headerRest);
+
+            byte[] record = new byte[dbfReader.getRecordLength()];
+            while (dbfReader.readRecord(record)) {
+                // Deletion flag
+                outputStream.write(record[0]);
+                for (DbfReader.Field field : kept) {
+                    outputStream.write(record, field.getOffset(), field.getLength());
+                }
+            }
+            outputStream.write(DbfReader.END_OF_FILE);
+            outputStream.close();
+        } finally {
+            IOUtils.closeQuietly(outputStream);
+        }
+    }
+
+    /**
+     * Copies a .shp with its geometries reprojected and its lines and polygons
+     * simplified and writes a .shx for it
+     *
+     * @param input the .shp, left open
+     * @param transform to reproject with, null to not reproject
+     */
+    private void rewriteGeometries(InputStream input, File shpFile, File shxFile, MathTransform transform, Reservation reservation, Result result) throws IOException {
+        DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(input, BUFFER_SIZE));
+        byte[] header = new byte[SHP_HEADER_LENGTH];
+        dataInputStream.readFully(header);
+        double[] bounds = new double[]{Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+
+        DataOutputStream shpOutputStream = new DataOutputStream(new BufferedOutputStream(reservation.open(shpFile), BUFFER_SIZE));
+        DataOutputStream shxOutputStream = null;
+        long shpLength = SHP_HEADER_LENGTH;
+        long shxLength = SHP_HEADER_LENGTH;
+        try {
+            shxOutputStream = new DataOutputStream(new BufferedOutputStream(reservation.open(shxFile), BUFFER_SIZE));
+            shpOutputStream.write(header);
+            shxOutputStream.write(header);
+
+            byte[] recordHeader = new byte[8];
+            for (int first = dataInputStream.read(); first != -1; first = dataInputStream.read()) {
+                recordHeader[0] = (byte) first;
+                dataInputStream.readFully(recordHeader, 1, recordHeader.length - 1);
+                ByteBuffer recordHeaderBuffer = ByteBuffer.wrap(recordHeader);
+                int recordNumber = recordHeaderBuffer.getInt(0);
+                // Lengths are counted in 16 bit words
+                byte[] content = new byte[recordHeaderBuffer.getInt(4) * 2];
+                dataInputStream.readFully(content);
+
+                if (transform != null) {
+                    reprojectRecord(content, recordNumber, transform);
+                    result.recordsReprojected++;
+                }
+                byte[] simplified = tolerance > 0 ? simplifyRecord(content, result) : content;
+                updateBounds(simplified, bounds);
+                shxOutputStream.writeInt((int) (shpLength / 2));
+                shxOutputStream.writeInt(simplified.length / 2);
+                shpOutputStream.writeInt(recordNumber);
+                shpOutputStream.writeInt(simplified.length / 2);
+                shpOutputStream.write(simplified);
+                shpLength += recordHeader.length + simplified.length;
+                shxLength += 8;
+            }
+            shpOutputStream.close();
+            shxOutputStream.close();
+        } finally {
+            IOUtils.closeQuietly(shpOutputStream);
+            IOUtils.closeQuietly(shxOutputStream);
+        }
+
+        // The file lengths and bounds are only known now
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        if (bounds[0] <= bounds[2]) {
+            headerBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            for (int index = 0; index < bounds.length; index++) {
+                headerBuffer.putDouble(36 + index * 8, bounds[index]);
+            }
+        }
+        headerBuffer.order(ByteOrder.BIG_ENDIAN).putInt(24, (int) (shpLength / 2));
+        writeHeader(shpFile, header);
+        headerBuffer.putInt(24, (int) (shxLength / 2));
+        writeHeader(shxFile, header);
+    }
+
+    private static void writeHeader(File file, byte[] header) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.write(header);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Reprojects the points of a record and its bounding box in place. Z and M
+     * values are left as they are.
+     *
+     * @param content a record's content
+     */
+    private static void reprojectRecord(byte[] content, int recordNumber, MathTransform transform) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        int shapeType = content.length >= 4 ? buffer.getInt(0) : 0;
+        int numPoints;
+        int pointsOffset;
+        if (shapeType == 1 || shapeType == 11 || shapeType == 21) {
+            numPoints = 1;
+            pointsOffset = 4;
+        } else if (shapeType == 8 || shapeType == 18 || shapeType == 28) {
+            numPoints = buffer.getInt(36);
+            pointsOffset = 40;
+        } else if (shapeType == 3 || shapeType == 13 || shapeType == 23 || shapeType == 5 || shapeType == 15 || shapeType == 25) {
+            numPoints = buffer.getInt(40);
+            pointsOffset = 44 + 4 * buffer.getInt(36);
+        } else if (shapeType == 31) {
+            // Multipatches have a type for every part after the part indexes
+            numPoints = buffer.getInt(40);
+            pointsOffset = 44 + 8 * buffer.getInt(36);
+        } else {
+            return;
+        }
+
+        double[] coordinates = new double[2 * numPoints];
+        for (int index = 0; index < coordinates.length; index++) {
+            coordinates[index] = buffer.getDouble(pointsOffset + 8 * index);
+        }
+        try {
+            transform.transform(coordinates, 0, coordinates, 0, numPoints);
+        } catch (TransformException ex) {
+            throw new IOException("Record " + recordNumber + " could not be reprojected: " + ex.getMessage());
+        }
+        double[] bounds = new double[]{Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (int index = 0; index < coordinates.length; index += 2) {
+            double x = coordinates[index];
+            double y = coordinates[index + 1];
+            if (Double.isNaN(x) || Double.isInfinite(x) || Double.isNaN(y) || Double.isInfinite(y)) {
+                throw new IOException("Record " + recordNumber + " lies outside of the area the target CRS covers");
+            }
+            buffer.putDouble(pointsOffset + 8 * index, x);
+            buffer.putDouble(pointsOffset + 8 * index + 8, y);
+            bounds[0] = Math.min(bounds[0], x);
+            bounds[1] = Math.min(bounds[1], y);
+            bounds[2] = Math.max(bounds[2], x);
+            bounds[3] = Math.max(bounds[3], y);
+        }
+        if (numPoints > 0 && pointsOffset > 4) {
+            for (int bound = 0; bound < bounds.length; bound++) {
+                buffer.putDouble(4 + 8 * bound, bounds[bound]);
+            }
+        }
+    }
+
+    /**
+     * @param content a record's content
+     * @return the record with its parts simplified, or the content as it is if
+     * it is not a line or polygon or nothing could be simplified
+     */
+    private byte[] simplifyRecord(byte[] content, Result result) {
+        ByteBuffer input = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        int shapeType = content.length >= 4 ? input.getInt(0) : 0;
+        boolean polygon = shapeType == 5 || shapeType == 15 || shapeType == 25;
+        if (!polygon && shapeType != 3 && shapeType != 13 && shapeType != 23) {
+            return content;
+        }
+
+        int numParts = input.getInt(36);
+        int numPoints = input.getInt(40);
+        int pointsOffset = 44 + 4 * numParts;
+        int xyEnd = pointsOffset + 16 * numPoints;
+        boolean hasZ = shapeType == 13 || shapeType == 15;
+        int mOffset = hasZ ? xyEnd + 16 + 8 * numPoints : xyEnd;
+        // Measures are optional in every type that may have them
+        boolean hasM = (hasZ || shapeType == 23 || shapeType == 25) && content.length >= mOffset + 16 + 8 * numPoints;
+        result.verticesRead += numPoints;
+
+        int[] parts = new int[numParts];
+        for (int part = 0; part < numParts; part++) {
+            parts[part] = input.getInt(44 + 4 * part);
+        }
+        double[] xs = new double[numPoints];
+        double[] ys = new double[numPoints];
+        for (int point = 0; point < numPoints; point++) {
+            xs[point] = input.getDouble(pointsOffset + 16 * point);
+            ys[point] = input.getDouble(pointsOffset + 16 * point + 8);
+        }
+
+        boolean[] keep = new boolean[numPoints];
+        int[] newParts = new int[numParts];
+        int kept = 0;
+        for (int part = 0; part < numParts; part++) {
+            int first = parts[part];
+            int last = (part + 1 < numParts ? parts[part + 1] : numPoints) - 1;
+            newParts[part] = kept;
+            int partKept = simplify(xs, ys, first, last, keep, tolerance);
+            // A ring needs four points and a line two, otherwise the part is
+            // kept as it was
+            if (partKept < (polygon ? 4 : 2)) {
+                partKept = 0;
+                for (int point = first; point <= last; point++) {
+                    keep[point] = true;
+                    partKept++;
+                }
+            }
+            kept += partKept;
+        }
+        result.verticesWritten += kept;
+        if (kept == numPoints) {
+            return content;
+        }
+
+        int length = 44 + 4 * numParts + 16 * kept + (hasZ ? 16 + 8 * kept : 0) + (hasM ? 16 + 8 * kept : 0);
+        ByteBuffer output = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        output.putInt(0, shapeType);
+        output.putInt(36, numParts);
+        output.putInt(40, kept);
+        for (int part = 0; part < numParts; part++) {
+            output.putInt(44 + 4 * part, newParts[part]);
+        }
+        double[] bounds = new double[]{Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        int newPointsOffset = 44 + 4 * numParts;
+        int index = 0;
+        for (int point = 0; point < numPoints; point++) {
+            if (keep[point]) {
+                output.putDouble(newPointsOffset + 16 * index, xs[point]);
+                output.putDouble(newPointsOffset + 16 * index + 8, ys[point]);
+                bounds[0] = Math.min(bounds[0], xs[point]);
+                bounds[1] = Math.min(bounds[1], ys[point]);
+                bounds[2] = Math.max(bounds[2], xs[point]);
+                bounds[3] = Math.max(bounds[3], ys[point]);
+                index++;
+            }
+        }
+        for (int bound = 0; bound < bounds.length; bound++) {
+            output.putDouble(4 + 8 * bound, bounds[bound]);
+        }
+        int newXYEnd = newPointsOffset + 16 * kept;
+        if (hasZ) {
+            copyOrdinates(input, xyEnd, output, newXYEnd, keep);
+        }
+        if (hasM) {
+            copyOrdinates(input, mOffset, output, hasZ ? newXYEnd + 16 + 8 * kept : newXYEnd, keep);
+        }
+        return output.array();
+    }
+
+    /**
+     * Copies the Z or M values of the kept vertices along with their range
+     */
+    private static void copyOrdinates(ByteBuffer input, int inputOffset, ByteBuffer output, int outputOffset, boolean[] keep) {
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        int index = 0;
+        for (int point = 0; point < keep.length; point++) {
+            if (keep[point]) {
+                double value = input.getDouble(inputOffset + 16 + 8 * point);
+                output.putDouble(outputOffset + 16 + 8 * index, value);
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                index++;
+            }
+        }
+        output.putDouble(outputOffset, min);
+        output.putDouble(outputOffset + 8, max);
+    }
+
+    /**
+     * Grows the bounds by a record's bounding box
+     */
+    private static void updateBounds(byte[] content, double[] bounds) {
+        ByteBuffer buffer = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        int shapeType = content.length >= 4 ? buffer.getInt(0) : 0;
+        double xMin, yMin, xMax, yMax;
+        if (shapeType == 1 || shapeType == 11 || shapeType == 21) {
+            xMin = xMax = buffer.getDouble(4);
+            yMin = yMax = buffer.getDouble(12);
+        } else if (shapeType != 0 && content.length >= 36) {
+            xMin = buffer.getDouble(4);
+            yMin = buffer.getDouble(12);
+            xMax = buffer.getDouble(20);
+            yMax = buffer.getDouble(28);
+        } else {
+            return;
+        }
+        bounds[0] = Math.min(bounds[0], xMin);
+        bounds[1] = Math.min(bounds[1], yMin);
+        bounds[2] = Math.max(bounds[2], xMax);
+        bounds[3] = Math.max(bounds[3], yMax);
+    }
+
+    /**
+     * Douglas-Peucker on the points from first to last, without recursion so
+     * that parts with many points can not overflow the stack
+     *
+     * @return the number of points kept
+     */
+    static int simplify(double[] xs, double[] ys, int first, int last, boolean[] keep, double tolerance) {
+        if (last - first < 2) {
+            for (int point = first; point <= last; point++) {
+                keep[point] = true;
+            }
+            return last - first + 1;
+        }
+        double squaredTolerance = tolerance * tolerance;
+        keep[first] = true;
+        keep[last] = true;
+        int kept = 2;
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = first;
+        stack[top++] = last;
+        while (top > 0) {
+            int end = stack[--top];
+            int start = stack[--top];
+            double maxDistance = -1;
+            int farthest = -1;
+            for (int point = start + 1; point < end; point++) {
+                double distance = getSquaredSegmentDistance(xs[point], ys[point], xs[start], ys[start], xs[end], ys[end]);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    farthest = point;
+                }
+            }
+            if (farthest != -1 && maxDistance > squaredTolerance) {
+                keep[farthest] = true;
+                kept++;
+                if (top + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[top++] = start;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = end;
+            }
+        }
+        return kept;
+    }
+
+    private static double getSquaredSegmentDistance(double x, double y, double x1, double y1, double x2, double y2) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared > 0) {
+            double t = ((x - x1) * dx + (y - y1) * dy) / lengthSquared;
+            if (t > 1) {
+                x1 = x2;
+                y1 = y2;
+            } else if (t > 0) {
+                x1 += dx * t;
+                y1 += dy * t;
+            }
+        }
+        dx = x - x1;
+        dy = y - y1;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * The optimized zip and what was taken out of it
+     */
+    static class Result {
+
+        private SpoolManager.Spool spool;
+        private String srsName;
+        private String prj;
+        private long recordsReprojected = 0;
+        private int attributesRemoved = 0;
+        private long verticesRead = 0;
+        private long verticesWritten = 0;
+
+        /**
+         * @return the optimized zip, to be released once no longer needed
+         */
+        SpoolManager.Spool getSpool() {
+            return spool;
+        }
+
+        /**
+         * @return the code of the CRS the shapefile was reprojected to, null
+         * if it was not
+         */
+        String getSrsName() {
+            return srsName;
+        }
+
+        /**
+         * @return the .prj of the reprojected shapefile, null if it was not
+         * reprojected
+         */
+        String getPrj() {
+            return prj;
+        }
+
+        long getRecordsReprojected() {
+            return recordsReprojected;
+        }
+
+        int getAttributesRemoved() {
+            return attributesRemoved;
+        }
+
+        /**
+         * @return vertices of the lines and polygons before simplification
+         */
+        long getVerticesRead() {
+            return verticesRead;
+        }
+
+        long getVerticesWritten() {
+            return verticesWritten;
+        }
+    }
+
+    /**
+     * Disk space reserved from the spool for the unpacked files, taken
+     * {@link #RESERVATION_STEP} at a time ahead of what is written
+     */
+    private static class Reservation {
+
+        private final SpoolManager spoolManager;
+        private long reserved = 0;
+        private long written = 0;
+
+        Reservation(SpoolManager spoolManager) {
+            this.spoolManager = spoolManager;
+        }
+
+        OutputStream open(File file) throws IOException {
+            return new FilterOutputStream(new FileOutputStream(file)) {
+                @Override
+                public void write(int b) throws IOException {
+                    reserve(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    reserve(len);
+                    out.write(b, off, len);
+                }
+            };
+        }
+
+        private void reserve(long length) throws IOException {
+            written += length;
+            while (written > reserved) {
+                if (!spoolManager.reserve(RESERVATION_STEP)) {
+                    throw new SpoolManager.SpoolFullException("Spool can not hold the unpacked shapefile");
+                }
+                reserved += RESERVATION_STEP;
+            }
+        }
+
+        void release() {
+            spoolManager.release(reserved);
+            reserved = 0;
+        }
+    }
+}
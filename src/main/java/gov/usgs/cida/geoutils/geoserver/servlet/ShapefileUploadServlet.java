@@ -2,46 +2,60 @@ package gov.usgs.cida.geoutils.geoserver.servlet;
 
 import gov.usgs.cida.config.DynamicReadOnlyProperties;
 import gov.usgs.cida.owsutils.commons.communication.RequestResponse;
-import gov.usgs.cida.owsutils.commons.io.FileHelper;
 import gov.usgs.cida.owsutils.commons.properties.JNDISingleton;
-import gov.usgs.cida.owsutils.commons.shapefile.ProjectionUtils;
-import it.geosolutions.geoserver.rest.GeoServerRESTManager;
-import it.geosolutions.geoserver.rest.GeoServerRESTPublisher;
 import it.geosolutions.geoserver.rest.encoder.GSResourceEncoder.ProjectionPolicy;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URI;
-import java.net.URL;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NameClassPair;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.*;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import org.apache.commons.codec.binary.Base64OutputStream;
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.jxpath.JXPathContext;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.AbstractHttpEntity;
-import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.HttpContext;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
 
 public class ShapefileUploadServlet extends HttpServlet {
 
@@ -49,22 +63,31 @@ public class ShapefileUploadServlet extends HttpServlet {
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(ShapefileUploadServlet.class);
     private static DynamicReadOnlyProperties props = null;
     private static String applicationName;
-    private static Integer maxFileSize;
-    private static String geoserverEndpoint;
-    private static URL geoserverEndpointURL;
-    private static String geoserverUsername;
-    private static String geoserverPassword;
-    private static GeoServerRESTManager gsRestManager;
-    // Defaults
-    private static String defaultWorkspaceName;
-    private static String defaultStoreName;
-    private static String defaultSRS;
-    private static String defaultFilenameParam = "qqfile"; // Legacy to handle jquery fineuploader
-    private static Integer defaultMaxFileSize = Integer.MAX_VALUE;
-    private static boolean defaultUseBaseCRSFallback = true;
-    private static boolean defaultOverwriteExistingLayer = false;
-    private static ProjectionPolicy defaultProjectionPolicy = ProjectionPolicy.REPROJECT_TO_DECLARED;
+    // Swapped as a whole when the configuration is reloaded
+    private static final AtomicReference<UploadServletConfig> config = new AtomicReference<UploadServletConfig>();
+    private static final Object reloadLock = new Object();
+    private static ScheduledExecutorService configReloader;
+    // Built once from the configuration the servlet started with
+    private static PoolingClientConnectionManager connectionManager;
+    private static DefaultHttpClient httpClient;
+    private static ImportJobManager importJobManager;
+    private static ImportJobManager batchJobManager;
+    private static AdmissionController admissionController;
+    private static ProjectionCache projectionCache;
+    private static File projectionCacheFile;
+    private static ImportDigestIndex importDigestIndex;
+    private static ChunkedUploadManager chunkedUploadManager;
+    private static SpoolManager spoolManager;
+    private static CatalogCache catalogCache;
+    private static StoreReloader storeReloader;
+    private static GeoServerCluster geoServerCluster;
+    private static ThreadPoolExecutor receiveExecutor;
+    private static ScheduledExecutorService receiveTimer;
+    private static PipelineMetrics metrics;
+    private static StagedOverwrite stagedOverwrite;
+    private static ObjectName statsMBeanName;
     private static ServletConfig servletConfig;
+    private static final String[] IMPORT_PARAMETERS = new String[]{"layer", "workspace", "store", "srs"};
 
     @Override
     public void init(ServletConfig servletConfig) throws ServletException {
@@ -86,112 +109,362 @@ public class ShapefileUploadServlet extends HttpServlet {
             }
         }
 
-        // The maximum upload file size allowd by this server, 0 = Integer.MAX_VALUE
-        String mfsJndiProp = props.getProperty(applicationName + ".max.upload.file.size");
-        if (StringUtils.isNotBlank(mfsJndiProp)) {
-            maxFileSize = Integer.parseInt(mfsJndiProp);
-        } else {
-            maxFileSize = defaultMaxFileSize;
+        // One pooled client is shared by every request made to GeoServer. 
+        // Pool sizes and timeouts are applied from the configuration.
+        connectionManager = new PoolingClientConnectionManager();
+        httpClient = new DefaultHttpClient(connectionManager);
+        HttpConnectionParams.setStaleCheckingEnabled(httpClient.getParams(), true);
+        httpClient.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return duration > 0 ? duration : config.get().getKeepAliveTimeout();
+            }
+        });
+
+        UploadServletConfig initialConfig = new UploadServletConfig(servletConfig, loadProperties(), httpClient, connectionManager);
+        applyHttpSettings(initialConfig);
+        config.set(initialConfig);
+
+        // Background imports for requests made in asynchronous mode
+        importJobManager = new ImportJobManager(applicationName + "-import", initialConfig.getAsyncThreads(), initialConfig.getAsyncQueueSize(), initialConfig.getAsyncJobRetention());
+        LOG.debug("Asynchronous imports set to " + initialConfig.getAsyncThreads() + " thread(s) with room for " + initialConfig.getAsyncQueueSize() + " queued job(s)");
+
+        // Imports of synchronous batch uploads
+        batchJobManager = new ImportJobManager(applicationName + "-batch", initialConfig.getBatchThreads(), initialConfig.getBatchQueueSize(), initialConfig.getAsyncJobRetention());
+        LOG.debug("Batch imports set to " + initialConfig.getBatchThreads() + " thread(s) with room for " + initialConfig.getBatchQueueSize() + " queued import(s)");
+
+        // Admission control in front of GeoServer imports
+        admissionController = new AdmissionController(initialConfig.getAdmissionMaxConcurrent(), initialConfig.getAdmissionWorkspaceLimits(), initialConfig.getAdmissionQueueSize(), initialConfig.getAdmissionMaxWait());
+        LOG.debug("Admission control set to " + initialConfig.getAdmissionMaxConcurrent() + " concurrent import(s), " + initialConfig.getAdmissionQueueSize() + " waiting import(s) and workspace limits of " + initialConfig.getAdmissionWorkspaceLimits());
+
+        projectionCache = new ProjectionCache(initialConfig.getProjectionCacheSize());
+        projectionCacheFile = initialConfig.getProjectionCacheFile();
+        if (projectionCacheFile != null) {
+            projectionCache.load(projectionCacheFile);
         }
-        if (maxFileSize == 0) {
-            maxFileSize = defaultMaxFileSize;
+        LOG.debug("Projection cache set to " + initialConfig.getProjectionCacheSize() + " entries, persisted to " + projectionCacheFile);
+
+        importDigestIndex = new ImportDigestIndex(initialConfig.getDedupIndexSize());
+
+        spoolManager = new SpoolManager(initialConfig.getSpoolDirectory(), initialConfig.getSpoolDiskBudget(), initialConfig.getSpoolMemoryThreshold(), initialConfig.getSpoolMemoryBudget(), initialConfig.getSpoolMaxWait());
+        try {
+            int orphans = spoolManager.sweep();
+            LOG.debug("Uploads spooled to " + spoolManager.getDirectory().getPath() + ", " + orphans + " orphaned spool(s) removed");
+        } catch (IOException ex) {
+            throw new ServletException("Spool directory " + spoolManager.getDirectory().getPath() + " could not be created", ex);
         }
-        LOG.debug("Maximum allowable file size set to: " + maxFileSize + " bytes");
+        chunkedUploadManager = new ChunkedUploadManager(initialConfig.getChunkDirectory(), initialConfig.getChunkRetention(), spoolManager);
+
+        catalogCache = new CatalogCache(initialConfig.getCatalogCacheTTL(), initialConfig.getCatalogCacheSize());
+        storeReloader = new StoreReloader(applicationName + "-store-reload", initialConfig.getStoreReloadDelay());
+
+        geoServerCluster = new GeoServerCluster(applicationName + "-geoserver", initialConfig.getHealthCheckInterval());
+        geoServerCluster.setNodes(initialConfig.getGeoServerClients());
 
-        String gsepJndiProp = props.getProperty(applicationName + ".geoserver.endpoint");
-        if (StringUtils.isNotBlank(gsepJndiProp)) {
-            geoserverEndpoint = gsepJndiProp;
-            if (geoserverEndpoint.endsWith("/")) {
-                geoserverEndpoint = geoserverEndpoint.substring(0, geoserverEndpoint.length() - 1);
+        // Uploads received without blocking are imported here once complete
+        receiveExecutor = new ThreadPoolExecutor(initialConfig.getReceiveThreads(), initialConfig.getReceiveThreads(), 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, initialConfig.getReceiveQueueSize())),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, applicationName + "-receive-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        receiveExecutor.allowCoreThreadTimeOut(true);
+        receiveTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, applicationName + "-receive-timeout");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        metrics = new PipelineMetrics();
+        stagedOverwrite = new StagedOverwrite(catalogCache, storeReloader, metrics);
+        if (initialConfig.isMetricsJMX()) {
+            try {
+                statsMBeanName = new ObjectName("gov.usgs.cida.geoutils:type=ShapefileUploadServlet,name=" + ObjectName.quote(applicationName));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new UploadStatsMBean(), statsMBeanName);
+                LOG.debug("Statistics registered with JMX as " + statsMBeanName);
+            } catch (JMException ex) {
+                LOG.warn("Statistics could not be registered with JMX", ex);
+                statsMBeanName = null;
             }
-        } else {
-            throw new ServletException("Geoserver endpoint is not defined.");
         }
-        LOG.debug("Geoserver endpoint set to: " + geoserverEndpoint);
 
-        try {
-            geoserverEndpointURL = new URL(geoserverEndpoint);
-        } catch (MalformedURLException ex) {
-            throw new ServletException("Geoserver endpoint (" + geoserverEndpoint + ") could not be parsed into a valid URL.");
+        if (initialConfig.getConfigReloadInterval() > 0) {
+            configReloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, applicationName + "-config-reload");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            configReloader.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reloadConfig();
+                    } catch (ServletException ex) {
+                        LOG.warn("Configuration could not be reloaded. Keeping the current configuration", ex);
+                    }
+                }
+            }, initialConfig.getConfigReloadInterval(), initialConfig.getConfigReloadInterval(), TimeUnit.SECONDS);
+            LOG.debug("Configuration will be reloaded every " + initialConfig.getConfigReloadInterval() + " seconds");
         }
+    }
 
-        String gsuserJndiProp = props.getProperty(applicationName + ".geoserver.username");
-        if (StringUtils.isNotBlank(gsuserJndiProp)) {
-            geoserverUsername = gsuserJndiProp;
-        } else {
-            throw new ServletException("Geoserver username is not defined.");
+    /**
+     * Gathers the properties a configuration is built from: JNDI and JVM
+     * properties (with web.xml values substituted for missing ones), JNDI
+     * entries as they are right now and, if one is configured, the contents of
+     * the application's config.file
+     */
+    private static Properties loadProperties() {
+        Properties properties = new Properties(props);
+        String prefix = applicationName + ".";
+
+        try {
+            Context env = (Context) new InitialContext().lookup("java:comp/env");
+            NamingEnumeration<NameClassPair> names = env.list("");
+            while (names.hasMore()) {
+                String name = names.next().getName();
+                if (name.startsWith(prefix)) {
+                    Object value = env.lookup(name);
+                    if (value != null && StringUtils.isNotBlank(value.toString())) {
+                        properties.setProperty(name, value.toString());
+                    }
+                }
+            }
+        } catch (NamingException ex) {
+            LOG.debug("JNDI environment could not be read: " + ex.getMessage());
         }
-        LOG.debug("Geoserver username set to: " + geoserverUsername);
 
-        // This should only be coming from JNDI or JVM properties
-        String gspassJndiProp = props.getProperty(applicationName + ".geoserver.password");
-        if (StringUtils.isNotBlank(gspassJndiProp)) {
-            geoserverPassword = gspassJndiProp;
-        } else {
-            throw new ServletException("Geoserver password is not defined.");
+        String configFile = properties.getProperty(prefix + "config.file");
+        if (StringUtils.isNotBlank(configFile) && new File(configFile).isFile()) {
+            InputStream inputStream = null;
+            try {
+                inputStream = new FileInputStream(configFile);
+                properties.load(inputStream);
+                LOG.debug("Configuration read from " + configFile);
+            } catch (IOException ex) {
+                LOG.warn("Could not read configuration from " + configFile, ex);
+            } finally {
+                IOUtils.closeQuietly(inputStream);
+            }
         }
-        LOG.debug("Geoserver password is set");
+        return properties;
+    }
 
-        try {
-            gsRestManager = new GeoServerRESTManager(geoserverEndpointURL, geoserverUsername, geoserverPassword);
-        } catch (IllegalArgumentException ex) {
-            throw new ServletException("Geoserver manager count not be built", ex);
-        } catch (MalformedURLException ex) {
-            // This should not happen since we take care of it above - we can probably move this into the try block above
-            throw new ServletException("Geoserver endpoint (" + geoserverEndpoint + ") could not be parsed into a valid URL.");
+    /**
+     * Builds a new configuration snapshot and swaps it in. Requests already
+     * under way finish with the snapshot they started with.
+     *
+     * @return names of the changed settings that only take effect on restart
+     * @throws ServletException if the new configuration is invalid, in which
+     * case the current one is kept
+     */
+    static List<String> reloadConfig() throws ServletException {
+        synchronized (reloadLock) {
+            UploadServletConfig reloaded = new UploadServletConfig(servletConfig, loadProperties(), httpClient, connectionManager);
+            List<String> restartSettings = reloaded.getChangedStartupSettings(config.get());
+            applyHttpSettings(reloaded);
+            config.set(reloaded);
+            geoServerCluster.setNodes(reloaded.getGeoServerClients());
+            // The new configuration may point at another GeoServer
+            catalogCache.clear();
+            LOG.info("Configuration reloaded");
+            if (!restartSettings.isEmpty()) {
+                LOG.warn("Changes to " + StringUtils.join(restartSettings, ", ") + " only take effect once the application is restarted");
+            }
+            return restartSettings;
         }
+    }
 
-        String dwJndiProp = props.getProperty(applicationName + ".default.upload.workspace");
-        if (StringUtils.isNotBlank(dwJndiProp)) {
-            defaultWorkspaceName = dwJndiProp;
-        } else {
-            defaultWorkspaceName = "";
-            LOG.warn("Default workspace is not defined. If a workspace is not passed to during the request, the request will fail.");
+    private static void applyHttpSettings(UploadServletConfig uploadConfig) {
+        connectionManager.setMaxTotal(uploadConfig.getMaxConnections());
+        connectionManager.setDefaultMaxPerRoute(uploadConfig.getMaxConnectionsPerRoute());
+        HttpConnectionParams.setConnectionTimeout(httpClient.getParams(), uploadConfig.getConnectTimeout());
+        HttpConnectionParams.setSoTimeout(httpClient.getParams(), uploadConfig.getSocketTimeout());
+    }
+
+    @Override
+    public void destroy() {
+        if (configReloader != null) {
+            configReloader.shutdownNow();
         }
-        LOG.debug("Default workspace set to: " + defaultWorkspaceName);
+        if (statsMBeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsMBeanName);
+            } catch (JMException ex) {
+                LOG.debug("Statistics could not be unregistered from JMX: " + ex.getMessage());
+            }
+        }
+        if (projectionCache != null && projectionCacheFile != null) {
+            projectionCache.save(projectionCacheFile);
+        }
+        if (importJobManager != null) {
+            importJobManager.shutdown();
+        }
+        if (batchJobManager != null) {
+            batchJobManager.shutdown();
+        }
+        if (storeReloader != null) {
+            storeReloader.shutdown();
+        }
+        if (geoServerCluster != null) {
+            geoServerCluster.shutdown();
+        }
+        if (receiveExecutor != null) {
+            receiveExecutor.shutdown();
+        }
+        if (receiveTimer != null) {
+            receiveTimer.shutdownNow();
+        }
+        if (spoolManager != null) {
+            spoolManager.close();
+        }
+        if (connectionManager != null) {
+            connectionManager.shutdown();
+        }
+        super.destroy();
+    }
 
-        String dsnJndiProp = props.getProperty(applicationName + ".default.upload.storename");
-        if (StringUtils.isNotBlank(dsnJndiProp)) {
-            defaultStoreName = dsnJndiProp;
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, FileNotFoundException {
+        if (StringUtils.isNotBlank(request.getParameter("job"))) {
+            sendJobStatus(request, response);
+        } else if (request.getParameter("stats") != null) {
+            sendStats(request, response);
+        } else if (request.getParameter("reload.config") != null) {
+            sendReloadConfig(request, response);
         } else {
-            defaultStoreName = "";
-            LOG.warn("Default store name is not defined. If a store name is not passed to during the request, the name of the layer will be used as the name of the store");
+            doPost(request, response);
         }
-        LOG.debug("Default store name set to: " + defaultStoreName);
+    }
 
-        String dsrsJndiProp = props.getProperty(applicationName + ".default.srs");
-        if (StringUtils.isNotBlank(dsrsJndiProp)) {
-            defaultSRS = dsrsJndiProp;
+    /**
+     * Reports the state of an asynchronous import job along with the same
+     * name/workspace/store/error entries a synchronous import responds with
+     */
+    private void sendJobStatus(HttpServletRequest request, HttpServletResponse response) {
+        RequestResponse.ResponseType responseType = getResponseType(request);
+        ImportJob job = importJobManager.getJob(request.getParameter("job"));
+        if (job == null) {
+            Map<String, String> responseMap = new HashMap<String, String>();
+            responseMap.put("error", "Job " + request.getParameter("job") + " could not be found");
+            RequestResponse.sendErrorResponse(response, responseMap, responseType);
+        } else if (job.isFailed()) {
+            RequestResponse.sendErrorResponse(response, job.getStatusMap(), responseType);
         } else {
-            defaultSRS = "";
-            LOG.warn("Default SRS is not defined. If a SRS name is not passed to during the request, the request will fail");
+            RequestResponse.sendSuccessResponse(response, job.getStatusMap(), responseType);
         }
-        LOG.debug("Default SRS set to: " + defaultSRS);
     }
 
-    @Override
-    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, FileNotFoundException {
-        doPost(request, response);
+    /**
+     * Reports admission control, cache and connection pool statistics
+     */
+    private void sendStats(HttpServletRequest request, HttpServletResponse response) {
+        RequestResponse.sendSuccessResponse(response, getStats(), getResponseType(request));
     }
 
-    @Override
-    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, FileNotFoundException {
-        String filenameParam;
-        boolean useBaseCRSFailover;
-        boolean overwriteExistingLayer;
-        // "reproject" (default), "force", "none"
-        ProjectionPolicy projectionPolicy;
+    /**
+     * @return admission, cache, connection pool and pipeline statistics, as
+     * served by the stats endpoint and over JMX
+     */
+    static Map<String, String> getStats() {
+        Map<String, String> stats = new LinkedHashMap<String, String>();
+        stats.putAll(admissionController.getStats());
+        stats.putAll(projectionCache.getStats());
+        stats.putAll(importDigestIndex.getStats());
+        stats.putAll(spoolManager.getStats());
+        stats.putAll(catalogCache.getStats());
+        stats.putAll(storeReloader.getStats());
+        stats.putAll(geoServerCluster.getStats());
+        stats.putAll(config.get().getGeoServerClient().getPoolStats());
+        stats.putAll(metrics.getStats());
+        return stats;
+    }
 
+    /**
+     * Reloads the configuration on request, if the configuration allows it
+     */
+    private void sendReloadConfig(HttpServletRequest request, HttpServletResponse response) {
+        RequestResponse.ResponseType responseType = getResponseType(request);
         Map<String, String> responseMap = new HashMap<String, String>();
+        if (!config.get().isConfigReloadAdmin()) {
+            response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            responseMap.put("error", "Reloading the configuration on request is not enabled");
+            RequestResponse.sendErrorResponse(response, responseMap, responseType);
+            return;
+        }
+        try {
+            List<String> restartSettings = reloadConfig();
+            responseMap.put("reloaded", "true");
+            if (!restartSettings.isEmpty()) {
+                responseMap.put("restart.required", StringUtils.join(restartSettings, ","));
+            }
+            RequestResponse.sendSuccessResponse(response, responseMap, responseType);
+        } catch (ServletException ex) {
+            LOG.warn("Configuration could not be reloaded. Keeping the current configuration", ex);
+            responseMap.put("error", "Configuration could not be reloaded");
+            responseMap.put("exception", ex.getMessage());
+            RequestResponse.sendErrorResponse(response, responseMap, responseType);
+        }
+    }
+
+    /**
+     * Responds with a 503 and a Retry-After header when GeoServer is too busy
+     * to take on another import
+     */
+    private void sendBusyResponse(HttpServletResponse response, Map<String, String> responseMap, RequestResponse.ResponseType responseType, int retryAfter) {
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", String.valueOf(retryAfter));
+        responseMap.put("retry.after", String.valueOf(retryAfter));
+        RequestResponse.sendErrorResponse(response, responseMap, responseType);
+    }
 
+    private RequestResponse.ResponseType getResponseType(HttpServletRequest request) {
         RequestResponse.ResponseType responseType = RequestResponse.ResponseType.XML;
         String responseEncoding = request.getParameter("response.encoding");
         if (StringUtils.isBlank(responseEncoding) || responseEncoding.toLowerCase().contains("json")) {
             responseType = RequestResponse.ResponseType.JSON;
         }
+        return responseType;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, FileNotFoundException {
+        final UploadServletConfig uploadConfig = config.get();
+        Map<String, String> responseMap = new HashMap<String, String>();
+
+        RequestResponse.ResponseType responseType = getResponseType(request);
         LOG.debug("Response type set to " + responseType.toString());
 
-        int fileSize = Integer.parseInt(request.getHeader("Content-Length"));
+        // Set when the upload is sent in chunks, in which case the limit applies
+        // to the size of the whole upload
+        ChunkedUploadManager.Chunk chunk;
+        try {
+            chunk = ChunkedUploadManager.getChunk(request);
+        } catch (IOException ex) {
+            responseMap.put("error", ex.getMessage());
+            RequestResponse.sendErrorResponse(response, responseMap, responseType);
+            return;
+        }
+
+        long maxFileSize = uploadConfig.getMaxFileSize();
+        String contentLength = request.getHeader("Content-Length");
+        long fileSize = StringUtils.isNotBlank(contentLength) ? Long.parseLong(contentLength) : -1;
+        if (chunk != null) {
+            fileSize = chunk.getTotalFileSize();
+        }
         if (fileSize > maxFileSize) {
             responseMap.put("error", "Upload exceeds max file size of " + maxFileSize + " bytes");
             RequestResponse.sendErrorResponse(response, responseMap, responseType);
@@ -199,321 +472,830 @@ public class ShapefileUploadServlet extends HttpServlet {
         }
 
         // The key to search for in the upload form post to find the file
-        String fnInitParam = servletConfig.getInitParameter("filename.param");
-        String fnJndiProp = props.getProperty(applicationName + ".filename.param");
-        String fnReqParam = request.getParameter("filename.param");
-        if (StringUtils.isNotBlank(fnReqParam)) {
-            filenameParam = fnReqParam;
-        } else if (StringUtils.isNotBlank(fnInitParam)) {
-            filenameParam = fnInitParam;
-        } else if (StringUtils.isNotBlank(fnJndiProp)) {
-            filenameParam = fnJndiProp;
-        } else {
-            filenameParam = defaultFilenameParam;
-        }
+        String filenameParam = uploadConfig.getFilenameParam(request);
         LOG.debug("Filename parameter set to: " + filenameParam);
 
-        String oelInitParam = servletConfig.getInitParameter("overwrite.existing.layer");
-        String oelJndiProp = props.getProperty(applicationName + ".overwrite.existing.layer");
-        String oelReqParam = request.getParameter("overwrite.existing.layer");
-        if (StringUtils.isNotBlank(oelReqParam)) {
-            overwriteExistingLayer = Boolean.parseBoolean(oelReqParam);
-        } else if (StringUtils.isNotBlank(oelInitParam)) {
-            overwriteExistingLayer = Boolean.parseBoolean(oelInitParam);
-        } else if (StringUtils.isNotBlank(oelJndiProp)) {
-            overwriteExistingLayer = Boolean.parseBoolean(oelJndiProp);
-        } else {
-            overwriteExistingLayer = defaultOverwriteExistingLayer;
-        }
+        boolean overwriteExistingLayer = uploadConfig.isOverwriteExistingLayer(request);
         LOG.debug("Overwrite existing layer set to: " + overwriteExistingLayer);
 
+        boolean asyncImport = uploadConfig.isAsyncImport(request);
+        LOG.debug("Asynchronous import set to: " + asyncImport);
+
+        final boolean dedup = uploadConfig.isDedupEnabled(request);
+        LOG.debug("Deduplication set to: " + dedup);
+
+        // Don't bother reading the upload if it would be turned away anyway
+        if (!asyncImport && chunk == null && admissionController.isSaturated()) {
+            responseMap.put("error", "Import queue is full. Try again later");
+            sendBusyResponse(response, responseMap, responseType, admissionController.getRetryAfter());
+            return;
+        }
+
+        if (Boolean.parseBoolean(request.getParameter("batch"))) {
+            if (chunk != null) {
+                responseMap.put("error", "Batch uploads can not be sent in chunks");
+                RequestResponse.sendErrorResponse(response, responseMap, responseType);
+                return;
+            }
+            doBatch(request, response, uploadConfig, overwriteExistingLayer, asyncImport, dedup, responseType);
+            return;
+        }
+
         LOG.debug("Cleaning file name.\nWas: " + filenameParam);
-        String filename = cleanFileName(request.getParameter(filenameParam));
+        String uploadFilename = request.getParameter(filenameParam);
+        if (StringUtils.isBlank(uploadFilename) && chunk != null) {
+            uploadFilename = chunk.getFileName();
+        }
+        String filename = cleanFileName(uploadFilename);
         LOG.debug("Is: " + filename);
         if (filenameParam.equals(filename)) {
             LOG.debug("(No change)");
         }
 
-        String tempDir = System.getProperty("java.io.tmpdir");
-        File shapeZipFile = new File(tempDir + File.separator + filename);
-        LOG.debug("Temporary file set to " + shapeZipFile.getPath());
+        boolean useBaseCRSFailover = uploadConfig.isUseBaseCRSFailover(request);
+        LOG.debug("Use base CRS failover set to: " + useBaseCRSFailover);
 
-        String layerName = request.getParameter("layer");
-        if (StringUtils.isBlank(layerName)) {
-            layerName = filename.split("\\.")[0];
-        }
-        layerName = layerName.trim().replaceAll("\\.", "_").replaceAll(" ", "_");
-        LOG.debug("Layer name set to " + layerName);
+        // "reproject" (default), "force", "none"
+        ProjectionPolicy projectionPolicy = uploadConfig.getProjectionPolicy(request);
+        LOG.debug("Projection policy set to: " + projectionPolicy.name());
 
-        String workspaceName = request.getParameter("workspace");
-        if (StringUtils.isBlank(workspaceName)) {
-            workspaceName = defaultWorkspaceName;
-        }
-        if (StringUtils.isBlank(workspaceName)) {
-            responseMap.put("error", "Parameter \"workspace\" is mandatory");
+        final ImportJob job;
+        try {
+            job = createImportJob(uploadConfig, getImportParameters(request, null, null), filename, projectionPolicy, overwriteExistingLayer);
+            job.setOptimizer(uploadConfig.getShapefileOptimizer(request));
+        } catch (IOException ex) {
+            if (ex instanceof InvalidNameException) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            }
+            responseMap.put("error", ex.getMessage());
             RequestResponse.sendErrorResponse(response, responseMap, responseType);
             return;
         }
-        LOG.debug("Workspace name set to " + workspaceName);
 
-        String storeName = request.getParameter("store");
-        if (StringUtils.isBlank(storeName)) {
-            storeName = defaultStoreName;
-        }
-        if (StringUtils.isBlank(storeName)) {
-            storeName = layerName;
+        // Don't bother reading the upload if there is nowhere to import it to
+        if (isWorkspaceMissing(uploadConfig, job.getWorkspaceName())) {
+            metrics.increment("uploads.failed.workspace");
+            responseMap.put("error", "Workspace " + job.getWorkspaceName() + " does not exist");
+            RequestResponse.sendErrorResponse(response, responseMap, responseType);
+            return;
         }
-        LOG.debug("Store name set to " + storeName);
 
-        String srsName = request.getParameter("srs");
-        if (StringUtils.isBlank(srsName)) {
-            srsName = defaultSRS;
+        if (chunk == null && uploadConfig.isNonBlockingReceive() && request.isAsyncSupported()) {
+            receiveNonBlocking(request, response, uploadConfig, job, filename, filenameParam, fileSize, asyncImport, dedup, responseType);
+            return;
         }
-        if (StringUtils.isBlank(srsName)) {
-            responseMap.put("error", "Parameter \"srs\" is mandatory");
-            RequestResponse.sendErrorResponse(response, responseMap, responseType);
+
+        SpoolManager.Spool spool;
+        ShapefileZipIngester.Result ingested;
+        long ingestStart = System.nanoTime();
+        metrics.enter("uploads.receiving");
+        try {
+            ShapefileZipIngester ingester = new ShapefileZipIngester(maxFileSize);
+            InputStream uploadStream = ShapefileZipIngester.openUploadStream(request, filenameParam);
+            if (chunk != null) {
+                File assembledFile = chunkedUploadManager.receive(chunk, uploadStream, maxFileSize);
+                metrics.timeSince("chunk.receive", ingestStart);
+                if (assembledFile == null) {
+                    responseMap.put("uuid", chunk.getUuid());
+                    responseMap.put("part", String.valueOf(chunk.getPartIndex()));
+                    RequestResponse.sendSuccessResponse(response, responseMap, responseType);
+                    return;
+                }
+                InputStream assembledStream = null;
+                ingestStart = System.nanoTime();
+                try {
+                    spool = spoolManager.createSpool(filename, assembledFile.length());
+                    assembledStream = new FileInputStream(assembledFile);
+                    ingested = ingester.ingest(assembledStream, spool);
+                } finally {
+                    IOUtils.closeQuietly(assembledStream);
+                    chunkedUploadManager.remove(chunk);
+                }
+            } else {
+                // Saves, flattens and validates the upload in a single pass
+                spool = spoolManager.createSpool(filename, fileSize);
+                ingested = ingester.ingest(uploadStream, spool);
+            }
+            metrics.timeSince("ingest", ingestStart);
+            metrics.count("bytes.received", ingested.getBytesRead());
+            metrics.count("bytes.spooled", spool.length());
+            LOG.debug("File spooled " + (spool.isInMemory() ? "in memory" : "to " + spool.getFile().getPath()) + " with " + ingested.getEntryCount() + " flattened entries for shapefile " + ingested.getShapefileName());
+        } catch (Exception ex) {
+            sendUploadFailure(response, ex, responseType);
             return;
+        } finally {
+            metrics.leave("uploads.receiving");
         }
-        LOG.debug("SRS name set to " + srsName);
 
-        String bCRSfoInitParam = servletConfig.getInitParameter("use.crs.failover");
-        String bCRSfoJndiProp = props.getProperty(applicationName + ".use.crs.failover");
-        String bCRSfoReqParam = request.getParameter("use.crs.failover");
-        if (StringUtils.isNotBlank(bCRSfoReqParam)) {
-            useBaseCRSFailover = Boolean.parseBoolean(bCRSfoReqParam);
-        } else if (StringUtils.isNotBlank(bCRSfoInitParam)) {
-            useBaseCRSFailover = Boolean.parseBoolean(bCRSfoInitParam);
-        } else if (StringUtils.isNotBlank(bCRSfoJndiProp)) {
-            useBaseCRSFailover = Boolean.parseBoolean(bCRSfoJndiProp);
+        importUpload(response, uploadConfig, job, spool, ingested, asyncImport, dedup, responseType);
+    }
+
+    /**
+     * Answers an upload that could not be received or was not a valid
+     * shapefile zip
+     */
+    private void sendUploadFailure(HttpServletResponse response, Throwable ex, RequestResponse.ResponseType responseType) {
+        Map<String, String> responseMap = new HashMap<String, String>();
+        if (ex instanceof SpoolManager.SpoolFullException) {
+            LOG.info("Upload turned away: " + ex.getMessage());
+            metrics.increment("uploads.failed.spool");
+            responseMap.put("error", "Not enough room to receive the upload. Try again later");
+            sendBusyResponse(response, responseMap, responseType, spoolManager.getRetryAfter());
         } else {
-            useBaseCRSFailover = defaultUseBaseCRSFallback;
+            LOG.warn(ex.getMessage());
+            metrics.increment("uploads.failed." + ex.getClass().getSimpleName());
+            responseMap.put("error", "Unable to upload file");
+            responseMap.put("exception", ex.getMessage());
+            RequestResponse.sendErrorResponse(response, responseMap, responseType);
         }
-        LOG.debug("Use base CRS failover set to: " + useBaseCRSFailover);
+    }
 
-        String projectionPolicyReqParam = request.getParameter("projection.policy");
-        String ppInitParam = servletConfig.getInitParameter("projection.policy");
-        String ppJndiProp = props.getProperty(applicationName + ".projection.policy");
-        if (StringUtils.isNotBlank(projectionPolicyReqParam)) {
-            if (projectionPolicyReqParam.equalsIgnoreCase("reproject")) {
-                projectionPolicy = ProjectionPolicy.REPROJECT_TO_DECLARED;
-            } else if (projectionPolicyReqParam.equalsIgnoreCase("force")) {
-                projectionPolicy = ProjectionPolicy.FORCE_DECLARED;
-            } else {
-                projectionPolicy = defaultProjectionPolicy;
-            }
-        } else if (StringUtils.isNotBlank(ppInitParam)) {
-            if (ppInitParam.equalsIgnoreCase("reproject")) {
-                projectionPolicy = ProjectionPolicy.REPROJECT_TO_DECLARED;
-            } else if (ppInitParam.equalsIgnoreCase("force")) {
-                projectionPolicy = ProjectionPolicy.FORCE_DECLARED;
-            } else {
-                projectionPolicy = ProjectionPolicy.NONE;
+    /**
+     * Imports a received upload, or queues it for import, and answers the
+     * request
+     */
+    private void importUpload(HttpServletResponse response, final UploadServletConfig uploadConfig, final ImportJob job, SpoolManager.Spool spool, ShapefileZipIngester.Result ingested, boolean asyncImport, final boolean dedup, RequestResponse.ResponseType responseType) {
+        Map<String, String> responseMap = new HashMap<String, String>();
+        // Time spent waiting for an import thread starts now
+        job.setState(ImportJob.State.QUEUED);
+        job.setPrj(ingested.getPrj());
+        job.setDigest(ingested.getDigest());
+        job.setShapefileName(ingested.getShapefileName());
+        job.setSpool(spool);
+        if (asyncImport) {
+            try {
+                importJobManager.submit(job, new Runnable() {
+                    @Override
+                    public void run() {
+                        runImport(job, uploadConfig, dedup);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                spool.release();
+                responseMap.put("error", "Import queue is full. Try again later");
+                RequestResponse.sendErrorResponse(response, responseMap, responseType);
+                return;
             }
-        } else if (StringUtils.isNotBlank(ppJndiProp)) {
-            if (ppJndiProp.equalsIgnoreCase("reproject")) {
-                projectionPolicy = ProjectionPolicy.REPROJECT_TO_DECLARED;
-            } else if (ppJndiProp.equalsIgnoreCase("force")) {
-                projectionPolicy = ProjectionPolicy.FORCE_DECLARED;
+            LOG.debug("Shapefile import queued as job " + job.getId());
+            RequestResponse.sendSuccessResponse(response, job.getStatusMap(), responseType);
+        } else {
+            runImport(job, uploadConfig, dedup);
+            if (job.getRetryAfter() > 0) {
+                sendBusyResponse(response, job.getResponseMap(), responseType, job.getRetryAfter());
+            } else if (job.isFailed()) {
+                RequestResponse.sendErrorResponse(response, job.getResponseMap(), responseType);
             } else {
-                projectionPolicy = ProjectionPolicy.NONE;
+                RequestResponse.sendSuccessResponse(response, job.getResponseMap(), responseType);
             }
-        } else {
-            projectionPolicy = defaultProjectionPolicy;
         }
-        LOG.debug("Projection policy set to: " + projectionPolicy.name());
-        LOG.debug("Projection policy re-set to: " + projectionPolicy);
+    }
 
+    /**
+     * Receives the upload without a container thread waiting on the client.
+     * The body is written to a spool as it arrives; once it is complete, it is
+     * read from there and imported on a receive thread, which then answers the
+     * request.
+     */
+    private void receiveNonBlocking(final HttpServletRequest request, final HttpServletResponse response, final UploadServletConfig uploadConfig, final ImportJob job, final String filename, final String filenameParam,
+            long fileSize, final boolean asyncImport, final boolean dedup, final RequestResponse.ResponseType responseType) {
+        SpoolManager.Spool body;
         try {
-            RequestResponse.saveFileFromRequest(request, shapeZipFile, filenameParam);
-            LOG.debug("File saved to " + shapeZipFile.getPath());
-
-            FileHelper.flattenZipFile(shapeZipFile.getPath());
-            LOG.debug("Zip file directory structure flattened");
-            
-            FileHelper.validateShapefileZip(shapeZipFile);
-            LOG.debug("Zip file seems to be a valid shapefile");
-        } catch (Exception ex) {
-            LOG.warn(ex.getMessage());
-            responseMap.put("error", "Unable to upload file");
-            responseMap.put("exception", ex.getMessage());
-            RequestResponse.sendErrorResponse(response, responseMap, responseType);
+            body = spoolManager.createSpool(filename, fileSize);
+        } catch (IOException ex) {
+            sendUploadFailure(response, ex, responseType);
             return;
         }
-        
+
+        // The container's timeout is off so that the request stays live until
+        // the receive thread completes it. receive.timeout only covers
+        // receiving the body and is kept by the reader.
+        final AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(0);
+        final long receiveStart = System.nanoTime();
+        metrics.enter("uploads.receiving");
+        try {
+            new NonBlockingUploadReader(asyncContext, body, uploadConfig.getMaxFileSize(), new NonBlockingUploadReader.Callback() {
+                @Override
+                public void received(final SpoolManager.Spool body, long bytesRead) {
+                    metrics.leave("uploads.receiving");
+                    metrics.timeSince("receive", receiveStart);
+                    try {
+                        receiveExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    ingestBody(request, response, uploadConfig, job, filename, filenameParam, body, asyncImport, dedup, responseType);
+                                } finally {
+                                    asyncContext.complete();
+                                }
+                            }
+                        });
+                    } catch (RejectedExecutionException ex) {
+                        body.release();
+                        Map<String, String> responseMap = new HashMap<String, String>();
+                        responseMap.put("error", "Import queue is full. Try again later");
+                        sendBusyResponse(response, responseMap, responseType, admissionController.getRetryAfter());
+                        asyncContext.complete();
+                    }
+                }
+
+                @Override
+                public void failed(Throwable ex) {
+                    metrics.leave("uploads.receiving");
+                    try {
+                        sendUploadFailure(response, ex, responseType);
+                        asyncContext.complete();
+                    } catch (IllegalStateException completed) {
+                        LOG.debug("Upload failed after its request ended: " + ex.getMessage());
+                    }
+                }
+            }).start(receiveTimer, uploadConfig.getReceiveTimeout());
+        } catch (IOException ex) {
+            metrics.leave("uploads.receiving");
+            body.release();
+            sendUploadFailure(response, ex, responseType);
+            asyncContext.complete();
+        }
+    }
+
+    /**
+     * Flattens and validates an upload body received without blocking, then
+     * imports it
+     */
+    private void ingestBody(HttpServletRequest request, HttpServletResponse response, UploadServletConfig uploadConfig, ImportJob job, String filename, String filenameParam, SpoolManager.Spool body,
+            boolean asyncImport, boolean dedup, RequestResponse.ResponseType responseType) {
+        SpoolManager.Spool spool;
+        ShapefileZipIngester.Result ingested;
+        long ingestStart = System.nanoTime();
+        InputStream bodyStream = null;
         try {
-            srsName = ProjectionUtils.getProjectionFromShapefileZip(shapeZipFile, false);
+            bodyStream = body.openInputStream();
+            InputStream uploadStream = ShapefileZipIngester.openUploadStream(request, bodyStream, filenameParam);
+            spool = spoolManager.createSpool(filename, body.length());
+            ingested = new ShapefileZipIngester(uploadConfig.getMaxFileSize()).ingest(uploadStream, spool);
+            metrics.timeSince("ingest", ingestStart);
+            metrics.count("bytes.received", ingested.getBytesRead());
+            metrics.count("bytes.spooled", spool.length());
         } catch (Exception ex) {
-            responseMap.put("warning", "WARNING: Could not find EPSG code for prj definition. The geographic coordinate system '"+srsName+"' will be used ");
+            sendUploadFailure(response, ex, responseType);
+            return;
+        } finally {
+            IOUtils.closeQuietly(bodyStream);
+            body.release();
         }
+        importUpload(response, uploadConfig, job, spool, ingested, asyncImport, dedup, responseType);
+    }
 
-        String importResponse;
+    /**
+     * Imports every shapefile zip of a batch upload: the files of a multipart
+     * request, any of which may be a zip of zips, or a zip of zips sent as the
+     * request body. Each zip becomes a layer of its own and is imported on the
+     * batch pool (or queued as an asynchronous job). The response holds the
+     * outcome of every layer, keyed by the zip's base name, and a zip that
+     * fails does not fail the others.
+     */
+    private void doBatch(HttpServletRequest request, HttpServletResponse response, final UploadServletConfig uploadConfig, boolean overwriteExistingLayer, boolean asyncImport, final boolean dedup, RequestResponse.ResponseType responseType) {
+        Map<String, String> responseMap = new LinkedHashMap<String, String>();
+        Map<String, String> formFields = new HashMap<String, String>();
+        List<ShapefileZipIngester.Item> items = new ArrayList<ShapefileZipIngester.Item>();
+        ShapefileZipIngester ingester = new ShapefileZipIngester(uploadConfig.getMaxFileSize());
+
+        long ingestStart = System.nanoTime();
+        metrics.enter("uploads.receiving");
         try {
-            GeoServerRESTPublisher gsPublisher = gsRestManager.getPublisher();
-
-            if (overwriteExistingLayer) {
-                // TODO- Using this library, I am unable to rename a layer. If publishing the layer
-                // fails, we will have lost this layer due to removal here. 
-                if (gsPublisher.unpublishFeatureType(workspaceName, storeName, layerName)) {
-                    gsPublisher.unpublishCoverage(workspaceName, storeName, layerName);
-                    gsPublisher.reloadStore(workspaceName, storeName, GeoServerRESTPublisher.StoreType.DATASTORES);
+            if (ServletFileUpload.isMultipartContent(request)) {
+                FileItemIterator iter = new ServletFileUpload().getItemIterator(request);
+                while (iter.hasNext()) {
+                    FileItemStream item = iter.next();
+                    if (item.isFormField()) {
+                        // Only fields sent ahead of a file are seen in time to apply to it
+                        formFields.put(item.getFieldName(), Streams.asString(item.openStream(), "UTF-8"));
+                        continue;
+                    }
+                    String name = FilenameUtils.getName(StringUtils.defaultIfEmpty(item.getName(), item.getFieldName()));
+                    try {
+                        items.addAll(ingester.ingestBatch(item.openStream(), name, spoolManager));
+                    } catch (SpoolManager.SpoolFullException ex) {
+                        // Turns the whole batch away, as for a raw body
+                        throw ex;
+                    } catch (IOException ex) {
+                        items.add(new ShapefileZipIngester.Item(name, ex));
+                    }
                 }
-            }
-
-            importResponse = importUsingWPS(workspaceName, storeName, layerName, shapeZipFile.toURI(), srsName, projectionPolicy, null);
-            
-            if (importResponse.toLowerCase().contains("exception")) {
-                String error = parseWPSErrorText(importResponse);
-                LOG.debug("Shapefile could not be imported successfully");
-                responseMap.put("error", error);
-                RequestResponse.sendErrorResponse(response, responseMap, responseType);
             } else {
-                LOG.debug("Shapefile has been imported successfully");
-                responseMap.put("name", importResponse);
-                responseMap.put("workspace", workspaceName);
-                responseMap.put("store", storeName);
-                RequestResponse.sendSuccessResponse(response, responseMap, responseType);
+                String name = StringUtils.defaultIfEmpty(request.getParameter(uploadConfig.getFilenameParam(request)), "upload.zip");
+                items.addAll(ingester.ingestBatch(request.getInputStream(), name, spoolManager));
+            }
+            metrics.timeSince("batch.ingest", ingestStart);
+        } catch (SpoolManager.SpoolFullException ex) {
+            LOG.info("Batch upload turned away: " + ex.getMessage());
+            metrics.increment("uploads.failed.spool");
+            for (ShapefileZipIngester.Item item : items) {
+                item.release();
             }
-            
+            responseMap.put("error", "Not enough room to receive the upload. Try again later");
+            sendBusyResponse(response, responseMap, responseType, spoolManager.getRetryAfter());
+            return;
         } catch (Exception ex) {
             LOG.warn(ex.getMessage());
+            metrics.increment("uploads.failed." + ex.getClass().getSimpleName());
+            for (ShapefileZipIngester.Item item : items) {
+                item.release();
+            }
             responseMap.put("error", "Unable to upload file");
             responseMap.put("exception", ex.getMessage());
             RequestResponse.sendErrorResponse(response, responseMap, responseType);
+            return;
         } finally {
-            FileUtils.deleteQuietly(shapeZipFile);
+            metrics.leave("uploads.receiving");
+        }
+        LOG.debug("Batch upload holds " + items.size() + " shapefile zip(s)");
+
+        ProjectionPolicy projectionPolicy = uploadConfig.getProjectionPolicy(request);
+        Map<String, ImportJob> jobs = new LinkedHashMap<String, ImportJob>();
+        Set<String> prefixes = new HashSet<String>();
+        int failed = 0;
+        for (ShapefileZipIngester.Item item : items) {
+            String itemName = FilenameUtils.getBaseName(item.getName());
+            String prefix = itemName;
+            for (int count = 2; !prefixes.add(prefix); count++) {
+                prefix = itemName + "_" + count;
+            }
+
+            if (item.getResult() == null) {
+                metrics.increment("uploads.failed." + item.getError().getClass().getSimpleName());
+                responseMap.put(prefix + ".error", "Unable to upload file");
+                responseMap.put(prefix + ".exception", item.getError().getMessage());
+                failed++;
+                continue;
+            }
+
+            final ImportJob job;
+            try {
+                job = createImportJob(uploadConfig, getImportParameters(request, formFields, itemName), cleanFileName(item.getName()), projectionPolicy, overwriteExistingLayer);
+                job.setOptimizer(uploadConfig.getShapefileOptimizer(request));
+            } catch (IOException ex) {
+                item.release();
+                responseMap.put(prefix + ".error", ex.getMessage());
+                failed++;
+                continue;
+            }
+            if (isWorkspaceMissing(uploadConfig, job.getWorkspaceName())) {
+                item.release();
+                metrics.increment("uploads.failed.workspace");
+                responseMap.put(prefix + ".error", "Workspace " + job.getWorkspaceName() + " does not exist");
+                failed++;
+                continue;
+            }
+            metrics.count("bytes.received", item.getResult().getBytesRead());
+            metrics.count("bytes.spooled", item.getSpool().length());
+            job.setPrj(item.getResult().getPrj());
+            job.setDigest(item.getResult().getDigest());
+            job.setShapefileName(item.getResult().getShapefileName());
+            job.setSpool(item.getSpool());
+
+            try {
+                (asyncImport ? importJobManager : batchJobManager).submit(job, new Runnable() {
+                    @Override
+                    public void run() {
+                        runImport(job, uploadConfig, dedup);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                item.release();
+                responseMap.put(prefix + ".error", "Import queue is full. Try again later");
+                failed++;
+                continue;
+            }
+            jobs.put(prefix, job);
+        }
+
+        for (Map.Entry<String, ImportJob> entry : jobs.entrySet()) {
+            ImportJob job = entry.getValue();
+            if (!asyncImport) {
+                try {
+                    job.awaitFinished();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Map<String, String> jobResponseMap = asyncImport || !job.getState().isFinished() ? job.getStatusMap() : job.getResponseMap();
+            for (Map.Entry<String, String> jobEntry : jobResponseMap.entrySet()) {
+                responseMap.put(entry.getKey() + "." + jobEntry.getKey(), jobEntry.getValue());
+            }
+            if (job.isFailed()) {
+                failed++;
+            }
         }
 
+        responseMap.put("items", String.valueOf(items.size()));
+        responseMap.put("failed", String.valueOf(failed));
+        if (items.isEmpty() || failed == items.size()) {
+            RequestResponse.sendErrorResponse(response, responseMap, responseType);
+        } else {
+            RequestResponse.sendSuccessResponse(response, responseMap, responseType);
+        }
     }
 
-    private String importUsingWPS(String workspaceName, String storeName, String layerName, URI shapefile, String srsName, ProjectionPolicy projectionPolicy, String styleName) throws IOException {
-        FileOutputStream wpsRequestOutputStream = null;
-        FileInputStream uploadedInputStream = null;
+    /**
+     * Collects the parameters a layer's import settings are resolved from,
+     * form fields of a multipart request taking precedence over request
+     * parameters. For an item of a batch upload, a parameter prefixed with
+     * the item's name and a period takes precedence and the layer name is
+     * only ever taken from such a parameter.
+     *
+     * @param request
+     * @param formFields form fields read from a multipart request, may be null
+     * @param itemName the name of an item of a batch upload, null otherwise
+     * @return values for layer, workspace, store and srs
+     */
+    private static Map<String, String> getImportParameters(HttpServletRequest request, Map<String, String> formFields, String itemName) {
+        Map<String, String> parameters = new HashMap<String, String>();
+        for (String name : IMPORT_PARAMETERS) {
+            String value = null;
+            if (itemName != null) {
+                value = getParameter(request, formFields, itemName + "." + name);
+            }
+            if (StringUtils.isBlank(value) && (itemName == null || !"layer".equals(name))) {
+                value = getParameter(request, formFields, name);
+            }
+            parameters.put(name, value);
+        }
+        return parameters;
+    }
 
-        File wpsRequestFile = File.createTempFile("wps.upload.", ".xml");
-        wpsRequestFile.deleteOnExit();
-        try {
+    private static String getParameter(HttpServletRequest request, Map<String, String> formFields, String name) {
+        if (formFields != null && StringUtils.isNotBlank(formFields.get(name))) {
+            return formFields.get(name);
+        }
+        return request.getParameter(name);
+    }
 
-            wpsRequestOutputStream = new FileOutputStream(wpsRequestFile);
-            uploadedInputStream = new FileInputStream(new File(shapefile));
-
-            wpsRequestOutputStream.write(new String(
-                    "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
-                    + "<wps:Execute service=\"WPS\" version=\"1.0.0\" "
-                    + "xmlns:wps=\"http://www.opengis.net/wps/1.0.0\" "
-                    + "xmlns:ows=\"http://www.opengis.net/ows/1.1\" "
-                    + "xmlns:xlink=\"http://www.w3.org/1999/xlink\" "
-                    + "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" "
-                    + "xsi:schemaLocation=\"http://www.opengis.net/wps/1.0.0 "
-                    + "http://schemas.opengis.net/wps/1.0.0/wpsExecute_request.xsd\">"
-                    + "<ows:Identifier>gs:Import</ows:Identifier>"
-                    + "<wps:DataInputs>"
-                    + "<wps:Input>"
-                    + "<ows:Identifier>features</ows:Identifier>"
-                    + "<wps:Data>"
-                    + "<wps:ComplexData mimeType=\"application/zip\"><![CDATA[").getBytes());
-            IOUtils.copy(uploadedInputStream, new Base64OutputStream(wpsRequestOutputStream, true, 0, null));
-            wpsRequestOutputStream.write(new String(
-                    "]]></wps:ComplexData>"
-                    + "</wps:Data>"
-                    + "</wps:Input>"
-                    + "<wps:Input>"
-                    + "<ows:Identifier>workspace</ows:Identifier>"
-                    + "<wps:Data>"
-                    + "<wps:LiteralData>" + workspaceName + "</wps:LiteralData>"
-                    + "</wps:Data>"
-                    + "</wps:Input>"
-                    + "<wps:Input>"
-                    + "<ows:Identifier>store</ows:Identifier>"
-                    + "<wps:Data>"
-                    + "<wps:LiteralData>" + storeName + "</wps:LiteralData>"
-                    + "</wps:Data>"
-                    + "</wps:Input>"
-                    + "<wps:Input>"
-                    + "<ows:Identifier>name</ows:Identifier>"
-                    + "<wps:Data>"
-                    + "<wps:LiteralData>" + layerName + "</wps:LiteralData>"
-                    + "</wps:Data>"
-                    + "</wps:Input>"
-                    + "<wps:Input>"
-                    + "<ows:Identifier>srs</ows:Identifier>"
-                    + "<wps:Data>"
-                    + "<wps:LiteralData>" + srsName + "</wps:LiteralData>"
-                    + "</wps:Data>"
-                    + "</wps:Input>"
-                    + "<wps:Input>"
-                    + "<ows:Identifier>srsHandling</ows:Identifier>"
-                    + "<wps:Data>"
-                    + "<wps:LiteralData>" + projectionPolicy + "</wps:LiteralData>"
-                    + "</wps:Data>"
-                    + "</wps:Input>").getBytes());
-
-            // TODO- Not yet implemented
-            if (StringUtils.isNotBlank(styleName)) {
-                wpsRequestOutputStream.write(new String(
-                        "<wps:Input>"
-                        + "<ows:Identifier>styleName</ows:Identifier>"
-                        + "<wps:Data>"
-                        + "<wps:LiteralData>" + styleName + "</wps:LiteralData>"
-                        + "</wps:Data>"
-                        + "</wps:Input>").getBytes());
-
-            }
-
-            wpsRequestOutputStream.write(new String(
-                    "</wps:DataInputs>"
-                    + "<wps:ResponseForm>"
-                    + "<wps:RawDataOutput>"
-                    + "<ows:Identifier>layerName</ows:Identifier>"
-                    + "</wps:RawDataOutput>"
-                    + "</wps:ResponseForm>"
-                    + "</wps:Execute>").getBytes());
-        } finally {
-            IOUtils.closeQuietly(wpsRequestOutputStream);
-            IOUtils.closeQuietly(uploadedInputStream);
+    /**
+     * Resolves the workspace, store, layer and SRS a shapefile is imported
+     * with, falling back on the configured defaults
+     *
+     * @param uploadConfig
+     * @param parameters from {@link #getImportParameters}
+     * @param filename the cleaned upload file name, the layer name's default
+     * @param projectionPolicy
+     * @param overwriteExistingLayer
+     * @return a job for the import
+     * @throws IOException if a mandatory setting is missing
+     * @throws InvalidNameException if a name can not be sent to GeoServer
+     */
+    private static ImportJob createImportJob(UploadServletConfig uploadConfig, Map<String, String> parameters, String filename, ProjectionPolicy projectionPolicy, boolean overwriteExistingLayer) throws IOException {
+        String layerName = parameters.get("layer");
+        if (StringUtils.isBlank(layerName)) {
+            layerName = filename.split("\\.")[0];
+        }
+        layerName = layerName.trim().replaceAll("\\.", "_").replaceAll(" ", "_");
+        LOG.debug("Layer name set to " + layerName);
+
+        String workspaceName = parameters.get("workspace");
+        if (StringUtils.isBlank(workspaceName)) {
+            workspaceName = uploadConfig.getDefaultWorkspaceName();
+        }
+        if (StringUtils.isBlank(workspaceName)) {
+            throw new IOException("Parameter \"workspace\" is mandatory");
         }
+        LOG.debug("Workspace name set to " + workspaceName);
 
-        String url = geoserverEndpointURL.toString();
+        String storeName = parameters.get("store");
+        if (StringUtils.isBlank(storeName)) {
+            storeName = uploadConfig.getDefaultStoreName();
+        }
+        if (StringUtils.isBlank(storeName)) {
+            storeName = layerName;
+        }
+        LOG.debug("Store name set to " + storeName);
+
+        checkName("workspace", workspaceName);
+        checkName("store", storeName);
+        checkName("layer", layerName);
+
+        String srsName = parameters.get("srs");
+        if (StringUtils.isBlank(srsName)) {
+            srsName = uploadConfig.getDefaultSRS();
+        }
+        if (StringUtils.isBlank(srsName)) {
+            throw new IOException("Parameter \"srs\" is mandatory");
+        }
+        LOG.debug("SRS name set to " + srsName);
 
-        return postToWPS(url + (url.endsWith("/") ? "" : "/") + "wps/WebProcessingService?Service=WPS&Request=execute&identifier=gs:Import", wpsRequestFile);
+        return new ImportJob(workspaceName, storeName, layerName, srsName, projectionPolicy, overwriteExistingLayer);
     }
 
-    private String postToWPS(String url, File wpsRequestFile) throws IOException {
-        HttpPost post;
-        HttpClient httpClient = new DefaultHttpClient();
+    /**
+     * @throws InvalidNameException if the name can not be sent to GeoServer
+     */
+    private static void checkName(String parameter, String name) throws InvalidNameException {
+        if (!GeoServerClient.isValidName(name)) {
+            throw new InvalidNameException("Parameter \"" + parameter + "\" must not be \".\" or \"..\" or contain '/', '\\', ':' or control characters");
+        }
+    }
 
-        post = new HttpPost(url);
+    /**
+     * @param uploadConfig
+     * @param workspaceName
+     * @return true only if GeoServer is known not to have the workspace. If
+     * GeoServer could not tell, the import is left to find out.
+     */
+    private static boolean isWorkspaceMissing(UploadServletConfig uploadConfig, String workspaceName) {
+        try {
+            return !catalogCache.workspaceExists(uploadConfig.getGeoServerClient(), workspaceName);
+        } catch (IOException ex) {
+            LOG.debug("Could not check for workspace " + workspaceName + ": " + ex.getMessage());
+            return false;
+        }
+    }
 
-        FileInputStream wpsRequestInputStream = null;
+    /**
+     * Imports the job's shapefile into GeoServer, recording the outcome in the
+     * job's response map. The shapefile is removed once the job is finished.
+     *
+     * @param job
+     * @param uploadConfig the configuration the request started with
+     * @param dedup whether an identical upload already imported into the same
+     * layer is answered with the existing layer
+     */
+    private void runImport(ImportJob job, UploadServletConfig uploadConfig, boolean dedup) {
+        metrics.time("queue", TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - job.getStateTime(ImportJob.State.QUEUED)));
+        metrics.enter("imports.running");
         try {
-            wpsRequestInputStream = new FileInputStream(wpsRequestFile);
+            importShapefile(job, uploadConfig, dedup);
+        } finally {
+            metrics.leave("imports.running");
+            metrics.recordJob(job);
+        }
+    }
 
-            AbstractHttpEntity entity = new InputStreamEntity(wpsRequestInputStream, wpsRequestFile.length());
+    private void importShapefile(ImportJob job, UploadServletConfig uploadConfig, boolean dedup) {
+        String workspaceName = job.getWorkspaceName();
+        String storeName = job.getStoreName();
+        String layerName = job.getLayerName();
+        SpoolManager.Spool spool = job.getSpool();
+        String signature = ImportDigestIndex.getSignature(job);
 
-            post.setEntity(entity);
+        if (dedup) {
+            String importedLayerName = importDigestIndex.getImportedLayer(job, signature);
+            if (importedLayerName != null) {
+                try {
+                    if (isLayerImported(uploadConfig, workspaceName, importedLayerName)) {
+                        LOG.debug("Shapefile is identical to the one already imported as " + importedLayerName + ". Skipping import");
+                        job.put("name", importedLayerName);
+                        job.put("workspace", workspaceName);
+                        job.put("store", storeName);
+                        job.setState(ImportJob.State.DONE);
+                        metrics.increment("imports.deduplicated");
+                        spool.release();
+                        return;
+                    }
+                } catch (IOException ex) {
+                    LOG.debug("Could not check for layer " + importedLayerName + ": " + ex.getMessage());
+                }
+                importDigestIndex.remove(job);
+            }
+        }
+
+        ShapefileOptimizer optimizer = job.getOptimizer();
+        if (optimizer != null) {
+            long optimizeStart = System.nanoTime();
+            try {
+                ShapefileOptimizer.Result optimized = optimizer.optimize(spool, spoolManager);
+                spool.release();
+                spool = optimized.getSpool();
+                job.setSpool(spool);
+                if (optimized.getSrsName() != null) {
+                    job.setPrj(optimized.getPrj());
+                    job.setSrsName(optimized.getSrsName());
+                }
+                metrics.count("optimize.records.reprojected", optimized.getRecordsReprojected());
+                metrics.count("optimize.attributes.removed", optimized.getAttributesRemoved());
+                metrics.count("optimize.vertices.removed", optimized.getVerticesRead() - optimized.getVerticesWritten());
+                metrics.count("bytes.optimized", spool.length());
+            } catch (IOException ex) {
+                LOG.info("Shapefile for " + layerName + " could not be optimized: " + ex.getMessage());
+                metrics.increment("imports.failed.optimize");
+                job.put("error", "Shapefile could not be optimized");
+                job.put("exception", ex.getMessage());
+                job.setState(ImportJob.State.FAILED);
+                spool.release();
+                return;
+            } finally {
+                metrics.timeSince("optimize", optimizeStart);
+            }
+        }
+
+        // A reprojected shapefile is already known to be in the target CRS
+        if (optimizer == null || optimizer.getTargetSrs() == null) {
+            long projectionStart = System.nanoTime();
+            try {
+                if (job.getPrj() == null) {
+                    throw new IOException("Zip file does not contain a .prj file");
+                }
+                job.setSrsName(projectionCache.getProjection(job.getPrj(), spool));
+            } catch (Exception ex) {
+                job.put("warning", "WARNING: Could not find EPSG code for prj definition. The geographic coordinate system '" + job.getSrsName() + "' will be used ");
+            } finally {
+                metrics.timeSince("projection", projectionStart);
+            }
+        }
 
-            HttpResponse response = httpClient.execute(post);
+        String importResponse;
+        AdmissionController.Permit permit = null;
+        try {
+            long admissionStart = System.nanoTime();
+            permit = admissionController.acquire(workspaceName);
+            metrics.timeSince("admission.wait", admissionStart);
 
-            return EntityUtils.toString(response.getEntity());
+            if (uploadConfig.isReplicatedImport()) {
+                importResponse = replicateImport(job, uploadConfig);
+            } else {
+                importResponse = importIntoNode(geoServerCluster.select(uploadConfig.isRoundRobin()), job, uploadConfig);
+            }
 
+            LOG.debug("Shapefile has been imported successfully");
+            job.put("name", importResponse);
+            job.put("workspace", workspaceName);
+            job.put("store", storeName);
+            job.setState(ImportJob.State.DONE);
+            importDigestIndex.put(job, signature, importResponse);
+            metrics.increment("imports.succeeded");
+        } catch (ImportFailedException ex) {
+            LOG.debug("Shapefile could not be imported successfully");
+            metrics.increment("imports.failed.geoserver");
+            job.put("error", ex.getMessage());
+            job.setState(ImportJob.State.FAILED);
+        } catch (AdmissionRejectedException ex) {
+            LOG.info("Import of " + layerName + " into workspace " + workspaceName + " turned away: " + ex.getMessage());
+            metrics.increment("imports.failed.admission");
+            job.put("error", ex.getMessage());
+            job.setRetryAfter(ex.getRetryAfter());
+            job.setState(ImportJob.State.FAILED);
+        } catch (Exception ex) {
+            LOG.warn(ex.getMessage());
+            metrics.increment("imports.failed." + ex.getClass().getSimpleName());
+            job.put("error", "Unable to upload file");
+            job.put("exception", ex.getMessage());
+            job.setState(ImportJob.State.FAILED);
         } finally {
-            IOUtils.closeQuietly(wpsRequestInputStream);
-            FileUtils.deleteQuietly(wpsRequestFile);
+            if (!job.getState().equals(ImportJob.State.DONE)) {
+                // An overwrite may have removed the layer before failing
+                importDigestIndex.remove(job);
+            }
+            if (permit != null) {
+                permit.release();
+            }
+            spool.release();
+        }
+    }
+
+    /**
+     * Imports the job's shapefile into every GeoServer instance at once. Each
+     * instance's outcome is added to the job's response as node.{n}.endpoint
+     * along with node.{n}.name or node.{n}.error. Instances the import
+     * succeeded on keep the layer even if others failed.
+     *
+     * @param job
+     * @param uploadConfig
+     * @return the name of the published layer
+     * @throws ImportFailedException if the import failed on any instance
+     * @throws IOException if interrupted while waiting for the instances
+     */
+    private String replicateImport(ImportJob job, final UploadServletConfig uploadConfig) throws IOException {
+        List<GeoServerClient> nodes = uploadConfig.getGeoServerClients();
+        List<Callable<String>> imports = new ArrayList<Callable<String>>();
+        for (final GeoServerClient node : nodes) {
+            // Every instance moves through the import states on its own
+            final ImportJob nodeJob = job.copy();
+            imports.add(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    return importIntoNode(node, nodeJob, uploadConfig);
+                }
+            });
+        }
+
+        job.setState(ImportJob.State.POSTING);
+        List<Future<String>> results;
+        try {
+            results = geoServerCluster.invokeAll(imports);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while importing into " + nodes.size() + " GeoServer instances");
         }
+
+        String importResponse = null;
+        int failed = 0;
+        for (int index = 0; index < nodes.size(); index++) {
+            String prefix = "node." + (index + 1) + ".";
+            job.put(prefix + "endpoint", nodes.get(index).getEndpoint());
+            try {
+                importResponse = results.get(index).get();
+                job.put(prefix + "name", importResponse);
+            } catch (ExecutionException ex) {
+                failed++;
+                job.put(prefix + "error", ex.getCause().getMessage());
+            } catch (InterruptedException ex) {
+                // Every import is done by the time invokeAll returns
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while importing into " + nodes.size() + " GeoServer instances");
+            }
+        }
+        if (failed > 0) {
+            metrics.count("imports.failed.nodes", failed);
+            throw new ImportFailedException("Import failed on " + failed + " of " + nodes.size() + " GeoServer instances");
+        }
+        return importResponse;
     }
 
-    private String parseWPSErrorText(String xml) throws ParserConfigurationException, SAXException, IOException {
-        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-        dbFactory.setValidating(false);
-        DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-        Document doc = dBuilder.parse(new ByteArrayInputStream(xml.getBytes()));
-        doc.getDocumentElement().normalize();
+    /**
+     * Imports the job's shapefile into a single GeoServer instance, removing
+     * or swapping out the layer it overwrites
+     *
+     * @param gsClient
+     * @param job moved through the import states
+     * @param uploadConfig
+     * @return the name of the published layer
+     * @throws IOException if the import failed
+     */
+    private String importIntoNode(GeoServerClient gsClient, ImportJob job, UploadServletConfig uploadConfig) throws IOException {
+        String workspaceName = job.getWorkspaceName();
+        String storeName = job.getStoreName();
+        String layerName = job.getLayerName();
+        boolean staged = job.isOverwriteExistingLayer() && uploadConfig.isStagedOverwrite();
+        String stagedLayerName = null;
+        String importResponse = null;
+        IOException failure = null;
+        geoServerCluster.enter(gsClient);
+        try {
+            if (staged) {
+                // The live layer stays up until the new one is swapped in
+                stagedLayerName = StagedOverwrite.getStagedLayerName(job);
+                job.setImportLayerName(stagedLayerName);
+            } else if (job.isOverwriteExistingLayer()) {
+                long overwriteStart = System.nanoTime();
+                // If publishing the layer fails, we will have lost this layer 
+                // due to removal here. Staged overwrites do not have this problem.
+                if (catalogCache.layerPossiblyExists(gsClient, workspaceName, layerName)) {
+                    if (gsClient.unpublishFeatureType(workspaceName, storeName, layerName)) {
+                        gsClient.unpublishCoverage(workspaceName, storeName, layerName);
+                        catalogCache.putLayer(gsClient, workspaceName, layerName, false);
+                        // Reloads for a burst of overwrites into the store are
+                        // coalesced, but made before any of them imports
+                        storeReloader.requestReload(gsClient, workspaceName, storeName);
+                    } else {
+                        // The layer may belong to another store
+                        catalogCache.invalidateLayer(gsClient, workspaceName, layerName);
+                    }
+                } else {
+                    metrics.increment("overwrite.skipped");
+                }
+                metrics.timeSince("overwrite", overwriteStart);
+            }
 
-        JXPathContext ctx = JXPathContext.newContext(doc);
-        Node errorNode = (Node) ctx.selectSingleNode("//ows:ExceptionReport/ows:Exception/ows:ExceptionText");
-        return errorNode.getChildNodes().item(0).getTextContent();
+            storeReloader.flush(gsClient, workspaceName, storeName);
+            importResponse = uploadConfig.getImportStrategy().importShapefile(gsClient, job);
+            if (staged) {
+                stagedLayerName = importResponse;
+                importResponse = stagedOverwrite.swap(gsClient, job, stagedLayerName, uploadConfig.getImportStrategy());
+                stagedLayerName = null;
+            }
+            catalogCache.putLayer(gsClient, workspaceName, importResponse, true);
+            return importResponse;
+        } catch (IOException ex) {
+            failure = ex;
+            throw ex;
+        } finally {
+            geoServerCluster.leave(gsClient, failure);
+            if (importResponse == null) {
+                catalogCache.invalidateLayer(gsClient, workspaceName, layerName);
+            }
+            if (stagedLayerName != null) {
+                stagedOverwrite.removeStaged(gsClient, job, stagedLayerName, uploadConfig.getImportStrategy());
+            }
+        }
+    }
+
+    /**
+     * @return true if the layer is in GeoServer, in every instance when imports
+     * are replicated
+     * @throws IOException if GeoServer could not tell
+     */
+    private static boolean isLayerImported(UploadServletConfig uploadConfig, String workspaceName, String layerName) throws IOException {
+        if (uploadConfig.isReplicatedImport()) {
+            for (GeoServerClient gsClient : uploadConfig.getGeoServerClients()) {
+                if (!catalogCache.layerExists(gsClient, workspaceName, layerName)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return catalogCache.layerExists(uploadConfig.getGeoServerClient(), workspaceName, layerName);
     }
 
-    private String cleanFileName(String input) {
+    static String cleanFileName(String input) {
         String updated = input;
 
         // Test the first character and if numeric, prepend with underscore
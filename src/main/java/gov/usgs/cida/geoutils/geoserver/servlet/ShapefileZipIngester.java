@@ -0,0 +1,502 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.RequestContext;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.io.output.TeeOutputStream;
+
+/**
+ * Reads an uploaded shapefile zip in a single pass. While the upload is being
+ * received, entry paths are flattened, the .prj text is captured, a digest of
+ * the uploaded bytes is computed and a normalized zip is written out. A second
+ * shapefile or a duplicate entry is rejected as soon as it shows up. Other
+ * files are passed along untouched, as they always have been.
+ */
+class ShapefileZipIngester {
+
+    private static final String[] REQUIRED_EXTENSIONS = new String[]{"shp", "shx", "dbf"};
+    private static final int MAX_PRJ_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final long maxFileSize;
+
+    /**
+     * @param maxFileSize the largest number of bytes that will be read from an
+     * upload
+     */
+    ShapefileZipIngester(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Opens the file posted in the request, either the multipart file field
+     * named filenameParam or the raw request body
+     *
+     * @param request
+     * @param filenameParam the multipart field holding the file
+     * @return the file's content, to be read before anything else is read from
+     * the request
+     * @throws IOException if the request does not contain a file
+     * @throws FileUploadException if the multipart request can not be read
+     */
+    static InputStream openUploadStream(HttpServletRequest request, String filenameParam) throws IOException, FileUploadException {
+        return openUploadStream(request, request.getInputStream(), filenameParam);
+    }
+
+    /**
+     * Opens the file posted in a request whose body has already been read
+     *
+     * @param request the request, for its headers
+     * @param body the request's body
+     * @param filenameParam the multipart field holding the file
+     * @return the file's content, to be read before anything else is read from
+     * the body
+     * @throws IOException if the request does not contain a file
+     * @throws FileUploadException if the multipart request can not be read
+     */
+    static InputStream openUploadStream(final HttpServletRequest request, final InputStream body, String filenameParam) throws IOException, FileUploadException {
+        if (ServletFileUpload.isMultipartContent(request)) {
+            FileItemIterator iter = new ServletFileUpload().getItemIterator(new RequestContext() {
+                @Override
+                public String getCharacterEncoding() {
+                    return request.getCharacterEncoding();
+                }
+
+                @Override
+                public String getContentType() {
+                    return request.getContentType();
+                }
+
+                @Override
+                public int getContentLength() {
+                    return request.getContentLength();
+                }
+
+                @Override
+                public InputStream getInputStream() {
+                    return body;
+                }
+            });
+            while (iter.hasNext()) {
+                // Streamed items can only be read while they are current, so
+                // fields ahead of the file are passed over
+                FileItemStream item = iter.next();
+                if (!item.isFormField() && filenameParam.equals(item.getFieldName())) {
+                    return item.openStream();
+                }
+            }
+            throw new IOException("Request does not contain a file named \"" + filenameParam + "\"");
+        }
+        return body;
+    }
+
+    /**
+     * Ingests a shapefile zip from a stream
+     *
+     * @param zipStream the zip, left open
+     * @param destination where the normalized zip is written to
+     * @return what was found in the zip
+     * @throws IOException if the stream is not a valid shapefile zip
+     */
+    Result ingest(InputStream zipStream, File destination) throws IOException {
+        boolean success = false;
+        try {
+            Result result = ingest(zipStream, new FileOutputStream(destination));
+            success = true;
+            return result;
+        } finally {
+            if (!success) {
+                FileUtils.deleteQuietly(destination);
+            }
+        }
+    }
+
+    /**
+     * Ingests a shapefile zip from a stream into a spool
+     *
+     * @param zipStream the zip, left open
+     * @param spool where the normalized zip is written to, released if the
+     * stream is not a valid shapefile zip
+     * @return what was found in the zip
+     * @throws IOException if the stream is not a valid shapefile zip
+     */
+    Result ingest(InputStream zipStream, SpoolManager.Spool spool) throws IOException {
+        boolean success = false;
+        try {
+            Result result = ingest(zipStream, spool.openOutputStream());
+            success = true;
+            return result;
+        } finally {
+            if (!success) {
+                spool.release();
+            }
+        }
+    }
+
+    private Result ingest(InputStream zipStream, OutputStream destination) throws IOException {
+        SizeLimitedInputStream countingStream = new SizeLimitedInputStream(zipStream, maxFileSize);
+        MessageDigest messageDigest = createDigest();
+        ZipInputStream zipInputStream = new ZipInputStream(new DigestInputStream(countingStream, messageDigest));
+        return ingest(zipInputStream, null, countingStream, messageDigest, destination);
+    }
+
+    /**
+     * Ingests an upload holding either a single shapefile zip or a zip of
+     * shapefile zips, told apart by the first entry. Each nested zip becomes
+     * an item of its own and one that is not a valid shapefile zip is reported
+     * in its item without failing the others.
+     *
+     * @param zipStream the upload, left open
+     * @param name the upload's file name, the item name of a single shapefile
+     * zip
+     * @param spoolManager where the normalized zips are spooled, one per item
+     * @return the items found in the upload
+     * @throws IOException if the upload itself can not be read
+     */
+    List<Item> ingestBatch(InputStream zipStream, String name, SpoolManager spoolManager) throws IOException {
+        SizeLimitedInputStream countingStream = new SizeLimitedInputStream(zipStream, maxFileSize);
+        MessageDigest messageDigest = createDigest();
+        ZipInputStream zipInputStream = new ZipInputStream(new DigestInputStream(countingStream, messageDigest));
+        List<Item> items = new ArrayList<Item>();
+        boolean success = false;
+
+        try {
+            ZipEntry entry = zipInputStream.getNextEntry();
+            while (entry != null && (entry.isDirectory() || isIgnored(entry.getName(), FilenameUtils.getName(entry.getName().replace('\\', '/'))))) {
+                entry = zipInputStream.getNextEntry();
+            }
+
+            if (entry == null || !"zip".equals(getExtension(entry.getName()))) {
+                Item item = new Item(name, spoolManager.createSpool(createFileName(name), -1));
+                items.add(item);
+                item.result = ingest(zipInputStream, entry, countingStream, messageDigest, item.spool.openOutputStream());
+                success = true;
+                return items;
+            }
+
+            for (; entry != null; entry = zipInputStream.getNextEntry()) {
+                String entryName = FilenameUtils.getName(entry.getName().replace('\\', '/'));
+                if (entry.isDirectory() || isIgnored(entry.getName(), entryName)) {
+                    continue;
+                }
+                if (!"zip".equals(getExtension(entryName))) {
+                    throw new IOException("Zip file contains " + entryName + " which is not a shapefile zip");
+                }
+
+                Item item = new Item(entryName, spoolManager.createSpool(createFileName(entryName), -1));
+                items.add(item);
+                try {
+                    item.result = ingest(zipInputStream, item.spool.openOutputStream());
+                } catch (SpoolManager.SpoolFullException ex) {
+                    // Neither this zip nor any that follow will fit
+                    throw ex;
+                } catch (IOException ex) {
+                    item.spool.release();
+                    item.error = ex;
+                }
+            }
+            success = true;
+        } catch (ZipException ex) {
+            throw new IOException("Upload is not a valid zip file: " + ex.getMessage(), ex);
+        } finally {
+            if (!success) {
+                for (Item item : items) {
+                    item.release();
+                }
+            }
+        }
+        return items;
+    }
+
+    private static String createFileName(String name) {
+        String baseName = FilenameUtils.getBaseName(name).replaceAll("[^A-Za-z0-9_\\-]", "_");
+        return (baseName.length() == 0 ? "upload" : baseName) + ".zip";
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @param firstEntry an entry already read from zipInputStream, or null
+     * @param destination closed once the normalized zip is written
+     */
+    private Result ingest(ZipInputStream zipInputStream, ZipEntry firstEntry, SizeLimitedInputStream countingStream, MessageDigest messageDigest, OutputStream destination) throws IOException {
+        Result result = new Result();
+        ZipOutputStream zipOutputStream = null;
+        Set<String> entryNames = new HashSet<String>();
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        try {
+            zipOutputStream = new ZipOutputStream(new BufferedOutputStream(destination, BUFFER_SIZE));
+            // The normalized zip only makes a short trip to GeoServer
+            zipOutputStream.setLevel(Deflater.BEST_SPEED);
+
+            for (ZipEntry entry = firstEntry != null ? firstEntry : zipInputStream.getNextEntry(); entry != null; entry = zipInputStream.getNextEntry()) {
+                String entryName = FilenameUtils.getName(entry.getName().replace('\\', '/'));
+                if (entry.isDirectory() || isIgnored(entry.getName(), entryName)) {
+                    continue;
+                }
+
+                String extension = getExtension(entryName);
+                if (!entryNames.add(entryName.toLowerCase())) {
+                    throw new IOException("Zip file contains more than one " + entryName);
+                }
+                if ("shp".equals(extension)) {
+                    if (result.shapefileName != null) {
+                        throw new IOException("Zip file contains more than one shapefile");
+                    }
+                    result.shapefileName = FilenameUtils.getBaseName(entryName);
+                }
+
+                zipOutputStream.putNextEntry(new ZipEntry(entryName));
+                if ("prj".equals(extension)) {
+                    ByteArrayOutputStream prjOutputStream = new ByteArrayOutputStream();
+                    copy(zipInputStream, new TeeOutputStream(zipOutputStream, prjOutputStream), buffer);
+                    if (prjOutputStream.size() <= MAX_PRJ_SIZE) {
+                        result.prj = new String(prjOutputStream.toByteArray(), "ISO-8859-1");
+                    }
+                } else {
+                    copy(zipInputStream, zipOutputStream, buffer);
+                }
+                zipOutputStream.closeEntry();
+                result.entryCount++;
+            }
+
+            if (result.entryCount == 0) {
+                throw new IOException("Upload is not a zip file or is empty");
+            }
+            for (String requiredExtension : REQUIRED_EXTENSIONS) {
+                if (!entryNames.contains((result.shapefileName + "." + requiredExtension).toLowerCase())) {
+                    throw new IOException("Zip file is missing a ." + requiredExtension + " file" + (result.shapefileName == null ? "" : " for " + result.shapefileName));
+                }
+            }
+
+            // Closing flushes the last of the zip, which may still fail
+            zipOutputStream.close();
+            result.bytesRead = countingStream.getByteCount();
+            result.digest = new String(Hex.encodeHex(messageDigest.digest()));
+        } catch (ZipException ex) {
+            throw new IOException("Upload is not a valid zip file: " + ex.getMessage(), ex);
+        } finally {
+            if (zipOutputStream != null) {
+                IOUtils.closeQuietly(zipOutputStream);
+            } else {
+                IOUtils.closeQuietly(destination);
+            }
+        }
+        return result;
+    }
+
+    private static void copy(InputStream input, OutputStream output, byte[] buffer) throws IOException {
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * Skips resource forks and hidden files that OS X and others add to zips
+     */
+    private static boolean isIgnored(String path, String entryName) {
+        return path.startsWith("__MACOSX") || entryName.startsWith(".") || entryName.length() == 0;
+    }
+
+    /**
+     * @return the lower case extension, counting .shp.xml as xml
+     */
+    private static String getExtension(String entryName) {
+        return FilenameUtils.getExtension(entryName).toLowerCase();
+    }
+
+    /**
+     * What a single pass over the zip found
+     */
+    static class Result {
+
+        private String shapefileName;
+        private String prj;
+        private int entryCount;
+        private long bytesRead;
+        private String digest;
+
+        /**
+         * @return the name of the shapefile without its extension
+         */
+        String getShapefileName() {
+            return shapefileName;
+        }
+
+        /**
+         * @return the well known text from the .prj file or null if the zip
+         * has none
+         */
+        String getPrj() {
+            return prj;
+        }
+
+        int getEntryCount() {
+            return entryCount;
+        }
+
+        /**
+         * @return number of uploaded bytes read
+         */
+        long getBytesRead() {
+            return bytesRead;
+        }
+
+        /**
+         * @return hex encoded SHA-1 of the uploaded bytes that were read
+         */
+        String getDigest() {
+            return digest;
+        }
+    }
+
+    /**
+     * One shapefile zip of a batch upload. Holds either the ingest result or
+     * the reason the zip could not be ingested.
+     */
+    static class Item {
+
+        private final String name;
+        private final SpoolManager.Spool spool;
+        private Result result;
+        private IOException error;
+
+        Item(String name, SpoolManager.Spool spool) {
+            this.name = name;
+            this.spool = spool;
+        }
+
+        /**
+         * @param name the zip's file name
+         * @param error why the zip could not be ingested
+         */
+        Item(String name, IOException error) {
+            this.name = name;
+            this.spool = null;
+            this.error = error;
+        }
+
+        /**
+         * @return the zip's file name
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return the normalized zip, released if ingesting failed
+         */
+        SpoolManager.Spool getSpool() {
+            return spool;
+        }
+
+        /**
+         * @return where the normalized zip is spooled on disk, null if
+         * ingesting failed before it was spooled
+         */
+        File getDestination() {
+            return spool == null ? null : spool.getFile();
+        }
+
+        /**
+         * Releases the normalized zip, if any
+         */
+        void release() {
+            if (spool != null) {
+                spool.release();
+            }
+        }
+
+        /**
+         * @return what was found in the zip, null if ingesting it failed
+         */
+        Result getResult() {
+            return result;
+        }
+
+        IOException getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Fails as soon as more than the allowed number of bytes has been read
+     */
+    private static class SizeLimitedInputStream extends ProxyInputStream {
+
+        private final long limit;
+        private long count = 0;
+
+        SizeLimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            afterRead((int) Math.min(Integer.MAX_VALUE, skipped));
+            return skipped;
+        }
+
+        @Override
+        protected void afterRead(int n) throws IOException {
+            if (n > 0) {
+                count += n;
+                if (count > limit) {
+                    throw new UploadTooLargeException(limit);
+                }
+            }
+        }
+
+        long getByteCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Thrown when an upload grows past the size limit
+     */
+    static class UploadTooLargeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        UploadTooLargeException(long limit) {
+            super("Upload exceeds max file size of " + limit + " bytes");
+        }
+    }
+}
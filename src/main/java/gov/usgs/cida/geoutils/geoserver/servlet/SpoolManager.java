@@ -0,0 +1,492 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out the space uploads are spooled to while they wait to be imported.
+ * Every upload gets a directory of its own so that uploads sharing a file name
+ * can not clobber each other. Small uploads stay in memory unless something
+ * needs them as a file. Everything written to disk counts against a global
+ * budget: an upload whose size is known up front waits for room, and one that
+ * outgrows the room left is failed. Spools left behind by a crash are swept
+ * away at startup, but only from a directory the spool manager created and
+ * holds the lock of, and only entries named the way it names them.
+ */
+class SpoolManager {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SpoolManager.class);
+    // Disk space is reserved in steps so that writes rarely need the lock
+    private static final long RESERVATION_STEP = 1024 * 1024;
+    // Marks a directory as created by a spool manager. Locked while in use.
+    static final String MARKER_FILE = ".spool";
+    // Spool directories and the optimizer's work directories
+    private static final Pattern SPOOL_NAME_PATTERN = Pattern.compile("(optimize-)?[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+    private final File directory;
+    private final long diskBudget;
+    private final int memoryThreshold;
+    private final long memoryBudget;
+    private final long maxWait;
+    private final Object lock = new Object();
+    private long diskReserved = 0;
+    private long memoryReserved = 0;
+    private int active = 0;
+    private final AtomicLong spooledInMemory = new AtomicLong();
+    private final AtomicLong spooledToDisk = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private RandomAccessFile marker;
+    private FileLock markerLock;
+
+    /**
+     * @param directory where uploads are spooled, used by nothing else
+     * @param diskBudget most bytes spooled to disk at once
+     * @param memoryThreshold uploads up to this many bytes are kept in memory
+     * @param memoryBudget most bytes kept in memory at once
+     * @param maxWait milliseconds an upload waits for disk space
+     */
+    SpoolManager(File directory, long diskBudget, int memoryThreshold, long memoryBudget, long maxWait) {
+        this.directory = directory;
+        this.diskBudget = diskBudget;
+        this.memoryThreshold = memoryThreshold;
+        this.memoryBudget = memoryBudget;
+        this.maxWait = maxWait;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Removes the spools found in the spool directory. Only to be called
+     * before any upload is spooled. Nothing is removed from a directory that
+     * already held other files when the spool manager first saw it, or whose
+     * lock is held by another spool manager, as when two applications share a
+     * spool directory.
+     *
+     * @return the number of orphaned spools removed
+     * @throws IOException if the spool directory can not be created
+     */
+    int sweep() throws IOException {
+        FileUtils.forceMkdir(directory);
+        File markerFile = new File(directory, MARKER_FILE);
+        if (!markerFile.exists()) {
+            String[] existing = directory.list();
+            if (existing != null && existing.length > 0) {
+                LOG.warn("Spool directory " + directory.getPath() + " was not created for spooling. Nothing will be swept from it");
+                return 0;
+            }
+        }
+        if (!lockMarker(markerFile)) {
+            LOG.warn("Spool directory " + directory.getPath() + " is in use by another application. Nothing will be swept from it");
+            return 0;
+        }
+
+        File[] orphans = directory.listFiles();
+        int removed = 0;
+        if (orphans != null) {
+            for (File orphan : orphans) {
+                if (SPOOL_NAME_PATTERN.matcher(orphan.getName()).matches() && FileUtils.deleteQuietly(orphan)) {
+                    LOG.debug("Removed orphaned spool " + orphan.getPath());
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Creates the marker file if needed and locks it until {@link #close()}
+     *
+     * @return whether the lock was taken
+     */
+    private boolean lockMarker(File markerFile) throws IOException {
+        close();
+        marker = new RandomAccessFile(markerFile, "rw");
+        try {
+            markerLock = marker.getChannel().tryLock();
+        } catch (OverlappingFileLockException ex) {
+            // Held by another spool manager in this JVM
+            markerLock = null;
+        }
+        if (markerLock == null) {
+            IOUtils.closeQuietly(marker);
+            marker = null;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Lets go of the spool directory's lock
+     */
+    void close() {
+        if (markerLock != null) {
+            try {
+                markerLock.release();
+            } catch (IOException ex) {
+                LOG.debug("Spool directory lock could not be released: " + ex.getMessage());
+            }
+            markerLock = null;
+        }
+        IOUtils.closeQuietly(marker);
+        marker = null;
+    }
+
+    /**
+     * Creates the spool for a single upload
+     *
+     * @param fileName the upload's cleaned file name
+     * @param expectedSize the upload's size if known, otherwise -1. Disk space
+     * for it is waited for.
+     * @return the spool, to be released once the upload is no longer needed
+     * @throws SpoolFullException if there is no room for the upload
+     * @throws IOException if the spool's directory can not be created
+     */
+    Spool createSpool(String fileName, long expectedSize) throws IOException {
+        int threshold = 0;
+        long reservedDisk = 0;
+        synchronized (lock) {
+            // An upload of unknown size starts out in memory as well
+            if (expectedSize <= memoryThreshold && memoryReserved + memoryThreshold <= memoryBudget) {
+                threshold = memoryThreshold;
+                memoryReserved += threshold;
+            } else if (expectedSize > 0) {
+                if (!reserveDisk(expectedSize, maxWait)) {
+                    LOG.debug("No room to spool " + expectedSize + " bytes with " + diskReserved + " of " + diskBudget + " bytes in use");
+                    rejected.incrementAndGet();
+                    throw new SpoolFullException("Spool can not hold another " + expectedSize + " bytes");
+                }
+                reservedDisk = expectedSize;
+            }
+            active++;
+        }
+
+        File spoolDirectory = new File(directory, UUID.randomUUID().toString());
+        if (!spoolDirectory.mkdirs()) {
+            releaseReservations(reservedDisk, threshold);
+            throw new IOException("Could not create spool directory " + spoolDirectory.getPath());
+        }
+        return new Spool(new File(spoolDirectory, StringUtils.defaultIfEmpty(fileName, "upload.zip")), threshold, reservedDisk);
+    }
+
+    /**
+     * @param bytes
+     * @param wait milliseconds to wait for room, 0 to not wait
+     * @return whether the bytes were reserved
+     */
+    private boolean reserveDisk(long bytes, long wait) {
+        if (bytes > diskBudget) {
+            return false;
+        }
+        synchronized (lock) {
+            long deadline = System.currentTimeMillis() + wait;
+            while (diskReserved + bytes > diskBudget) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            diskReserved += bytes;
+            return true;
+        }
+    }
+
+    /**
+     * Reserves disk space for files kept outside of a spool, such as the
+     * chunks of an upload sent in parts, waiting for it like a spool would
+     *
+     * @param bytes
+     * @return whether the bytes were reserved
+     */
+    boolean reserve(long bytes) {
+        if (!reserveDisk(bytes, maxWait)) {
+            LOG.debug("No room to reserve " + bytes + " bytes with " + diskReserved + " of " + diskBudget + " bytes in use");
+            rejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gives back disk space taken by {@link #reserve(long)}
+     *
+     * @param bytes
+     */
+    void release(long bytes) {
+        synchronized (lock) {
+            diskReserved -= bytes;
+            lock.notifyAll();
+        }
+    }
+
+    private void releaseReservations(long disk, long memory) {
+        synchronized (lock) {
+            diskReserved -= disk;
+            memoryReserved -= memory;
+            active--;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return seconds a client turned away for lack of room should wait
+     */
+    int getRetryAfter() {
+        return (int) Math.max(1, maxWait / 1000);
+    }
+
+    Map<String, String> getStats() {
+        Map<String, String> stats = new LinkedHashMap<String, String>();
+        synchronized (lock) {
+            stats.put("spool.active", String.valueOf(active));
+            stats.put("spool.disk.reserved", String.valueOf(diskReserved));
+            stats.put("spool.disk.budget", String.valueOf(diskBudget));
+            stats.put("spool.memory.reserved", String.valueOf(memoryReserved));
+            stats.put("spool.memory.budget", String.valueOf(memoryBudget));
+        }
+        stats.put("spool.in.memory", String.valueOf(spooledInMemory.get()));
+        stats.put("spool.to.disk", String.valueOf(spooledToDisk.get()));
+        stats.put("spool.rejected", String.valueOf(rejected.get()));
+        return stats;
+    }
+
+    /**
+     * One spooled upload. Written once, then read as often as needed until it
+     * is released.
+     */
+    class Spool {
+
+        private final File file;
+        private final int threshold;
+        private long diskReservation;
+        private long memoryReservation;
+        private DeferredFileOutputStream outputStream;
+        private byte[] data;
+        private long length;
+        private boolean released = false;
+
+        private Spool(File file, int threshold, long diskReservation) {
+            this.file = file;
+            this.threshold = threshold;
+            this.memoryReservation = threshold;
+            this.diskReservation = diskReservation;
+        }
+
+        /**
+         * @return a stream to write the upload to. Fails with a
+         * {@link SpoolFullException} if the upload outgrows the disk budget.
+         */
+        OutputStream openOutputStream() {
+            outputStream = new DeferredFileOutputStream(threshold, file);
+            return new OutputStream() {
+                private long written = 0;
+
+                @Override
+                public void write(int b) throws IOException {
+                    reserve(1);
+                    outputStream.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    reserve(len);
+                    outputStream.write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    outputStream.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (outputStream == null) {
+                        return;
+                    }
+                    outputStream.close();
+                    onWritten(written);
+                }
+
+                private void reserve(int len) throws IOException {
+                    written += len;
+                    if (written > threshold) {
+                        ensureDiskReserved(written);
+                    }
+                }
+            };
+        }
+
+        private void ensureDiskReserved(long size) throws IOException {
+            synchronized (lock) {
+                if (size <= diskReservation) {
+                    return;
+                }
+                // Nothing may be reserved once the reservations were given back
+                if (released) {
+                    throw new IOException("Spool has been released");
+                }
+                long needed = size - diskReservation;
+                long step = Math.max(needed, RESERVATION_STEP);
+                if (reserveDisk(step, 0)) {
+                    diskReservation += step;
+                } else if (reserveDisk(needed, 0)) {
+                    diskReservation += needed;
+                } else {
+                    rejected.incrementAndGet();
+                    throw new SpoolFullException("Spool can not hold another " + needed + " bytes");
+                }
+            }
+        }
+
+        private void onWritten(long written) {
+            synchronized (lock) {
+                if (released) {
+                    outputStream = null;
+                    return;
+                }
+                length = written;
+                if (outputStream.isInMemory()) {
+                    data = outputStream.getData();
+                    spooledInMemory.incrementAndGet();
+                } else {
+                    // Memory is only used until the upload spills to disk and
+                    // disk only as much as was written
+                    memoryReserved -= memoryReservation;
+                    memoryReservation = 0;
+                    diskReserved -= diskReservation - length;
+                    diskReservation = length;
+                    spooledToDisk.incrementAndGet();
+                    lock.notifyAll();
+                }
+                outputStream = null;
+            }
+        }
+
+        boolean isInMemory() {
+            synchronized (lock) {
+                return data != null;
+            }
+        }
+
+        /**
+         * @return the upload if it is held in memory, otherwise null
+         */
+        byte[] getData() {
+            synchronized (lock) {
+                return data;
+            }
+        }
+
+        /**
+         * @return where the upload is or would be spooled on disk
+         */
+        File getFile() {
+            return file;
+        }
+
+        /**
+         * @return the upload's path relative to the spool directory
+         */
+        String getPath() {
+            return file.getParentFile().getName() + "/" + file.getName();
+        }
+
+        long length() {
+            return length;
+        }
+
+        InputStream openInputStream() throws IOException {
+            byte[] inMemory = getData();
+            return inMemory != null ? new ByteArrayInputStream(inMemory) : new FileInputStream(file);
+        }
+
+        /**
+         * Moves the upload to disk if it is held in memory, for consumers that
+         * can only read files. Imports fanned out to several GeoServer
+         * instances may ask at the same time, so the file is written once.
+         *
+         * @return the spooled file
+         * @throws IOException if the disk budget has no room for it
+         */
+        synchronized File toFile() throws IOException {
+            synchronized (lock) {
+                if (released) {
+                    throw new IOException("Spool has been released");
+                }
+                if (data == null) {
+                    return file;
+                }
+                if (!reserveDisk(length, 0)) {
+                    rejected.incrementAndGet();
+                    throw new SpoolFullException("Spool can not hold another " + length + " bytes");
+                }
+                diskReservation += length;
+            }
+            FileUtils.writeByteArrayToFile(file, data);
+            synchronized (lock) {
+                data = null;
+                memoryReserved -= memoryReservation;
+                memoryReservation = 0;
+            }
+            return file;
+        }
+
+        /**
+         * Removes the upload and gives its space back. Does nothing if already
+         * released.
+         */
+        void release() {
+            long disk;
+            long memory;
+            synchronized (lock) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                data = null;
+                disk = diskReservation;
+                memory = memoryReservation;
+                diskReservation = 0;
+                memoryReservation = 0;
+            }
+            FileUtils.deleteQuietly(file.getParentFile());
+            releaseReservations(disk, memory);
+        }
+    }
+
+    /**
+     * Thrown when the spool has no room for an upload. The client is expected
+     * to try again later.
+     */
+    static class SpoolFullException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        SpoolFullException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.IOException;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Swaps a layer imported under a staging name in for the live layer it
+ * overwrites. The live layer is renamed out of the way and the staged layer is
+ * renamed to take its place, so the layer is only unavailable between the two
+ * renames. If the second rename fails, the first is undone.
+ *
+ * Renaming a feature type does not rename its data, so the replaced layer's
+ * data keeps its staging name. Once the replaced layer, or a staged layer
+ * whose overwrite failed, is unpublished, the import strategy is asked to
+ * remove its data. Staged overwrites are only enabled for strategies that can,
+ * but should the removal fail the data is left in the store; its name is
+ * logged and reported as replaced.native so that it can be dropped there.
+ */
+class StagedOverwrite {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(StagedOverwrite.class);
+    private final CatalogCache catalogCache;
+    private final StoreReloader storeReloader;
+    private final PipelineMetrics metrics;
+
+    StagedOverwrite(CatalogCache catalogCache, StoreReloader storeReloader, PipelineMetrics metrics) {
+        this.catalogCache = catalogCache;
+        this.storeReloader = storeReloader;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the name the job's layer is imported as before being swapped in
+     */
+    static String getStagedLayerName(ImportJob job) {
+        return job.getLayerName() + "_staging_" + getNameSuffix(job);
+    }
+
+    /**
+     * @return the name the job's live layer has while it is swapped out
+     */
+    static String getReplacedLayerName(ImportJob job) {
+        return job.getLayerName() + "_replaced_" + getNameSuffix(job);
+    }
+
+    /**
+     * @return a suffix making the temporary layer names of an overwrite
+     * unique to the job
+     */
+    private static String getNameSuffix(ImportJob job) {
+        return job.getId().replace("-", "").substring(0, 8);
+    }
+
+    /**
+     * Puts the staged layer in place of the job's live layer and removes the
+     * replaced layer along with its data
+     *
+     * @param gsClient
+     * @param job
+     * @param stagedLayerName the name the staged layer was imported as
+     * @param importStrategy asked to remove the replaced layer's data
+     * @return the name of the live layer
+     * @throws IOException if the staged layer could not be swapped in, in
+     * which case the live layer is left as it was
+     */
+    String swap(GeoServerClient gsClient, ImportJob job, String stagedLayerName, ImportStrategy importStrategy) throws IOException {
+        String workspaceName = job.getWorkspaceName();
+        String storeName = job.getStoreName();
+        String layerName = job.getLayerName();
+        String replacedLayerName = getReplacedLayerName(job);
+
+        long swapStart = System.nanoTime();
+        boolean replaced = catalogCache.layerPossiblyExists(gsClient, workspaceName, layerName)
+                && gsClient.renameFeatureType(workspaceName, storeName, layerName, replacedLayerName);
+        try {
+            if (!gsClient.renameFeatureType(workspaceName, storeName, stagedLayerName, layerName)) {
+                throw new ImportFailedException("Staged layer " + stagedLayerName + " could not be found to replace " + layerName);
+            }
+        } catch (IOException ex) {
+            if (replaced) {
+                try {
+                    gsClient.renameFeatureType(workspaceName, storeName, replacedLayerName, layerName);
+                } catch (IOException rollbackEx) {
+                    LOG.error("Layer " + layerName + " could not be restored from " + replacedLayerName + ": " + rollbackEx.getMessage());
+                }
+            }
+            throw ex;
+        }
+        metrics.timeSince("overwrite.swap", swapStart);
+        LOG.debug("Staged layer " + stagedLayerName + " swapped in as " + layerName);
+        catalogCache.putLayer(gsClient, workspaceName, stagedLayerName, false);
+
+        if (replaced) {
+            remove(gsClient, job, replacedLayerName, importStrategy);
+        }
+        return layerName;
+    }
+
+    /**
+     * Removes what an overwrite that failed may have staged. The live layer is
+     * left alone.
+     */
+    void removeStaged(GeoServerClient gsClient, ImportJob job, String stagedLayerName, ImportStrategy importStrategy) {
+        remove(gsClient, job, stagedLayerName, importStrategy);
+    }
+
+    /**
+     * Unpublishes a feature type and removes its data
+     */
+    private void remove(GeoServerClient gsClient, ImportJob job, String layerName, ImportStrategy importStrategy) {
+        String workspaceName = job.getWorkspaceName();
+        String storeName = job.getStoreName();
+        String nativeName;
+        try {
+            nativeName = gsClient.getNativeName(workspaceName, storeName, layerName);
+            if (nativeName == null || !gsClient.unpublishFeatureType(workspaceName, storeName, layerName)) {
+                return;
+            }
+        } catch (IOException ex) {
+            LOG.warn("Layer " + layerName + " could not be removed: " + ex.getMessage());
+            return;
+        }
+        LOG.debug("Removed layer " + layerName);
+        storeReloader.requestReload(gsClient, workspaceName, storeName);
+
+        try {
+            if (importStrategy.removeNativeData(gsClient, job, nativeName)) {
+                metrics.increment("overwrite.native.removed");
+                return;
+            }
+        } catch (IOException ex) {
+            LOG.warn("Data " + nativeName + " of layer " + layerName + " could not be removed: " + ex.getMessage());
+        }
+        metrics.increment("overwrite.native.left");
+        LOG.info("Data " + nativeName + " of removed layer " + layerName + " is left in store " + workspaceName + ":" + storeName);
+        job.put("replaced.native", nativeName);
+    }
+}
@@ -0,0 +1,181 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reloads GeoServer data stores after layers have been removed from them.
+ * Reloading a large store is expensive, so a reload is held back for a set
+ * delay and every request for the same store made in the meantime is folded
+ * into it. A request made while the store is being reloaded schedules another
+ * reload so that no removal goes unseen. Before importing into a store, a
+ * reload still pending for it is made right away with {@link #flush}, so that
+ * the import never runs against a store that has not been reloaded.
+ */
+class StoreReloader {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(StoreReloader.class);
+    private final long delay;
+    private final ScheduledExecutorService executor;
+    private final ConcurrentMap<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+    // Held while a store is reloaded, by store
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong reloaded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param threadName name of the thread reloads are made on
+     * @param delay milliseconds a reload is held back, 0 to reload right away
+     * on the requesting thread
+     */
+    StoreReloader(final String threadName, long delay) {
+        this.delay = delay;
+        if (delay > 0) {
+            this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Asks for a store to be reloaded
+     *
+     * @param gsClient
+     * @param workspaceName
+     * @param storeName
+     */
+    void requestReload(final GeoServerClient gsClient, final String workspaceName, final String storeName) {
+        requested.incrementAndGet();
+        if (executor == null) {
+            reload(gsClient, workspaceName, storeName);
+            return;
+        }
+
+        final String key = getKey(gsClient, workspaceName, storeName);
+        if (pending.putIfAbsent(key, Boolean.TRUE) != null) {
+            coalesced.incrementAndGet();
+            LOG.debug("Reload of store " + key + " already pending");
+            return;
+        }
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    reloadIfPending(gsClient, workspaceName, storeName);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // Shutting down
+            reloadIfPending(gsClient, workspaceName, storeName);
+        }
+    }
+
+    /**
+     * Makes a reload pending for a store right away, on the calling thread,
+     * and waits for one already under way. To be called before importing
+     * into the store.
+     *
+     * @param gsClient
+     * @param workspaceName
+     * @param storeName
+     */
+    void flush(GeoServerClient gsClient, String workspaceName, String storeName) {
+        if (executor == null) {
+            return;
+        }
+        if (!reloadIfPending(gsClient, workspaceName, storeName)) {
+            synchronized (getLock(getKey(gsClient, workspaceName, storeName))) {
+                // Only waits for a reload under way
+            }
+        }
+    }
+
+    /**
+     * @return whether a reload was pending and has been made
+     */
+    private boolean reloadIfPending(GeoServerClient gsClient, String workspaceName, String storeName) {
+        String key = getKey(gsClient, workspaceName, storeName);
+        synchronized (getLock(key)) {
+            // Removed first so that a request arriving during the reload
+            // schedules one of its own
+            if (pending.remove(key) == null) {
+                return false;
+            }
+            reload(gsClient, workspaceName, storeName);
+            return true;
+        }
+    }
+
+    private static String getKey(GeoServerClient gsClient, String workspaceName, String storeName) {
+        // Every GeoServer instance holds its own copy of the store
+        return gsClient.getEndpoint() + " " + workspaceName + ":" + storeName;
+    }
+
+    private Object getLock(String key) {
+        Object lock = locks.get(key);
+        if (lock == null) {
+            Object created = new Object();
+            lock = locks.putIfAbsent(key, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    private void reload(GeoServerClient gsClient, String workspaceName, String storeName) {
+        try {
+            if (gsClient.reloadStore(workspaceName, storeName)) {
+                reloaded.incrementAndGet();
+                LOG.debug("Reloaded store " + workspaceName + ":" + storeName);
+            } else {
+                failed.incrementAndGet();
+                LOG.warn("GeoServer did not reload store " + workspaceName + ":" + storeName);
+            }
+        } catch (IOException ex) {
+            failed.incrementAndGet();
+            LOG.warn("Store " + workspaceName + ":" + storeName + " could not be reloaded: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Stops taking requests. Reloads already scheduled are still made.
+     */
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @return reloads requested, folded into another, made and failed
+     */
+    Map<String, String> getStats() {
+        Map<String, String> stats = new LinkedHashMap<String, String>();
+        stats.put("store.reload.pending", String.valueOf(pending.size()));
+        stats.put("store.reload.requested", String.valueOf(requested.get()));
+        stats.put("store.reload.coalesced", String.valueOf(coalesced.get()));
+        stats.put("store.reload.completed", String.valueOf(reloaded.get()));
+        stats.put("store.reload.failed", String.valueOf(failed.get()));
+        return stats;
+    }
+}
@@ -0,0 +1,771 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import it.geosolutions.geoserver.rest.encoder.GSResourceEncoder.ProjectionPolicy;
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable snapshot of the upload servlet's configuration. JNDI and web.xml
+ * values are resolved once when the snapshot is built so that a request only
+ * has to overlay its own parameters. A new snapshot is built whenever the
+ * configuration is reloaded and swapped in as a whole.
+ */
+class UploadServletConfig {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(UploadServletConfig.class);
+    // Defaults
+    private static final String DEFAULT_FILENAME_PARAM = "qqfile"; // Legacy to handle jquery fineuploader
+    private static final long DEFAULT_MAX_FILE_SIZE = Long.MAX_VALUE;
+    private static final boolean DEFAULT_USE_BASE_CRS_FALLBACK = true;
+    private static final boolean DEFAULT_OVERWRITE_EXISTING_LAYER = false;
+    private static final ProjectionPolicy DEFAULT_PROJECTION_POLICY = ProjectionPolicy.REPROJECT_TO_DECLARED;
+    private static final int DEFAULT_MAX_CONNECTIONS = 20;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+    private static final int DEFAULT_SOCKET_TIMEOUT = 1800000;
+    private static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 30000;
+    private static final boolean DEFAULT_ASYNC_IMPORT = false;
+    private static final int DEFAULT_ASYNC_THREADS = 4;
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 50;
+    private static final int DEFAULT_ASYNC_JOB_RETENTION = 3600000;
+    private static final int DEFAULT_ADMISSION_MAX_CONCURRENT = 4;
+    private static final int DEFAULT_ADMISSION_QUEUE_SIZE = 20;
+    private static final int DEFAULT_ADMISSION_MAX_WAIT = 300000;
+    private static final int DEFAULT_PROJECTION_CACHE_SIZE = 500;
+    private static final int DEFAULT_CONFIG_RELOAD_INTERVAL = 0;
+    private static final boolean DEFAULT_DEDUP_ENABLED = true;
+    private static final int DEFAULT_DEDUP_INDEX_SIZE = 1000;
+    private static final long DEFAULT_CHUNK_RETENTION = 86400000;
+    private static final long DEFAULT_WPS_RESPONSE_MAX_SIZE = 1048576;
+    private static final int DEFAULT_BATCH_THREADS = 4;
+    private static final int DEFAULT_BATCH_QUEUE_SIZE = 100;
+    private static final int DEFAULT_SPOOL_MEMORY_THRESHOLD = 1048576;
+    private static final long DEFAULT_SPOOL_MEMORY_BUDGET = 67108864;
+    private static final long DEFAULT_SPOOL_MAX_WAIT = 10000;
+    private static final long DEFAULT_CATALOG_CACHE_TTL = 60000;
+    private static final int DEFAULT_CATALOG_CACHE_SIZE = 1000;
+    private static final long DEFAULT_STORE_RELOAD_DELAY = 2000;
+    private static final String DEFAULT_OVERWRITE_MODE = "replace";
+    private static final double DEFAULT_SIMPLIFY_TOLERANCE = 0;
+    private static final int DEFAULT_GPKG_BATCH_SIZE = 10000;
+    private static final String DEFAULT_CLUSTER_MODE = "balance";
+    private static final String DEFAULT_BALANCE_POLICY = "least-in-flight";
+    private static final long DEFAULT_HEALTH_CHECK_INTERVAL = 30000;
+    private static final String DEFAULT_RECEIVE_MODE = "blocking";
+    private static final int DEFAULT_RECEIVE_THREADS = 4;
+    private static final long DEFAULT_RECEIVE_TIMEOUT = 0;
+    private static final int DEFAULT_RECEIVE_QUEUE_SIZE = 100;
+    private final Properties props;
+    private final String applicationName;
+    private final long maxFileSize;
+    private final String geoserverEndpoint;
+    private final URL geoserverEndpointURL;
+    private final String geoserverUsername;
+    private final String geoserverPassword;
+    private final GeoServerClient gsClient;
+    private final List<GeoServerClient> gsClients;
+    private final boolean replicatedImport;
+    private final boolean roundRobin;
+    private final long healthCheckInterval;
+    private final String defaultWorkspaceName;
+    private final String defaultStoreName;
+    private final String defaultSRS;
+    private final String filenameParam;
+    private final boolean overwriteExistingLayer;
+    private final boolean useBaseCRSFailover;
+    private final ProjectionPolicy projectionPolicy;
+    private final boolean asyncImport;
+    private final int maxConnections;
+    private final int maxConnectionsPerRoute;
+    private final int connectTimeout;
+    private final int socketTimeout;
+    private final int keepAliveTimeout;
+    private final int asyncThreads;
+    private final int asyncQueueSize;
+    private final int asyncJobRetention;
+    private final int admissionMaxConcurrent;
+    private final int admissionQueueSize;
+    private final int admissionMaxWait;
+    private final Map<String, Integer> admissionWorkspaceLimits;
+    private final int projectionCacheSize;
+    private final File projectionCacheFile;
+    private final int configReloadInterval;
+    private final boolean configReloadAdmin;
+    private final boolean dedupEnabled;
+    private final int dedupIndexSize;
+    private final File chunkDirectory;
+    private final ImportStrategy importStrategy;
+    private final int batchThreads;
+    private final int batchQueueSize;
+    private final boolean nonBlockingReceive;
+    private final int receiveThreads;
+    private final long receiveTimeout;
+    private final int receiveQueueSize;
+    private final boolean metricsJMX;
+    private final long chunkRetention;
+    private final File spoolDirectory;
+    private final long spoolDiskBudget;
+    private final int spoolMemoryThreshold;
+    private final long spoolMemoryBudget;
+    private final long spoolMaxWait;
+    private final long catalogCacheTTL;
+    private final int catalogCacheSize;
+    private final long storeReloadDelay;
+    private final boolean stagedOverwrite;
+    private final String keepAttributes;
+    private final double simplifyTolerance;
+    private final String reprojectSrs;
+
+    /**
+     * Resolves the configuration
+     *
+     * @param servletConfig web.xml init parameters
+     * @param props JNDI (and JVM) properties. web.xml values have already been
+     * substituted for blank properties
+     * @param httpClient shared client used for GeoServer calls
+     * @param connectionManager the shared client's connection manager
+     * @throws ServletException if a mandatory setting is missing or invalid
+     */
+    UploadServletConfig(ServletConfig servletConfig, Properties props, DefaultHttpClient httpClient, PoolingClientConnectionManager connectionManager) throws ServletException {
+        this.props = props;
+        this.applicationName = servletConfig.getInitParameter("application.name");
+
+        // The maximum upload file size allowd by this server, 0 = Long.MAX_VALUE
+        long mfs = getLong("max.upload.file.size", DEFAULT_MAX_FILE_SIZE);
+        maxFileSize = mfs == 0 ? DEFAULT_MAX_FILE_SIZE : mfs;
+        LOG.debug("Maximum allowable file size set to: " + maxFileSize + " bytes");
+
+        // A comma separated list when imports go to several GeoServer instances
+        String[] gsepJndiProps = StringUtils.split(StringUtils.defaultString(getString("geoserver.endpoint")), ',');
+        List<URL> endpointURLs = new ArrayList<URL>();
+        for (String gsepJndiProp : gsepJndiProps) {
+            String endpoint = StringUtils.removeEnd(gsepJndiProp.trim(), "/");
+            if (StringUtils.isBlank(endpoint)) {
+                continue;
+            }
+            try {
+                endpointURLs.add(new URL(endpoint));
+            } catch (MalformedURLException ex) {
+                throw new ServletException("Geoserver endpoint (" + endpoint + ") could not be parsed into a valid URL.");
+            }
+        }
+        if (endpointURLs.isEmpty()) {
+            throw new ServletException("Geoserver endpoint is not defined.");
+        }
+        geoserverEndpointURL = endpointURLs.get(0);
+        geoserverEndpoint = geoserverEndpointURL.toString();
+        LOG.debug("Geoserver endpoint set to: " + endpointURLs);
+
+        geoserverUsername = getString("geoserver.username");
+        if (StringUtils.isBlank(geoserverUsername)) {
+            throw new ServletException("Geoserver username is not defined.");
+        }
+        LOG.debug("Geoserver username set to: " + geoserverUsername);
+
+        // This should only be coming from JNDI or JVM properties
+        geoserverPassword = getString("geoserver.password");
+        if (StringUtils.isBlank(geoserverPassword)) {
+            throw new ServletException("Geoserver password is not defined.");
+        }
+        LOG.debug("Geoserver password is set");
+
+        long wpsResponseMaxSize = getLong("wps.response.max.size", DEFAULT_WPS_RESPONSE_MAX_SIZE);
+
+        defaultWorkspaceName = StringUtils.defaultString(getString("default.upload.workspace"));
+        if (StringUtils.isBlank(defaultWorkspaceName)) {
+            LOG.warn("Default workspace is not defined. If a workspace is not passed to during the request, the request will fail.");
+        }
+        LOG.debug("Default workspace set to: " + defaultWorkspaceName);
+
+        defaultStoreName = StringUtils.defaultString(getString("default.upload.storename"));
+        if (StringUtils.isBlank(defaultStoreName)) {
+            LOG.warn("Default store name is not defined. If a store name is not passed to during the request, the name of the layer will be used as the name of the store");
+        }
+        LOG.debug("Default store name set to: " + defaultStoreName);
+
+        defaultSRS = StringUtils.defaultString(getString("default.srs"));
+        if (StringUtils.isBlank(defaultSRS)) {
+            LOG.warn("Default SRS is not defined. If a SRS name is not passed to during the request, the request will fail");
+        }
+        LOG.debug("Default SRS set to: " + defaultSRS);
+
+        // For these, web.xml takes precedence over JNDI
+        String fnParam = getInitOrString(servletConfig, "filename.param");
+        filenameParam = StringUtils.isNotBlank(fnParam) ? fnParam : DEFAULT_FILENAME_PARAM;
+        LOG.debug("Filename parameter set to: " + filenameParam);
+
+        overwriteExistingLayer = parseBoolean(getInitOrString(servletConfig, "overwrite.existing.layer"), DEFAULT_OVERWRITE_EXISTING_LAYER);
+        LOG.debug("Overwrite existing layer set to: " + overwriteExistingLayer);
+
+        useBaseCRSFailover = parseBoolean(getInitOrString(servletConfig, "use.crs.failover"), DEFAULT_USE_BASE_CRS_FALLBACK);
+        LOG.debug("Use base CRS failover set to: " + useBaseCRSFailover);
+
+        String ppParam = getInitOrString(servletConfig, "projection.policy");
+        projectionPolicy = StringUtils.isNotBlank(ppParam) ? parseProjectionPolicy(ppParam, ProjectionPolicy.NONE) : DEFAULT_PROJECTION_POLICY;
+        LOG.debug("Projection policy set to: " + projectionPolicy.name());
+
+        asyncImport = parseBoolean(getInitOrString(servletConfig, "async.import"), DEFAULT_ASYNC_IMPORT);
+        LOG.debug("Asynchronous import set to: " + asyncImport);
+
+        maxConnections = getInt("http.max.connections", DEFAULT_MAX_CONNECTIONS);
+        maxConnectionsPerRoute = getInt("http.max.connections.per.route", DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+        connectTimeout = getInt("http.connect.timeout", DEFAULT_CONNECT_TIMEOUT);
+        socketTimeout = getInt("http.socket.timeout", DEFAULT_SOCKET_TIMEOUT);
+        keepAliveTimeout = getInt("http.keepalive.timeout", DEFAULT_KEEP_ALIVE_TIMEOUT);
+        LOG.debug("HTTP connection pool set to " + maxConnections + " total and " + maxConnectionsPerRoute + " per route connections, "
+                + connectTimeout + " ms connect timeout, " + socketTimeout + " ms socket timeout and " + keepAliveTimeout + " ms keep-alive");
+
+        asyncThreads = getInt("async.threads", DEFAULT_ASYNC_THREADS);
+        asyncQueueSize = getInt("async.queue.size", DEFAULT_ASYNC_QUEUE_SIZE);
+        asyncJobRetention = getInt("async.job.retention", DEFAULT_ASYNC_JOB_RETENTION);
+
+        admissionMaxConcurrent = getInt("admission.max.concurrent", DEFAULT_ADMISSION_MAX_CONCURRENT);
+        admissionQueueSize = getInt("admission.queue.size", DEFAULT_ADMISSION_QUEUE_SIZE);
+        admissionMaxWait = getInt("admission.max.wait", DEFAULT_ADMISSION_MAX_WAIT);
+        admissionWorkspaceLimits = Collections.unmodifiableMap(AdmissionController.parseWorkspaceLimits(getString("admission.workspace.limits")));
+
+        projectionCacheSize = getInt("projection.cache.size", DEFAULT_PROJECTION_CACHE_SIZE);
+        String pcfJndiProp = getString("projection.cache.file");
+        projectionCacheFile = StringUtils.isNotBlank(pcfJndiProp) ? new File(pcfJndiProp) : null;
+
+        configReloadInterval = getInt("config.reload.interval", DEFAULT_CONFIG_RELOAD_INTERVAL);
+        configReloadAdmin = parseBoolean(getString("config.reload.admin"), false);
+
+        dedupEnabled = parseBoolean(getString("dedup.enabled"), DEFAULT_DEDUP_ENABLED);
+        dedupIndexSize = getInt("dedup.index.size", DEFAULT_DEDUP_INDEX_SIZE);
+        LOG.debug("Deduplication of identical uploads set to: " + dedupEnabled);
+
+        String cdJndiProp = getString("chunk.dir");
+        chunkDirectory = StringUtils.isNotBlank(cdJndiProp) ? new File(cdJndiProp) : new File(System.getProperty("java.io.tmpdir"), applicationName + "-chunks");
+        chunkRetention = getLong("chunk.retention", DEFAULT_CHUNK_RETENTION);
+        LOG.debug("Chunked uploads kept in " + chunkDirectory.getPath() + " for " + chunkRetention + " ms");
+
+        String sdJndiProp = getString("spool.dir");
+        spoolDirectory = StringUtils.isNotBlank(sdJndiProp) ? new File(sdJndiProp) : new File(System.getProperty("java.io.tmpdir"), applicationName + "-spool");
+        // 0 = Long.MAX_VALUE
+        long sdb = getLong("spool.disk.budget", 0);
+        spoolDiskBudget = sdb <= 0 ? Long.MAX_VALUE : sdb;
+        spoolMemoryThreshold = getInt("spool.memory.threshold", DEFAULT_SPOOL_MEMORY_THRESHOLD);
+        spoolMemoryBudget = getLong("spool.memory.budget", DEFAULT_SPOOL_MEMORY_BUDGET);
+        spoolMaxWait = getLong("spool.max.wait", DEFAULT_SPOOL_MAX_WAIT);
+        LOG.debug("Uploads spooled to " + spoolDirectory.getPath() + " with a disk budget of " + spoolDiskBudget + " bytes, in memory up to "
+                + spoolMemoryThreshold + " bytes each and " + spoolMemoryBudget + " bytes in all");
+
+        catalogCacheTTL = getLong("catalog.cache.ttl", DEFAULT_CATALOG_CACHE_TTL);
+        catalogCacheSize = getInt("catalog.cache.size", DEFAULT_CATALOG_CACHE_SIZE);
+        storeReloadDelay = getLong("store.reload.delay", DEFAULT_STORE_RELOAD_DELAY);
+        LOG.debug("GeoServer catalog lookups cached for " + catalogCacheTTL + " ms, store reloads delayed by " + storeReloadDelay + " ms");
+
+        // "wps" (default), "rest", "reference", "gpkg"
+        String importMode = StringUtils.defaultIfEmpty(getString("import.mode"), "wps").trim();
+        String gpkgDir = getString("gpkg.dir");
+        if ("rest".equalsIgnoreCase(importMode)) {
+            importStrategy = new RESTImportStrategy();
+        } else if ("reference".equalsIgnoreCase(importMode)) {
+            importStrategy = new WPSImportStrategy(true, getString("import.reference.url"));
+        } else if ("gpkg".equalsIgnoreCase(importMode) && StringUtils.isNotBlank(gpkgDir)) {
+            importStrategy = new GeoPackageImportStrategy(new File(gpkgDir), getString("gpkg.geoserver.dir"), getInt("gpkg.batch.size", DEFAULT_GPKG_BATCH_SIZE));
+        } else {
+            if ("gpkg".equalsIgnoreCase(importMode)) {
+                LOG.warn("The gpkg import mode needs gpkg.dir to be set. Using wps");
+                importMode = "wps";
+            } else if (!"wps".equalsIgnoreCase(importMode)) {
+                LOG.warn("Unknown import mode " + importMode + ". Using wps");
+            }
+            importStrategy = new WPSImportStrategy();
+        }
+        LOG.debug("Import mode set to: " + importMode);
+
+        // "replace" (default), "staged"
+        String overwriteMode = StringUtils.defaultIfEmpty(getString("overwrite.mode"), DEFAULT_OVERWRITE_MODE).trim();
+        if (!"staged".equalsIgnoreCase(overwriteMode) && !DEFAULT_OVERWRITE_MODE.equalsIgnoreCase(overwriteMode)) {
+            LOG.warn("Unknown overwrite mode " + overwriteMode + ". Using " + DEFAULT_OVERWRITE_MODE);
+        }
+        if ("staged".equalsIgnoreCase(overwriteMode) && !(importStrategy instanceof GeoPackageImportStrategy)) {
+            // Only the gpkg import mode can drop the replaced layer's data, 
+            // which the other modes would leave in the store after every 
+            // overwrite. With rest, the staged shapefile would also be 
+            // written over the live layer's files
+            LOG.warn("Staged overwrites are only supported by the gpkg import mode. Using " + DEFAULT_OVERWRITE_MODE);
+            overwriteMode = DEFAULT_OVERWRITE_MODE;
+        }
+        stagedOverwrite = "staged".equalsIgnoreCase(overwriteMode);
+        LOG.debug("Overwrite mode set to: " + (stagedOverwrite ? "staged" : DEFAULT_OVERWRITE_MODE));
+
+        // "balance" (default), "replicate"
+        String clusterMode = StringUtils.defaultIfEmpty(getString("geoserver.cluster.mode"), DEFAULT_CLUSTER_MODE).trim();
+        if (!"replicate".equalsIgnoreCase(clusterMode) && !DEFAULT_CLUSTER_MODE.equalsIgnoreCase(clusterMode)) {
+            LOG.warn("Unknown cluster mode " + clusterMode + ". Using " + DEFAULT_CLUSTER_MODE);
+        }
+        boolean replicate = "replicate".equalsIgnoreCase(clusterMode);
+        if (replicate && importStrategy instanceof GeoPackageImportStrategy) {
+            // Every instance would load into the same GeoPackage
+            LOG.warn("Replicated imports are not supported by the gpkg import mode. Using " + DEFAULT_CLUSTER_MODE);
+            replicate = false;
+        }
+        List<GeoServerClient> clients = new ArrayList<GeoServerClient>();
+        for (URL endpointURL : endpointURLs) {
+            // Balanced instances share one catalog while replicated instances
+            // each have their own
+            String catalogName = replicate ? null : geoserverEndpoint;
+            clients.add(new GeoServerClient(httpClient, connectionManager, endpointURL, catalogName, geoserverUsername, geoserverPassword, wpsResponseMaxSize));
+        }
+        gsClients = Collections.unmodifiableList(clients);
+        gsClient = gsClients.get(0);
+        // "least-in-flight" (default), "round-robin"
+        String balancePolicy = StringUtils.defaultIfEmpty(getString("geoserver.balance.policy"), DEFAULT_BALANCE_POLICY).trim();
+        if (!"round-robin".equalsIgnoreCase(balancePolicy) && !DEFAULT_BALANCE_POLICY.equalsIgnoreCase(balancePolicy)) {
+            LOG.warn("Unknown balance policy " + balancePolicy + ". Using " + DEFAULT_BALANCE_POLICY);
+        }
+        roundRobin = "round-robin".equalsIgnoreCase(balancePolicy);
+        healthCheckInterval = getLong("geoserver.health.interval", DEFAULT_HEALTH_CHECK_INTERVAL);
+        replicatedImport = replicate && gsClients.size() > 1;
+        LOG.debug("Imports go to " + gsClients.size() + " GeoServer instance(s)" + (gsClients.size() < 2 ? ""
+                : (replicatedImport ? ", replicated to all" : ", balanced " + (roundRobin ? "round-robin" : "least-in-flight first"))));
+
+        keepAttributes = getString("keep.attributes");
+        simplifyTolerance = parseDouble(getString("simplify.tolerance"), DEFAULT_SIMPLIFY_TOLERANCE);
+        reprojectSrs = getString("reproject.srs");
+
+        batchThreads = getInt("batch.threads", DEFAULT_BATCH_THREADS);
+        batchQueueSize = getInt("batch.queue.size", DEFAULT_BATCH_QUEUE_SIZE);
+
+        // "blocking" (default), "nonblocking"
+        String receiveMode = StringUtils.defaultIfEmpty(getString("receive.mode"), DEFAULT_RECEIVE_MODE).trim();
+        if (!"nonblocking".equalsIgnoreCase(receiveMode) && !DEFAULT_RECEIVE_MODE.equalsIgnoreCase(receiveMode)) {
+            LOG.warn("Unknown receive mode " + receiveMode + ". Using " + DEFAULT_RECEIVE_MODE);
+        }
+        nonBlockingReceive = "nonblocking".equalsIgnoreCase(receiveMode);
+        receiveThreads = getInt("receive.threads", DEFAULT_RECEIVE_THREADS);
+        receiveTimeout = getLong("receive.timeout", DEFAULT_RECEIVE_TIMEOUT);
+        receiveQueueSize = getInt("receive.queue.size", DEFAULT_RECEIVE_QUEUE_SIZE);
+        LOG.debug("Receive mode set to: " + (nonBlockingReceive ? "nonblocking" : DEFAULT_RECEIVE_MODE));
+
+        metricsJMX = parseBoolean(getString("metrics.jmx"), true);
+    }
+
+    /**
+     * @return the settings only read when the servlet starts, by name. The
+     * parts of the servlet built from them are kept across reloads.
+     */
+    private Map<String, Object> getStartupSettings() {
+        Map<String, Object> settings = new LinkedHashMap<String, Object>();
+        settings.put("async.threads", asyncThreads);
+        settings.put("async.queue.size", asyncQueueSize);
+        settings.put("async.job.retention", asyncJobRetention);
+        settings.put("batch.threads", batchThreads);
+        settings.put("batch.queue.size", batchQueueSize);
+        settings.put("admission.max.concurrent", admissionMaxConcurrent);
+        settings.put("admission.queue.size", admissionQueueSize);
+        settings.put("admission.max.wait", admissionMaxWait);
+        settings.put("admission.workspace.limits", admissionWorkspaceLimits);
+        settings.put("projection.cache.size", projectionCacheSize);
+        settings.put("projection.cache.file", projectionCacheFile);
+        settings.put("dedup.index.size", dedupIndexSize);
+        settings.put("chunk.dir", chunkDirectory);
+        settings.put("chunk.retention", chunkRetention);
+        settings.put("spool.dir", spoolDirectory);
+        settings.put("spool.disk.budget", spoolDiskBudget);
+        settings.put("spool.memory.threshold", spoolMemoryThreshold);
+        settings.put("spool.memory.budget", spoolMemoryBudget);
+        settings.put("spool.max.wait", spoolMaxWait);
+        settings.put("catalog.cache.ttl", catalogCacheTTL);
+        settings.put("catalog.cache.size", catalogCacheSize);
+        settings.put("store.reload.delay", storeReloadDelay);
+        settings.put("geoserver.health.interval", healthCheckInterval);
+        settings.put("receive.threads", receiveThreads);
+        settings.put("receive.queue.size", receiveQueueSize);
+        settings.put("config.reload.interval", configReloadInterval);
+        settings.put("metrics.jmx", metricsJMX);
+        return settings;
+    }
+
+    /**
+     * @param previous the configuration this one is reloaded over
+     * @return names of the settings that differ from previous but only take
+     * effect once the servlet is restarted
+     */
+    List<String> getChangedStartupSettings(UploadServletConfig previous) {
+        List<String> changed = new ArrayList<String>();
+        Map<String, Object> previousSettings = previous.getStartupSettings();
+        for (Map.Entry<String, Object> setting : getStartupSettings().entrySet()) {
+            Object previousValue = previousSettings.get(setting.getKey());
+            if (setting.getValue() == null ? previousValue != null : !setting.getValue().equals(previousValue)) {
+                changed.add(setting.getKey());
+            }
+        }
+        return changed;
+    }
+
+    private String getString(String key) {
+        return props.getProperty(applicationName + "." + key);
+    }
+
+    private String getInitOrString(ServletConfig servletConfig, String key) {
+        String initParam = servletConfig.getInitParameter(key);
+        return StringUtils.isNotBlank(initParam) ? initParam : getString(key);
+    }
+
+    private long getLong(String key, long defaultValue) {
+        String jndiProp = getString(key);
+        if (StringUtils.isNotBlank(jndiProp)) {
+            try {
+                return Long.parseLong(jndiProp.trim());
+            } catch (NumberFormatException ex) {
+                LOG.warn("Could not parse " + applicationName + "." + key + " (" + jndiProp + ") into a number. Using default of " + defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
+    private int getInt(String key, int defaultValue) {
+        String jndiProp = getString(key);
+        if (StringUtils.isNotBlank(jndiProp)) {
+            try {
+                return Integer.parseInt(jndiProp.trim());
+            } catch (NumberFormatException ex) {
+                LOG.warn("Could not parse " + applicationName + "." + key + " (" + jndiProp + ") into a number. Using default of " + defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
+    private static double parseDouble(String value, double defaultValue) {
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Double.parseDouble(value.trim());
+            } catch (NumberFormatException ex) {
+                LOG.debug("Could not parse " + value + " into a number. Using default of " + defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
+    private static boolean parseBoolean(String value, boolean defaultValue) {
+        return StringUtils.isNotBlank(value) ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+    /**
+     * @param value "reproject", "force" or "none"
+     * @param defaultValue used for anything else
+     * @return the matching projection policy
+     */
+    static ProjectionPolicy parseProjectionPolicy(String value, ProjectionPolicy defaultValue) {
+        if ("reproject".equalsIgnoreCase(value)) {
+            return ProjectionPolicy.REPROJECT_TO_DECLARED;
+        } else if ("force".equalsIgnoreCase(value)) {
+            return ProjectionPolicy.FORCE_DECLARED;
+        } else if ("none".equalsIgnoreCase(value)) {
+            return ProjectionPolicy.NONE;
+        }
+        return defaultValue;
+    }
+
+    String getApplicationName() {
+        return applicationName;
+    }
+
+    long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    URL getGeoserverEndpointURL() {
+        return geoserverEndpointURL;
+    }
+
+    /**
+     * @return the first configured GeoServer instance
+     */
+    GeoServerClient getGeoServerClient() {
+        return gsClient;
+    }
+
+    /**
+     * @return every configured GeoServer instance
+     */
+    List<GeoServerClient> getGeoServerClients() {
+        return gsClients;
+    }
+
+    /**
+     * @return true if every import goes to all GeoServer instances rather than
+     * one of them
+     */
+    boolean isReplicatedImport() {
+        return replicatedImport;
+    }
+
+    /**
+     * @return true if instances are taken in turn rather than by fewest
+     * imports in flight
+     */
+    boolean isRoundRobin() {
+        return roundRobin;
+    }
+
+    long getHealthCheckInterval() {
+        return healthCheckInterval;
+    }
+
+    String getDefaultWorkspaceName() {
+        return defaultWorkspaceName;
+    }
+
+    String getDefaultStoreName() {
+        return defaultStoreName;
+    }
+
+    String getDefaultSRS() {
+        return defaultSRS;
+    }
+
+    /**
+     * @param request
+     * @return the key to search for in the upload form post to find the file
+     */
+    String getFilenameParam(HttpServletRequest request) {
+        String fnReqParam = request.getParameter("filename.param");
+        return StringUtils.isNotBlank(fnReqParam) ? fnReqParam : filenameParam;
+    }
+
+    boolean isOverwriteExistingLayer(HttpServletRequest request) {
+        return parseBoolean(request.getParameter("overwrite.existing.layer"), overwriteExistingLayer);
+    }
+
+    boolean isUseBaseCRSFailover(HttpServletRequest request) {
+        return parseBoolean(request.getParameter("use.crs.failover"), useBaseCRSFailover);
+    }
+
+    /**
+     * @param request
+     * @return "reproject" (default), "force", "none"
+     */
+    ProjectionPolicy getProjectionPolicy(HttpServletRequest request) {
+        String ppReqParam = request.getParameter("projection.policy");
+        return StringUtils.isNotBlank(ppReqParam) ? parseProjectionPolicy(ppReqParam, projectionPolicy) : projectionPolicy;
+    }
+
+    boolean isAsyncImport(HttpServletRequest request) {
+        return parseBoolean(request.getParameter("async"), asyncImport);
+    }
+
+    /**
+     * @param request
+     * @return whether an upload identical to the one last imported into the
+     * same layer should be answered with the existing layer
+     */
+    boolean isDedupEnabled(HttpServletRequest request) {
+        return dedupEnabled && !parseBoolean(request.getParameter("force.import"), false);
+    }
+
+    /**
+     * @param request may name the attributes to keep with "keep.attributes",
+     * the simplification tolerance with "simplify.tolerance" and the CRS to
+     * reproject to with "reproject.srs"
+     * @return what the request's shapefile is slimmed down with before it is
+     * imported, null if it is imported as uploaded
+     */
+    ShapefileOptimizer getShapefileOptimizer(HttpServletRequest request) {
+        String attributes = StringUtils.defaultIfEmpty(request.getParameter("keep.attributes"), keepAttributes);
+        double tolerance = parseDouble(request.getParameter("simplify.tolerance"), simplifyTolerance);
+        String[] attributeNames = StringUtils.split(StringUtils.defaultString(attributes), ", ");
+        String srs = StringUtils.defaultIfEmpty(request.getParameter("reproject.srs"), reprojectSrs);
+        ShapefileOptimizer optimizer = new ShapefileOptimizer(Arrays.asList(attributeNames), tolerance, srs);
+        return optimizer.isEnabled() ? optimizer : null;
+    }
+
+    int getDedupIndexSize() {
+        return dedupIndexSize;
+    }
+
+    /**
+     * @return whether statistics are registered with the platform MBean server
+     */
+    boolean isMetricsJMX() {
+        return metricsJMX;
+    }
+
+    int getBatchThreads() {
+        return batchThreads;
+    }
+
+    int getBatchQueueSize() {
+        return batchQueueSize;
+    }
+
+    /**
+     * @return true if upload bodies are read as they arrive rather than by a
+     * container thread waiting on the client
+     */
+    boolean isNonBlockingReceive() {
+        return nonBlockingReceive;
+    }
+
+    int getReceiveThreads() {
+        return receiveThreads;
+    }
+
+    /**
+     * @return milliseconds the body of a request received without blocking
+     * may take to arrive, 0 for no limit
+     */
+    long getReceiveTimeout() {
+        return receiveTimeout;
+    }
+
+    /**
+     * @return number of received uploads that may wait for a receive thread
+     */
+    int getReceiveQueueSize() {
+        return receiveQueueSize;
+    }
+
+    ImportStrategy getImportStrategy() {
+        return importStrategy;
+    }
+
+    File getChunkDirectory() {
+        return chunkDirectory;
+    }
+
+    long getChunkRetention() {
+        return chunkRetention;
+    }
+
+    /**
+     * @return directory uploads are spooled to, used by nothing else
+     */
+    File getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    long getSpoolDiskBudget() {
+        return spoolDiskBudget;
+    }
+
+    int getSpoolMemoryThreshold() {
+        return spoolMemoryThreshold;
+    }
+
+    long getSpoolMemoryBudget() {
+        return spoolMemoryBudget;
+    }
+
+    long getSpoolMaxWait() {
+        return spoolMaxWait;
+    }
+
+    /**
+     * @return milliseconds a workspace or layer lookup is trusted, 0 to not
+     * cache lookups
+     */
+    long getCatalogCacheTTL() {
+        return catalogCacheTTL;
+    }
+
+    int getCatalogCacheSize() {
+        return catalogCacheSize;
+    }
+
+    /**
+     * @return whether an overwrite imports under a staging name and then
+     * swaps the new layer in, rather than removing the live layer up front
+     */
+    boolean isStagedOverwrite() {
+        return stagedOverwrite;
+    }
+
+    /**
+     * @return milliseconds store reloads are held back to be coalesced, 0 to
+     * reload right away
+     */
+    long getStoreReloadDelay() {
+        return storeReloadDelay;
+    }
+
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    int getAsyncQueueSize() {
+        return asyncQueueSize;
+    }
+
+    int getAsyncJobRetention() {
+        return asyncJobRetention;
+    }
+
+    int getAdmissionMaxConcurrent() {
+        return admissionMaxConcurrent;
+    }
+
+    int getAdmissionQueueSize() {
+        return admissionQueueSize;
+    }
+
+    int getAdmissionMaxWait() {
+        return admissionMaxWait;
+    }
+
+    Map<String, Integer> getAdmissionWorkspaceLimits() {
+        return admissionWorkspaceLimits;
+    }
+
+    int getProjectionCacheSize() {
+        return projectionCacheSize;
+    }
+
+    File getProjectionCacheFile() {
+        return projectionCacheFile;
+    }
+
+    /**
+     * @return seconds between configuration reloads, 0 to never reload on a
+     * timer
+     */
+    int getConfigReloadInterval() {
+        return configReloadInterval;
+    }
+
+    /**
+     * @return whether a request may ask for the configuration to be reloaded
+     */
+    boolean isConfigReloadAdmin() {
+        return configReloadAdmin;
+    }
+}
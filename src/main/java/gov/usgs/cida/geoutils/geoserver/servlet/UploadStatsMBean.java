@@ -0,0 +1,65 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes the same statistics as the servlet's stats endpoint over JMX, one
+ * read only attribute per statistic. Attributes are read fresh on every call.
+ */
+class UploadStatsMBean implements DynamicMBean {
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        String value = ShapefileUploadServlet.getStats().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, String> stats = ShapefileUploadServlet.getStats();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (stats.containsKey(attribute)) {
+                list.add(new Attribute(attribute, stats.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, String> stats = ShapefileUploadServlet.getStats();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[stats.size()];
+        int index = 0;
+        for (String name : stats.keySet()) {
+            attributes[index++] = new MBeanAttributeInfo(name, String.class.getName(), name, true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "Shapefile upload statistics", attributes, null, new MBeanOperationInfo[0], null);
+    }
+}
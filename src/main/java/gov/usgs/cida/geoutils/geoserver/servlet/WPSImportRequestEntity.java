@@ -0,0 +1,210 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import it.geosolutions.geoserver.rest.encoder.GSResourceEncoder.ProjectionPolicy;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.apache.commons.codec.binary.Base64OutputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * HTTP entity holding a WPS gs:Import Execute document for a zipped shapefile.
+ *
+ * The XML envelope is built up front while the zip file is base64 encoded on
+ * the fly as the entity is written, so the Execute document never exists on
+ * disk or on the heap. The encoded length is known ahead of time which allows
+ * a fixed Content-Length to be sent. Alternatively the document may reference
+ * the zip by URL, in which case it holds no file content at all.
+ */
+class WPSImportRequestEntity extends AbstractHttpEntity {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final File shapefile;
+    private final byte[] shapefileData;
+    private final byte[] header;
+    private final byte[] footer;
+    private ImportJob importJob;
+
+    /**
+     * Embeds the zipped shapefile in the document
+     */
+    WPSImportRequestEntity(File shapefile, String workspaceName, String storeName, String layerName, String srsName, ProjectionPolicy projectionPolicy, String styleName) {
+        this(shapefile, null, null, workspaceName, storeName, layerName, srsName, projectionPolicy, styleName);
+    }
+
+    /**
+     * Embeds the spooled shapefile zip in the document, read from memory if
+     * that is where it is held
+     */
+    WPSImportRequestEntity(SpoolManager.Spool spool, String workspaceName, String storeName, String layerName, String srsName, ProjectionPolicy projectionPolicy, String styleName) {
+        this(spool.getData() == null ? spool.getFile() : null, spool.getData(), null, workspaceName, storeName, layerName, srsName, projectionPolicy, styleName);
+    }
+
+    /**
+     * References the zipped shapefile from the document
+     *
+     * @param href URL GeoServer reads the zip from
+     */
+    WPSImportRequestEntity(String href, String workspaceName, String storeName, String layerName, String srsName, ProjectionPolicy projectionPolicy, String styleName) {
+        this(null, null, href, workspaceName, storeName, layerName, srsName, projectionPolicy, styleName);
+    }
+
+    private WPSImportRequestEntity(File shapefile, byte[] shapefileData, String href, String workspaceName, String storeName, String layerName, String srsName, ProjectionPolicy projectionPolicy, String styleName) {
+        this.shapefile = shapefile;
+        this.shapefileData = shapefileData;
+        StringBuilder headerBuilder = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<wps:Execute service=\"WPS\" version=\"1.0.0\" "
+                + "xmlns:wps=\"http://www.opengis.net/wps/1.0.0\" "
+                + "xmlns:ows=\"http://www.opengis.net/ows/1.1\" "
+                + "xmlns:xlink=\"http://www.w3.org/1999/xlink\" "
+                + "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" "
+                + "xsi:schemaLocation=\"http://www.opengis.net/wps/1.0.0 "
+                + "http://schemas.opengis.net/wps/1.0.0/wpsExecute_request.xsd\">"
+                + "<ows:Identifier>gs:Import</ows:Identifier>"
+                + "<wps:DataInputs>"
+                + "<wps:Input>"
+                + "<ows:Identifier>features</ows:Identifier>");
+        StringBuilder footerBuilder = new StringBuilder();
+        if (href == null) {
+            headerBuilder.append("<wps:Data>"
+                    + "<wps:ComplexData mimeType=\"application/zip\"><![CDATA[");
+            footerBuilder.append("]]></wps:ComplexData>"
+                    + "</wps:Data>");
+        } else {
+            footerBuilder.append("<wps:Reference mimeType=\"application/zip\" xlink:href=\"")
+                    .append(StringEscapeUtils.escapeXml(href))
+                    .append("\"/>");
+        }
+        footerBuilder.append("</wps:Input>");
+        this.header = headerBuilder.toString().getBytes(UTF8);
+
+        appendLiteralInput(footerBuilder, "workspace", workspaceName);
+        appendLiteralInput(footerBuilder, "store", storeName);
+        appendLiteralInput(footerBuilder, "name", layerName);
+        appendLiteralInput(footerBuilder, "srs", srsName);
+        appendLiteralInput(footerBuilder, "srsHandling", String.valueOf(projectionPolicy));
+
+        // TODO- Not yet implemented
+        if (StringUtils.isNotBlank(styleName)) {
+            appendLiteralInput(footerBuilder, "styleName", styleName);
+        }
+
+        footerBuilder.append("</wps:DataInputs>"
+                + "<wps:ResponseForm>"
+                + "<wps:RawDataOutput>"
+                + "<ows:Identifier>layerName</ows:Identifier>"
+                + "</wps:RawDataOutput>"
+                + "</wps:ResponseForm>"
+                + "</wps:Execute>");
+        this.footer = footerBuilder.toString().getBytes(UTF8);
+
+        setContentType("text/xml; charset=UTF-8");
+    }
+
+    /**
+     * @param importJob job moved to ENCODING while the shapefile is being
+     * written and to IMPORTING once the whole document has been sent
+     */
+    void setImportJob(ImportJob importJob) {
+        this.importJob = importJob;
+    }
+
+    private static void appendLiteralInput(StringBuilder builder, String identifier, String value) {
+        builder.append("<wps:Input>")
+                .append("<ows:Identifier>").append(identifier).append("</ows:Identifier>")
+                .append("<wps:Data>")
+                .append("<wps:LiteralData>").append(StringEscapeUtils.escapeXml(value)).append("</wps:LiteralData>")
+                .append("</wps:Data>")
+                .append("</wps:Input>");
+    }
+
+    /**
+     * @param length number of raw bytes
+     * @return the number of bytes the unchunked base64 encoding of length bytes
+     * takes up, including padding
+     */
+    static long getEncodedLength(long length) {
+        return ((length + 2) / 3) * 4;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    private boolean hasShapefile() {
+        return shapefile != null || shapefileData != null;
+    }
+
+    private InputStream openShapefile() throws IOException {
+        return shapefileData != null ? new ByteArrayInputStream(shapefileData) : new FileInputStream(shapefile);
+    }
+
+    @Override
+    public long getContentLength() {
+        long shapefileLength = shapefileData != null ? shapefileData.length : (shapefile != null ? shapefile.length() : 0);
+        return header.length + getEncodedLength(shapefileLength) + footer.length;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        if (!hasShapefile()) {
+            return new SequenceInputStream(new ByteArrayInputStream(header), new ByteArrayInputStream(footer));
+        }
+        return new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                new ByteArrayInputStream(header),
+                new Base64InputStream(openShapefile(), true, 0, null),
+                new ByteArrayInputStream(footer))));
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        if (outstream == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+
+        InputStream uploadedInputStream = null;
+        try {
+            outstream.write(header);
+
+            if (hasShapefile()) {
+                uploadedInputStream = openShapefile();
+                if (importJob != null) {
+                    importJob.setState(ImportJob.State.ENCODING);
+                }
+
+                // Closing the encoder flushes the final (padded) quantum but must
+                // not close the underlying connection stream
+                Base64OutputStream encoder = new Base64OutputStream(new CloseShieldOutputStream(outstream), true, 0, null);
+                IOUtils.copyLarge(uploadedInputStream, encoder, new byte[BUFFER_SIZE]);
+                encoder.close();
+            }
+
+            outstream.write(footer);
+            outstream.flush();
+            if (importJob != null) {
+                importJob.setState(ImportJob.State.IMPORTING);
+            }
+        } finally {
+            IOUtils.closeQuietly(uploadedInputStream);
+        }
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -0,0 +1,75 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.IOException;
+import java.io.File;
+import java.net.URLEncoder;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Imports through GeoServer's gs:Import WPS process, either with the zip
+ * embedded in the Execute document as base64 or, when GeoServer can read the
+ * spooled file itself, with a reference to it.
+ */
+class WPSImportStrategy implements ImportStrategy {
+
+    private final boolean byReference;
+    private final String referenceBaseURL;
+
+    /**
+     * Embeds the zip in the Execute document
+     */
+    WPSImportStrategy() {
+        this(false, null);
+    }
+
+    /**
+     * @param byReference whether to pass the zip by reference
+     * @param referenceBaseURL URL GeoServer finds the spool directory under,
+     * the file's path within it is appended. If blank, the file's own file: URL is used.
+     */
+    WPSImportStrategy(boolean byReference, String referenceBaseURL) {
+        this.byReference = byReference;
+        this.referenceBaseURL = StringUtils.isBlank(referenceBaseURL) || referenceBaseURL.endsWith("/") ? referenceBaseURL : referenceBaseURL + "/";
+    }
+
+    @Override
+    public String importShapefile(GeoServerClient gsClient, ImportJob job) throws IOException {
+        WPSImportRequestEntity wpsRequestEntity;
+        if (byReference) {
+            wpsRequestEntity = new WPSImportRequestEntity(getReference(job), job.getWorkspaceName(), job.getStoreName(), job.getImportLayerName(), job.getSrsName(), job.getProjectionPolicy(), null);
+        } else {
+            wpsRequestEntity = new WPSImportRequestEntity(job.getSpool(), job.getWorkspaceName(), job.getStoreName(), job.getImportLayerName(), job.getSrsName(), job.getProjectionPolicy(), null);
+        }
+        wpsRequestEntity.setImportJob(job);
+        job.setState(ImportJob.State.POSTING);
+        return gsClient.postToWPS(wpsRequestEntity);
+    }
+
+    /**
+     * GeoServer's REST API can not drop data from a store
+     */
+    @Override
+    public boolean removeNativeData(GeoServerClient gsClient, ImportJob job, String nativeName) {
+        return false;
+    }
+
+    /**
+     * @return the URL of the job's spooled file, which is moved to disk if it
+     * is held in memory
+     */
+    String getReference(ImportJob job) throws IOException {
+        SpoolManager.Spool spool = job.getSpool();
+        File file = spool.toFile();
+        if (StringUtils.isBlank(referenceBaseURL)) {
+            return file.toURI().toString();
+        }
+        StringBuilder reference = new StringBuilder(referenceBaseURL);
+        for (String segment : spool.getPath().split("/")) {
+            if (reference.length() > referenceBaseURL.length()) {
+                reference.append('/');
+            }
+            reference.append(URLEncoder.encode(segment, "UTF-8").replace("+", "%20"));
+        }
+        return reference.toString();
+    }
+}
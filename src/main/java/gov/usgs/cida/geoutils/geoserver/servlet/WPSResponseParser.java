@@ -0,0 +1,135 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+
+/**
+ * Reads the response to a gs:Import Execute request in a single pass. A
+ * successful import answers with the layer name as plain text while a failed
+ * one answers with an ows:ExceptionReport, which is read with StAX without
+ * building a document. No more than a set number of bytes is ever read.
+ */
+class WPSResponseParser {
+
+    private static final String OWS_NAMESPACE = "http://www.opengis.net/ows/1.1";
+    private static final int MAX_ERROR_LENGTH = 4096;
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    private WPSResponseParser() {
+    }
+
+    /**
+     * @param response the response body, left open
+     * @param charset the response's character set
+     * @param maxBytes the most bytes that will be read
+     * @return the name of the imported layer
+     * @throws ImportFailedException if GeoServer answered with an exception
+     * report
+     * @throws IOException if the response can not be read, is not what was
+     * expected or is too large
+     */
+    static String parse(InputStream response, Charset charset, long maxBytes) throws IOException {
+        // Reading one byte past the limit tells a response that is exactly
+        // maxBytes long from one that was cut off
+        CountingInputStream countingStream = new CountingInputStream(new BoundedInputStream(response, maxBytes + 1));
+        BufferedInputStream inputStream = new BufferedInputStream(countingStream);
+
+        int first;
+        do {
+            inputStream.mark(1);
+            first = inputStream.read();
+        } while (first != -1 && Character.isWhitespace(first));
+        if (first == -1) {
+            throw new IOException("GeoServer responded with an empty import response");
+        }
+        inputStream.reset();
+
+        if (first == '<') {
+            throw new ImportFailedException(parseExceptionReport(inputStream, charset));
+        }
+
+        Reader reader = new InputStreamReader(inputStream, charset);
+        String layerName = IOUtils.toString(reader);
+        if (countingStream.getByteCount() > maxBytes) {
+            throw new IOException("GeoServer import response exceeds " + maxBytes + " bytes");
+        }
+        return layerName.trim();
+    }
+
+    /**
+     * @return the text of the first ows:ExceptionText, or the first exception
+     * code if there is no text
+     */
+    private static String parseExceptionReport(InputStream inputStream, Charset charset) throws IOException {
+        XMLStreamReader reader = null;
+        String exceptionCode = null;
+        StringBuilder exceptionText = null;
+        boolean isExceptionReport = false;
+        try {
+            reader = XML_INPUT_FACTORY.createXMLStreamReader(inputStream, charset.name());
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("ExceptionReport".equals(name) && OWS_NAMESPACE.equals(reader.getNamespaceURI())) {
+                        isExceptionReport = true;
+                    } else if (!isExceptionReport) {
+                        throw new IOException("GeoServer responded with an unexpected " + name + " document");
+                    } else if ("Exception".equals(name) && exceptionCode == null) {
+                        exceptionCode = reader.getAttributeValue(null, "exceptionCode");
+                    } else if ("ExceptionText".equals(name)) {
+                        exceptionText = new StringBuilder();
+                    }
+                } else if (exceptionText != null && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+                    exceptionText.append(reader.getText());
+                    if (exceptionText.length() > MAX_ERROR_LENGTH) {
+                        exceptionText.setLength(MAX_ERROR_LENGTH);
+                        break;
+                    }
+                } else if (exceptionText != null && event == XMLStreamConstants.END_ELEMENT) {
+                    // Only the first exception is reported
+                    break;
+                }
+            }
+        } catch (XMLStreamException ex) {
+            // A report cut off by the size limit is still worth reporting
+            if (exceptionText == null || exceptionText.length() == 0) {
+                throw new IOException("GeoServer import response could not be read: " + ex.getMessage(), ex);
+            }
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ex) {
+                    // Nothing left to read
+                }
+            }
+        }
+
+        if (exceptionText != null && exceptionText.toString().trim().length() > 0) {
+            return exceptionText.toString().trim();
+        }
+        if (exceptionCode != null) {
+            return exceptionCode;
+        }
+        throw new IOException("GeoServer responded with an exception report without an exception");
+    }
+}
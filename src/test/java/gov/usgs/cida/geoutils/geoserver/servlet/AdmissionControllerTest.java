@@ -0,0 +1,49 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AdmissionControllerTest {
+
+    @Test
+    public void testRejectsWhenQueueIsFull() throws Exception {
+        AdmissionController controller = new AdmissionController(1, Collections.<String, Integer>emptyMap(), 0, 0);
+        AdmissionController.Permit permit = controller.acquire("ws");
+        assertTrue(controller.isSaturated());
+        try {
+            controller.acquire("ws");
+            fail("Second import should have been turned away");
+        } catch (AdmissionRejectedException ex) {
+            assertTrue(ex.getRetryAfter() > 0);
+        }
+        permit.release();
+        assertFalse(controller.isSaturated());
+        controller.acquire("ws").release();
+        assertEquals("2", controller.getStats().get("admission.admitted"));
+        assertEquals("1", controller.getStats().get("admission.rejected"));
+    }
+
+    @Test
+    public void testWorkspaceLimitTimesOut() throws Exception {
+        AdmissionController controller = new AdmissionController(5, AdmissionController.parseWorkspaceLimits("busy:1, bad"), 5, 50);
+        AdmissionController.Permit permit = controller.acquire("busy");
+        controller.acquire("other").release();
+        try {
+            controller.acquire("busy");
+            fail("Import into a workspace at its limit should have timed out");
+        } catch (AdmissionRejectedException ex) {
+            assertEquals("0", controller.getStats().get("admission.queue.depth"));
+        }
+        permit.release();
+    }
+
+    @Test
+    public void testParseWorkspaceLimits() {
+        Map<String, Integer> limits = AdmissionController.parseWorkspaceLimits("a:1, b : 2,c,d:x");
+        assertEquals(2, limits.size());
+        assertEquals(Integer.valueOf(1), limits.get("a"));
+        assertEquals(Integer.valueOf(2), limits.get("b"));
+    }
+}
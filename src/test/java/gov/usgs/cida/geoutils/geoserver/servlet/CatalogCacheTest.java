@@ -0,0 +1,110 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CatalogCacheTest {
+
+    /**
+     * Answers lookups from a fixed catalog, counting them
+     */
+    static class StubGeoServerClient extends GeoServerClient {
+
+        final Set<String> catalog = new HashSet<String>();
+        int lookups = 0;
+        int reloads = 0;
+
+        StubGeoServerClient() throws IOException {
+            super(new DefaultHttpClient(), new PoolingClientConnectionManager(), new URL("http://localhost:8080/geoserver"), "admin", "geoserver", 1024);
+        }
+
+        @Override
+        boolean workspaceExists(String workspaceName) throws IOException {
+            lookups++;
+            return catalog.contains(workspaceName);
+        }
+
+        @Override
+        boolean layerExists(String workspaceName, String layerName) throws IOException {
+            lookups++;
+            return catalog.contains(workspaceName + ":" + layerName);
+        }
+
+        @Override
+        synchronized boolean reloadStore(String workspaceName, String storeName) throws IOException {
+            reloads++;
+            return true;
+        }
+    }
+
+    @Test
+    public void testLookupsAreCached() throws Exception {
+        StubGeoServerClient gsClient = new StubGeoServerClient();
+        gsClient.catalog.add("ws");
+        CatalogCache cache = new CatalogCache(60000, 10);
+
+        assertTrue(cache.workspaceExists(gsClient, "ws"));
+        assertTrue(cache.workspaceExists(gsClient, "ws"));
+        assertFalse(cache.workspaceExists(gsClient, "missing"));
+        assertFalse(cache.workspaceExists(gsClient, "missing"));
+        assertFalse(cache.layerExists(gsClient, "ws", "roads"));
+        assertFalse(cache.layerExists(gsClient, "ws", "roads"));
+        assertEquals(3, gsClient.lookups);
+        assertEquals("3", cache.getStats().get("catalog.cache.hits"));
+    }
+
+    @Test
+    public void testOwnWritesAreRecorded() throws Exception {
+        StubGeoServerClient gsClient = new StubGeoServerClient();
+        CatalogCache cache = new CatalogCache(60000, 10);
+
+        cache.putLayer(gsClient, "ws", "roads", true);
+        assertTrue(cache.layerExists(gsClient, "ws", "roads"));
+        assertTrue(cache.workspaceExists(gsClient, "ws"));
+        cache.putLayer(gsClient, "ws", "roads", false);
+        assertFalse(cache.layerExists(gsClient, "ws", "roads"));
+        assertEquals(0, gsClient.lookups);
+
+        gsClient.catalog.add("ws:roads");
+        cache.invalidateLayer(gsClient, "ws", "roads");
+        assertTrue(cache.layerExists(gsClient, "ws", "roads"));
+        assertEquals(1, gsClient.lookups);
+    }
+
+    @Test
+    public void testCatalogsAreKeptApart() throws Exception {
+        StubGeoServerClient gsClient = new StubGeoServerClient();
+        CatalogCache cache = new CatalogCache(60000, 10);
+        cache.putLayer(gsClient, "ws", "roads", true);
+
+        StubGeoServerClient sameCatalog = new StubGeoServerClient();
+        assertTrue(cache.layerExists(sameCatalog, "ws", "roads"));
+        assertEquals(0, sameCatalog.lookups);
+
+        StubGeoServerClient otherCatalog = new StubGeoServerClient() {
+            @Override
+            String getCatalogName() {
+                return "other";
+            }
+        };
+        assertFalse(cache.layerExists(otherCatalog, "ws", "roads"));
+        assertEquals(1, otherCatalog.lookups);
+    }
+
+    @Test
+    public void testNothingIsCachedWithoutTTL() throws Exception {
+        StubGeoServerClient gsClient = new StubGeoServerClient();
+        CatalogCache cache = new CatalogCache(0, 10);
+
+        cache.putLayer(gsClient, "ws", "roads", true);
+        assertFalse(cache.layerExists(gsClient, "ws", "roads"));
+        assertFalse(cache.layerExists(gsClient, "ws", "roads"));
+        assertEquals(2, gsClient.lookups);
+    }
+}
@@ -0,0 +1,130 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ChunkedUploadManagerTest {
+
+    private File chunkDirectory;
+    private File spoolDirectory;
+    private SpoolManager spoolManager;
+
+    @Before
+    public void setUp() throws Exception {
+        chunkDirectory = File.createTempFile("chunks.", ".test");
+        chunkDirectory.delete();
+        chunkDirectory.mkdirs();
+        spoolDirectory = File.createTempFile("spool.", ".test");
+        FileUtils.deleteQuietly(spoolDirectory);
+        spoolManager = new SpoolManager(spoolDirectory, Long.MAX_VALUE, 0, 0, 0);
+        spoolManager.sweep();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(chunkDirectory);
+        FileUtils.deleteQuietly(spoolDirectory);
+    }
+
+    private String getDiskReserved() {
+        return spoolManager.getStats().get("spool.disk.reserved");
+    }
+
+    private static ChunkedUploadManager.Chunk createChunk(int partIndex, int totalParts, long totalFileSize) {
+        return new ChunkedUploadManager.Chunk("0b6c2e0e-4a6e-4a39-9d43-3c1a8a2b4f10", partIndex, totalParts, totalFileSize, "roads.zip");
+    }
+
+    @Test
+    public void testAssemblesChunksReceivedOutOfOrder() throws Exception {
+        ChunkedUploadManager manager = new ChunkedUploadManager(chunkDirectory, Long.MAX_VALUE, spoolManager);
+        assertNull(manager.receive(createChunk(2, 3, 9), new ByteArrayInputStream("ghi".getBytes("UTF-8")), Long.MAX_VALUE));
+        assertNull(manager.receive(createChunk(0, 3, 9), new ByteArrayInputStream("abc".getBytes("UTF-8")), Long.MAX_VALUE));
+        // A retried chunk replaces the earlier copy
+        assertNull(manager.receive(createChunk(0, 3, 9), new ByteArrayInputStream("abc".getBytes("UTF-8")), Long.MAX_VALUE));
+
+        File assembled = manager.receive(createChunk(1, 3, 9), new ByteArrayInputStream("def".getBytes("UTF-8")), Long.MAX_VALUE);
+        assertNotNull(assembled);
+        assertEquals("abcdefghi", FileUtils.readFileToString(assembled, "UTF-8"));
+        assertEquals("9", getDiskReserved());
+
+        manager.remove(createChunk(0, 3, 9));
+        assertFalse(assembled.exists());
+        assertEquals("0", getDiskReserved());
+    }
+
+    @Test
+    public void testRejectsWrongTotalSize() throws Exception {
+        ChunkedUploadManager manager = new ChunkedUploadManager(chunkDirectory, Long.MAX_VALUE, spoolManager);
+        manager.receive(createChunk(0, 2, 10), new ByteArrayInputStream("abc".getBytes("UTF-8")), Long.MAX_VALUE);
+        try {
+            manager.receive(createChunk(1, 2, 10), new ByteArrayInputStream("def".getBytes("UTF-8")), Long.MAX_VALUE);
+            fail();
+        } catch (IOException ex) {
+            assertEquals(0, chunkDirectory.list().length);
+            assertEquals("0", getDiskReserved());
+        }
+    }
+
+    @Test
+    public void testRejectsUploadGrowingPastDeclaredSize() throws Exception {
+        ChunkedUploadManager manager = new ChunkedUploadManager(chunkDirectory, Long.MAX_VALUE, spoolManager);
+        manager.receive(createChunk(0, 2, 4), new ByteArrayInputStream("abc".getBytes("UTF-8")), Long.MAX_VALUE);
+        try {
+            manager.receive(createChunk(1, 2, 4), new ByteArrayInputStream("def".getBytes("UTF-8")), Long.MAX_VALUE);
+            fail();
+        } catch (IOException ex) {
+            assertEquals("3", getDiskReserved());
+        }
+    }
+
+    @Test(expected = ShapefileZipIngester.UploadTooLargeException.class)
+    public void testRejectsOversizedUpload() throws Exception {
+        ChunkedUploadManager manager = new ChunkedUploadManager(chunkDirectory, Long.MAX_VALUE, spoolManager);
+        manager.receive(createChunk(0, 2, -1), new ByteArrayInputStream("abc".getBytes("UTF-8")), 5);
+        manager.receive(createChunk(1, 2, -1), new ByteArrayInputStream("def".getBytes("UTF-8")), 5);
+    }
+
+    @Test(expected = ShapefileZipIngester.UploadTooLargeException.class)
+    public void testRunningTotalIsHeldToMaxFileSize() throws Exception {
+        ChunkedUploadManager manager = new ChunkedUploadManager(chunkDirectory, Long.MAX_VALUE, spoolManager);
+        // Each chunk is well under the limit and the upload is never assembled
+        for (int partIndex = 0; partIndex < 3; partIndex++) {
+            assertNull(manager.receive(createChunk(partIndex, 100, -1), new ByteArrayInputStream("ab".getBytes("UTF-8")), 5));
+        }
+    }
+
+    @Test
+    public void testRetriedChunkIsNotCountedTwice() throws Exception {
+        ChunkedUploadManager manager = new ChunkedUploadManager(chunkDirectory, Long.MAX_VALUE, spoolManager);
+        for (int attempt = 0; attempt < 3; attempt++) {
+            assertNull(manager.receive(createChunk(0, 2, -1), new ByteArrayInputStream("abc".getBytes("UTF-8")), 5));
+        }
+        assertEquals("3", getDiskReserved());
+        assertNotNull(manager.receive(createChunk(1, 2, -1), new ByteArrayInputStream("de".getBytes("UTF-8")), 5));
+        manager.remove(createChunk(0, 2, -1));
+        assertEquals("0", getDiskReserved());
+    }
+
+    @Test
+    public void testChunksCountAgainstSpoolBudget() throws Exception {
+        spoolManager = new SpoolManager(spoolDirectory, 1024 * 1024, 0, 0, 0);
+        ChunkedUploadManager manager = new ChunkedUploadManager(chunkDirectory, Long.MAX_VALUE, spoolManager);
+        manager.receive(createChunk(0, 2, -1), new ByteArrayInputStream("abc".getBytes("UTF-8")), Long.MAX_VALUE);
+        assertEquals("3", getDiskReserved());
+        try {
+            manager.receive(new ChunkedUploadManager.Chunk("5d0a3c52-7c1e-4d0b-8a55-2f1f6b9e7a31", 0, 2, -1, "rivers.zip"),
+                    new ByteArrayInputStream("def".getBytes("UTF-8")), Long.MAX_VALUE);
+            fail("The spool has no room left for another chunk");
+        } catch (SpoolManager.SpoolFullException ex) {
+            assertEquals("3", getDiskReserved());
+        }
+        manager.remove(createChunk(0, 2, -1));
+        assertEquals("0", getDiskReserved());
+    }
+}
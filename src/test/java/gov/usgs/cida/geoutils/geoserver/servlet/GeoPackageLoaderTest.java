@@ -0,0 +1,130 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GeoPackageLoaderTest {
+
+    /**
+     * @return a polygon record's content with the given rings
+     */
+    private static byte[] createPolygon(double[][] rings) {
+        int numPoints = 0;
+        for (double[] ring : rings) {
+            numPoints += ring.length / 2;
+        }
+        ByteBuffer content = ByteBuffer.allocate(44 + 4 * rings.length + 16 * numPoints).order(ByteOrder.LITTLE_ENDIAN);
+        content.putInt(5);
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (double[] ring : rings) {
+            for (int index = 0; index < ring.length; index += 2) {
+                minX = Math.min(minX, ring[index]);
+                maxX = Math.max(maxX, ring[index]);
+                minY = Math.min(minY, ring[index + 1]);
+                maxY = Math.max(maxY, ring[index + 1]);
+            }
+        }
+        content.putDouble(minX).putDouble(minY).putDouble(maxX).putDouble(maxY);
+        content.putInt(rings.length).putInt(numPoints);
+        int start = 0;
+        for (double[] ring : rings) {
+            content.putInt(start);
+            start += ring.length / 2;
+        }
+        for (double[] ring : rings) {
+            for (double ordinate : ring) {
+                content.putDouble(ordinate);
+            }
+        }
+        return content.array();
+    }
+
+    @Test
+    public void testPoint() throws Exception {
+        ByteBuffer content = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        content.putInt(1).putDouble(-89.5).putDouble(43.1);
+        double[] envelope = new double[4];
+        byte[] geometry = GeoPackageLoader.toGeoPackageGeometry(content.array(), 4326, envelope);
+
+        ByteBuffer output = ByteBuffer.wrap(geometry).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals('G', output.get(0));
+        assertEquals('P', output.get(1));
+        assertEquals(4326, output.getInt(4));
+        assertEquals(-89.5, output.getDouble(8), 0);
+        assertEquals(-89.5, output.getDouble(16), 0);
+        assertEquals(43.1, output.getDouble(24), 0);
+        // WKB point after the 40 byte header
+        assertEquals(40 + 21, geometry.length);
+        assertEquals(1, output.get(40));
+        assertEquals(1, output.getInt(41));
+        assertEquals(-89.5, output.getDouble(45), 0);
+        assertEquals(43.1, output.getDouble(53), 0);
+        assertArrayEquals(new double[]{-89.5, 43.1, -89.5, 43.1}, envelope, 0);
+    }
+
+    @Test
+    public void testNullShape() throws Exception {
+        ByteBuffer content = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        content.putInt(0);
+        assertNull(GeoPackageLoader.toGeoPackageGeometry(content.array(), 4326, new double[4]));
+    }
+
+    @Test
+    public void testPolygonRings() throws Exception {
+        // Outer rings run clockwise and holes counterclockwise
+        double[] shell = new double[]{0, 0, 0, 10, 10, 10, 10, 0, 0, 0};
+        double[] hole = new double[]{2, 2, 4, 2, 4, 4, 2, 4, 2, 2};
+        double[] island = new double[]{20, 20, 20, 30, 30, 30, 30, 20, 20, 20};
+        double[] envelope = new double[4];
+        byte[] geometry = GeoPackageLoader.toGeoPackageGeometry(createPolygon(new double[][]{shell, hole, island}), 26915, envelope);
+        assertArrayEquals(new double[]{0, 0, 30, 30}, envelope, 0);
+
+        ByteBuffer wkb = ByteBuffer.wrap(geometry, 40, geometry.length - 40).slice().order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(6, wkb.getInt(1));
+        assertEquals(2, wkb.getInt(5));
+        // First polygon: the shell and its hole
+        assertEquals(3, wkb.getInt(10));
+        assertEquals(2, wkb.getInt(14));
+        assertEquals(5, wkb.getInt(18));
+        int secondPolygon = 18 + 4 + 5 * 16 + 4 + 5 * 16;
+        assertEquals(5, wkb.getInt(18 + 4 + 5 * 16));
+        // Second polygon: the island alone
+        assertEquals(3, wkb.getInt(secondPolygon + 1));
+        assertEquals(1, wkb.getInt(secondPolygon + 5));
+        assertEquals(5, wkb.getInt(secondPolygon + 9));
+        assertEquals(20, wkb.getDouble(secondPolygon + 13), 0);
+        assertEquals(secondPolygon + 13 + 5 * 16, wkb.capacity());
+    }
+
+    @Test
+    public void testRTreeIsKeptCurrentByTriggers() {
+        List<String> triggers = GeoPackageLoader.getRTreeTriggers("roads");
+        String[] names = new String[]{"insert", "update1", "update2", "update3", "update4", "delete"};
+        assertEquals(names.length, triggers.size());
+        for (int index = 0; index < names.length; index++) {
+            assertTrue(triggers.get(index).startsWith("CREATE TRIGGER \"rtree_roads_geom_" + names[index] + "\" AFTER "));
+            assertTrue(triggers.get(index).contains(" ON \"roads\" "));
+            assertTrue(triggers.get(index).endsWith("END"));
+        }
+        assertTrue(triggers.get(0).contains("INSERT OR REPLACE INTO \"rtree_roads_geom\" VALUES (NEW.fid, ST_MinX(NEW.\"geom\")"));
+        assertTrue(triggers.get(5).contains("DELETE FROM \"rtree_roads_geom\" WHERE id = OLD.fid"));
+    }
+
+    @Test
+    public void testLoadsIntoTheSameGeoPackageShareALock() {
+        assertSame(GeoPackageImportStrategy.getLock(new File("upload/roads.gpkg")), GeoPackageImportStrategy.getLock(new File("upload/roads.gpkg")));
+        assertNotSame(GeoPackageImportStrategy.getLock(new File("upload/roads.gpkg")), GeoPackageImportStrategy.getLock(new File("upload/rivers.gpkg")));
+    }
+
+    @Test
+    public void testFieldsNamedLikeReservedColumnsAreRenamed() {
+        List<String> columnNames = GeoPackageLoader.getColumnNames(Arrays.asList("FID", "NAME", "GEOM", "name", "FID_1"));
+        // Fields keep their names in order, so a later field gives way
+        assertEquals(Arrays.asList("FID_1", "NAME", "GEOM_1", "name_1", "FID_1_1"), columnNames);
+    }
+}
@@ -0,0 +1,130 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GeoServerClientTest {
+
+    private HttpServer server;
+    private PoolingClientConnectionManager connectionManager;
+    private volatile String requestedPath;
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (connectionManager != null) {
+            connectionManager.shutdown();
+        }
+    }
+
+    /**
+     * @return a client for a GeoServer answering every request with the given
+     * status and body
+     */
+    private GeoServerClient createClient(final int status, final String contentType, final String body) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requestedPath = exchange.getRequestURI().getRawPath();
+                byte[] content = body.getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+                exchange.sendResponseHeaders(status, content.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(content);
+                out.close();
+            }
+        });
+        server.start();
+        connectionManager = new PoolingClientConnectionManager();
+        return new GeoServerClient(new DefaultHttpClient(connectionManager), connectionManager,
+                new URL("http://localhost:" + server.getAddress().getPort() + "/geoserver"), "admin", "geoserver", 1024);
+    }
+
+    private static StringEntity createExecute() {
+        return new StringEntity("<wps:Execute/>", ContentType.create("text/xml", WPSImportRequestEntity.UTF8));
+    }
+
+    @Test
+    public void testLayerNameIsReturned() throws Exception {
+        GeoServerClient client = createClient(200, "text/plain", "upload:states");
+        assertEquals("upload:states", client.postToWPS(createExecute()));
+    }
+
+    @Test
+    public void testErrorStatusFailsImport() throws Exception {
+        GeoServerClient client = createClient(503, "text/plain", "HTTP Status 503 " + StringUtils.repeat("x", 4096));
+        try {
+            client.postToWPS(createExecute());
+            fail("An error status should fail the import");
+        } catch (ImportFailedException ex) {
+            assertTrue(ex.getMessage().startsWith("GeoServer responded with 503: HTTP Status 503"));
+            assertTrue(ex.getMessage().length() < GeoServerClient.MAX_EXCERPT_LENGTH + 64);
+        }
+    }
+
+    @Test
+    public void testErrorPageFailsImport() throws Exception {
+        GeoServerClient client = createClient(404, "text/html", "<html><body>Not found</body></html>");
+        try {
+            client.postToWPS(createExecute());
+            fail("An error page should fail the import");
+        } catch (ImportFailedException ex) {
+            assertTrue(ex.getMessage().startsWith("GeoServer responded with 404"));
+        }
+    }
+
+    @Test
+    public void testNamesAreSentAsSinglePathSegments() throws Exception {
+        GeoServerClient client = createClient(200, "text/xml", "<layer/>");
+        assertTrue(client.layerExists("my workspace", "roads?#1"));
+        assertEquals("/geoserver/rest/layers/my%20workspace:roads%3F%231", requestedPath);
+        assertTrue(client.storeExists("upload", "50%"));
+        assertEquals("/geoserver/rest/workspaces/upload/datastores/50%25", requestedPath);
+    }
+
+    @Test
+    public void testStoreContentsAreRead() throws Exception {
+        GeoServerClient client = createClient(200, "text/xml", "<featureTypes><featureType><name>roads</name></featureType><featureType><name>rivers</name></featureType></featureTypes>");
+        assertEquals(Arrays.asList("roads", "rivers"), client.getFeatureTypeNames("upload", "roads"));
+        assertEquals("/geoserver/rest/workspaces/upload/datastores/roads/featuretypes.xml", requestedPath);
+
+        client = createClient(200, "text/xml", "<dataStore><name>roads</name><type>Shapefile</type></dataStore>");
+        assertEquals("Shapefile", client.getDataStoreType("upload", "roads"));
+    }
+
+    @Test
+    public void testMissingStoreHasNoContents() throws Exception {
+        GeoServerClient client = createClient(404, "text/plain", "No such datastore");
+        assertNull(client.getFeatureTypeNames("upload", "roads"));
+        assertNull(client.getDataStoreType("upload", "roads"));
+    }
+
+    @Test
+    public void testNamesThatLeaveTheirSegmentAreInvalid() {
+        assertTrue(GeoServerClient.isValidName("roads_2014 v1.2"));
+        assertFalse(GeoServerClient.isValidName(null));
+        assertFalse(GeoServerClient.isValidName(""));
+        assertFalse(GeoServerClient.isValidName(".."));
+        assertFalse(GeoServerClient.isValidName("../workspaces"));
+        assertFalse(GeoServerClient.isValidName("upload:roads"));
+        assertFalse(GeoServerClient.isValidName("roads\\n"));
+        assertFalse(GeoServerClient.isValidName("roads\n"));
+    }
+}
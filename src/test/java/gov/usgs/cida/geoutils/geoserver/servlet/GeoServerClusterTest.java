@@ -0,0 +1,114 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URL;
+import java.util.Arrays;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GeoServerClusterTest {
+
+    private GeoServerCluster cluster;
+
+    /**
+     * Answers health checks as told
+     */
+    static class StubNode extends GeoServerClient {
+
+        volatile boolean available = true;
+
+        StubNode(String endpoint) throws IOException {
+            super(new DefaultHttpClient(), new PoolingClientConnectionManager(), new URL(endpoint), "admin", "geoserver", 1024);
+        }
+
+        @Override
+        boolean isAvailable() {
+            return available;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (cluster != null) {
+            cluster.shutdown();
+        }
+    }
+
+    @Test
+    public void testLeastInFlightIsSelected() throws Exception {
+        StubNode first = new StubNode("http://geoserver1:8080/geoserver");
+        StubNode second = new StubNode("http://geoserver2:8080/geoserver");
+        cluster = new GeoServerCluster("test-geoserver", 0);
+        cluster.setNodes(Arrays.<GeoServerClient>asList(first, second));
+
+        cluster.enter(first);
+        for (int i = 0; i < 4; i++) {
+            assertSame(second, cluster.select(false));
+        }
+        cluster.leave(first, null);
+        cluster.enter(second);
+        assertSame(first, cluster.select(false));
+        assertEquals("1", cluster.getStats().get("geoserver.node.2.in.flight"));
+    }
+
+    @Test
+    public void testRoundRobinTakesTurns() throws Exception {
+        StubNode first = new StubNode("http://geoserver1:8080/geoserver");
+        StubNode second = new StubNode("http://geoserver2:8080/geoserver");
+        cluster = new GeoServerCluster("test-geoserver", 0);
+        cluster.setNodes(Arrays.<GeoServerClient>asList(first, second));
+
+        cluster.enter(first);
+        GeoServerClient selected = cluster.select(true);
+        assertNotSame(selected, cluster.select(true));
+        assertSame(selected, cluster.select(true));
+    }
+
+    @Test
+    public void testUnreachableNodeIsPassedOverUntilHealthy() throws Exception {
+        StubNode first = new StubNode("http://geoserver1:8080/geoserver");
+        StubNode second = new StubNode("http://geoserver2:8080/geoserver");
+        cluster = new GeoServerCluster("test-geoserver", 60000);
+        cluster.setNodes(Arrays.<GeoServerClient>asList(first, second));
+
+        // Refused imports say nothing about health
+        cluster.enter(first);
+        cluster.leave(first, new ImportFailedException("Layer already exists"));
+        assertEquals("2", cluster.getStats().get("geoserver.nodes.healthy"));
+
+        cluster.enter(first);
+        cluster.leave(first, new ConnectException("Connection refused"));
+        assertEquals("1", cluster.getStats().get("geoserver.nodes.healthy"));
+        for (int i = 0; i < 4; i++) {
+            assertSame(second, cluster.select(true));
+        }
+
+        first.available = false;
+        cluster.checkHealth();
+        assertSame(second, cluster.select(false));
+        first.available = true;
+        cluster.checkHealth();
+        assertEquals("2", cluster.getStats().get("geoserver.nodes.healthy"));
+        assertEquals("2", cluster.getStats().get("geoserver.node.1.failures"));
+    }
+
+    @Test
+    public void testStateSurvivesReload() throws Exception {
+        StubNode first = new StubNode("http://geoserver1:8080/geoserver");
+        cluster = new GeoServerCluster("test-geoserver", 0);
+        cluster.setNodes(Arrays.<GeoServerClient>asList(first));
+        cluster.enter(first);
+
+        StubNode reloaded = new StubNode("http://geoserver1:8080/geoserver");
+        StubNode added = new StubNode("http://geoserver2:8080/geoserver");
+        cluster.setNodes(Arrays.<GeoServerClient>asList(reloaded, added));
+        assertSame(added, cluster.select(false));
+        cluster.leave(first, null);
+        assertEquals("0", cluster.getStats().get("geoserver.node.1.in.flight"));
+        assertEquals(Arrays.<GeoServerClient>asList(reloaded, added), cluster.getNodes());
+    }
+}
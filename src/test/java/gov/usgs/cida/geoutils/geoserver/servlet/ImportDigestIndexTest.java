@@ -0,0 +1,43 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import it.geosolutions.geoserver.rest.encoder.GSResourceEncoder.ProjectionPolicy;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ImportDigestIndexTest {
+
+    private static ImportJob createJob(String layerName, String srsName, String digest) {
+        ImportJob job = new ImportJob("ws", "store", layerName, srsName, ProjectionPolicy.REPROJECT_TO_DECLARED, false);
+        job.setDigest(digest);
+        return job;
+    }
+
+    @Test
+    public void testIdenticalUploadIsFound() {
+        ImportDigestIndex index = new ImportDigestIndex(10);
+        ImportJob job = createJob("roads", "EPSG:4326", "abc");
+        index.put(job, ImportDigestIndex.getSignature(job), "roads");
+
+        ImportJob again = createJob("roads", "EPSG:4326", "abc");
+        assertEquals("roads", index.getImportedLayer(again, ImportDigestIndex.getSignature(again)));
+        assertEquals("1", index.getStats().get("dedup.hits"));
+    }
+
+    @Test
+    public void testDifferentContentOrSettingsAreNotFound() {
+        ImportDigestIndex index = new ImportDigestIndex(10);
+        ImportJob job = createJob("roads", "EPSG:4326", "abc");
+        index.put(job, ImportDigestIndex.getSignature(job), "roads");
+
+        ImportJob changed = createJob("roads", "EPSG:4326", "def");
+        assertNull(index.getImportedLayer(changed, ImportDigestIndex.getSignature(changed)));
+        ImportJob reprojected = createJob("roads", "EPSG:3857", "abc");
+        assertNull(index.getImportedLayer(reprojected, ImportDigestIndex.getSignature(reprojected)));
+        ImportJob otherLayer = createJob("rivers", "EPSG:4326", "abc");
+        assertNull(index.getImportedLayer(otherLayer, ImportDigestIndex.getSignature(otherLayer)));
+
+        // Replacing the layer's content forgets the earlier upload
+        index.put(changed, ImportDigestIndex.getSignature(changed), "roads");
+        assertNull(index.getImportedLayer(job, ImportDigestIndex.getSignature(job)));
+    }
+}
@@ -0,0 +1,149 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import it.geosolutions.geoserver.rest.encoder.GSResourceEncoder.ProjectionPolicy;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ImportJobManagerTest {
+
+    private ImportJobManager manager;
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch proceed = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        manager = new ImportJobManager("test-import", 1, 1, Long.MAX_VALUE);
+    }
+
+    @After
+    public void tearDown() {
+        proceed.countDown();
+        manager.shutdown();
+    }
+
+    private static ImportJob createJob() {
+        return new ImportJob("upload", "store", "roads", "EPSG:4326", ProjectionPolicy.REPROJECT_TO_DECLARED, false);
+    }
+
+    /**
+     * @return work that imports the job once the test lets it proceed
+     */
+    private Runnable createImport(final ImportJob job) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                job.setState(ImportJob.State.IMPORTING);
+                started.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException ex) {
+                    job.setState(ImportJob.State.FAILED);
+                    return;
+                }
+                job.put("name", "upload:roads");
+                job.setState(ImportJob.State.DONE);
+            }
+        };
+    }
+
+    @Test
+    public void testJobStatusFollowsImport() throws Exception {
+        ImportJob job = createJob();
+        manager.submit(job, createImport(job));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        Map<String, String> status = manager.getJob(job.getId()).getStatusMap();
+        assertEquals(job.getId(), status.get("job"));
+        assertEquals("importing", status.get("status"));
+
+        proceed.countDown();
+        job.awaitFinished();
+        status = manager.getJob(job.getId()).getStatusMap();
+        assertEquals("done", status.get("status"));
+        assertEquals("upload:roads", status.get("name"));
+        assertNull(manager.getJob("unknown"));
+        assertNull(manager.getJob(null));
+    }
+
+    @Test
+    public void testThrowingImportFailsJob() throws Exception {
+        ImportJob job = createJob();
+        manager.submit(job, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("broken");
+            }
+        });
+        job.awaitFinished();
+        assertTrue(job.isFailed());
+        assertEquals("broken", manager.getJob(job.getId()).getStatusMap().get("exception"));
+    }
+
+    @Test
+    public void testFullQueueRejectsJob() throws Exception {
+        ImportJob running = createJob();
+        manager.submit(running, createImport(running));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        ImportJob queued = createJob();
+        manager.submit(queued, createImport(queued));
+
+        ImportJob rejected = createJob();
+        try {
+            manager.submit(rejected, createImport(rejected));
+            fail("The queue has room for one job");
+        } catch (RejectedExecutionException ex) {
+            assertNull(manager.getJob(rejected.getId()));
+        }
+        assertEquals("queued", manager.getJob(queued.getId()).getStatusMap().get("status"));
+    }
+
+    @Test
+    public void testFinishedJobsExpire() throws Exception {
+        manager.shutdown();
+        manager = new ImportJobManager("test-import", 1, 1, 0);
+        ImportJob job = createJob();
+        proceed.countDown();
+        manager.submit(job, createImport(job));
+        job.awaitFinished();
+        assertSame(job, manager.getJob(job.getId()));
+
+        Thread.sleep(10);
+        ImportJob next = createJob();
+        manager.submit(next, createImport(next));
+        assertNull(manager.getJob(job.getId()));
+    }
+
+    @Test
+    public void testShutdownFailsQueuedJobsAndReleasesTheirSpools() throws Exception {
+        File spoolDirectory = File.createTempFile("spool.", ".test");
+        FileUtils.deleteQuietly(spoolDirectory);
+        try {
+            SpoolManager spoolManager = new SpoolManager(spoolDirectory, Long.MAX_VALUE, 0, 0, 0);
+            spoolManager.sweep();
+            ImportJob running = createJob();
+            manager.submit(running, createImport(running));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            ImportJob queued = createJob();
+            queued.setSpool(spoolManager.createSpool("roads.zip", -1));
+            manager.submit(queued, createImport(queued));
+            assertEquals("1", spoolManager.getStats().get("spool.active"));
+
+            assertEquals(1, manager.shutdown());
+            // Anything waiting on the job, such as a batch request, is let go
+            queued.awaitFinished();
+            assertTrue(queued.isFailed());
+            assertNotNull(queued.getStatusMap().get("error"));
+            assertEquals("0", spoolManager.getStats().get("spool.active"));
+        } finally {
+            FileUtils.deleteQuietly(spoolDirectory);
+        }
+    }
+}
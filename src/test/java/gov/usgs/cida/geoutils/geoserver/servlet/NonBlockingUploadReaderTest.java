@@ -0,0 +1,258 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class NonBlockingUploadReaderTest {
+
+    private File directory;
+    private SpoolManager spoolManager;
+    private ScheduledExecutorService timer;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("receive.test.", "");
+        FileUtils.deleteQuietly(directory);
+        spoolManager = new SpoolManager(directory, Long.MAX_VALUE, 0, 0, 0);
+        spoolManager.sweep();
+        timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+        FileUtils.deleteQuietly(directory);
+    }
+
+    /**
+     * Hands out the chunks it is given as if each had just arrived from the
+     * client, and is not ready once they are used up
+     */
+    static class ArrivingInputStream extends ServletInputStream {
+
+        final LinkedList<byte[]> arrived = new LinkedList<byte[]>();
+        boolean finished = false;
+        ReadListener listener;
+
+        @Override
+        public boolean isFinished() {
+            return finished && arrived.isEmpty();
+        }
+
+        @Override
+        public boolean isReady() {
+            return !arrived.isEmpty();
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            this.listener = readListener;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (arrived.isEmpty()) {
+                throw new IllegalStateException("Read while not ready");
+            }
+            byte[] chunk = arrived.removeFirst();
+            int read = Math.min(len, chunk.length);
+            System.arraycopy(chunk, 0, b, off, read);
+            if (read < chunk.length) {
+                byte[] rest = new byte[chunk.length - read];
+                System.arraycopy(chunk, read, rest, 0, rest.length);
+                arrived.addFirst(rest);
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Remembers how receiving ended
+     */
+    static class RecordingCallback implements NonBlockingUploadReader.Callback {
+
+        SpoolManager.Spool received;
+        long bytesRead = -1;
+        Throwable failure;
+        int calls = 0;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void received(SpoolManager.Spool spool, long bytesRead) {
+            this.received = spool;
+            this.bytesRead = bytesRead;
+            calls++;
+            done.countDown();
+        }
+
+        @Override
+        public void failed(Throwable ex) {
+            this.failure = ex;
+            calls++;
+            done.countDown();
+        }
+    }
+
+    private static AsyncContext createAsyncContext(final ServletInputStream input) {
+        final HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(NonBlockingUploadReaderTest.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getInputStream".equals(method.getName())) {
+                    return input;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        return (AsyncContext) Proxy.newProxyInstance(NonBlockingUploadReaderTest.class.getClassLoader(), new Class<?>[]{AsyncContext.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getRequest".equals(method.getName())) {
+                    return request;
+                }
+                if ("addListener".equals(method.getName())) {
+                    return null;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private String getActiveSpools() {
+        return spoolManager.getStats().get("spool.active");
+    }
+
+    @Test
+    public void testBodyIsSpooledAsItArrives() throws Exception {
+        ArrivingInputStream input = new ArrivingInputStream();
+        RecordingCallback callback = new RecordingCallback();
+        SpoolManager.Spool spool = spoolManager.createSpool("upload.zip", -1);
+        NonBlockingUploadReader reader = new NonBlockingUploadReader(createAsyncContext(input), spool, 1024, callback);
+        reader.start(timer, 0);
+        assertSame(reader, input.listener);
+
+        input.arrived.add("first ".getBytes("UTF-8"));
+        input.arrived.add("second ".getBytes("UTF-8"));
+        reader.onDataAvailable();
+        assertTrue(input.arrived.isEmpty());
+        assertEquals(0, callback.calls);
+
+        input.arrived.add("third".getBytes("UTF-8"));
+        reader.onDataAvailable();
+        input.finished = true;
+        reader.onAllDataRead();
+
+        assertEquals(1, callback.calls);
+        assertSame(spool, callback.received);
+        assertEquals(18, callback.bytesRead);
+        InputStream spooled = spool.openInputStream();
+        try {
+            assertEquals("first second third", IOUtils.toString(spooled, "UTF-8"));
+        } finally {
+            IOUtils.closeQuietly(spooled);
+        }
+        spool.release();
+    }
+
+    @Test
+    public void testOversizedBodyFails() throws Exception {
+        ArrivingInputStream input = new ArrivingInputStream();
+        RecordingCallback callback = new RecordingCallback();
+        SpoolManager.Spool spool = spoolManager.createSpool("upload.zip", -1);
+        NonBlockingUploadReader reader = new NonBlockingUploadReader(createAsyncContext(input), spool, 8, callback);
+        reader.start(timer, 0);
+        assertEquals("1", getActiveSpools());
+
+        input.arrived.add("12345".getBytes("UTF-8"));
+        input.arrived.add("67890".getBytes("UTF-8"));
+        reader.onDataAvailable();
+
+        assertEquals(1, callback.calls);
+        assertTrue(callback.failure instanceof IOException);
+        assertEquals("0", getActiveSpools());
+        // Nothing more is read or reported once failed
+        input.arrived.add("more".getBytes("UTF-8"));
+        reader.onDataAvailable();
+        reader.onAllDataRead();
+        assertEquals(1, input.arrived.size());
+        assertEquals(1, callback.calls);
+    }
+
+    @Test
+    public void testRequestEndingEarlyFails() throws Exception {
+        ArrivingInputStream input = new ArrivingInputStream();
+        RecordingCallback callback = new RecordingCallback();
+        SpoolManager.Spool spool = spoolManager.createSpool("upload.zip", -1);
+        NonBlockingUploadReader reader = new NonBlockingUploadReader(createAsyncContext(input), spool, 1024, callback);
+        reader.start(timer, 0);
+
+        input.arrived.add("partial".getBytes("UTF-8"));
+        reader.onDataAvailable();
+        reader.onTimeout(null);
+        reader.onComplete(null);
+
+        assertEquals(1, callback.calls);
+        assertNull(callback.received);
+        assertNotNull(callback.failure);
+        assertEquals("0", getActiveSpools());
+    }
+
+    @Test
+    public void testSlowBodyTimesOut() throws Exception {
+        ArrivingInputStream input = new ArrivingInputStream();
+        RecordingCallback callback = new RecordingCallback();
+        SpoolManager.Spool spool = spoolManager.createSpool("upload.zip", -1);
+        NonBlockingUploadReader reader = new NonBlockingUploadReader(createAsyncContext(input), spool, 1024, callback);
+        reader.start(timer, 50);
+
+        input.arrived.add("partial".getBytes("UTF-8"));
+        reader.onDataAvailable();
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, callback.calls);
+        assertTrue(callback.failure instanceof IOException);
+        assertEquals("0", getActiveSpools());
+    }
+
+    @Test
+    public void testTimeoutIsCancelledOnceReceived() throws Exception {
+        ArrivingInputStream input = new ArrivingInputStream();
+        RecordingCallback callback = new RecordingCallback();
+        SpoolManager.Spool spool = spoolManager.createSpool("upload.zip", -1);
+        NonBlockingUploadReader reader = new NonBlockingUploadReader(createAsyncContext(input), spool, 1024, callback);
+        reader.start(timer, 50);
+
+        input.arrived.add("whole".getBytes("UTF-8"));
+        reader.onDataAvailable();
+        input.finished = true;
+        reader.onAllDataRead();
+        Thread.sleep(200);
+        assertEquals(1, callback.calls);
+        assertNull(callback.failure);
+        assertEquals("1", getActiveSpools());
+        spool.release();
+    }
+}
@@ -0,0 +1,57 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PipelineMetricsTest {
+
+    @Test
+    public void testTimerPercentiles() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        for (int i = 0; i < 98; i++) {
+            metrics.time("ingest", TimeUnit.MILLISECONDS.toNanos(3));
+        }
+        metrics.time("ingest", TimeUnit.MILLISECONDS.toNanos(150));
+        metrics.time("ingest", TimeUnit.MILLISECONDS.toNanos(4000));
+
+        Map<String, String> stats = metrics.getStats();
+        assertEquals("100", stats.get("metrics.ingest.count"));
+        assertEquals("5", stats.get("metrics.ingest.p50.ms"));
+        assertEquals("5", stats.get("metrics.ingest.p95.ms"));
+        assertEquals("200", stats.get("metrics.ingest.p99.ms"));
+        assertEquals("4000", stats.get("metrics.ingest.max.ms"));
+    }
+
+    @Test
+    public void testCountersAndGauges() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        metrics.count("bytes.received", 1024);
+        metrics.count("bytes.received", 1024);
+        metrics.increment("imports.succeeded");
+        metrics.enter("imports.running");
+        metrics.enter("imports.running");
+        metrics.leave("imports.running");
+
+        Map<String, String> stats = metrics.getStats();
+        assertEquals("2048", stats.get("metrics.bytes.received"));
+        assertEquals("1", stats.get("metrics.imports.succeeded"));
+        assertEquals("1", stats.get("metrics.imports.running"));
+    }
+
+    @Test
+    public void testJobPhasesAreRecorded() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        ImportJob job = new ImportJob("ws", "store", "roads", "EPSG:4326", null, false);
+        job.setState(ImportJob.State.POSTING);
+        job.setState(ImportJob.State.IMPORTING);
+        job.setState(ImportJob.State.DONE);
+        metrics.recordJob(job);
+
+        Map<String, String> stats = metrics.getStats();
+        assertEquals("1", stats.get("metrics.send.count"));
+        assertEquals("1", stats.get("metrics.geoserver.import.count"));
+        assertEquals("1", stats.get("metrics.job.total.count"));
+    }
+}
@@ -0,0 +1,180 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ProjectionCacheTest {
+
+    private static final String WGS84 = "GEOGCS[\"GCS_WGS_1984\",DATUM[\"D_WGS_1984\",SPHEROID[\"WGS_1984\",6378137,298.257223563]],PRIMEM[\"Greenwich\",0],UNIT[\"Degree\",0.017453292519943295]]";
+    private File directory;
+    private SpoolManager spoolManager;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("projection.cache.test.", "");
+        FileUtils.deleteQuietly(directory);
+        spoolManager = new SpoolManager(directory, Long.MAX_VALUE, 1024, Long.MAX_VALUE, 0);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    /**
+     * @return a spool held in memory until the lookup moves it to disk
+     */
+    private SpoolManager.Spool createSpool() throws IOException {
+        SpoolManager.Spool spool = spoolManager.createSpool("states.zip", -1);
+        OutputStream outputStream = spool.openOutputStream();
+        outputStream.write(new byte[]{'P', 'K'});
+        outputStream.close();
+        return spool;
+    }
+
+    @Test
+    public void testKeyIgnoresInsignificantWhitespace() {
+        String reformatted = WGS84.replace(",", ", ").replace("[", " [\n  ") + "\r\n";
+        assertEquals(ProjectionCache.getKey(WGS84), ProjectionCache.getKey(reformatted));
+        assertFalse(ProjectionCache.getKey(WGS84).equals(ProjectionCache.getKey(WGS84.replace("6378137", "6378136"))));
+    }
+
+    @Test
+    public void testPreloadedEntriesAreHits() throws Exception {
+        File file = File.createTempFile("projection.cache.", ".properties");
+        try {
+            Properties properties = new Properties();
+            properties.setProperty(ProjectionCache.getKey(WGS84), "EPSG:4326");
+            properties.setProperty(ProjectionCache.getKey("LOCAL_CS[\"unknown\"]"), "");
+            FileOutputStream out = new FileOutputStream(file);
+            properties.store(out, null);
+            out.close();
+
+            ProjectionCache cache = new ProjectionCache(10);
+            cache.load(file);
+            assertEquals("EPSG:4326", cache.getProjection(WGS84, null));
+            try {
+                cache.getProjection("LOCAL_CS[\"unknown\"]", null);
+                fail("Negative entry should have been remembered");
+            } catch (Exception ex) {
+                assertEquals("1", cache.getStats().get("projection.cache.negative.hits"));
+            }
+            assertEquals("2", cache.getStats().get("projection.cache.hits"));
+            assertEquals("0", cache.getStats().get("projection.cache.misses"));
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    @Test
+    public void testSavedEntriesSurviveReload() throws Exception {
+        File file = File.createTempFile("projection.cache.", ".properties");
+        try {
+            Properties properties = new Properties();
+            properties.setProperty(ProjectionCache.getKey("A"), "EPSG:1");
+            properties.setProperty(ProjectionCache.getKey("B"), "EPSG:2");
+            FileOutputStream out = new FileOutputStream(file);
+            properties.store(out, null);
+            out.close();
+
+            // Only the most recently loaded entry fits
+            ProjectionCache cache = new ProjectionCache(1);
+            cache.load(file);
+            assertEquals("1", cache.getStats().get("projection.cache.size"));
+            cache.save(file);
+            ProjectionCache reloaded = new ProjectionCache(1);
+            reloaded.load(file);
+            assertEquals("1", reloaded.getStats().get("projection.cache.size"));
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    @Test
+    public void testFailedLookupIsRemembered() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        ProjectionCache cache = new ProjectionCache(10) {
+            @Override
+            String lookup(File file) throws Exception {
+                lookups.incrementAndGet();
+                throw new Exception("Could not find EPSG code");
+            }
+        };
+        SpoolManager.Spool spool = createSpool();
+        try {
+            for (int i = 0; i < 2; i++) {
+                try {
+                    cache.getProjection(WGS84, spool);
+                    fail("Lookup should have failed");
+                } catch (Exception ex) {
+                    assertEquals(1, lookups.get());
+                }
+            }
+            assertEquals("1", cache.getStats().get("projection.cache.negative.hits"));
+        } finally {
+            spool.release();
+        }
+    }
+
+    @Test
+    public void testUnspooledLookupIsNotRemembered() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        ProjectionCache cache = new ProjectionCache(10) {
+            @Override
+            String lookup(File file) throws Exception {
+                lookups.incrementAndGet();
+                return "EPSG:4326";
+            }
+        };
+        SpoolManager.Spool released = createSpool();
+        released.release();
+        try {
+            cache.getProjection(WGS84, released);
+            fail("Released spool should not have been looked up");
+        } catch (IOException ex) {
+            assertEquals("0", cache.getStats().get("projection.cache.size"));
+        }
+        SpoolManager.Spool spool = createSpool();
+        try {
+            assertEquals("EPSG:4326", cache.getProjection(WGS84, spool));
+            assertEquals(1, lookups.get());
+        } finally {
+            spool.release();
+        }
+    }
+
+    @Test
+    public void testBlankLookupIsRemembered() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        ProjectionCache cache = new ProjectionCache(10) {
+            @Override
+            String lookup(File file) throws Exception {
+                lookups.incrementAndGet();
+                return null;
+            }
+        };
+        SpoolManager.Spool spool = createSpool();
+        try {
+            for (int i = 0; i < 2; i++) {
+                try {
+                    cache.getProjection(WGS84, spool);
+                    fail("Projection without an EPSG code should fail");
+                } catch (IOException ex) {
+                    assertEquals(1, lookups.get());
+                }
+            }
+            assertEquals("1", cache.getStats().get("projection.cache.negative.hits"));
+        } finally {
+            spool.release();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import it.geosolutions.geoserver.rest.encoder.GSResourceEncoder.ProjectionPolicy;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RESTImportStrategyTest {
+
+    private StubClient gsClient;
+    private ImportJob job;
+
+    /**
+     * Answers for a single store and records what is uploaded into it
+     */
+    static class StubClient extends GeoServerClient {
+
+        String storeType;
+        List<String> featureTypeNames;
+        final List<String> published = new ArrayList<String>();
+        int uploads;
+
+        StubClient() throws IOException {
+            super(new DefaultHttpClient(), new PoolingClientConnectionManager(), new URL("http://localhost:8080/geoserver"), "admin", "geoserver", 1024);
+        }
+
+        @Override
+        String getDataStoreType(String workspaceName, String storeName) {
+            return storeType;
+        }
+
+        @Override
+        List<String> getFeatureTypeNames(String workspaceName, String storeName) {
+            return featureTypeNames;
+        }
+
+        @Override
+        void uploadShapefile(String workspaceName, String storeName, SpoolManager.Spool spool) {
+            uploads++;
+        }
+
+        @Override
+        void publishFeatureType(String workspaceName, String storeName, String layerName, String nativeName, String srsName, ProjectionPolicy projectionPolicy) {
+            published.add(layerName);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        gsClient = new StubClient();
+        job = new ImportJob("upload", "roads", "roads", "EPSG:4326", ProjectionPolicy.REPROJECT_TO_DECLARED, true);
+    }
+
+    @Test
+    public void testNewStoreIsImportedInto() throws IOException {
+        assertEquals("roads", new RESTImportStrategy().importShapefile(gsClient, job));
+        assertEquals(1, gsClient.uploads);
+        assertEquals(Arrays.asList("roads"), gsClient.published);
+    }
+
+    @Test
+    public void testStoreOfTheLayerIsImportedInto() throws IOException {
+        gsClient.storeType = "Shapefile";
+        gsClient.featureTypeNames = Arrays.asList("roads");
+        new RESTImportStrategy().importShapefile(gsClient, job);
+        assertEquals(1, gsClient.uploads);
+    }
+
+    @Test
+    public void testSharedStoreIsRefused() throws IOException {
+        gsClient.storeType = "Shapefile";
+        gsClient.featureTypeNames = Arrays.asList("roads", "rivers");
+        try {
+            new RESTImportStrategy().importShapefile(gsClient, job);
+            fail();
+        } catch (ImportFailedException ex) {
+            assertTrue(ex.getMessage().contains("rivers"));
+        }
+        assertEquals(0, gsClient.uploads);
+    }
+
+    @Test
+    public void testOtherKindOfStoreIsRefused() throws IOException {
+        gsClient.storeType = "PostGIS";
+        gsClient.featureTypeNames = new ArrayList<String>();
+        try {
+            new RESTImportStrategy().importShapefile(gsClient, job);
+            fail();
+        } catch (ImportFailedException ex) {
+            assertTrue(ex.getMessage().contains("not a shapefile store"));
+        }
+        assertEquals(0, gsClient.uploads);
+    }
+}
@@ -0,0 +1,232 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ShapefileOptimizerTest {
+
+    private static final String WGS84_PRJ = "GEOGCS[\"GCS_WGS_1984\",DATUM[\"D_WGS_1984\",SPHEROID[\"WGS_1984\",6378137.0,298.257223563]],PRIMEM[\"Greenwich\",0.0],UNIT[\"Degree\",0.0174532925199433]]";
+
+    private File directory;
+    private SpoolManager spoolManager;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("optimizer.test.", "");
+        FileUtils.deleteQuietly(directory);
+        spoolManager = new SpoolManager(directory, Long.MAX_VALUE, 0, 0, 0);
+        spoolManager.sweep();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    /**
+     * @return a .shp holding a single polyline along the x axis with a vertex
+     * every unit, bent slightly in the middle
+     */
+    private static byte[] createShp() {
+        int numPoints = 11;
+        int contentLength = 44 + 4 + 16 * numPoints;
+        ByteBuffer shp = ByteBuffer.allocate(100 + 8 + contentLength);
+        shp.putInt(0, 9994);
+        shp.putInt(24, shp.capacity() / 2);
+        shp.order(ByteOrder.LITTLE_ENDIAN);
+        shp.putInt(28, 1000);
+        shp.putInt(32, 3);
+        shp.order(ByteOrder.BIG_ENDIAN);
+        shp.putInt(100, 1);
+        shp.putInt(104, contentLength / 2);
+        shp.order(ByteOrder.LITTLE_ENDIAN);
+        shp.putInt(108, 3);
+        shp.putDouble(112, 0).putDouble(120, 0).putDouble(128, 10).putDouble(136, 0.05);
+        shp.putInt(144, 1);
+        shp.putInt(148, numPoints);
+        shp.putInt(152, 0);
+        for (int point = 0; point < numPoints; point++) {
+            shp.putDouble(156 + 16 * point, point);
+            shp.putDouble(164 + 16 * point, point == 5 ? 0.05 : 0);
+        }
+        return shp.array();
+    }
+
+    /**
+     * @return a .dbf with NAME, CODE and NOTES fields and a single record
+     */
+    private static byte[] createDbf() throws IOException {
+        String[] names = new String[]{"NAME", "CODE", "NOTES"};
+        int[] lengths = new int[]{10, 5, 20};
+        ByteBuffer dbf = ByteBuffer.allocate(32 + 32 * names.length + 1 + 1 + 35 + 1).order(ByteOrder.LITTLE_ENDIAN);
+        dbf.put(0, (byte) 3);
+        dbf.putInt(4, 1);
+        dbf.putShort(8, (short) (32 + 32 * names.length + 1));
+        dbf.putShort(10, (short) 36);
+        for (int index = 0; index < names.length; index++) {
+            byte[] name = names[index].getBytes("US-ASCII");
+            System.arraycopy(name, 0, dbf.array(), 32 + 32 * index, name.length);
+            dbf.put(32 + 32 * index + 11, (byte) 'C');
+            dbf.put(32 + 32 * index + 16, (byte) lengths[index]);
+        }
+        int recordStart = 32 + 32 * names.length;
+        dbf.put(recordStart, (byte) 0x0D);
+        byte[] record = " Main St   00042a note nobody reads  ".getBytes("US-ASCII");
+        System.arraycopy(record, 0, dbf.array(), recordStart + 1, 36);
+        dbf.put(dbf.capacity() - 1, (byte) 0x1A);
+        return dbf.array();
+    }
+
+    private SpoolManager.Spool spool(byte[] shp, byte[] dbf) throws IOException {
+        return spool(shp, dbf, "GEOGCS[\"WGS 84\"]");
+    }
+
+    private SpoolManager.Spool spool(byte[] shp, byte[] dbf, String prj) throws IOException {
+        SpoolManager.Spool spool = spoolManager.createSpool("roads.zip", -1);
+        ZipOutputStream zipOutputStream = new ZipOutputStream(spool.openOutputStream());
+        try {
+            zipOutputStream.putNextEntry(new ZipEntry("roads.shp"));
+            zipOutputStream.write(shp);
+            zipOutputStream.putNextEntry(new ZipEntry("roads.shx"));
+            zipOutputStream.write(new byte[108]);
+            zipOutputStream.putNextEntry(new ZipEntry("roads.dbf"));
+            zipOutputStream.write(dbf);
+            zipOutputStream.putNextEntry(new ZipEntry("roads.prj"));
+            zipOutputStream.write(prj.getBytes("US-ASCII"));
+        } finally {
+            zipOutputStream.close();
+        }
+        return spool;
+    }
+
+    private static Map<String, byte[]> unzip(SpoolManager.Spool spool) throws IOException {
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        ZipInputStream zipInputStream = new ZipInputStream(spool.openInputStream());
+        try {
+            for (ZipEntry entry = zipInputStream.getNextEntry(); entry != null; entry = zipInputStream.getNextEntry()) {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                IOUtils.copy(zipInputStream, outputStream);
+                entries.put(entry.getName(), outputStream.toByteArray());
+            }
+        } finally {
+            IOUtils.closeQuietly((InputStream) zipInputStream);
+        }
+        return entries;
+    }
+
+    @Test
+    public void testSimplifyDropsVerticesWithinTolerance() {
+        double[] xs = new double[]{0, 1, 2, 3, 4};
+        double[] ys = new double[]{0, 1.01, 2, 1.01, 0};
+        boolean[] keep = new boolean[xs.length];
+        assertEquals(3, ShapefileOptimizer.simplify(xs, ys, 0, 4, keep, 0.1));
+        assertTrue(Arrays.equals(new boolean[]{true, false, true, false, true}, keep));
+    }
+
+    @Test
+    public void testOptimize() throws Exception {
+        SpoolManager.Spool source = spool(createShp(), createDbf());
+        ShapefileOptimizer optimizer = new ShapefileOptimizer(Arrays.asList("name", "code"), 0.1);
+        ShapefileOptimizer.Result result = optimizer.optimize(source, spoolManager);
+        Map<String, byte[]> entries = unzip(result.getSpool());
+
+        assertEquals(1, result.getAttributesRemoved());
+        assertEquals(11, result.getVerticesRead());
+        assertEquals(2, result.getVerticesWritten());
+        assertEquals("GEOGCS[\"WGS 84\"]", new String(entries.get("roads.prj"), "US-ASCII"));
+
+        ByteBuffer shp = ByteBuffer.wrap(entries.get("roads.shp"));
+        assertEquals(shp.capacity() / 2, shp.getInt(24));
+        assertEquals(44 + 4 + 32, shp.getInt(104) * 2);
+        shp.order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(2, shp.getInt(148));
+        assertEquals(10, shp.getDouble(172), 0);
+        // Bounds shrink to the remaining vertices
+        assertEquals(0, shp.getDouble(60), 0);
+
+        ByteBuffer shx = ByteBuffer.wrap(entries.get("roads.shx"));
+        assertEquals(108, shx.capacity());
+        assertEquals(54, shx.getInt(24));
+        assertEquals(50, shx.getInt(100));
+        assertEquals(40, shx.getInt(104));
+
+        ByteBuffer dbf = ByteBuffer.wrap(entries.get("roads.dbf")).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(32 + 64 + 1, dbf.getShort(8));
+        assertEquals(16, dbf.getShort(10));
+        assertEquals(" Main St   00042", new String(entries.get("roads.dbf"), 32 + 64 + 1, 16, "US-ASCII"));
+        assertEquals(0x1A, dbf.get(dbf.capacity() - 1));
+
+        source.release();
+        result.getSpool().release();
+    }
+
+    @Test
+    public void testMissingAttributesFail() throws Exception {
+        SpoolManager.Spool source = spool(createShp(), createDbf());
+        try {
+            new ShapefileOptimizer(Arrays.asList("owner"), 0).optimize(source, spoolManager);
+            fail("Shapefile without the attribute to keep was optimized");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("OWNER"));
+        }
+        // Only the source spool is left next to the spool directory's marker
+        assertEquals(2, directory.list().length);
+        source.release();
+    }
+
+    @Test
+    public void testReproject() throws Exception {
+        SpoolManager.Spool source = spool(createShp(), createDbf(), WGS84_PRJ);
+        ShapefileOptimizer.Result result = new ShapefileOptimizer(null, 0, "EPSG:3857").optimize(source, spoolManager);
+        Map<String, byte[]> entries = unzip(result.getSpool());
+
+        assertEquals("EPSG:3857", result.getSrsName());
+        assertEquals(1, result.getRecordsReprojected());
+        assertEquals(result.getPrj(), new String(entries.get("roads.prj"), "UTF-8"));
+        assertFalse(WGS84_PRJ.equals(result.getPrj()));
+
+        ByteBuffer shp = ByteBuffer.wrap(entries.get("roads.shp")).order(ByteOrder.LITTLE_ENDIAN);
+        // Every vertex is kept, 10 degrees east of Greenwich on the equator
+        assertEquals(11, shp.getInt(148));
+        assertEquals(1113194.9, shp.getDouble(156 + 16 * 10), 0.1);
+        assertEquals(0, shp.getDouble(164 + 16 * 10), 0.001);
+        assertEquals(1113194.9, shp.getDouble(128), 0.1);
+        assertEquals(1113194.9, shp.getDouble(52), 0.1);
+        assertEquals(108, entries.get("roads.shx").length);
+
+        source.release();
+        result.getSpool().release();
+    }
+
+    @Test
+    public void testUnpackedFilesAreReservedFromTheSpool() throws Exception {
+        SpoolManager.Spool source = spool(createShp(), createDbf());
+        SpoolManager limited = new SpoolManager(directory, 1024, 0, 0, 0);
+        try {
+            new ShapefileOptimizer(Arrays.asList("name"), 0).optimize(source, limited);
+            fail("Shapefile was unpacked beyond the spool's budget");
+        } catch (SpoolManager.SpoolFullException ex) {
+            // The unpacked files are removed and their reservation given back
+        }
+        assertEquals(2, directory.list().length);
+        assertTrue(limited.reserve(1024));
+        source.release();
+    }
+}
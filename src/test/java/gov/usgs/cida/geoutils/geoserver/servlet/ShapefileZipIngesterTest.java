@@ -0,0 +1,228 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ShapefileZipIngesterTest {
+
+    private static final String BOUNDARY = "----boundary";
+    private File destination;
+    private SpoolManager spoolManager;
+
+    @Before
+    public void setUp() throws Exception {
+        destination = File.createTempFile("ingest.test.", ".zip");
+        // Spooled to disk so that the normalized zips can be opened
+        spoolManager = new SpoolManager(new File(destination.getPath() + ".spool"), Long.MAX_VALUE, 0, 0, 0);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(destination);
+        FileUtils.deleteQuietly(spoolManager.getDirectory());
+    }
+
+    static byte[] createZip(String... namesAndContents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        for (int i = 0; i < namesAndContents.length; i += 2) {
+            zip.putNextEntry(new ZipEntry(namesAndContents[i]));
+            zip.write(namesAndContents[i + 1].getBytes("UTF-8"));
+            zip.closeEntry();
+        }
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testFlattensAndCapturesPrj() throws Exception {
+        byte[] zip = createZip(
+                "data/", "",
+                "data/roads.shp", "shp",
+                "data/roads.shx", "shx",
+                "data/roads.dbf", "dbf",
+                "data/roads.prj", "GEOGCS[\"WGS 84\"]",
+                "__MACOSX/data/._roads.shp", "fork");
+
+        ShapefileZipIngester.Result result = new ShapefileZipIngester(Long.MAX_VALUE).ingest(new ByteArrayInputStream(zip), destination);
+
+        assertEquals("roads", result.getShapefileName());
+        assertEquals("GEOGCS[\"WGS 84\"]", result.getPrj());
+        assertEquals(4, result.getEntryCount());
+
+        List<String> names = new ArrayList<String>();
+        ZipFile zipFile = new ZipFile(destination);
+        try {
+            for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements();) {
+                names.add(entries.nextElement().getName());
+            }
+        } finally {
+            zipFile.close();
+        }
+        assertEquals(4, names.size());
+        assertTrue(names.contains("roads.shp"));
+        assertTrue(names.contains("roads.prj"));
+    }
+
+    @Test
+    public void testDigestFollowsContent() throws Exception {
+        byte[] zip = createZip("roads.shp", "shp", "roads.shx", "shx", "roads.dbf", "dbf");
+        byte[] changed = createZip("roads.shp", "shp", "roads.shx", "shx", "roads.dbf", "dbf2");
+        ShapefileZipIngester ingester = new ShapefileZipIngester(Long.MAX_VALUE);
+
+        String digest = ingester.ingest(new ByteArrayInputStream(zip), destination).getDigest();
+        assertEquals(40, digest.length());
+        assertEquals(digest, ingester.ingest(new ByteArrayInputStream(zip), destination).getDigest());
+        assertFalse(digest.equals(ingester.ingest(new ByteArrayInputStream(changed), destination).getDigest()));
+    }
+
+    @Test
+    public void testKeepsOtherEntries() throws Exception {
+        byte[] zip = createZip("roads.shp", "shp", "roads.shx", "shx", "roads.dbf", "dbf", "roads.shp.iso.xml", "xml", "readme.txt", "txt");
+        ShapefileZipIngester.Result result = new ShapefileZipIngester(Long.MAX_VALUE).ingest(new ByteArrayInputStream(zip), destination);
+        assertEquals(5, result.getEntryCount());
+        assertEquals("roads", result.getShapefileName());
+    }
+
+    /**
+     * @return a multipart body whose parts are given as field names and
+     * contents, with a file name given for fields starting with "file"
+     */
+    private static byte[] createMultipartBody(String... fieldsAndContents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < fieldsAndContents.length; i += 2) {
+            String field = fieldsAndContents[i];
+            bytes.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + field + "\""
+                    + (field.startsWith("file") ? "; filename=\"" + field + ".zip\"\r\nContent-Type: application/zip" : "")
+                    + "\r\n\r\n" + fieldsAndContents[i + 1] + "\r\n").getBytes("UTF-8"));
+        }
+        bytes.write(("--" + BOUNDARY + "--\r\n").getBytes("UTF-8"));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the headers of a multipart POST with a body of the given length
+     */
+    private static HttpServletRequest createMultipartRequest(final int contentLength) {
+        return (HttpServletRequest) Proxy.newProxyInstance(ShapefileZipIngesterTest.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getMethod".equals(method.getName())) {
+                    return "POST";
+                } else if ("getContentType".equals(method.getName())) {
+                    return "multipart/form-data; boundary=" + BOUNDARY;
+                } else if ("getContentLength".equals(method.getName())) {
+                    return contentLength;
+                }
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testOpensFileFieldNamedByParameter() throws Exception {
+        byte[] body = createMultipartBody("layer", "roads", "fileOther", "other", "fileUpload", "upload");
+        InputStream upload = ShapefileZipIngester.openUploadStream(createMultipartRequest(body.length), new ByteArrayInputStream(body), "fileUpload");
+        assertEquals("upload", IOUtils.toString(upload, "UTF-8"));
+    }
+
+    @Test
+    public void testMissingFileFieldIsReported() throws Exception {
+        byte[] body = createMultipartBody("fileOther", "other");
+        try {
+            ShapefileZipIngester.openUploadStream(createMultipartRequest(body.length), new ByteArrayInputStream(body), "fileUpload");
+            fail();
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("fileUpload"));
+        }
+    }
+
+    @Test
+    public void testRejectsMissingMember() throws Exception {
+        byte[] zip = createZip("roads.shp", "shp", "roads.shx", "shx");
+        try {
+            new ShapefileZipIngester(Long.MAX_VALUE).ingest(new ByteArrayInputStream(zip), destination);
+            fail();
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains(".dbf"));
+        }
+    }
+
+    @Test
+    public void testRejectsNonZip() throws Exception {
+        try {
+            new ShapefileZipIngester(Long.MAX_VALUE).ingest(new ByteArrayInputStream("not a zip".getBytes("UTF-8")), destination);
+            fail();
+        } catch (IOException ex) {
+            assertNotNull(ex.getMessage());
+        }
+    }
+
+    @Test(expected = ShapefileZipIngester.UploadTooLargeException.class)
+    public void testRejectsOversizedUpload() throws Exception {
+        byte[] zip = createZip("roads.shp", "shp", "roads.shx", "shx", "roads.dbf", "dbf");
+        new ShapefileZipIngester(zip.length / 2).ingest(new ByteArrayInputStream(zip), destination);
+    }
+
+    @Test
+    public void testBatchOfNestedZips() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        zip.putNextEntry(new ZipEntry("batch/roads.zip"));
+        zip.write(createZip("roads.shp", "shp", "roads.shx", "shx", "roads.dbf", "dbf"));
+        zip.putNextEntry(new ZipEntry("batch/broken.zip"));
+        zip.write(createZip("broken.shp", "shp"));
+        zip.putNextEntry(new ZipEntry("batch/rivers.zip"));
+        zip.write(createZip("rivers.shp", "shp", "rivers.shx", "shx", "rivers.dbf", "dbf"));
+        zip.close();
+
+        List<ShapefileZipIngester.Item> items = new ShapefileZipIngester(Long.MAX_VALUE).ingestBatch(new ByteArrayInputStream(bytes.toByteArray()), "batch.zip", spoolManager);
+        try {
+            assertEquals(3, items.size());
+            assertEquals("roads", items.get(0).getResult().getShapefileName());
+            assertNull(items.get(1).getResult());
+            assertTrue(items.get(1).getError().getMessage().contains(".shx"));
+            assertFalse(items.get(1).getDestination().exists());
+            assertEquals("rivers", items.get(2).getResult().getShapefileName());
+            ZipFile rivers = new ZipFile(items.get(2).getDestination());
+            assertEquals(3, rivers.size());
+            rivers.close();
+        } finally {
+            for (ShapefileZipIngester.Item item : items) {
+                item.release();
+            }
+        }
+    }
+
+    @Test
+    public void testBatchOfSingleZip() throws Exception {
+        byte[] zip = createZip("roads.shp", "shp", "roads.shx", "shx", "roads.dbf", "dbf");
+        List<ShapefileZipIngester.Item> items = new ShapefileZipIngester(Long.MAX_VALUE).ingestBatch(new ByteArrayInputStream(zip), "roads.zip", spoolManager);
+        try {
+            assertEquals(1, items.size());
+            assertEquals("roads.zip", items.get(0).getName());
+            assertEquals("roads", items.get(0).getResult().getShapefileName());
+        } finally {
+            items.get(0).release();
+        }
+    }
+}
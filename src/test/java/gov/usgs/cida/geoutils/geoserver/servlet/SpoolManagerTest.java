@@ -0,0 +1,174 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SpoolManagerTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("spool.test.", "");
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    private static void write(SpoolManager.Spool spool, int size) throws Exception {
+        OutputStream outputStream = spool.openOutputStream();
+        try {
+            outputStream.write(new byte[size]);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    @Test
+    public void testSameFileNameGetsSeparateSpools() throws Exception {
+        SpoolManager spoolManager = new SpoolManager(directory, Long.MAX_VALUE, 16, 1024, 0);
+        SpoolManager.Spool first = spoolManager.createSpool("roads.zip", -1);
+        SpoolManager.Spool second = spoolManager.createSpool("roads.zip", -1);
+        write(first, 100);
+        write(second, 200);
+
+        assertFalse(first.getFile().equals(second.getFile()));
+        assertEquals(100, first.getFile().length());
+        assertEquals(200, second.getFile().length());
+        first.release();
+        assertFalse(first.getFile().getParentFile().exists());
+        assertTrue(second.getFile().exists());
+        second.release();
+        assertEquals("0", spoolManager.getStats().get("spool.disk.reserved"));
+    }
+
+    @Test
+    public void testSmallUploadStaysInMemory() throws Exception {
+        SpoolManager spoolManager = new SpoolManager(directory, Long.MAX_VALUE, 1024, 4096, 0);
+        SpoolManager.Spool spool = spoolManager.createSpool("roads.zip", 100);
+        write(spool, 100);
+
+        assertTrue(spool.isInMemory());
+        assertFalse(spool.getFile().exists());
+        assertEquals(100, IOUtils.toByteArray(spool.openInputStream()).length);
+        assertEquals(100, spool.toFile().length());
+        assertFalse(spool.isInMemory());
+        spool.release();
+        assertEquals("0", spoolManager.getStats().get("spool.memory.reserved"));
+        assertEquals("0", spoolManager.getStats().get("spool.disk.reserved"));
+    }
+
+    @Test
+    public void testDiskBudgetIsEnforced() throws Exception {
+        SpoolManager spoolManager = new SpoolManager(directory, 1000, 0, 0, 0);
+        SpoolManager.Spool spool = spoolManager.createSpool("roads.zip", 600);
+        try {
+            spoolManager.createSpool("rivers.zip", 600);
+            fail("Upload should not have fit");
+        } catch (SpoolManager.SpoolFullException ex) {
+            assertEquals("1", spoolManager.getStats().get("spool.rejected"));
+        }
+
+        SpoolManager.Spool unknownSize = spoolManager.createSpool("lakes.zip", -1);
+        try {
+            write(unknownSize, 600);
+            fail("Upload should have outgrown the budget");
+        } catch (SpoolManager.SpoolFullException ex) {
+            unknownSize.release();
+        }
+        spool.release();
+        spoolManager.createSpool("rivers.zip", 600).release();
+    }
+
+    @Test
+    public void testSweepRemovesOrphans() throws Exception {
+        SpoolManager spoolManager = new SpoolManager(directory, Long.MAX_VALUE, 0, 0, 0);
+        spoolManager.sweep();
+        SpoolManager.Spool crashed = spoolManager.createSpool("roads.zip", -1);
+        write(crashed, 100);
+        spoolManager.close();
+
+        spoolManager = new SpoolManager(directory, Long.MAX_VALUE, 0, 0, 0);
+        assertEquals(1, spoolManager.sweep());
+        spoolManager.close();
+        assertArrayEquals(new String[]{SpoolManager.MARKER_FILE}, directory.list());
+    }
+
+    @Test
+    public void testSweepOnlyRemovesSpools() throws Exception {
+        SpoolManager spoolManager = new SpoolManager(directory, Long.MAX_VALUE, 0, 0, 0);
+        assertEquals(0, spoolManager.sweep());
+        spoolManager.close();
+        File orphan = new File(directory, "0b6c2e0e-4a6e-4a39-9d43-3c1a8a2b4f10");
+        File workDirectory = new File(directory, "optimize-5d0a3c52-7c1e-4d0b-8a55-2f1f6b9e7a31");
+        File other = new File(directory, "notes");
+        FileUtils.forceMkdir(orphan);
+        FileUtils.forceMkdir(workDirectory);
+        FileUtils.forceMkdir(other);
+
+        spoolManager = new SpoolManager(directory, Long.MAX_VALUE, 0, 0, 0);
+        assertEquals(2, spoolManager.sweep());
+        spoolManager.close();
+        assertFalse(orphan.exists());
+        assertFalse(workDirectory.exists());
+        assertTrue(other.exists());
+    }
+
+    @Test
+    public void testSweepLeavesDirectoryItDidNotCreate() throws Exception {
+        File orphan = new File(directory, "0b6c2e0e-4a6e-4a39-9d43-3c1a8a2b4f10");
+        FileUtils.forceMkdir(orphan);
+        SpoolManager spoolManager = new SpoolManager(directory, Long.MAX_VALUE, 0, 0, 0);
+        assertEquals(0, spoolManager.sweep());
+        spoolManager.close();
+        assertTrue(orphan.exists());
+        assertFalse(new File(directory, SpoolManager.MARKER_FILE).exists());
+    }
+
+    @Test
+    public void testSweepLeavesDirectoryInUse() throws Exception {
+        SpoolManager first = new SpoolManager(directory, Long.MAX_VALUE, 0, 0, 0);
+        first.sweep();
+        SpoolManager.Spool spool = first.createSpool("roads.zip", -1);
+        write(spool, 100);
+
+        SpoolManager second = new SpoolManager(directory, Long.MAX_VALUE, 0, 0, 0);
+        assertEquals(0, second.sweep());
+        assertTrue(spool.getFile().exists());
+        second.close();
+        spool.release();
+        first.close();
+    }
+
+    @Test
+    public void testWriteAfterReleaseReservesNothing() throws Exception {
+        SpoolManager spoolManager = new SpoolManager(directory, Long.MAX_VALUE, 0, 0, 0);
+        spoolManager.sweep();
+        SpoolManager.Spool spool = spoolManager.createSpool("roads.zip", -1);
+        OutputStream outputStream = spool.openOutputStream();
+        outputStream.write(new byte[100]);
+        // As when a receive times out while a write is on its way
+        spool.release();
+        try {
+            outputStream.write(new byte[2 * 1024 * 1024]);
+            fail("Released spool was written to");
+        } catch (IOException ex) {
+            assertEquals("0", spoolManager.getStats().get("spool.disk.reserved"));
+        } finally {
+            IOUtils.closeQuietly(outputStream);
+            spoolManager.close();
+        }
+        assertEquals("0", spoolManager.getStats().get("spool.disk.reserved"));
+        assertEquals("0", spoolManager.getStats().get("spool.active"));
+    }
+}
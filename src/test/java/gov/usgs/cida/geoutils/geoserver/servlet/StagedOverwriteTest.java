@@ -0,0 +1,166 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import it.geosolutions.geoserver.rest.encoder.GSResourceEncoder.ProjectionPolicy;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StagedOverwriteTest {
+
+    private StubStore gsClient;
+    private StubStrategy importStrategy;
+    private StagedOverwrite stagedOverwrite;
+    private ImportJob job;
+
+    /**
+     * Keeps the feature types of a single store, by layer name, along with
+     * the name of their data
+     */
+    static class StubStore extends GeoServerClient {
+
+        final Map<String, String> featureTypes = new LinkedHashMap<String, String>();
+        String failRenameOf;
+
+        StubStore() throws IOException {
+            super(new DefaultHttpClient(), new PoolingClientConnectionManager(), new URL("http://localhost:8080/geoserver"), "admin", "geoserver", 1024);
+        }
+
+        @Override
+        boolean layerExists(String workspaceName, String layerName) {
+            return featureTypes.containsKey(layerName);
+        }
+
+        @Override
+        boolean renameFeatureType(String workspaceName, String storeName, String layerName, String newLayerName) throws IOException {
+            if (layerName.equals(failRenameOf)) {
+                throw new ImportFailedException("GeoServer could not rename " + layerName);
+            }
+            if (!featureTypes.containsKey(layerName)) {
+                return false;
+            }
+            featureTypes.put(newLayerName, featureTypes.remove(layerName));
+            return true;
+        }
+
+        @Override
+        String getNativeName(String workspaceName, String storeName, String layerName) {
+            return featureTypes.get(layerName);
+        }
+
+        @Override
+        boolean unpublishFeatureType(String workspaceName, String storeName, String layerName) {
+            return featureTypes.remove(layerName) != null;
+        }
+
+        @Override
+        boolean reloadStore(String workspaceName, String storeName) {
+            return true;
+        }
+    }
+
+    /**
+     * Records the data it is asked to remove
+     */
+    static class StubStrategy implements ImportStrategy {
+
+        final List<String> removed = new ArrayList<String>();
+        boolean canRemove = true;
+
+        @Override
+        public String importShapefile(GeoServerClient gsClient, ImportJob job) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean removeNativeData(GeoServerClient gsClient, ImportJob job, String nativeName) {
+            if (canRemove) {
+                removed.add(nativeName);
+            }
+            return canRemove;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        gsClient = new StubStore();
+        importStrategy = new StubStrategy();
+        stagedOverwrite = new StagedOverwrite(new CatalogCache(0, 10), new StoreReloader("test-store-reload", 0), new PipelineMetrics());
+        job = new ImportJob("upload", "store", "roads", "EPSG:4326", ProjectionPolicy.REPROJECT_TO_DECLARED, true);
+    }
+
+    @Test
+    public void testStagedLayerReplacesLiveLayerAndItsData() throws Exception {
+        String stagedLayerName = StagedOverwrite.getStagedLayerName(job);
+        gsClient.featureTypes.put("roads", "roads_staging_old");
+        gsClient.featureTypes.put(stagedLayerName, stagedLayerName);
+
+        assertEquals("roads", stagedOverwrite.swap(gsClient, job, stagedLayerName, importStrategy));
+        assertEquals(1, gsClient.featureTypes.size());
+        assertEquals(stagedLayerName, gsClient.featureTypes.get("roads"));
+        assertEquals(1, importStrategy.removed.size());
+        assertEquals("roads_staging_old", importStrategy.removed.get(0));
+        assertNull(job.getResponseMap().get("replaced.native"));
+    }
+
+    @Test
+    public void testFirstImportHasNothingToReplace() throws Exception {
+        String stagedLayerName = StagedOverwrite.getStagedLayerName(job);
+        gsClient.featureTypes.put(stagedLayerName, stagedLayerName);
+
+        assertEquals("roads", stagedOverwrite.swap(gsClient, job, stagedLayerName, importStrategy));
+        assertEquals(stagedLayerName, gsClient.featureTypes.get("roads"));
+        assertTrue(importStrategy.removed.isEmpty());
+    }
+
+    @Test
+    public void testFailedSwapRestoresLiveLayer() throws Exception {
+        String stagedLayerName = StagedOverwrite.getStagedLayerName(job);
+        gsClient.featureTypes.put("roads", "roads");
+        gsClient.featureTypes.put(stagedLayerName, stagedLayerName);
+        gsClient.failRenameOf = stagedLayerName;
+
+        try {
+            stagedOverwrite.swap(gsClient, job, stagedLayerName, importStrategy);
+            fail("Swap should have failed");
+        } catch (ImportFailedException ex) {
+            assertEquals("roads", gsClient.featureTypes.get("roads"));
+            assertFalse(gsClient.featureTypes.containsKey(StagedOverwrite.getReplacedLayerName(job)));
+        }
+        assertTrue(importStrategy.removed.isEmpty());
+
+        stagedOverwrite.removeStaged(gsClient, job, stagedLayerName, importStrategy);
+        assertEquals(1, gsClient.featureTypes.size());
+        assertEquals(stagedLayerName, importStrategy.removed.get(0));
+    }
+
+    @Test
+    public void testMissingStagedLayerRestoresLiveLayer() throws Exception {
+        gsClient.featureTypes.put("roads", "roads");
+        try {
+            stagedOverwrite.swap(gsClient, job, StagedOverwrite.getStagedLayerName(job), importStrategy);
+            fail("Swap should have failed");
+        } catch (ImportFailedException ex) {
+            assertEquals(1, gsClient.featureTypes.size());
+            assertEquals("roads", gsClient.featureTypes.get("roads"));
+        }
+    }
+
+    @Test
+    public void testDataLeftInStoreIsReported() throws Exception {
+        String stagedLayerName = StagedOverwrite.getStagedLayerName(job);
+        gsClient.featureTypes.put("roads", "roads");
+        gsClient.featureTypes.put(stagedLayerName, stagedLayerName);
+        importStrategy.canRemove = false;
+
+        stagedOverwrite.swap(gsClient, job, stagedLayerName, importStrategy);
+        assertEquals("roads", job.getResponseMap().get("replaced.native"));
+    }
+}
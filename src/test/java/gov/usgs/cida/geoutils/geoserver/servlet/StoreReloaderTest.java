@@ -0,0 +1,53 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StoreReloaderTest {
+
+    @Test
+    public void testBurstIsCoalesced() throws Exception {
+        CatalogCacheTest.StubGeoServerClient gsClient = new CatalogCacheTest.StubGeoServerClient();
+        StoreReloader reloader = new StoreReloader("test-store-reload", 200);
+        for (int i = 0; i < 10; i++) {
+            reloader.requestReload(gsClient, "ws", "store");
+        }
+        reloader.requestReload(gsClient, "ws", "other");
+        assertEquals("2", reloader.getStats().get("store.reload.pending"));
+
+        Thread.sleep(1000);
+        synchronized (gsClient) {
+            assertEquals(2, gsClient.reloads);
+        }
+        assertEquals("9", reloader.getStats().get("store.reload.coalesced"));
+        assertEquals("2", reloader.getStats().get("store.reload.completed"));
+        reloader.shutdown();
+    }
+
+    @Test
+    public void testNoDelayReloadsRightAway() throws Exception {
+        CatalogCacheTest.StubGeoServerClient gsClient = new CatalogCacheTest.StubGeoServerClient();
+        StoreReloader reloader = new StoreReloader("test-store-reload", 0);
+        reloader.requestReload(gsClient, "ws", "store");
+        reloader.requestReload(gsClient, "ws", "store");
+        assertEquals(2, gsClient.reloads);
+    }
+
+    @Test
+    public void testFlushReloadsPendingStoreBeforeImport() throws Exception {
+        CatalogCacheTest.StubGeoServerClient gsClient = new CatalogCacheTest.StubGeoServerClient();
+        StoreReloader reloader = new StoreReloader("test-store-reload", 60000);
+        reloader.requestReload(gsClient, "ws", "store");
+        reloader.requestReload(gsClient, "ws", "store");
+        reloader.flush(gsClient, "ws", "other");
+        assertEquals(0, gsClient.reloads);
+
+        reloader.flush(gsClient, "ws", "store");
+        assertEquals(1, gsClient.reloads);
+        assertEquals("0", reloader.getStats().get("store.reload.pending"));
+        // Nothing left for the scheduled reload to do
+        reloader.flush(gsClient, "ws", "store");
+        assertEquals(1, gsClient.reloads);
+        reloader.shutdown();
+    }
+}
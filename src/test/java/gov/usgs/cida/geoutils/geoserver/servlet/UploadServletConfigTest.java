@@ -0,0 +1,132 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import it.geosolutions.geoserver.rest.encoder.GSResourceEncoder.ProjectionPolicy;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class UploadServletConfigTest {
+
+    private static final String APPLICATION_NAME = "test";
+    private Map<String, String> initParameters;
+    private Properties props;
+    private PoolingClientConnectionManager connectionManager;
+    private DefaultHttpClient httpClient;
+
+    @Before
+    public void setUp() {
+        initParameters = new HashMap<String, String>();
+        initParameters.put("application.name", APPLICATION_NAME);
+        props = new Properties();
+        setProperty("geoserver.endpoint", "http://localhost:8080/geoserver/");
+        setProperty("geoserver.username", "admin");
+        setProperty("geoserver.password", "geoserver");
+        setProperty("default.upload.workspace", "upload");
+        setProperty("default.srs", "EPSG:4326");
+        connectionManager = new PoolingClientConnectionManager();
+        httpClient = new DefaultHttpClient(connectionManager);
+    }
+
+    @After
+    public void tearDown() {
+        connectionManager.shutdown();
+    }
+
+    private void setProperty(String key, String value) {
+        props.setProperty(APPLICATION_NAME + "." + key, value);
+    }
+
+    private UploadServletConfig createConfig() throws ServletException {
+        return new UploadServletConfig(createProxy(ServletConfig.class, initParameters), props, httpClient, connectionManager);
+    }
+
+    /**
+     * @return a ServletConfig or HttpServletRequest answering
+     * getInitParameter and getParameter from a map and everything else with
+     * null
+     */
+    private static <T> T createProxy(Class<T> type, final Map<String, String> parameters) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (("getParameter".equals(method.getName()) || "getInitParameter".equals(method.getName())) && args != null && args.length == 1) {
+                    return parameters.get((String) args[0]);
+                }
+                return null;
+            }
+        }));
+    }
+
+    @Test
+    public void testSettingsAreResolvedOnceAndOverlaidPerRequest() throws Exception {
+        setProperty("max.upload.file.size", "0");
+        setProperty("projection.policy", "none");
+        setProperty("async.threads", "not a number");
+        initParameters.put("projection.policy", "force");
+        UploadServletConfig uploadConfig = createConfig();
+
+        assertEquals(Long.MAX_VALUE, uploadConfig.getMaxFileSize());
+        assertEquals("http://localhost:8080/geoserver", uploadConfig.getGeoserverEndpointURL().toString());
+        assertEquals(4, uploadConfig.getAsyncThreads());
+        HttpServletRequest request = createProxy(HttpServletRequest.class, new HashMap<String, String>());
+        // web.xml init parameters win over properties for projection.policy
+        assertEquals(ProjectionPolicy.FORCE_DECLARED, uploadConfig.getProjectionPolicy(request));
+        assertFalse(uploadConfig.isAsyncImport(request));
+
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("projection.policy", "reproject");
+        parameters.put("async", "true");
+        request = createProxy(HttpServletRequest.class, parameters);
+        assertEquals(ProjectionPolicy.REPROJECT_TO_DECLARED, uploadConfig.getProjectionPolicy(request));
+        assertTrue(uploadConfig.isAsyncImport(request));
+    }
+
+    @Test(expected = ServletException.class)
+    public void testMissingEndpointIsInvalid() throws Exception {
+        props.remove(APPLICATION_NAME + ".geoserver.endpoint");
+        createConfig();
+    }
+
+    @Test
+    public void testReloadReportsSettingsNeedingRestart() throws Exception {
+        UploadServletConfig previous = createConfig();
+        assertTrue(createConfig().getChangedStartupSettings(previous).isEmpty());
+
+        setProperty("async.threads", "8");
+        setProperty("spool.dir", "/var/spool/uploads");
+        setProperty("receive.queue.size", "10");
+        // Read on every request, so they take effect right away
+        setProperty("max.upload.file.size", "1024");
+        setProperty("dedup.enabled", "false");
+        UploadServletConfig reloaded = createConfig();
+
+        assertEquals(Arrays.asList("async.threads", "spool.dir", "receive.queue.size"), reloaded.getChangedStartupSettings(previous));
+        assertEquals(1024, reloaded.getMaxFileSize());
+        assertFalse(reloaded.isDedupEnabled(createProxy(HttpServletRequest.class, new HashMap<String, String>())));
+    }
+
+    @Test
+    public void testStagedOverwritesNeedAStrategyThatRemovesData() throws Exception {
+        setProperty("overwrite.mode", "staged");
+        assertFalse(createConfig().isStagedOverwrite());
+        setProperty("import.mode", "rest");
+        assertFalse(createConfig().isStagedOverwrite());
+
+        setProperty("import.mode", "gpkg");
+        setProperty("gpkg.dir", System.getProperty("java.io.tmpdir"));
+        assertTrue(createConfig().isStagedOverwrite());
+    }
+}
@@ -0,0 +1,69 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import it.geosolutions.geoserver.rest.encoder.GSResourceEncoder.ProjectionPolicy;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class WPSImportRequestEntityTest {
+
+    private File zipFile;
+
+    @Before
+    public void setUp() throws Exception {
+        zipFile = File.createTempFile("entity.test.", ".zip");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(zipFile);
+    }
+
+    @Test
+    public void testContentLengthMatchesWrittenBytes() throws Exception {
+        for (int size : new int[]{0, 1, 2, 3, 4, 1000, 65537}) {
+            byte[] data = new byte[size];
+            for (int i = 0; i < size; i++) {
+                data[i] = (byte) i;
+            }
+            FileUtils.writeByteArrayToFile(zipFile, data);
+
+            WPSImportRequestEntity entity = new WPSImportRequestEntity(zipFile, "ws", "store", "layer", "EPSG:4326", ProjectionPolicy.REPROJECT_TO_DECLARED, null);
+            ByteArrayOutputStream written = new ByteArrayOutputStream();
+            entity.writeTo(written);
+
+            assertEquals(entity.getContentLength(), written.size());
+            assertArrayEquals(written.toByteArray(), IOUtils.toByteArray(entity.getContent()));
+
+            String document = new String(written.toByteArray(), "UTF-8");
+            String encoded = document.substring(document.indexOf("<![CDATA[") + 9, document.indexOf("]]>"));
+            assertArrayEquals(data, Base64.decodeBase64(encoded));
+        }
+    }
+
+    @Test
+    public void testLiteralInputsAreEscaped() throws Exception {
+        WPSImportRequestEntity entity = new WPSImportRequestEntity(zipFile, "a&b", "store", "layer", "EPSG:4326", ProjectionPolicy.NONE, null);
+        String document = IOUtils.toString(entity.getContent(), "UTF-8");
+        assertTrue(document.contains("<wps:LiteralData>a&amp;b</wps:LiteralData>"));
+        assertTrue(document.contains("<wps:LiteralData>NONE</wps:LiteralData>"));
+    }
+
+    @Test
+    public void testReferenceCarriesNoFileContent() throws Exception {
+        WPSImportRequestEntity entity = new WPSImportRequestEntity("http://example.com/spool/a b&c.zip", "ws", "store", "layer", "EPSG:4326", ProjectionPolicy.NONE, null);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        entity.writeTo(written);
+
+        String document = new String(written.toByteArray(), "UTF-8");
+        assertEquals(entity.getContentLength(), written.size());
+        assertFalse(document.contains("CDATA"));
+        assertTrue(document.contains("<wps:Reference mimeType=\"application/zip\" xlink:href=\"http://example.com/spool/a b&amp;c.zip\"/></wps:Input>"));
+    }
+}
@@ -0,0 +1,63 @@
+package gov.usgs.cida.geoutils.geoserver.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class WPSResponseParserTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static String parse(String response, long maxBytes) throws IOException {
+        return WPSResponseParser.parse(new ByteArrayInputStream(response.getBytes(UTF8)), UTF8, maxBytes);
+    }
+
+    @Test
+    public void testLayerName() throws Exception {
+        assertEquals("exception_roads", parse("exception_roads\n", 1024));
+    }
+
+    @Test
+    public void testExceptionReport() throws Exception {
+        String report = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<ows:ExceptionReport xmlns:ows=\"http://www.opengis.net/ows/1.1\" version=\"1.1.0\">"
+                + "<ows:Exception exceptionCode=\"NoApplicableCode\">"
+                + "<ows:ExceptionText>Process failed during execution\n"
+                + "Store roads not found</ows:ExceptionText>"
+                + "</ows:Exception>"
+                + "</ows:ExceptionReport>";
+        try {
+            parse(report, 1024);
+            fail();
+        } catch (ImportFailedException ex) {
+            assertEquals("Process failed during execution\nStore roads not found", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testOversizedResponse() throws Exception {
+        assertEquals("roads", parse("roads", 5));
+        try {
+            parse("roads_and_more", 5);
+            fail();
+        } catch (ImportFailedException ex) {
+            fail();
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("exceeds"));
+        }
+    }
+
+    @Test
+    public void testUnexpectedDocument() throws Exception {
+        try {
+            parse("<html><body>Not found</body></html>", 1024);
+            fail();
+        } catch (ImportFailedException ex) {
+            fail();
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("html"));
+        }
+    }
+}